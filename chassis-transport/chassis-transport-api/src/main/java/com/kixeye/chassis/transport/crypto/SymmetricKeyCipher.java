@@ -20,19 +20,44 @@ package com.kixeye.chassis.transport.crypto;
  * #L%
  */
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+
+import com.kixeye.chassis.transport.serde.ByteBufferPool;
 
 /**
  * A cipher for processing symmetric keys.
  * 
+ * Every thread keeps its own initialized cipher, so the provider is only looked up once per thread. GCM
+ * transformations authenticate the data as well: every message is encrypted with its own random nonce, which is sent in
+ * front of the cipher text, and decrypting a message that was tampered with fails.
+ * 
  * @author ebahtijaragic
  */
 public class SymmetricKeyCipher {
+	public static final int GCM_NONCE_LENGTH = 12;
+	public static final int GCM_TAG_LENGTH = 16;
+
 	private final String cipherProvider;
 	private final String cipherTransformation;
 
 	private final Key secretKey;
+
+	private final boolean authenticated;
+
+	// nonces are entirely random, since every process that shares the key encrypts with it
+	private final SecureRandom nonceRandom = new SecureRandom();
+
+	private final ThreadLocal<Cipher> encryptCiphers = new ThreadLocal<>();
+	private final ThreadLocal<Cipher> decryptCiphers = new ThreadLocal<>();
 	
 	/**
 	 * A cipher for processing symmetric key encryption.
@@ -51,6 +76,19 @@ public class SymmetricKeyCipher {
 		this.cipherProvider = cipherProvider;
 		this.cipherTransformation = cipherTransformation;
 		this.secretKey = SymmetricKeyCryptoUtils.loadRawSecretKey(secretKeyBlob, secretKeyAlgorithm);
+		this.authenticated = cipherTransformation.toUpperCase().contains("/GCM/");
+
+		// fail early on a transformation or key that doesn't work
+		getCipher(Cipher.ENCRYPT_MODE);
+	}
+
+	/**
+	 * Returns true if this cipher authenticates the data it encrypts.
+	 * 
+	 * @return
+	 */
+	public boolean isAuthenticated() {
+		return authenticated;
 	}
 	
 	/**
@@ -63,7 +101,20 @@ public class SymmetricKeyCipher {
 	 * @throws GeneralSecurityException
 	 */
 	public byte[] encrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
-		return SymmetricKeyCryptoUtils.encrypt(data, offset, length, secretKey, cipherTransformation, cipherProvider);
+		Cipher cipher = getCipher(Cipher.ENCRYPT_MODE);
+
+		if (!authenticated) {
+			return cipher.doFinal(data, offset, length);
+		}
+
+		byte[] nonce = initWithNewNonce(cipher);
+
+		byte[] result = new byte[GCM_NONCE_LENGTH + cipher.getOutputSize(length)];
+		System.arraycopy(nonce, 0, result, 0, GCM_NONCE_LENGTH);
+
+		int written = cipher.doFinal(data, offset, length, result, GCM_NONCE_LENGTH);
+
+		return written == result.length - GCM_NONCE_LENGTH ? result : Arrays.copyOf(result, GCM_NONCE_LENGTH + written);
 	}
 	
 	/**
@@ -76,6 +127,176 @@ public class SymmetricKeyCipher {
 	 * @throws GeneralSecurityException
 	 */
 	public byte[] decrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
-		return SymmetricKeyCryptoUtils.decrypt(data, offset, length, secretKey, cipherTransformation, cipherProvider);
+		Cipher cipher = getCipher(Cipher.DECRYPT_MODE);
+
+		try {
+			if (!authenticated) {
+				return cipher.doFinal(data, offset, length);
+			}
+
+			checkNonce(length);
+
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, data, offset, GCM_NONCE_LENGTH));
+
+			return cipher.doFinal(data, offset + GCM_NONCE_LENGTH, length - GCM_NONCE_LENGTH);
+		} catch (GeneralSecurityException e) {
+			// don't reuse a cipher that may be left in the middle of a message
+			decryptCiphers.remove();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Encrypts the remaining data of the input buffer into the output buffer. Both buffers may be heap or direct
+	 * buffers, and both are left after the data that was processed.
+	 * 
+	 * @param input
+	 * @param output
+	 * @return the amount of bytes written
+	 * @throws GeneralSecurityException
+	 */
+	public int encrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+		Cipher cipher = getCipher(Cipher.ENCRYPT_MODE);
+
+		if (!authenticated) {
+			return cipher.doFinal(input, output);
+		}
+
+		byte[] nonce = initWithNewNonce(cipher);
+
+		if (output.remaining() < GCM_NONCE_LENGTH + cipher.getOutputSize(input.remaining())) {
+			throw new ShortBufferException("Output buffer too short for the encrypted data.");
+		}
+
+		output.put(nonce);
+
+		return GCM_NONCE_LENGTH + cipher.doFinal(input, output);
+	}
+
+	/**
+	 * Decrypts the remaining data of the input buffer into the output buffer. Both buffers may be heap or direct
+	 * buffers, and both are left after the data that was processed.
+	 * 
+	 * @param input
+	 * @param output
+	 * @return the amount of bytes written
+	 * @throws GeneralSecurityException
+	 */
+	public int decrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+		Cipher cipher = getCipher(Cipher.DECRYPT_MODE);
+
+		try {
+			if (authenticated) {
+				checkNonce(input.remaining());
+
+				byte[] nonce = new byte[GCM_NONCE_LENGTH];
+				input.get(nonce);
+
+				cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+			}
+
+			return cipher.doFinal(input, output);
+		} catch (GeneralSecurityException e) {
+			// don't reuse a cipher that may be left in the middle of a message
+			decryptCiphers.remove();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Encrypts the remaining data of the input buffer into a buffer from the given pool, which is returned ready to be
+	 * read.
+	 * 
+	 * @param input
+	 * @param pool
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encrypt(ByteBuffer input, ByteBufferPool pool) throws GeneralSecurityException {
+		ByteBuffer output = pool.acquire(getMaxOutputSize(input.remaining()));
+
+		try {
+			encrypt(input, output);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			pool.release(output);
+
+			throw e;
+		}
+
+		output.flip();
+
+		return output;
+	}
+
+	/**
+	 * Decrypts the remaining data of the input buffer into a buffer from the given pool, which is returned ready to be
+	 * read.
+	 * 
+	 * @param input
+	 * @param pool
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer decrypt(ByteBuffer input, ByteBufferPool pool) throws GeneralSecurityException {
+		// decrypting never yields more than the cipher text and a padding block
+		ByteBuffer output = pool.acquire(input.remaining() + getCipher(Cipher.DECRYPT_MODE).getBlockSize());
+
+		try {
+			decrypt(input, output);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			pool.release(output);
+
+			throw e;
+		}
+
+		output.flip();
+
+		return output;
+	}
+
+	private int getMaxOutputSize(int length) throws GeneralSecurityException {
+		Cipher cipher = getCipher(Cipher.ENCRYPT_MODE);
+
+		if (authenticated) {
+			return GCM_NONCE_LENGTH + length + GCM_TAG_LENGTH;
+		}
+
+		return cipher.getOutputSize(length);
+	}
+
+	private byte[] initWithNewNonce(Cipher cipher) throws GeneralSecurityException {
+		byte[] nonce = new byte[GCM_NONCE_LENGTH];
+		nonceRandom.nextBytes(nonce);
+
+		cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+
+		return nonce;
+	}
+
+	private void checkNonce(int length) throws GeneralSecurityException {
+		if (length < GCM_NONCE_LENGTH + GCM_TAG_LENGTH) {
+			throw new AEADBadTagException("Message is too short to be authenticated.");
+		}
+	}
+
+	private Cipher getCipher(int mode) throws GeneralSecurityException {
+		ThreadLocal<Cipher> ciphers = mode == Cipher.ENCRYPT_MODE ? encryptCiphers : decryptCiphers;
+
+		Cipher cipher = ciphers.get();
+
+		if (cipher == null) {
+			cipher = SymmetricKeyCryptoUtils.loadCipher(cipherTransformation, cipherProvider);
+
+			// a cipher goes back to this state after every message, GCM ciphers get a new nonce for every message instead
+			if (!authenticated) {
+				cipher.init(mode, secretKey);
+			}
+
+			ciphers.set(cipher);
+		}
+
+		return cipher;
 	}
 }
@@ -24,6 +24,8 @@ package com.kixeye.chassis.transport.dto;
 import java.nio.ByteBuffer;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 /**
  * Represents an envelope.
  * 
@@ -35,6 +37,26 @@ public class Envelope {
 	public String typeId;
 	public ByteBuffer payload;
     public List<Header> headers;
+    
+    /**
+     * The sub-envelopes of a batch, which are handled as if each came in its own frame.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<Envelope> envelopes;
+    
+    /**
+     * The compact codes that stand in for the action and type ID of sessions that negotiated envelope codes.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer actionCode;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer typeCode;
+    
+    /**
+     * The version of the code table the codes of this envelope and its sub-envelopes were taken from.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer codesVersion;
 
     public Envelope(String action, String typeId, String transactionId, ByteBuffer payload) {
         this.action = action;
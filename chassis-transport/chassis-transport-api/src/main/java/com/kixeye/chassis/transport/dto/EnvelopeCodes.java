@@ -0,0 +1,54 @@
+package com.kixeye.chassis.transport.dto;
+
+/*
+ * #%L
+ * Java Transport API
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+/**
+ * The table of compact codes for actions and type IDs. The code of an action or type ID is its index in the list plus one.
+ * 
+ * The version is a fingerprint of the lists. Envelopes that use codes carry it, and envelopes with a version other than
+ * the one of the table their codes are looked up in are rejected.
+ * 
+ * @author ebahtijaragic
+ */
+public class EnvelopeCodes {
+	public int version;
+	public List<String> actions;
+	public List<String> types;
+	
+	/**
+	 * @param version
+	 * @param actions
+	 * @param types
+	 */
+	public EnvelopeCodes(int version, List<String> actions, List<String> types) {
+		this.version = version;
+		this.actions = actions;
+		this.types = types;
+	}
+
+	/**
+	 * Default constructor.
+	 */
+	public EnvelopeCodes() {
+	}
+}
@@ -29,6 +29,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kixeye.chassis.transport.serde.converter.ProtobufMessageSerDe;
@@ -42,6 +43,14 @@ import com.kixeye.chassis.transport.serde.converter.XmlMessageSerDe;
 @Configuration
 @ComponentScan(basePackageClasses=SerDeConfiguration.class)
 public class SerDeConfiguration {
+	@Bean
+	public ByteBufferPool byteBufferPool(Environment environment) {
+		return new DefaultByteBufferPool(
+				environment.getProperty("serde.bufferPool.direct", Boolean.class, false),
+				environment.getProperty("serde.bufferPool.maxBufferSize", Integer.class, DefaultByteBufferPool.DEFAULT_MAX_BUFFER_SIZE),
+				environment.getProperty("serde.bufferPool.maxBuffersPerSize", Integer.class, DefaultByteBufferPool.DEFAULT_MAX_BUFFERS_PER_SIZE));
+	}
+
 	@Bean
 	public BsonJacksonMessageSerDe bsonMessageSerDe() {
 		return new BsonJacksonMessageSerDe();
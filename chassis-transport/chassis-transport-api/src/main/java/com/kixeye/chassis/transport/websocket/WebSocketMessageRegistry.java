@@ -23,11 +23,13 @@ package com.kixeye.chassis.transport.websocket;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 
 import org.springframework.stereotype.Component;
 
+import com.kixeye.chassis.transport.dto.EnvelopeCodes;
 import com.kixeye.chassis.transport.dto.ServiceError;
 
 /**
@@ -37,12 +39,15 @@ import com.kixeye.chassis.transport.dto.ServiceError;
  */
 @Component
 public class WebSocketMessageRegistry {
-	private ConcurrentHashMap<String, String> typeIdToClass = new ConcurrentHashMap<String, String>();
+	private ConcurrentHashMap<String, Class<?>> typeIdToClass = new ConcurrentHashMap<String, Class<?>>();
 	private ConcurrentHashMap<String, String> classToTypeId = new ConcurrentHashMap<String, String>();
 	
+	private final AtomicInteger version = new AtomicInteger(0);
+	
 	@PostConstruct
 	public void initialize() {
 		registerType("error", ServiceError.class);
+		registerType("envelopeCodes", EnvelopeCodes.class);
 	}
 	
 	/**
@@ -61,8 +66,19 @@ public class WebSocketMessageRegistry {
 	 * @param type
 	 */
 	public synchronized void registerType(String typeId, Class<?> clazz) {
-		typeIdToClass.put(typeId, clazz.getName());
+		typeIdToClass.put(typeId, clazz);
 		classToTypeId.put(clazz.getName(), typeId);
+		
+		version.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the version of this registry, which changes every time a type is registered.
+	 * 
+	 * @return
+	 */
+	public int getVersion() {
+		return version.get();
 	}
 	
 	/**
@@ -72,17 +88,7 @@ public class WebSocketMessageRegistry {
 	 * @return
 	 */
 	public Class<?> getClassByTypeId(String typeId) {
-		try {
-			String className = typeIdToClass.get(typeId);
-			
-			if (className != null) {
-				return Class.forName(typeIdToClass.get(typeId));
-			} else {
-				return null;
-			}
-		} catch (ClassNotFoundException e) {
-			return null;
-		}
+		return typeIdToClass.get(typeId);
 	}
 	
 	/**
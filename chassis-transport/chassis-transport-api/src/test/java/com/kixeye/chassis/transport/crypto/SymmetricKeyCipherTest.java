@@ -0,0 +1,142 @@
+package com.kixeye.chassis.transport.crypto;
+
+/*
+ * #%L
+ * Java Transport API
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.AEADBadTagException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.kixeye.chassis.transport.serde.ByteBufferPool;
+import com.kixeye.chassis.transport.serde.DefaultByteBufferPool;
+
+/**
+ * Tests the {@link SymmetricKeyCipher}
+ * 
+ * @author ebahtijaragic
+ */
+public class SymmetricKeyCipherTest {
+	private static final Random RAND = new Random(SymmetricKeyCipherTest.class.hashCode() + System.nanoTime());
+
+	private static final String[][] CIPHERS = new String[][] {
+		{ "BC", "AES/ECB/PKCS7Padding" },
+		{ "BC", "AES/GCM/NoPadding" },
+		{ "", "AES/ECB/PKCS5Padding" },
+		{ "", "AES/GCM/NoPadding" } };
+
+	@Test
+	public void testRoundTrips() throws Exception {
+		byte[] key = randomBytes(16);
+
+		for (String[] config : CIPHERS) {
+			SymmetricKeyCipher cipher = new SymmetricKeyCipher(config[0], config[1], "AES", key);
+
+			for (int length : new int[] { 0, 1, 16, 1000 }) {
+				byte[] data = randomBytes(length);
+
+				// the cached ciphers are reused for every message
+				for (int i = 0; i < 3; i++) {
+					byte[] encrypted = cipher.encrypt(data, 0, data.length);
+
+					Assert.assertArrayEquals(config[1], data, cipher.decrypt(encrypted, 0, encrypted.length));
+				}
+
+				for (ByteBufferPool pool : new ByteBufferPool[] { new DefaultByteBufferPool(false), new DefaultByteBufferPool(true) }) {
+					ByteBuffer encrypted = cipher.encrypt(ByteBuffer.wrap(data), pool);
+					ByteBuffer decrypted = cipher.decrypt(encrypted, pool);
+
+					byte[] result = new byte[decrypted.remaining()];
+					decrypted.get(result);
+
+					Assert.assertArrayEquals(config[1], data, result);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCompatibleWithUncachedPath() throws Exception {
+		byte[] key = randomBytes(16);
+		byte[] data = randomBytes(100);
+
+		SymmetricKeyCipher cipher = new SymmetricKeyCipher("BC", "AES/ECB/PKCS7Padding", "AES", key);
+
+		byte[] encrypted = cipher.encrypt(data, 0, data.length);
+
+		Assert.assertArrayEquals(data, SymmetricKeyCryptoUtils.decrypt(encrypted, 0, encrypted.length, SymmetricKeyCryptoUtils.loadRawSecretKey(key, "AES"), "AES/ECB/PKCS7Padding", "BC"));
+	}
+
+	@Test
+	public void testGcmAuthenticatesData() throws Exception {
+		SymmetricKeyCipher cipher = new SymmetricKeyCipher("", "AES/GCM/NoPadding", "AES", randomBytes(16));
+
+		Assert.assertTrue(cipher.isAuthenticated());
+
+		byte[] data = randomBytes(100);
+
+		byte[] encrypted = cipher.encrypt(data, 0, data.length);
+
+		Assert.assertEquals(SymmetricKeyCipher.GCM_NONCE_LENGTH + data.length + SymmetricKeyCipher.GCM_TAG_LENGTH, encrypted.length);
+
+		// every message gets its own nonce
+		Assert.assertFalse(Arrays.equals(Arrays.copyOf(encrypted, SymmetricKeyCipher.GCM_NONCE_LENGTH),
+				Arrays.copyOf(cipher.encrypt(data, 0, data.length), SymmetricKeyCipher.GCM_NONCE_LENGTH)));
+
+		encrypted[SymmetricKeyCipher.GCM_NONCE_LENGTH + 5] ^= 1;
+
+		try {
+			cipher.decrypt(encrypted, 0, encrypted.length);
+
+			Assert.fail();
+		} catch (AEADBadTagException e) {
+			// expected
+		}
+
+		// the cipher still works after a failure
+		encrypted = cipher.encrypt(data, 0, data.length);
+
+		Assert.assertArrayEquals(data, cipher.decrypt(encrypted, 0, encrypted.length));
+	}
+
+	@Test
+	public void testGcmNoncesDontRepeatAcrossCiphers() throws Exception {
+		byte[] key = randomBytes(16);
+		byte[] data = randomBytes(100);
+
+		// e.g. two processes that share a key, each of which encrypts its first message
+		byte[] first = new SymmetricKeyCipher("", "AES/GCM/NoPadding", "AES", key).encrypt(data, 0, data.length);
+		byte[] second = new SymmetricKeyCipher("", "AES/GCM/NoPadding", "AES", key).encrypt(data, 0, data.length);
+
+		Assert.assertFalse(Arrays.equals(Arrays.copyOfRange(first, 4, SymmetricKeyCipher.GCM_NONCE_LENGTH),
+				Arrays.copyOfRange(second, 4, SymmetricKeyCipher.GCM_NONCE_LENGTH)));
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		RAND.nextBytes(data);
+
+		return data;
+	}
+}
@@ -20,18 +20,34 @@ package com.kixeye.chassis.transport;
  * #L%
  */
 
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.PostConstruct;
 import javax.validation.Validation;
 import javax.validation.Validator;
 import javax.validation.ValidatorFactory;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.type.AnnotatedTypeMetadata;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.kixeye.chassis.transport.admin.AdminTransportConfiguration;
 import com.kixeye.chassis.transport.http.HttpTransportConfiguration;
+import com.kixeye.chassis.transport.serde.ByteBufferPool;
 import com.kixeye.chassis.transport.serde.SerDeConfiguration;
+import com.kixeye.chassis.transport.shared.ConsolidatedJettyServer;
+import com.kixeye.chassis.transport.shared.JettyServerSettings;
+import com.kixeye.chassis.transport.shared.VirtualThreadExecutor;
+import com.kixeye.chassis.transport.shared.VirtualThreadPinningMonitor;
 import com.kixeye.chassis.transport.websocket.WebSocketTransportConfiguration;
 
 /**
@@ -43,6 +59,29 @@ import com.kixeye.chassis.transport.websocket.WebSocketTransportConfiguration;
 @Import({ AdminTransportConfiguration.class, HttpTransportConfiguration.class, WebSocketTransportConfiguration.class, SerDeConfiguration.class})
 @PropertySource("classpath:/transport-default.properties")
 public class TransportConfiguration {
+    @Autowired(required = false)
+    private MetricRegistry metricRegistry;
+
+	@Autowired
+	private ByteBufferPool byteBufferPool;
+
+	@PostConstruct
+	public void initialize() {
+		if (metricRegistry != null) {
+			metricRegistry.register(name(ByteBufferPool.class, "hits"), new Gauge<Long>() {
+				public Long getValue() {
+					return byteBufferPool.getHits();
+				}
+			});
+
+			metricRegistry.register(name(ByteBufferPool.class, "misses"), new Gauge<Long>() {
+				public Long getValue() {
+					return byteBufferPool.getMisses();
+				}
+			});
+		}
+	}
+
 	@Bean
 	public Validator messageValidator() {
 		// force hibernate validator to log to slf4j
@@ -52,4 +91,47 @@ public class TransportConfiguration {
 		
 	    return factory.getValidator();
 	}
+	
+	@Bean(initMethod="start", destroyMethod="stop")
+	@Conditional(VirtualExecutorEnabledCondition.class)
+	public VirtualThreadPinningMonitor virtualThreadPinningMonitor(@Value("${transport.executor.pinnedThresholdMillis:20}") long pinnedThresholdMillis) {
+		return new VirtualThreadPinningMonitor(metricRegistry, pinnedThresholdMillis);
+	}
+	
+	@Bean
+	@Conditional(ConsolidatedServerEnabledCondition.class)
+	public ConsolidatedJettyServer consolidatedJettyServer(
+			@Value("${http.metrics.threadpool.enabled}") boolean monitorThreadpool,
+			@Value("${transport.executor:platform}") String executorMode,
+			@Value("${transport.consolidated.adminThreads:8}") int adminThreads) {
+		ConsolidatedJettyServer server = new ConsolidatedJettyServer(monitorThreadpool ? metricRegistry : null, VirtualThreadExecutor.isEnabled(executorMode), adminThreads);
+		
+		if (server.getThreadPool() != null) {
+			new JettyServerSettings("transport").bind(server.getThreadPool());
+		}
+		
+		return server;
+	}
+	
+	/**
+	 * A condition to check whether the transports share a single server.
+	 * 
+	 * @author ebahtijaragic
+	 */
+	public static class ConsolidatedServerEnabledCondition implements Condition {
+		public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+			return "true".equalsIgnoreCase(context.getEnvironment().resolvePlaceholders("${transport.consolidated.enabled:false}"));
+		}
+	}
+	
+	/**
+	 * A condition to check whether the transports run on virtual threads.
+	 * 
+	 * @author ebahtijaragic
+	 */
+	public static class VirtualExecutorEnabledCondition implements Condition {
+		public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+			return VirtualThreadExecutor.isEnabled(context.getEnvironment().resolvePlaceholders("${" + VirtualThreadExecutor.EXECUTOR_PROPERTY + ":}"));
+		}
+	}
 }
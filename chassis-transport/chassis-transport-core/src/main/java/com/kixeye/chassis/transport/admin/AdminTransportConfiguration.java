@@ -23,10 +23,13 @@ package com.kixeye.chassis.transport.admin;
 import java.net.InetSocketAddress;
 
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlets.GzipFilter;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -47,10 +50,13 @@ import com.kixeye.chassis.transport.admin.AdminTransportConfiguration.AdminEnabl
 import com.kixeye.chassis.transport.shared.ClasspathDumpServlet;
 import com.kixeye.chassis.transport.shared.ClasspathResourceServlet;
 import com.kixeye.chassis.transport.shared.HealthServlet;
+import com.kixeye.chassis.transport.shared.ConsolidatedJettyServer;
 import com.kixeye.chassis.transport.shared.JettyConnectorRegistry;
+import com.kixeye.chassis.transport.shared.JettyServerSettings;
 import com.kixeye.chassis.transport.shared.PropertiesServlet;
 import com.kixeye.chassis.transport.websocket.WebSocketMessageMappingRegistry;
 import com.kixeye.chassis.transport.websocket.WebSocketMessageRegistry;
+import com.kixeye.chassis.transport.websocket.docs.EnvelopeCodesDocumentationServlet;
 import com.kixeye.chassis.transport.websocket.docs.ProtobufEnvelopeDocumentationServlet;
 import com.kixeye.chassis.transport.websocket.docs.ProtobufMessagesDocumentationServlet;
 
@@ -85,11 +91,17 @@ public class AdminTransportConfiguration {
     @Value("${http.metrics.handler.enabled}")
     private boolean monitorHandler;
 
+    @Value("${http.metrics.connector.enabled}")
+    private boolean monitorConnectors;
+
+    @Autowired(required = false)
+    private ConsolidatedJettyServer consolidatedServer;
+
     @Bean(initMethod="start", destroyMethod="stop")
 	@Order(0)
 	public Server adminServer(
             @Value("${admin.hostname}") String hostname,
-            @Value("${admin.port}") int port) {
+            @Value("${admin.port}") int port) throws Exception {
 
         // set up servlets
         ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
@@ -109,6 +121,7 @@ public class AdminTransportConfiguration {
         if (mappingRegistry != null && messageRegistry != null) {
             context.addServlet(new ServletHolder(new ProtobufMessagesDocumentationServlet(appName, mappingRegistry, messageRegistry)), "/schema/messages/protobuf");
             context.addServlet(new ServletHolder(new ProtobufEnvelopeDocumentationServlet()), "/schema/envelope/protobuf");
+            context.addServlet(new ServletHolder(new EnvelopeCodesDocumentationServlet(mappingRegistry)), "/schema/envelope/codes");
         }
 		
         // add metric servlets if Metric has been initialized
@@ -124,10 +137,33 @@ public class AdminTransportConfiguration {
         // create the server
     	InetSocketAddress address = StringUtils.isBlank(hostname) ? new InetSocketAddress(port) : new InetSocketAddress(hostname, port);
     	
-    	Server server = new Server();
-
-    	JettyConnectorRegistry.registerHttpConnector(server, address);
-        server.setHandler(context);
+    	JettyServerSettings settings = new JettyServerSettings("admin");
+    	
+    	Server server;
+    	ServerConnector connector;
+    	
+    	if (consolidatedServer != null) {
+    		// joins the shared server, but keeps threads of its own so that it still answers when the transports are saturated
+    		server = consolidatedServer.getServer();
+    		
+    		connector = JettyConnectorRegistry.registerHttpConnector(server, address, new HttpConfiguration(), settings, 
+    				settings.bind(consolidatedServer.getAdminExecutor()), 1, 1);
+    	} else {
+    		server = new Server(settings.bind(new QueuedThreadPool()));
+    		
+    		connector = JettyConnectorRegistry.registerHttpConnector(server, address, 
+    				new HttpConfiguration(), settings);
+    	}
+    	
+    	if (metricRegistry != null && monitorConnectors) {
+    		JettyConnectorRegistry.registerConnectorMetrics(connector, "admin", metricRegistry);
+    	}
+    	
+    	if (consolidatedServer != null) {
+    		consolidatedServer.route(connector, context, false);
+    	} else {
+    		server.setHandler(context);
+    	}
     
 		return server;
 	}
@@ -30,12 +30,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
 import com.kixeye.chassis.transport.serde.JacksonMessageSerDe;
+import com.kixeye.chassis.transport.shared.ConsolidatedJettyServer;
 import com.kixeye.chassis.transport.shared.HealthServlet;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlets.GzipFilter;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -56,6 +62,8 @@ import com.codahale.metrics.jetty9.InstrumentedQueuedThreadPool;
 import com.kixeye.chassis.transport.SpringMvcConfiguration;
 import com.kixeye.chassis.transport.http.HttpTransportConfiguration.HttpEnabledCondition;
 import com.kixeye.chassis.transport.shared.JettyConnectorRegistry;
+import com.kixeye.chassis.transport.shared.JettyServerSettings;
+import com.kixeye.chassis.transport.shared.VirtualThreadExecutor;
 import com.kixeye.chassis.transport.swagger.SwaggerRegistry;
 import com.kixeye.chassis.transport.util.SpringContextWrapper;
 import javax.annotation.Nullable;
@@ -80,9 +88,18 @@ public class HttpTransportConfiguration {
     @Value("${http.metrics.handler.enabled}")
     private boolean monitorHandler;
 
+    @Value("${http.metrics.connector.enabled}")
+    private boolean monitorConnectors;
+
+    @Value("${transport.executor:platform}")
+    private String executorMode;
+
     @Autowired(required = false)
     private HealthCheckRegistry healthCheckRegistry;
 
+    @Autowired(required = false)
+    private ConsolidatedJettyServer consolidatedServer;
+
     @Bean(initMethod="start", destroyMethod="stop")
 	@Order(0)
 	public Server httpServer(
@@ -130,33 +147,71 @@ public class HttpTransportConfiguration {
             context.addServlet(new ServletHolder(new HealthServlet(healthCheckRegistry)), "/healthcheck");
         }
 
-        // create the server
-    	Server server;
-    	if (metricRegistry == null || !monitorThreadpool){
-        	server = new Server();
-
-            server.setHandler(context);
-        } else {
-        	server = new Server(new InstrumentedQueuedThreadPool(metricRegistry));
-        	
+    	Handler handler = context;
+    	
+    	if (metricRegistry != null && monitorThreadpool) {
         	InstrumentedHandler instrumented = new InstrumentedHandler(metricRegistry);
             instrumented.setHandler(context);
 
-            server.setHandler(instrumented);
+            handler = instrumented;
         }
+
+    	JettyServerSettings settings = new JettyServerSettings("http", "https");
+
+        // create the server, or join the shared one
+    	Server server;
+    	if (consolidatedServer != null) {
+    		server = consolidatedServer.getServer();
+    	} else {
+	    	if (VirtualThreadExecutor.isEnabled(executorMode)) {
+	    		server = new Server(new ExecutorThreadPool(new VirtualThreadExecutor("http", monitorThreadpool ? metricRegistry : null)));
+	    	} else if (metricRegistry != null && monitorThreadpool) {
+	    		server = new Server(settings.bind(new InstrumentedQueuedThreadPool(metricRegistry)));
+	    	} else {
+	    		server = new Server(settings.bind(new QueuedThreadPool()));
+	    	}
+	    	
+	    	server.setHandler(handler);
+    	}
         
     	// set up connectors
     	if (httpEnabled) {
         	InetSocketAddress address = StringUtils.isBlank(httpHostname) ? new InetSocketAddress(httpPort) : new InetSocketAddress(httpHostname, httpPort);
         	
-        	JettyConnectorRegistry.registerHttpConnector(server, address);
+        	ServerConnector connector = consolidatedServer == null ? null : consolidatedServer.getConnector(address);
+        	
+        	if (connector == null) {
+	        	connector = JettyConnectorRegistry.registerHttpConnector(server, address, 
+	        			new HttpConfiguration(), settings);
+	        	
+	        	if (metricRegistry != null && monitorConnectors) {
+	        		JettyConnectorRegistry.registerConnectorMetrics(connector, "http", metricRegistry);
+	        	}
+        	}
+        	
+        	if (consolidatedServer != null) {
+        		consolidatedServer.route(connector, handler, false);
+        	}
     	}
     	
     	if (httpsEnabled) {
         	InetSocketAddress address = StringUtils.isBlank(httpsHostname) ? new InetSocketAddress(httpsPort) : new InetSocketAddress(httpsHostname, httpsPort);
         	
-        	JettyConnectorRegistry.registerHttpsConnector(server, address, selfSigned, mutualSsl, keyStorePath, keyStoreData, keyStorePassword, keyManagerPassword, 
-        			trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites);
+        	ServerConnector connector = consolidatedServer == null ? null : consolidatedServer.getConnector(address);
+        	
+        	if (connector == null) {
+	        	connector = JettyConnectorRegistry.registerHttpsConnector(server, address, selfSigned, mutualSsl, keyStorePath, keyStoreData, 
+	        			keyStorePassword, keyManagerPassword, trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites, 
+	        			new HttpConfiguration(), settings);
+	        	
+	        	if (metricRegistry != null && monitorConnectors) {
+	        		JettyConnectorRegistry.registerConnectorMetrics(connector, "https", metricRegistry);
+	        	}
+        	}
+        	
+        	if (consolidatedServer != null) {
+        		consolidatedServer.route(connector, handler, false);
+        	}
     	}
         
 		return server;
@@ -0,0 +1,224 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.jetty9.InstrumentedQueuedThreadPool;
+
+/**
+ * A single Jetty server that the HTTP, WebSocket and admin transports share instead of starting one each.
+ *
+ * Every transport adds its connectors and routes them to its handler, and all of them run on one thread pool. A
+ * transport whose address is already taken by another one shares its connector, and WebSocket upgrade requests on such
+ * a connector go to the WebSocket transport while everything else goes to the HTTP transport. The admin connector runs
+ * on a small pool of its own, so that health checks and metrics still answer while the shared pool is saturated.
+ *
+ * The first transport starts the server, the ones that follow start their connectors and handlers as they're added.
+ *
+ * @author ebahtijaragic
+ */
+public class ConsolidatedJettyServer {
+	private static final String UPGRADE_HEADER = "Upgrade";
+	private static final String WEBSOCKET_UPGRADE = "websocket";
+
+	private final Server server;
+	private final Router router = new Router();
+
+	private final QueuedThreadPool adminExecutor;
+
+	/**
+	 * @param metricRegistry the registry of the thread pool metrics, or null to not monitor the thread pools
+	 * @param virtualThreads whether requests run on virtual threads
+	 * @param adminThreads the threads reserved for the admin connector
+	 */
+	public ConsolidatedJettyServer(MetricRegistry metricRegistry, boolean virtualThreads, int adminThreads) {
+		if (virtualThreads) {
+			server = new Server(new ExecutorThreadPool(new VirtualThreadExecutor("transport", metricRegistry)));
+		} else if (metricRegistry != null) {
+			server = new Server(new InstrumentedQueuedThreadPool(metricRegistry));
+		} else {
+			server = new Server();
+		}
+
+		server.setHandler(router);
+
+		adminExecutor = metricRegistry != null ? new InstrumentedQueuedThreadPool(metricRegistry) : new QueuedThreadPool();
+		adminExecutor.setName("admin");
+		adminExecutor.setMinThreads(3);
+		adminExecutor.setMaxThreads(Math.max(3, adminThreads));
+	}
+
+	/**
+	 * Gets the shared server.
+	 *
+	 * @return
+	 */
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Gets the shared thread pool.
+	 *
+	 * @return the pool, or null if requests run on virtual threads
+	 */
+	public QueuedThreadPool getThreadPool() {
+		return server.getThreadPool() instanceof QueuedThreadPool ? (QueuedThreadPool)server.getThreadPool() : null;
+	}
+
+	/**
+	 * Gets the thread pool of the admin connector.
+	 *
+	 * @return
+	 */
+	public QueuedThreadPool getAdminExecutor() {
+		return adminExecutor;
+	}
+
+	/**
+	 * Gets the connector that already listens on an address.
+	 *
+	 * @param address
+	 * @return the connector or null if there's none
+	 */
+	public ServerConnector getConnector(InetSocketAddress address) {
+		for (Connector connector : server.getConnectors()) {
+			if (connector instanceof ServerConnector) {
+				ServerConnector serverConnector = (ServerConnector)connector;
+
+				if (serverConnector.getPort() == address.getPort() && StringUtils.equals(serverConnector.getHost(), address.getHostName())) {
+					return serverConnector;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Routes the requests of a connector to a handler, and starts both if the server is already running.
+	 *
+	 * @param connector
+	 * @param handler
+	 * @param webSocket whether the handler takes the WebSocket upgrade requests of the connector
+	 * @throws Exception
+	 */
+	public synchronized void route(ServerConnector connector, Handler handler, boolean webSocket) throws Exception {
+		Route route = router.routes.get(connector);
+
+		if (route == null) {
+			route = new Route();
+
+			router.routes.put(connector, route);
+		}
+
+		if (webSocket) {
+			route.webSocketHandler = handler;
+		} else {
+			route.handler = handler;
+		}
+
+		boolean added = false;
+
+		for (Handler existing : router.getHandlers() == null ? new Handler[0] : router.getHandlers()) {
+			added |= existing == handler;
+		}
+
+		if (!added) {
+			router.addHandler(handler);
+		}
+
+		if (server.isStarted()) {
+			// beans added to a running container are left alone when it stops unless they're managed
+			router.manage(handler);
+			server.manage(connector);
+
+			if (!handler.isStarted()) {
+				handler.start();
+			}
+
+			if (!connector.isStarted()) {
+				connector.start();
+			}
+		}
+	}
+
+	/**
+	 * Hands every request to the handler of the connector it came in on.
+	 *
+	 * @author ebahtijaragic
+	 */
+	private static class Router extends HandlerCollection {
+		private final ConcurrentHashMap<Connector, Route> routes = new ConcurrentHashMap<>();
+
+		public Router() {
+			super(true);
+		}
+
+		@Override
+		public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException,
+				ServletException {
+			Route route = routes.get(baseRequest.getHttpChannel().getConnector());
+
+			if (route == null) {
+				return;
+			}
+
+			Handler handler = route.handler;
+
+			if (route.webSocketHandler != null && (handler == null || WEBSOCKET_UPGRADE.equalsIgnoreCase(request.getHeader(UPGRADE_HEADER)))) {
+				handler = route.webSocketHandler;
+			}
+
+			if (handler != null) {
+				handler.handle(target, baseRequest, request, response);
+			}
+		}
+	}
+
+	/**
+	 * The handlers of a connector.
+	 *
+	 * @author ebahtijaragic
+	 */
+	private static class Route {
+		private volatile Handler handler;
+		private volatile Handler webSocketHandler;
+	}
+}
@@ -0,0 +1,255 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A timer for large amounts of short timeouts that mostly get cancelled, like request timeouts.
+ *
+ * Timeouts are hashed into the buckets of a wheel that a single thread advances once per tick, so scheduling and
+ * cancelling a timeout is cheap and doesn't contend on a lock. Timeouts fire on the timer thread, at most one tick late,
+ * so their tasks should be quick and hand longer work off to another thread.
+ *
+ * @author ebahtijaragic
+ */
+public class HashedWheelTimer {
+	private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+	private final long tickNanos;
+	private final List<Timeout>[] wheel;
+	private final int mask;
+
+	private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+	private final long startTime;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates and starts a timer.
+	 *
+	 * @param name the name of the timer thread
+	 * @param tickDuration
+	 * @param unit
+	 * @param ticksPerWheel the amount of buckets, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (tickDuration < 1) {
+			throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+		}
+
+		int buckets = 1;
+
+		while (buckets < ticksPerWheel) {
+			buckets <<= 1;
+		}
+
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new List[buckets];
+		this.mask = buckets - 1;
+
+		for (int i = 0; i < buckets; i++) {
+			wheel[i] = new ArrayList<>();
+		}
+
+		this.startTime = System.nanoTime();
+
+		this.worker = new Thread(new Worker(), name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Schedules a task to run once after a delay.
+	 *
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+		if (!running) {
+			throw new IllegalStateException("Timer was stopped.");
+		}
+
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+
+		newTimeouts.add(timeout);
+
+		return timeout;
+	}
+
+	/**
+	 * Stops the timer. Pending timeouts never fire.
+	 */
+	public void stop() {
+		running = false;
+
+		worker.interrupt();
+	}
+
+	/**
+	 * The thread that advances the wheel.
+	 */
+	private final class Worker implements Runnable {
+		private long tick = 0;
+
+		public void run() {
+			while (running) {
+				long deadline = tickNanos * (tick + 1);
+				long sleepNanos = deadline - (System.nanoTime() - startTime);
+
+				if (sleepNanos > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleepNanos);
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+
+				transferNewTimeouts();
+				expireTimeouts(wheel[(int)(tick & mask)], deadline);
+
+				tick++;
+			}
+		}
+
+		private void transferNewTimeouts() {
+			Timeout timeout;
+
+			while ((timeout = newTimeouts.poll()) != null) {
+				if (timeout.state.get() != Timeout.PENDING) {
+					continue;
+				}
+
+				// timeouts that are already due go into the current bucket
+				long expiresOnTick = Math.max(tick, timeout.deadline / tickNanos);
+
+				timeout.remainingRounds = (expiresOnTick - tick) / wheel.length;
+
+				wheel[(int)(expiresOnTick & mask)].add(timeout);
+			}
+		}
+
+		private void expireTimeouts(List<Timeout> bucket, long deadline) {
+			Iterator<Timeout> iterator = bucket.iterator();
+
+			while (iterator.hasNext()) {
+				Timeout timeout = iterator.next();
+
+				if (timeout.state.get() != Timeout.PENDING) {
+					iterator.remove();
+				} else if (timeout.remainingRounds > 0) {
+					timeout.remainingRounds--;
+				} else if (timeout.deadline <= deadline) {
+					iterator.remove();
+
+					timeout.expire();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A task that runs when a timeout expires.
+	 *
+	 * @author ebahtijaragic
+	 */
+	public interface TimerTask {
+		/**
+		 * Called on the timer thread when the timeout expires.
+		 *
+		 * @param timeout
+		 */
+		void run(Timeout timeout);
+	}
+
+	/**
+	 * A scheduled task.
+	 *
+	 * @author ebahtijaragic
+	 */
+	public static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private final TimerTask task;
+		private final long deadline;
+
+		private long remainingRounds;
+
+		private Timeout(TimerTask task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels this timeout.
+		 *
+		 * @return false if the timeout already expired or was cancelled
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+		/**
+		 * Returns true if this timeout was cancelled.
+		 *
+		 * @return
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * Returns true if this timeout expired.
+		 *
+		 * @return
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED)) {
+				return;
+			}
+
+			try {
+				task.run(this);
+			} catch (Throwable t) {
+				logger.error("Unexpected exception while running timer task", t);
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.ssl.SslConnection;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * An {@link SslConnectionFactory} that times the TLS handshakes of its connections.
+ *
+ * A handshake that created a new session counts as a full one, a handshake that picked up a session from the cache
+ * counts as a resumed one. Connections that close before their handshake completes count as incomplete handshakes.
+ *
+ * The TLS settings can be swapped while the connector runs, in which case new connections handshake with the new key
+ * and trust material while open ones keep the engines they already have.
+ *
+ * @author ebahtijaragic
+ */
+public class InstrumentedSslConnectionFactory extends SslConnectionFactory {
+	private static final String NULL_CIPHER_SUITE = "SSL_NULL_WITH_NULL_NULL";
+
+	private final String nextProtocol;
+
+	private volatile SslContextFactory sslContextFactory;
+
+	private volatile Timer fullHandshakes;
+	private volatile Timer resumedHandshakes;
+	private volatile Meter incompleteHandshakes;
+
+	/**
+	 * @param sslContextFactory
+	 * @param nextProtocol
+	 */
+	public InstrumentedSslConnectionFactory(SslContextFactory sslContextFactory, String nextProtocol) {
+		super(sslContextFactory, nextProtocol);
+
+		this.nextProtocol = nextProtocol;
+		this.sslContextFactory = sslContextFactory;
+	}
+
+	@Override
+	public SslContextFactory getSslContextFactory() {
+		return sslContextFactory;
+	}
+
+	/**
+	 * Swaps the TLS settings that new connections are created with.
+	 *
+	 * @param replacement
+	 * @throws Exception
+	 */
+	public synchronized void reload(SslContextFactory replacement) throws Exception {
+		SslContextFactory previous = sslContextFactory;
+
+		if (isStarted()) {
+			replacement.start();
+		}
+
+		addBean(replacement);
+		manage(replacement);
+
+		sslContextFactory = replacement;
+
+		removeBean(previous);
+		previous.stop();
+	}
+
+	@Override
+	public Connection newConnection(Connector connector, EndPoint endPoint) {
+		// same as the parent, but with the current settings
+		SslContextFactory current = sslContextFactory;
+
+		SSLEngine engine = current.newSSLEngine(endPoint.getRemoteAddress());
+		engine.setUseClientMode(false);
+
+		SslConnection sslConnection = newSslConnection(connector, endPoint, engine);
+		sslConnection.setRenegotiationAllowed(current.isRenegotiationAllowed());
+		configure(sslConnection, connector, endPoint);
+
+		EndPoint decryptedEndPoint = sslConnection.getDecryptedEndPoint();
+		decryptedEndPoint.setConnection(connector.getConnectionFactory(nextProtocol).newConnection(connector, decryptedEndPoint));
+
+		return sslConnection;
+	}
+
+	/**
+	 * Starts timing the handshakes of the connector.
+	 *
+	 * @param connectorName
+	 * @param metricRegistry
+	 */
+	public void registerMetrics(String connectorName, MetricRegistry metricRegistry) {
+		fullHandshakes = metricRegistry.timer(name(SslConnectionFactory.class, connectorName, "full-handshakes"));
+		resumedHandshakes = metricRegistry.timer(name(SslConnectionFactory.class, connectorName, "resumed-handshakes"));
+		incompleteHandshakes = metricRegistry.meter(name(SslConnectionFactory.class, connectorName, "incomplete-handshakes"));
+	}
+
+	@Override
+	protected SslConnection newSslConnection(Connector connector, EndPoint endPoint, SSLEngine engine) {
+		return new InstrumentedSslConnection(connector.getByteBufferPool(), connector.getExecutor(), endPoint, engine);
+	}
+
+	/**
+	 * A connection that notices when its handshake completes.
+	 *
+	 * @author ebahtijaragic
+	 */
+	private class InstrumentedSslConnection extends SslConnection {
+		private volatile long openedAt;
+		private volatile long openedAtMillis;
+		private volatile boolean handshaken = false;
+
+		public InstrumentedSslConnection(ByteBufferPool byteBufferPool, Executor executor, EndPoint endPoint, SSLEngine sslEngine) {
+			super(byteBufferPool, executor, endPoint, sslEngine);
+		}
+
+		@Override
+		public void onOpen() {
+			openedAt = System.nanoTime();
+			openedAtMillis = System.currentTimeMillis();
+
+			super.onOpen();
+		}
+
+		@Override
+		public void onClose() {
+			if (!handshaken && incompleteHandshakes != null) {
+				incompleteHandshakes.mark();
+			}
+
+			super.onClose();
+		}
+
+		@Override
+		protected DecryptedEndPoint newDecryptedEndPoint() {
+			// the handshake completes within whichever fill or flush unwraps or wraps its last message
+			return new DecryptedEndPoint() {
+				@Override
+				public synchronized int fill(ByteBuffer buffer) throws IOException {
+					try {
+						return super.fill(buffer);
+					} finally {
+						checkHandshake();
+					}
+				}
+
+				@Override
+				public synchronized boolean flush(ByteBuffer... buffers) throws IOException {
+					try {
+						return super.flush(buffers);
+					} finally {
+						checkHandshake();
+					}
+				}
+			};
+		}
+
+		private void checkHandshake() {
+			if (handshaken) {
+				return;
+			}
+
+			// the engine only hands out the negotiated session once the handshake completed, while its status may already
+			// be busy with a close that came in right behind the last handshake message
+			SSLSession session = getSSLEngine().getSession();
+
+			if (NULL_CIPHER_SUITE.equals(session.getCipherSuite())) {
+				return;
+			}
+
+			handshaken = true;
+
+			Timer timer = session.getCreationTime() >= openedAtMillis ? fullHandshakes : resumedHandshakes;
+
+			if (timer != null) {
+				timer.update(System.nanoTime() - openedAt, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+}
@@ -20,16 +20,21 @@ package com.kixeye.chassis.transport.shared;
  * #L%
  */
 
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Charsets;
 import org.apache.commons.lang.StringUtils;
 import org.bouncycastle.jce.X509Principal;
 import org.bouncycastle.util.encoders.Hex;
 import org.bouncycastle.x509.X509V3CertificateGenerator;
 import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.server.ConnectorStatistics;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
-import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.springframework.core.io.DefaultResourceLoader;
 import java.io.ByteArrayInputStream;
@@ -44,6 +49,7 @@ import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 /**
  * Registers connectors with Jetty.
@@ -57,13 +63,111 @@ public class JettyConnectorRegistry {
      * 
      * @param server
      * @param address
+     * @return
+     */
+    public static ServerConnector registerHttpConnector(Server server, InetSocketAddress address) {
+    	return registerHttpConnector(server, address, new HttpConfiguration());
+    }
+    
+    /**
+     * Register to listen to HTTP with the given HTTP settings.
+     * 
+     * @param server
+     * @param address
+     * @param httpConfiguration
+     * @return
+     */
+    public static ServerConnector registerHttpConnector(Server server, InetSocketAddress address, HttpConfiguration httpConfiguration) {
+    	ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(httpConfiguration));
+        connector.setHost(address.getHostName());
+        connector.setPort(address.getPort());
+    	
+        server.addConnector(connector);
+        
+        return connector;
+    }
+    
+    /**
+     * Register to listen to HTTP with the given HTTP and connector settings.
+     * 
+     * @param server
+     * @param address
+     * @param httpConfiguration
+     * @param settings
+     * @return
+     */
+    public static ServerConnector registerHttpConnector(Server server, InetSocketAddress address, HttpConfiguration httpConfiguration, 
+    		JettyServerSettings settings) {
+    	return registerHttpConnector(server, address, httpConfiguration, settings, null, -1, -1);
+    }
+    
+    /**
+     * Register to listen to HTTP on threads of its own instead of the ones of the server.
+     * 
+     * @param server
+     * @param address
+     * @param httpConfiguration
+     * @param settings
+     * @param executor
+     * @param acceptors the acceptors unless the settings have some
+     * @param selectors the selectors unless the settings have some
+     * @return
      */
-    public static void registerHttpConnector(Server server, InetSocketAddress address) {
-    	ServerConnector connector = new ServerConnector(server);
+    public static ServerConnector registerHttpConnector(Server server, InetSocketAddress address, HttpConfiguration httpConfiguration, 
+    		JettyServerSettings settings, Executor executor, int acceptors, int selectors) {
+    	ServerConnector connector = settings.newConnector(server, executor, acceptors, selectors, new HttpConnectionFactory(httpConfiguration));
         connector.setHost(address.getHostName());
         connector.setPort(address.getPort());
     	
         server.addConnector(connector);
+        
+        return connector;
+    }
+    
+    /**
+     * Registers the connection metrics of a connector, like how many requests its connections carry and how long their
+     * TLS handshakes take.
+     * 
+     * @param connector
+     * @param connectorName
+     * @param metricRegistry
+     */
+    public static void registerConnectorMetrics(ServerConnector connector, String connectorName, MetricRegistry metricRegistry) {
+    	InstrumentedSslConnectionFactory sslConnectionFactory = connector.getConnectionFactory(InstrumentedSslConnectionFactory.class);
+    	
+    	if (sslConnectionFactory != null) {
+    		sslConnectionFactory.registerMetrics(connectorName, metricRegistry);
+    	}
+    	
+    	final ConnectorStatistics statistics = new ConnectorStatistics();
+    	
+    	connector.addBean(statistics);
+    	
+    	metricRegistry.register(name(ServerConnector.class, connectorName, "connections-open"), new Gauge<Integer>() {
+    		public Integer getValue() {
+    			return statistics.getConnectionsOpen();
+    		}
+    	});
+    	metricRegistry.register(name(ServerConnector.class, connectorName, "connections"), new Gauge<Integer>() {
+    		public Integer getValue() {
+    			return statistics.getConnections();
+    		}
+    	});
+    	metricRegistry.register(name(ServerConnector.class, connectorName, "requests-per-connection-mean"), new Gauge<Double>() {
+    		public Double getValue() {
+    			return statistics.getConnectionsMessagesInMean();
+    		}
+    	});
+    	metricRegistry.register(name(ServerConnector.class, connectorName, "requests-per-connection-max"), new Gauge<Integer>() {
+    		public Integer getValue() {
+    			return statistics.getConnectionsMessagesInMax();
+    		}
+    	});
+    	metricRegistry.register(name(ServerConnector.class, connectorName, "connection-duration-mean"), new Gauge<Double>() {
+    		public Double getValue() {
+    			return statistics.getConnectionsDurationMean();
+    		}
+    	});
     }
     
     /**
@@ -71,43 +175,100 @@ public class JettyConnectorRegistry {
      * 
      * @param server
      * @param address
+     * @return
      * @throws Exception 
      */
-    public static void registerHttpsConnector(Server server, InetSocketAddress address, boolean selfSigned,
+    public static ServerConnector registerHttpsConnector(Server server, InetSocketAddress address, boolean selfSigned,
     		boolean mutualSsl, String keyStorePath, String keyStoreData, String keyStorePassword, String keyManagerPassword,
     		String trustStorePath, String trustStoreData, String trustStorePassword, String[] excludedCipherSuites) throws Exception {
+    	return registerHttpsConnector(server, address, selfSigned, mutualSsl, keyStorePath, keyStoreData, keyStorePassword, keyManagerPassword, 
+    			trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites, new HttpConfiguration());
+    }
+    
+    /**
+     * Register to listen to HTTPS with the given HTTP settings.
+     * 
+     * @param server
+     * @param address
+     * @param httpConfiguration
+     * @return
+     * @throws Exception 
+     */
+    public static ServerConnector registerHttpsConnector(Server server, InetSocketAddress address, boolean selfSigned,
+    		boolean mutualSsl, String keyStorePath, String keyStoreData, String keyStorePassword, String keyManagerPassword,
+    		String trustStorePath, String trustStoreData, String trustStorePassword, String[] excludedCipherSuites, 
+    		HttpConfiguration httpConfiguration) throws Exception {
+    	return registerHttpsConnector(server, address, selfSigned, mutualSsl, keyStorePath, keyStoreData, keyStorePassword, keyManagerPassword, 
+    			trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites, httpConfiguration, null);
+    }
+    
+    /**
+     * Register to listen to HTTPS with the given HTTP and connector settings.
+     * 
+     * The key and trust stores of a connector with settings are reloaded when their files or the key and trust store
+     * data properties under the TLS prefix of the settings change.
+     * 
+     * @param server
+     * @param address
+     * @param httpConfiguration
+     * @param settings the connector settings, or null for the defaults of Jetty
+     * @return
+     * @throws Exception 
+     */
+    public static ServerConnector registerHttpsConnector(Server server, InetSocketAddress address, boolean selfSigned,
+    		boolean mutualSsl, String keyStorePath, String keyStoreData, String keyStorePassword, String keyManagerPassword,
+    		String trustStorePath, String trustStoreData, String trustStorePassword, String[] excludedCipherSuites, 
+    		HttpConfiguration httpConfiguration, JettyServerSettings settings) throws Exception {
     	// SSL Context Factory
+        SslContextFactory sslContextFactory = newSslContextFactory(selfSigned, mutualSsl, keyStorePath, keyStoreData, keyStorePassword, keyManagerPassword, 
+        		trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites);
+
+        // SSL Connector
+    	ServerConnector connector;
+    	if (settings == null) {
+	    	connector = new ServerConnector(server, 
+	    			new InstrumentedSslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.toString()),
+	    			new HttpConnectionFactory(httpConfiguration)
+	    	);
+    	} else {
+    		InstrumentedSslConnectionFactory sslConnectionFactory = new InstrumentedSslConnectionFactory(settings.bind(sslContextFactory), HttpVersion.HTTP_1_1.toString());
+    		
+	    	connector = settings.newConnector(server, null, -1, -1, 
+	    			sslConnectionFactory,
+	    			new HttpConnectionFactory(httpConfiguration)
+	    	);
+	    	
+	    	// a generated key has nothing to reload
+	    	if (!selfSigned) {
+	    		connector.addBean(new SslStoreReloader(sslConnectionFactory, settings, mutualSsl, keyStorePath, keyStoreData, keyStorePassword, keyManagerPassword, 
+	    				trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites));
+	    	}
+    	}
+        connector.setHost(address.getHostName());
+        connector.setPort(address.getPort());
+    	
+        server.addConnector(connector);
+        
+        return connector;
+    }
+    
+    /**
+     * Creates the TLS settings of a connector from its key and trust stores, where store data takes precedence over
+     * store paths.
+     * 
+     * @return
+     * @throws Exception
+     */
+    public static SslContextFactory newSslContextFactory(boolean selfSigned, boolean mutualSsl, String keyStorePath, String keyStoreData, 
+    		String keyStorePassword, String keyManagerPassword, String trustStorePath, String trustStoreData, String trustStorePassword, 
+    		String[] excludedCipherSuites) throws Exception {
         SslContextFactory sslContextFactory = new SslContextFactory();
 
         if (selfSigned) {
         	char[] passwordChars = UUID.randomUUID().toString().toCharArray();
         	
-        	KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-
-        	keyStore.load(null, passwordChars);
-        	
-        	KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");  
-        	keyPairGenerator.initialize(1024);  
-        	KeyPair keyPair = keyPairGenerator.generateKeyPair();
-        	
-        	X509V3CertificateGenerator v3CertGen = new X509V3CertificateGenerator();
-        	
-        	v3CertGen.setSerialNumber(BigInteger.valueOf(new SecureRandom().nextInt()).abs());
-            v3CertGen.setIssuerDN(new X509Principal("CN=" + "kixeye.com" + ", OU=None, O=None L=None, C=None"));
-            v3CertGen.setNotBefore(new Date(System.currentTimeMillis() - 1000L * 60 * 60 * 24 * 30));
-            v3CertGen.setNotAfter(new Date(System.currentTimeMillis() + (1000L * 60 * 60 * 24 * 365*10)));
-            v3CertGen.setSubjectDN(new X509Principal("CN=" + "kixeye.com" + ", OU=None, O=None L=None, C=None"));
-            
-            v3CertGen.setPublicKey(keyPair.getPublic());  
-            v3CertGen.setSignatureAlgorithm("MD5WithRSAEncryption");  
-        	
-            X509Certificate privateKeyCertificate = v3CertGen.generateX509Certificate(keyPair.getPrivate());
-            
-            keyStore.setKeyEntry("selfSigned", keyPair.getPrivate(), passwordChars,  
-                    new java.security.cert.Certificate[]{ privateKeyCertificate });  
-
         	ByteArrayOutputStream keyStoreBaos = new ByteArrayOutputStream();
-        	keyStore.store(keyStoreBaos, passwordChars);
+        	newSelfSignedKeyStore(passwordChars).store(keyStoreBaos, passwordChars);
         	
         	keyStoreData = new String(Hex.encode(keyStoreBaos.toByteArray()), Charsets.UTF_8);
         	keyStorePassword = new String(passwordChars);
@@ -148,15 +309,43 @@ public class JettyConnectorRegistry {
         }
     	sslContextFactory.setNeedClientAuth(mutualSsl);
         sslContextFactory.setExcludeCipherSuites(excludedCipherSuites);
+        
+        return sslContextFactory;
+    }
+    
+    /**
+     * Generates a key store with a self-signed certificate.
+     * 
+     * @param password the password of the store and of its key
+     * @return
+     * @throws Exception
+     */
+    public static KeyStore newSelfSignedKeyStore(char[] password) throws Exception {
+    	KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
 
-        // SSL Connector
-    	ServerConnector connector = new ServerConnector(server, 
-    			new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.toString()),
-    			new HttpConnectionFactory()
-    	);
-        connector.setHost(address.getHostName());
-        connector.setPort(address.getPort());
+    	keyStore.load(null, password);
     	
-        server.addConnector(connector);
+    	// ECDSA keys make for smaller certificates and faster handshakes than RSA ones of similar strength
+    	KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");  
+    	keyPairGenerator.initialize(256);  
+    	KeyPair keyPair = keyPairGenerator.generateKeyPair();
+    	
+    	X509V3CertificateGenerator v3CertGen = new X509V3CertificateGenerator();
+    	
+    	v3CertGen.setSerialNumber(BigInteger.valueOf(new SecureRandom().nextInt()).abs());
+        v3CertGen.setIssuerDN(new X509Principal("CN=" + "kixeye.com" + ", OU=None, O=None L=None, C=None"));
+        v3CertGen.setNotBefore(new Date(System.currentTimeMillis() - 1000L * 60 * 60 * 24 * 30));
+        v3CertGen.setNotAfter(new Date(System.currentTimeMillis() + (1000L * 60 * 60 * 24 * 365*10)));
+        v3CertGen.setSubjectDN(new X509Principal("CN=" + "kixeye.com" + ", OU=None, O=None L=None, C=None"));
+        
+        v3CertGen.setPublicKey(keyPair.getPublic());  
+        v3CertGen.setSignatureAlgorithm("SHA256withECDSA");  
+    	
+        X509Certificate privateKeyCertificate = v3CertGen.generateX509Certificate(keyPair.getPrivate());
+        
+        keyStore.setKeyEntry("selfSigned", keyPair.getPrivate(), password,  
+                new java.security.cert.Certificate[]{ privateKeyCertificate });  
+        
+        return keyStore;
     }
 }
@@ -0,0 +1,359 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.config.PropertyWrapper;
+
+/**
+ * The thread pool and connector settings of a transport, read from the properties under its prefix.
+ *
+ * Acceptors, selectors and the accept queue only apply when a connector starts. The thread pool sizes, the idle
+ * timeouts and the socket options follow their properties while the server runs, so that they can be changed without a
+ * restart. Settings that aren't set keep the defaults of Jetty. A component only follows the properties from when it
+ * starts until it stops, so that the shared properties don't hold on to stopped servers.
+ *
+ * Secure connectors also read the JSSE provider and the size and timeout of the TLS session cache from the properties
+ * under their own prefix, like "https". A provider can be named by its name or by its class, in which case it's
+ * installed when it's on the classpath. The session cache follows its properties while the server runs.
+ *
+ * @author ebahtijaragic
+ */
+public class JettyServerSettings {
+	private static final Logger logger = LoggerFactory.getLogger(JettyServerSettings.class);
+
+	private final String prefix;
+	private final String sslPrefix;
+
+	private final DynamicIntProperty minThreads;
+	private final DynamicIntProperty maxThreads;
+	private final DynamicIntProperty threadIdleTimeout;
+
+	private final DynamicIntProperty acceptors;
+	private final DynamicIntProperty selectors;
+	private final DynamicIntProperty acceptQueueSize;
+	private final DynamicIntProperty idleTimeout;
+
+	private final DynamicBooleanProperty tcpNoDelay;
+	private final DynamicIntProperty sendBufferSize;
+	private final DynamicIntProperty receiveBufferSize;
+
+	private final DynamicStringProperty sslProvider;
+	private final DynamicIntProperty sslSessionCacheSize;
+	private final DynamicIntProperty sslSessionTimeout;
+
+	/**
+	 * @param prefix the prefix of the properties, like "http"
+	 */
+	public JettyServerSettings(String prefix) {
+		this(prefix, prefix);
+	}
+
+	/**
+	 * @param prefix the prefix of the properties, like "http"
+	 * @param sslPrefix the prefix of the TLS properties, like "https"
+	 */
+	public JettyServerSettings(String prefix, String sslPrefix) {
+		this.prefix = prefix;
+		this.sslPrefix = sslPrefix;
+
+		DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+
+		minThreads = properties.getIntProperty(prefix + ".threadpool.minThreads", -1);
+		maxThreads = properties.getIntProperty(prefix + ".threadpool.maxThreads", -1);
+		threadIdleTimeout = properties.getIntProperty(prefix + ".threadpool.idleTimeout", -1);
+
+		acceptors = properties.getIntProperty(prefix + ".acceptors", -1);
+		selectors = properties.getIntProperty(prefix + ".selectors", -1);
+		acceptQueueSize = properties.getIntProperty(prefix + ".acceptQueueSize", -1);
+		idleTimeout = properties.getIntProperty(prefix + ".idleTimeout", -1);
+
+		tcpNoDelay = properties.getBooleanProperty(prefix + ".tcpNoDelay", true);
+		sendBufferSize = properties.getIntProperty(prefix + ".sendBufferSize", -1);
+		receiveBufferSize = properties.getIntProperty(prefix + ".receiveBufferSize", -1);
+
+		sslProvider = properties.getStringProperty(sslPrefix + ".provider", null);
+		sslSessionCacheSize = properties.getIntProperty(sslPrefix + ".sessionCacheSize", -1);
+		sslSessionTimeout = properties.getIntProperty(sslPrefix + ".sessionTimeout", -1);
+	}
+
+	/**
+	 * Gets the prefix of the TLS properties.
+	 *
+	 * @return
+	 */
+	public String getSslPrefix() {
+		return sslPrefix;
+	}
+
+	/**
+	 * Applies the thread pool settings to a pool, now and whenever they change while it runs.
+	 *
+	 * @param threadPool
+	 * @return the pool
+	 */
+	public QueuedThreadPool bind(final QueuedThreadPool threadPool) {
+		Runnable resize = new Runnable() {
+			public void run() {
+				int max = maxThreads.get();
+				int min = minThreads.get();
+
+				if (max > 0) {
+					if (max < threadPool.getMinThreads()) {
+						threadPool.setMinThreads(max);
+					}
+
+					threadPool.setMaxThreads(max);
+				}
+
+				if (min > 0) {
+					threadPool.setMinThreads(Math.min(min, threadPool.getMaxThreads()));
+				}
+
+				if (threadIdleTimeout.get() > 0) {
+					threadPool.setIdleTimeout(threadIdleTimeout.get());
+				}
+
+				logger.info("Sized [{}] thread pool to [{}-{}] threads.", prefix, threadPool.getMinThreads(), threadPool.getMaxThreads());
+			}
+		};
+
+		resize.run();
+
+		follow(threadPool, resize, minThreads, maxThreads, threadIdleTimeout);
+
+		return threadPool;
+	}
+
+	/**
+	 * Applies the JSSE provider and the session cache settings to the TLS settings of a connector.
+	 *
+	 * @param sslContextFactory
+	 * @return the TLS settings
+	 */
+	public SslContextFactory bind(final SslContextFactory sslContextFactory) {
+		String provider = getSslProvider();
+
+		if (provider != null) {
+			sslContextFactory.setProvider(provider);
+		}
+
+		sslContextFactory.setSessionCachingEnabled(true);
+
+		Runnable resize = new Runnable() {
+			public void run() {
+				if (sslSessionCacheSize.get() >= 0) {
+					sslContextFactory.setSslSessionCacheSize(sslSessionCacheSize.get());
+				}
+
+				if (sslSessionTimeout.get() >= 0) {
+					sslContextFactory.setSslSessionTimeout(sslSessionTimeout.get());
+				}
+
+				// the factory only hands its settings to the session cache when it starts
+				if (sslContextFactory.isStarted()) {
+					SSLSessionContext sessionContext = sslContextFactory.getSslContext().getServerSessionContext();
+
+					if (sslSessionCacheSize.get() >= 0) {
+						sessionContext.setSessionCacheSize(sslSessionCacheSize.get());
+					}
+
+					if (sslSessionTimeout.get() >= 0) {
+						sessionContext.setSessionTimeout(sslSessionTimeout.get());
+					}
+				}
+			}
+		};
+
+		resize.run();
+
+		follow(sslContextFactory, resize, sslSessionCacheSize, sslSessionTimeout);
+
+		return sslContextFactory;
+	}
+
+	/**
+	 * Gets the name of the JSSE provider, installing it if it's given by class.
+	 *
+	 * @return the name of the provider, or null for the default one
+	 */
+	public String getSslProvider() {
+		String provider = StringUtils.trimToNull(sslProvider.get());
+
+		if (provider == null || Security.getProvider(provider) != null) {
+			return provider;
+		}
+
+		if (!provider.contains(".")) {
+			logger.warn("JSSE provider [{}] isn't installed, using the default one.", provider);
+
+			return null;
+		}
+
+		try {
+			Provider instance = (Provider)Class.forName(provider).newInstance();
+
+			if (Security.getProvider(instance.getName()) == null) {
+				Security.addProvider(instance);
+			}
+
+			return instance.getName();
+		} catch (ClassNotFoundException e) {
+			logger.warn("JSSE provider [{}] isn't on the classpath, using the default one.", provider);
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			logger.warn("Unable to install JSSE provider [{}], using the default one.", provider, e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Creates a connector that follows these settings.
+	 *
+	 * @param server
+	 * @param executor the threads of the connector, or null to run on the ones of the server
+	 * @param defaultAcceptors the acceptors when none are set, or -1 for the default of Jetty
+	 * @param defaultSelectors the selectors when none are set, or -1 for the default of Jetty
+	 * @param factories
+	 * @return
+	 */
+	public ServerConnector newConnector(Server server, Executor executor, int defaultAcceptors, int defaultSelectors, ConnectionFactory... factories) {
+		final ServerConnector connector = new ServerConnector(server, executor, null, null,
+				acceptors.get() > 0 ? acceptors.get() : defaultAcceptors, selectors.get() > 0 ? selectors.get() : defaultSelectors, factories) {
+			@Override
+			protected void configure(Socket socket) {
+				super.configure(socket);
+
+				try {
+					socket.setTcpNoDelay(tcpNoDelay.get());
+
+					if (sendBufferSize.get() > 0) {
+						socket.setSendBufferSize(sendBufferSize.get());
+					}
+
+					if (receiveBufferSize.get() > 0) {
+						socket.setReceiveBufferSize(receiveBufferSize.get());
+					}
+				} catch (SocketException e) {
+					logger.warn("Unable to configure socket of [{}] connector", prefix, e);
+				}
+			}
+		};
+
+		if (acceptQueueSize.get() > 0) {
+			connector.setAcceptQueueSize(acceptQueueSize.get());
+		}
+
+		if (idleTimeout.get() > 0) {
+			connector.setIdleTimeout(idleTimeout.get());
+		}
+
+		follow(connector, new Runnable() {
+			public void run() {
+				if (idleTimeout.get() <= 0 || idleTimeout.get() == connector.getIdleTimeout()) {
+					return;
+				}
+
+				long previous = connector.getIdleTimeout();
+
+				connector.setIdleTimeout(idleTimeout.get());
+
+				// open connections follow as well, unless something like a websocket upgrade gave them a timeout of their own
+				for (EndPoint endPoint : connector.getConnectedEndPoints()) {
+					if (endPoint.getIdleTimeout() == previous) {
+						endPoint.setIdleTimeout(idleTimeout.get());
+					}
+				}
+			}
+		}, idleTimeout);
+
+		return connector;
+	}
+
+	/**
+	 * Runs a callback whenever one of the properties changes while a component runs. The callback also runs when the
+	 * component starts, for the changes it missed while it was stopped.
+	 *
+	 * @param component
+	 * @param callback
+	 * @param properties
+	 */
+	private static void follow(LifeCycle component, final Runnable callback, final PropertyWrapper<?>... properties) {
+		component.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+			@Override
+			public void lifeCycleStarting(LifeCycle event) {
+				addCallback(callback, properties);
+
+				callback.run();
+			}
+
+			@Override
+			public void lifeCycleFailure(LifeCycle event, Throwable cause) {
+				removeCallback(callback, properties);
+			}
+
+			@Override
+			public void lifeCycleStopped(LifeCycle event) {
+				removeCallback(callback, properties);
+			}
+		});
+
+		if (component.isStarting() || component.isStarted()) {
+			addCallback(callback, properties);
+		}
+	}
+
+	private static void addCallback(Runnable callback, PropertyWrapper<?>... properties) {
+		// on the property itself, since the wrapper has no way to remove a single callback
+		for (PropertyWrapper<?> property : properties) {
+			property.getDynamicProperty().addCallback(callback);
+		}
+	}
+
+	private static void removeCallback(Runnable callback, PropertyWrapper<?>... properties) {
+		for (PropertyWrapper<?> property : properties) {
+			property.getDynamicProperty().removeCallback(callback);
+		}
+	}
+}
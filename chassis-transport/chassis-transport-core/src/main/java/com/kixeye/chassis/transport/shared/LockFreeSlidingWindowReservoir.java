@@ -0,0 +1,84 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A reservoir of the most recent measurements that neither locks nor allocates on update.
+ *
+ * Updates claim a slot in a ring with a single atomic increment. Snapshots copy the ring, so a snapshot taken while
+ * updates are in flight may mix in a few newer measurements.
+ *
+ * @author ebahtijaragic
+ */
+public class LockFreeSlidingWindowReservoir implements Reservoir {
+	private final AtomicLongArray measurements;
+	private final AtomicLong count = new AtomicLong(0);
+	private final int mask;
+
+	/**
+	 * Creates a reservoir.
+	 *
+	 * @param size the amount of measurements to keep, rounded up to a power of two
+	 */
+	public LockFreeSlidingWindowReservoir(int size) {
+		int capacity = 1;
+
+		while (capacity < size) {
+			capacity <<= 1;
+		}
+
+		this.measurements = new AtomicLongArray(capacity);
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * @see com.codahale.metrics.Reservoir#size()
+	 */
+	public int size() {
+		return (int)Math.min(count.get(), measurements.length());
+	}
+
+	/**
+	 * @see com.codahale.metrics.Reservoir#update(long)
+	 */
+	public void update(long value) {
+		measurements.lazySet((int)(count.getAndIncrement() & mask), value);
+	}
+
+	/**
+	 * @see com.codahale.metrics.Reservoir#getSnapshot()
+	 */
+	public Snapshot getSnapshot() {
+		long[] values = new long[size()];
+
+		for (int i = 0; i < values.length; i++) {
+			values[i] = measurements.get(i);
+		}
+
+		return new Snapshot(values);
+	}
+}
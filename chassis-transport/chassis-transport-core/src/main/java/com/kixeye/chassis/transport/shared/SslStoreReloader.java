@@ -0,0 +1,206 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+
+/**
+ * Reloads the key and trust stores of a secure connector while it runs.
+ *
+ * The stores are reloaded when the files they were loaded from change, or when the key or trust store data properties
+ * under the TLS prefix of the connector change, like "https.keyStoreData". The connector then handshakes new
+ * connections with the new material, while open connections, and the websocket sessions on them, carry on. Stores
+ * that fail to load are logged and leave the current material in place, and files that fail to load are tried again on
+ * the next check.
+ *
+ * @author ebahtijaragic
+ */
+public class SslStoreReloader extends AbstractLifeCycle {
+	private static final Logger logger = LoggerFactory.getLogger(SslStoreReloader.class);
+
+	private final InstrumentedSslConnectionFactory sslConnectionFactory;
+	private final JettyServerSettings settings;
+
+	private final boolean mutualSsl;
+	private final String keyStorePath;
+	private final String keyStorePassword;
+	private final String keyManagerPassword;
+	private final String trustStorePath;
+	private final String trustStorePassword;
+	private final String[] excludedCipherSuites;
+
+	private final DynamicStringProperty keyStoreData;
+	private final DynamicStringProperty trustStoreData;
+	private final DynamicIntProperty checkIntervalMillis;
+
+	private final File keyStoreFile;
+	private final File trustStoreFile;
+
+	private final Runnable reloadCallback = new Runnable() {
+		public void run() {
+			reload();
+		}
+	};
+
+	private long keyStoreModified;
+	private long trustStoreModified;
+
+	private volatile ScheduledExecutorService checker;
+
+	public SslStoreReloader(InstrumentedSslConnectionFactory sslConnectionFactory, JettyServerSettings settings, boolean mutualSsl,
+			String keyStorePath, String keyStoreData, String keyStorePassword, String keyManagerPassword,
+			String trustStorePath, String trustStoreData, String trustStorePassword, String[] excludedCipherSuites) {
+		this.sslConnectionFactory = sslConnectionFactory;
+		this.settings = settings;
+		this.mutualSsl = mutualSsl;
+		this.keyStorePath = keyStorePath;
+		this.keyStorePassword = keyStorePassword;
+		this.keyManagerPassword = keyManagerPassword;
+		this.trustStorePath = trustStorePath;
+		this.trustStorePassword = trustStorePassword;
+		this.excludedCipherSuites = excludedCipherSuites;
+
+		DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+
+		this.keyStoreData = properties.getStringProperty(settings.getSslPrefix() + ".keyStoreData", keyStoreData);
+		this.trustStoreData = properties.getStringProperty(settings.getSslPrefix() + ".trustStoreData", trustStoreData);
+		this.checkIntervalMillis = properties.getIntProperty(settings.getSslPrefix() + ".storeCheckIntervalMillis", 10000);
+
+		this.keyStoreFile = toFile(keyStorePath);
+		this.trustStoreFile = toFile(trustStorePath);
+
+		keyStoreModified = keyStoreFile == null ? 0 : keyStoreFile.lastModified();
+		trustStoreModified = trustStoreFile == null ? 0 : trustStoreFile.lastModified();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		// on the shared properties themselves, so that stopping removes just these callbacks
+		keyStoreData.getDynamicProperty().addCallback(reloadCallback);
+		trustStoreData.getDynamicProperty().addCallback(reloadCallback);
+
+		if (keyStoreFile == null && trustStoreFile == null) {
+			return;
+		}
+
+		checker = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("ssl-store-reloader-%d").setDaemon(true).build());
+
+		scheduleCheck();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		keyStoreData.getDynamicProperty().removeCallback(reloadCallback);
+		trustStoreData.getDynamicProperty().removeCallback(reloadCallback);
+
+		if (checker != null) {
+			checker.shutdownNow();
+
+			checker = null;
+		}
+	}
+
+	/**
+	 * Reloads the stores and hands them to the connector.
+	 *
+	 * @return whether the stores were reloaded
+	 */
+	public synchronized boolean reload() {
+		try {
+			sslConnectionFactory.reload(settings.bind(JettyConnectorRegistry.newSslContextFactory(false, mutualSsl, keyStorePath, keyStoreData.get(),
+					keyStorePassword, keyManagerPassword, trustStorePath, trustStoreData.get(), trustStorePassword, excludedCipherSuites)));
+
+			logger.info("Reloaded [{}] key and trust stores.", settings.getSslPrefix());
+
+			return true;
+		} catch (Exception e) {
+			logger.error("Unable to reload [{}] key and trust stores, keeping the current ones.", settings.getSslPrefix(), e);
+
+			return false;
+		}
+	}
+
+	private void scheduleCheck() {
+		ScheduledExecutorService checker = this.checker;
+
+		if (checker == null) {
+			return;
+		}
+
+		try {
+			// rescheduled on every check so that a changed interval applies right away
+			checker.schedule(new Runnable() {
+				public void run() {
+					check();
+				}
+			}, Math.max(1, checkIntervalMillis.get()), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopping
+		}
+	}
+
+	private void check() {
+		try {
+			long keyStoreLastModified = keyStoreFile == null ? 0 : keyStoreFile.lastModified();
+			long trustStoreLastModified = trustStoreFile == null ? 0 : trustStoreFile.lastModified();
+
+			// a file that's missing for a moment, while it's being replaced, has no modification time
+			if ((keyStoreLastModified != keyStoreModified && keyStoreLastModified != 0) || (trustStoreLastModified != trustStoreModified && trustStoreLastModified != 0)) {
+				// a store that fails to load, like one that's only partly written, gets another go on the next check
+				if (reload()) {
+					keyStoreModified = keyStoreLastModified;
+					trustStoreModified = trustStoreLastModified;
+				}
+			}
+		} finally {
+			scheduleCheck();
+		}
+	}
+
+	private static File toFile(String path) {
+		if (StringUtils.isBlank(path)) {
+			return null;
+		}
+
+		try {
+			return new DefaultResourceLoader().getResource(path).getFile();
+		} catch (IOException e) {
+			// not on the file system, like a store inside a jar
+			return null;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * An executor that runs every task on its own virtual thread.
+ *
+ * Virtual threads are looked up reflectively so that the transport still runs on JVMs without them. Use
+ * {@link #isAvailable()} to check for support before constructing one.
+ *
+ * @author ebahtijaragic
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+	public static final String EXECUTOR_PROPERTY = "transport.executor";
+	public static final String VIRTUAL_EXECUTOR = "virtual";
+
+	private static final Method OF_VIRTUAL_METHOD;
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR_METHOD;
+
+	static {
+		Method ofVirtual = null;
+		Method newThreadPerTaskExecutor = null;
+
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (NoSuchMethodException e) {
+			// virtual threads are not supported by this JVM
+		}
+
+		OF_VIRTUAL_METHOD = ofVirtual;
+		NEW_THREAD_PER_TASK_EXECUTOR_METHOD = newThreadPerTaskExecutor;
+	}
+
+	private final ExecutorService delegate;
+
+	private final AtomicInteger activeThreads = new AtomicInteger(0);
+	private Meter startedThreads;
+
+	/**
+	 * Creates a virtual thread executor.
+	 *
+	 * @param name the name used for the threads and the metrics
+	 * @param metricRegistry the registry to report to, or null
+	 * @throws IllegalStateException if virtual threads are not supported
+	 */
+	public VirtualThreadExecutor(String name, MetricRegistry metricRegistry) {
+		if (!isAvailable()) {
+			throw new IllegalStateException("Virtual threads are not supported by this JVM: " + System.getProperty("java.version"));
+		}
+
+		try {
+			Object builder = OF_VIRTUAL_METHOD.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			ThreadFactory threadFactory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+			this.delegate = (ExecutorService)NEW_THREAD_PER_TASK_EXECUTOR_METHOD.invoke(null, threadFactory);
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to create virtual thread executor", e);
+		}
+
+		if (metricRegistry != null) {
+			metricRegistry.register(name(VirtualThreadExecutor.class, name, "active-threads"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return activeThreads.get();
+				}
+			});
+
+			startedThreads = metricRegistry.meter(name(VirtualThreadExecutor.class, name, "started-threads"));
+
+			registerSchedulerGauges(name, metricRegistry);
+		}
+	}
+
+	/**
+	 * Returns true if the JVM supports virtual threads.
+	 *
+	 * @return
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL_METHOD != null && NEW_THREAD_PER_TASK_EXECUTOR_METHOD != null;
+	}
+
+	/**
+	 * Returns true if the given executor mode asks for virtual threads and the JVM supports them.
+	 *
+	 * @param executorMode
+	 * @return
+	 */
+	public static boolean isEnabled(String executorMode) {
+		if (!VIRTUAL_EXECUTOR.equalsIgnoreCase(executorMode)) {
+			return false;
+		}
+
+		if (!isAvailable()) {
+			logger.warn("[{}={}] requested, but virtual threads are not supported by this JVM. Falling back to platform threads.", EXECUTOR_PROPERTY, executorMode);
+
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute(final Runnable command) {
+		delegate.execute(new Runnable() {
+			public void run() {
+				activeThreads.incrementAndGet();
+
+				try {
+					command.run();
+				} finally {
+					activeThreads.decrementAndGet();
+				}
+			}
+		});
+
+		if (startedThreads != null) {
+			startedThreads.mark();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#shutdown()
+	 */
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#shutdownNow()
+	 */
+	public List<Runnable> shutdownNow() {
+		return delegate.shutdownNow();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#isShutdown()
+	 */
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#isTerminated()
+	 */
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Registers the carrier and mounted thread gauges if the JVM exposes the virtual thread scheduler.
+	 *
+	 * @param name
+	 * @param metricRegistry
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void registerSchedulerGauges(String name, MetricRegistry metricRegistry) {
+		final Object schedulerBean;
+		final Method mountedMethod;
+		final Method poolSizeMethod;
+
+		try {
+			Class schedulerBeanClass = Class.forName("jdk.management.VirtualThreadSchedulerMXBean");
+
+			schedulerBean = ManagementFactory.getPlatformMXBean(schedulerBeanClass);
+			mountedMethod = schedulerBeanClass.getMethod("getMountedVirtualThreadCount");
+			poolSizeMethod = schedulerBeanClass.getMethod("getPoolSize");
+		} catch (Exception e) {
+			logger.info("Virtual thread scheduler is not exposed by this JVM, only reporting active virtual threads.");
+
+			return;
+		}
+
+		metricRegistry.register(name(VirtualThreadExecutor.class, name, "mounted-threads"), new Gauge<Integer>() {
+			public Integer getValue() {
+				return invokeIntGetter(schedulerBean, mountedMethod);
+			}
+		});
+		metricRegistry.register(name(VirtualThreadExecutor.class, name, "carrier-threads"), new Gauge<Integer>() {
+			public Integer getValue() {
+				return invokeIntGetter(schedulerBean, poolSizeMethod);
+			}
+		});
+	}
+
+	/**
+	 * Invokes a getter that returns a number.
+	 *
+	 * @param target
+	 * @param getter
+	 * @return
+	 */
+	private static Integer invokeIntGetter(Object target, Method getter) {
+		try {
+			return ((Number)getter.invoke(target)).intValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
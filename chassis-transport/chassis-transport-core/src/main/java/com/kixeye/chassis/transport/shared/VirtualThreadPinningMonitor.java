@@ -0,0 +1,138 @@
+package com.kixeye.chassis.transport.shared;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Reports virtual threads that pin their carrier thread, e.g. by blocking inside a synchronized block.
+ *
+ * The JFR "jdk.VirtualThreadPinned" events are streamed into a meter and a timer. JFR is accessed reflectively, so
+ * the monitor only logs a warning on JVMs without event streaming.
+ *
+ * @author ebahtijaragic
+ */
+public class VirtualThreadPinningMonitor {
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+	private final MetricRegistry metricRegistry;
+	private final long thresholdMillis;
+
+	private Object recordingStream;
+
+	private Meter pinned;
+	private Timer pinnedDuration;
+
+	/**
+	 * @param metricRegistry
+	 * @param thresholdMillis pinning shorter than this is not reported
+	 */
+	public VirtualThreadPinningMonitor(MetricRegistry metricRegistry, long thresholdMillis) {
+		this.metricRegistry = metricRegistry;
+		this.thresholdMillis = thresholdMillis;
+	}
+
+	/**
+	 * Starts streaming the pinning events.
+	 */
+	public synchronized void start() {
+		if (recordingStream != null || metricRegistry == null) {
+			return;
+		}
+
+		pinned = metricRegistry.meter(name(VirtualThreadPinningMonitor.class, "pinned"));
+		pinnedDuration = metricRegistry.timer(name(VirtualThreadPinningMonitor.class, "pinned-duration"));
+
+		try {
+			Class<?> recordingStreamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+			Class<?> eventSettingsClass = Class.forName("jdk.jfr.EventSettings");
+			Class<?> durationClass = Class.forName("java.time.Duration");
+			Class<?> consumerClass = Class.forName("java.util.function.Consumer");
+
+			final Method getDurationMethod = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getDuration");
+			final Method toNanosMethod = durationClass.getMethod("toNanos");
+
+			Object stream = recordingStreamClass.newInstance();
+
+			Object settings = recordingStreamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+			eventSettingsClass.getMethod("withThreshold", durationClass).invoke(settings, durationClass.getMethod("ofMillis", long.class).invoke(null, thresholdMillis));
+
+			Object consumer = Proxy.newProxyInstance(consumerClass.getClassLoader(), new Class<?>[] { consumerClass }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if ("accept".equals(method.getName())) {
+						long durationNanos = (Long)toNanosMethod.invoke(getDurationMethod.invoke(args[0]));
+
+						pinned.mark();
+						pinnedDuration.update(durationNanos, TimeUnit.NANOSECONDS);
+
+						return null;
+					} else if ("equals".equals(method.getName())) {
+						return proxy == args[0];
+					} else if ("hashCode".equals(method.getName())) {
+						return System.identityHashCode(proxy);
+					} else {
+						return VirtualThreadPinningMonitor.class.getSimpleName() + "$Consumer";
+					}
+				}
+			});
+
+			recordingStreamClass.getMethod("onEvent", String.class, consumerClass).invoke(stream, PINNED_EVENT, consumer);
+			recordingStreamClass.getMethod("startAsync").invoke(stream);
+
+			recordingStream = stream;
+
+			logger.info("Monitoring virtual thread pinning longer than [{}] ms.", thresholdMillis);
+		} catch (Exception e) {
+			logger.warn("Unable to monitor virtual thread pinning, JFR event streaming is not available.", e);
+		}
+	}
+
+	/**
+	 * Stops streaming the pinning events.
+	 */
+	public synchronized void stop() {
+		if (recordingStream == null) {
+			return;
+		}
+
+		try {
+			recordingStream.getClass().getMethod("close").invoke(recordingStream);
+		} catch (Exception e) {
+			logger.warn("Unable to close JFR recording stream", e);
+		} finally {
+			recordingStream = null;
+		}
+	}
+}
@@ -21,32 +21,43 @@ package com.kixeye.chassis.transport.websocket;
  */
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.util.Collection;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.validation.Validator;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.SuspendToken;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.support.DefaultListableBeanFactory;
-import org.springframework.web.context.request.async.DeferredResult;
-import org.springframework.web.context.request.async.DeferredResult.DeferredResultHandler;
+
+import rx.Observable;
+import rx.Subscriber;
 
 import com.google.common.base.Charsets;
 import com.google.common.cache.CacheBuilder;
@@ -54,15 +65,14 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
-import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.kixeye.chassis.transport.ExceptionServiceErrorMapper;
 import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.Header;
 import com.kixeye.chassis.transport.dto.ServiceError;
 import com.kixeye.chassis.transport.serde.MessageSerDe;
+import com.kixeye.chassis.transport.shared.HashedWheelTimer;
 
 /**
  * Listens to websocket messages and forwards it to the correct bean.
@@ -72,11 +82,28 @@ import com.kixeye.chassis.transport.serde.MessageSerDe;
 public class ActionInvokingWebSocket implements WebSocketListener {
 	private static final Logger logger = LoggerFactory.getLogger(ActionInvokingWebSocket.class);
 	
-	@Autowired
-	private WebSocketMessageMappingRegistry mappingRegistry;
+	public static final String SERVICE_BUSY_ERROR_CODE = "SERVICE_BUSY";
+	public static final String TIMEOUT_ERROR_CODE = "TIMEOUT";
+	public static final String CANCELLED_ERROR_CODE = "CANCELLED";
+	public static final String INVALID_BATCH_ERROR_CODE = "INVALID_BATCH";
+	
+	/**
+	 * The upgrade request parameter with which a client asks for compact envelope codes. The session then starts with
+	 * an envelopeCodes message that holds the table of codes. Envelopes with codes carry the version of that table.
+	 */
+	public static final String ENVELOPE_CODES_PARAMETER = "envelopeCodes";
+	public static final String ENVELOPE_CODES_ACTION = "envelopeCodes";
+	
+	/**
+	 * The action of the envelope that carries the conflated messages of a tick as its sub-envelopes, when there's more
+	 * than one.
+	 */
+	public static final String CONFLATED_ACTION = "conflated";
+	
+	private static final int MAX_POOLED_INVOCATIONS = 32;
 	
 	@Autowired
-	private WebSocketMessageRegistry messageRegistry;
+	private WebSocketMessageMappingRegistry mappingRegistry;
 	
 	@Autowired
 	private DefaultListableBeanFactory beanFactory;
@@ -86,6 +113,27 @@ public class ActionInvokingWebSocket implements WebSocketListener {
 
 	@Autowired
     private WebSocketPskFrameProcessor pskFrameProcessor;
+
+	@Autowired
+	private WebSocketActionExecutor actionExecutor;
+	
+	@Autowired
+	private WebSocketOutboundMonitor outboundMonitor;
+	
+	@Autowired
+	private WebSocketFrameEncoder frameEncoder;
+	
+	@Autowired
+	private WebSocketSessionRegistry sessionRegistry;
+	
+	@Autowired
+	private WebSocketActionMetrics actionMetrics;
+	
+	@Autowired
+	private WebSocketStreamMonitor streamMonitor;
+	
+	@Autowired
+	private WebSocketConflationMonitor conflationMonitor;
 	
 	private Session session;
 	
@@ -97,8 +145,37 @@ public class ActionInvokingWebSocket implements WebSocketListener {
 	
 	private MessageSerDe serDe;
 	
-	private ListeningExecutorService serviceExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
-	private ExecutorService responseExecutor = Executors.newSingleThreadExecutor();
+	private volatile WebSocketEnvelopeCodes envelopeCodes;
+	
+	private WebSocketSessionMailbox serviceMailbox;
+	private WebSocketSessionMailbox responseMailbox;
+	
+	private final ArrayDeque<ActionInvocation> invocationPool = new ArrayDeque<>();
+	
+	private int inFlightActions = 0;
+	private ActionInvocation inFlightInvocations;
+	private SuspendToken suspendToken;
+	
+	private volatile boolean closed = false;
+	
+	// keyed by transaction ID, or by the stream itself if it has none
+	private final Map<Object, ObservableStream> streams = new HashMap<>();
+	
+	private volatile boolean slowConsumerDisconnected = false;
+	
+	// frames sent while content is streamed out wait here, so they don't land between its fragments
+	// (locks rather than monitors, so virtual threads blocked in a send don't pin their carrier)
+	private final ReentrantLock outboundLock = new ReentrantLock();
+	private ArrayDeque<HeldFrame> heldFrames;
+	
+	// only one content stream goes out at a time
+	private final ReentrantLock contentLock = new ReentrantLock();
+	
+	// the payload of the incoming message that is being streamed to an action
+	private volatile WebSocketContentInputStream inboundContent;
+	
+	// the latest message per action and conflation key, waiting for the next tick
+	private final LinkedHashMap<Map.Entry<String, Object>, ConflatedMessage> conflatedMessages = new LinkedHashMap<>();
 	
 	private LoadingCache<String, Object> handlerCache = CacheBuilder.newBuilder()
 			.removalListener(new RemovalListener<String, Object>() {
@@ -150,224 +227,1611 @@ public class ActionInvokingWebSocket implements WebSocketListener {
 				}
 			});
 	
-	public void onWebSocketBinary(byte[] payload, int offset, int length) {
-		try {
-			// don't accept empty frames
-			if (payload == null || length < 1) {
-				throw new WebSocketServiceException(new ServiceError("EMPTY_ENVELOPE", "Empty envelope!"), "UNKNOWN", null);
-			}
-
-			// check if we need to do psk encryption
-			byte[] processedPayload = pskFrameProcessor.processIncoming(payload, offset, length);
+	/**
+	 * Takes an invocation from the pool and counts it as in flight until it is released.
+	 * 
+	 * Applies the overload policy once the session has too many actions in flight. Returns null if the session was closed.
+	 * 
+	 * @param envelope
+	 * @return
+	 * @throws WebSocketServiceException if the action was rejected
+	 */
+	private ActionInvocation acquireInvocation(WebSocketEnvelope envelope) throws WebSocketServiceException {
+		ActionInvocation invocation = null;
+		WebSocketOverloadPolicy overloadPolicy = null;
+		boolean accepted = false;
+		
+		synchronized (invocationPool) {
+			int maxInFlightActions = actionExecutor.getMaxSessionInFlightActions();
 			
-			if (processedPayload != payload) {
-				payload = processedPayload;
-				offset = 0;
-				length = payload.length;
+			if (inFlightActions + 1 >= maxInFlightActions) {
+				overloadPolicy = actionExecutor.getSessionOverloadPolicy();
 			}
 			
-			// get the envelope
-			final WebSocketEnvelope envelope = new WebSocketEnvelope(serDe.deserialize(payload, offset, length, Envelope.class));
-			
-			// gets all the actions
-			Collection<WebSocketAction> actions = mappingRegistry.getActionMethods(envelope.getAction());
-			
-			final AtomicInteger invokedActions = new AtomicInteger(0);
-			
-			// invokes them
-			for (final WebSocketAction action : actions) {
-				// get and validate type ID
-				Class<?> messageClass = null;
+			// a paused session still takes the frames that jetty had already read
+			if (inFlightActions < maxInFlightActions || overloadPolicy == WebSocketOverloadPolicy.PAUSE) {
+				inFlightActions++;
 				
-				if (StringUtils.isNotBlank(envelope.getTypeId())) {
-					messageClass = messageRegistry.getClassByTypeId(envelope.getTypeId());
+				if (inFlightActions >= maxInFlightActions && overloadPolicy == WebSocketOverloadPolicy.PAUSE && suspendToken == null) {
+					// suspend and resume under the same lock so that they can't overtake each other
+					suspendToken = session.suspend();
+					
+					actionExecutor.markSessionPaused();
 				}
 				
-				// validate if action has a payload class that it needs
-				if (action.getPayloadClass() != null && messageClass == null) {
-					throw new WebSocketServiceException(new ServiceError("INVALID_TYPE_ID", "Unknown type ID!"), envelope.getAction(), envelope.getTransactionId());
+				invocation = invocationPool.pollFirst();
+				
+				if (invocation == null) {
+					invocation = new ActionInvocation();
 				}
 				
-				// invoke this action if allowed
-				if (action.canInvoke(webSocketSession, messageClass)) {
-                    invokedActions.incrementAndGet();
-                    
-					final Object handler = handlerCache.get(action.getHandlerClass().getName());
-					final Class<?> finalMessageClass = messageClass;
-					
-					ListenableFuture<DeferredResult<?>> invocation = serviceExecutor.submit(new Callable<DeferredResult<?>>() {
-						@Override
-						public DeferredResult<?> call() throws Exception {
-							// then invoke
-							return action.invoke(handler, new RawWebSocketMessage<>(envelope.getPayload(), finalMessageClass, messageValidator, serDe), envelope, webSocketSession);
-						}
-                    });
-					
-					Futures.addCallback(invocation, new FutureCallback<DeferredResult<?>>() {
-						public void onSuccess(DeferredResult<?> result) {
-							if (result != null) {
-								result.setResultHandler(new DeferredResultHandler() {
-									@Override
-									public void handleResult(Object result) {
-										if (result instanceof Exception) {
-											onFailure((Exception)result);
-											return;
-										}
-										
-										sendResponse(result);
-									}
-								});
-							}
-						}
-
-						public void onFailure(Throwable t) {
-							if (t instanceof InvocationTargetException) {
-								t = ((InvocationTargetException)t).getTargetException();
-							}
-							
-							ServiceError error = ExceptionServiceErrorMapper.mapException(t);
-
-							if (error != null && !ExceptionServiceErrorMapper.VALIDATION_ERROR_CODE.equals(error.code)) {
-								logger.error("Unexpected exception throw while executing action [{}]", envelope.getAction(), t);
-							}
-							
-							sendResponse(error);
-						}
-						
-						public Future<Void> sendResponse(Object response) {
-							try {
-								return sendMessage(envelope.getAction(), envelope.getTransactionId(), response);
-							} catch (IOException | GeneralSecurityException e) {
-								logger.error("Unable to send message to channel", e);
-								
-								return Futures.immediateFuture(null);
-							}
-						}
-						
-					}, responseExecutor);
+				// link it so that closing the session can cancel it
+				invocation.next = inFlightInvocations;
+				
+				if (inFlightInvocations != null) {
+					inFlightInvocations.previous = invocation;
 				}
+				
+				inFlightInvocations = invocation;
+				accepted = true;
+			}
+		}
+		
+		if (accepted) {
+			actionExecutor.markActionStarted();
+			
+			return invocation;
+		} else if (overloadPolicy == WebSocketOverloadPolicy.CLOSE) {
+			logger.warn(this.toString() + " - Closing session [{}] with too many actions in flight.", session.toString());
+			
+			actionExecutor.markSessionClosed();
+			
+			session.close(StatusCode.TRY_AGAIN_LATER, "Too many actions in flight.");
+			
+			return null;
+		} else {
+			actionExecutor.markActionRejected();
+			
+			throw new WebSocketServiceException(new ServiceError(SERVICE_BUSY_ERROR_CODE, "Too many actions in flight."), envelope.getAction(), envelope.getTransactionId());
+		}
+	}
+	
+	/**
+	 * Returns an invocation to the pool and resumes reading once half of the in-flight actions have completed.
+	 * 
+	 * @param invocation
+	 */
+	private void releaseInvocation(ActionInvocation invocation) {
+		invocation.clear();
+		
+		actionExecutor.markActionFinished();
+		
+		synchronized (invocationPool) {
+			inFlightActions--;
+			
+			if (invocation.previous != null) {
+				invocation.previous.next = invocation.next;
+			} else {
+				inFlightInvocations = invocation.next;
 			}
 			
-			// make sure we actually invoked something
-			if (invokedActions.get() < 1) {
-				throw new WebSocketServiceException(new ServiceError("INVALID_ACTION_MAPPING", "No actions invoked."), envelope.getAction(), envelope.getTransactionId());
+			if (invocation.next != null) {
+				invocation.next.previous = invocation.previous;
+			}
+			
+			invocation.previous = null;
+			invocation.next = null;
+			
+			if (suspendToken != null && inFlightActions <= actionExecutor.getMaxSessionInFlightActions() / 2) {
+				suspendToken.resume();
+				suspendToken = null;
+			}
+			
+			if (invocationPool.size() < MAX_POOLED_INVOCATIONS) {
+				invocationPool.addFirst(invocation);
 			}
-		} catch (Exception e) {
-			throw new RuntimeException(e);
 		}
 	}
-
-    public void onWebSocketConnect(Session session) {
-		logger.info(this.toString() + " - Session connected [{}].", session.toString());
-		this.session = session;
+	
+	/**
+	 * Gets the amount of actions in flight, from being queued until their response is sent.
+	 * 
+	 * @return
+	 */
+	public int getInFlightActions() {
+		synchronized (invocationPool) {
+			return inFlightActions;
+		}
 	}
-
-	public void onWebSocketError(Throwable cause) {
-		logger.error("Unexpected socket error", cause);
+	
+	/**
+	 * Invokes the actions that handle an envelope.
+	 * 
+	 * @param envelope
+	 * @param payload
+	 * @param content the streamed payload, or null if the payload is whole
+	 * @param receivedAt
+	 * @param batch the batch that collects the responses, or null to send them right away
+	 * @param mailbox where the actions run
+	 * @throws Exception
+	 */
+	private void dispatch(WebSocketEnvelope envelope, ByteBuffer payload, WebSocketContentInputStream content, long receivedAt, BatchReply batch, 
+			Executor mailbox) throws Exception {
+		// gets all the actions that can handle this type
+		WebSocketActionDispatchTable.Entry dispatch = mappingRegistry.getDispatch(envelope.getAction(), StringUtils.isNotBlank(envelope.getTypeId()) ? envelope.getTypeId() : null);
 		
-		if (session.isOpen()) {
-			try {
-				String action = null;
-				String txId = null;
+		// validate if an action has a payload class that it needs
+		if (dispatch.isInvalidTypeId()) {
+			throw new WebSocketServiceException(new ServiceError("INVALID_TYPE_ID", "Unknown type ID!"), envelope.getAction(), envelope.getTransactionId());
+		}
+		
+		int invokedActions = 0;
+		
+		// invokes them
+		for (WebSocketAction action : dispatch.getActions()) {
+			// a streamed payload can only be read once, by an action that asked for it
+			if (content != null && !action.streamsPayload()) {
+				continue;
+			}
+			
+			// invoke this action if allowed
+			if (action.canInvoke(webSocketSession, dispatch.getMessageClass())) {
+                    invokedActions++;
+                    
+				WebSocketActionMetrics.Recorder metrics = actionMetrics.getRecorder(action, serDe.getMessageFormatName());
 				
-				WebSocketServiceException serviceException = null;
-				Throwable currentCause = cause;
+				ActionInvocation invocation = null;
 				
-				while (currentCause != null) {
-					if (currentCause instanceof WebSocketServiceException) {
-						serviceException = (WebSocketServiceException)currentCause;
+				try {
+					invocation = acquireInvocation(envelope);
+				} catch (WebSocketServiceException e) {
+					if (metrics != null) {
+						metrics.markError(e.error.code);
 					}
 					
-					currentCause = currentCause.getCause();
+					throw e;
 				}
 				
-				if (serviceException != null) {
-					action = serviceException.action;
-					txId = serviceException.transactionId;
-				} else {
-					action = "UNKNOWN";
+				if (invocation == null) {
+					return;
 				}
 				
-				sendMessage(action, txId, ExceptionServiceErrorMapper.mapException(serviceException == null ? cause : serviceException)).get();
-			} catch (Exception e) {
-				logger.error("Unexpected error", e);
+				invocation.prepare(action, handlerCache.get(action.getHandlerClass().getName()), envelope, payload, content, dispatch.getMessageClass(),
+						metrics, receivedAt, batch);
+				
+				try {
+					mailbox.execute(invocation);
+				} catch (RejectedExecutionException e) {
+					int batchSlot = invocation.batchSlot;
+					
+					releaseInvocation(invocation);
+					
+					actionExecutor.markActionRejected();
+					
+					if (metrics != null) {
+						metrics.markError(SERVICE_BUSY_ERROR_CODE);
+					}
+					
+					ServiceError error = new ServiceError(SERVICE_BUSY_ERROR_CODE, "Too many queued actions.");
+					
+					if (batch != null) {
+						batch.complete(batchSlot, envelope, error);
+					} else {
+						throw new WebSocketServiceException(error, envelope.getAction(), envelope.getTransactionId(), e);
+					}
+				}
+				
+				if (content != null) {
+					break;
+				}
 			}
 		}
-	}
-
-	public void onWebSocketText(String message) {
-		byte[] data = message.getBytes(Charsets.UTF_8);
 		
-		onWebSocketBinary(data, 0, data.length);
+		// make sure we actually invoked something
+		if (invokedActions < 1) {
+			throw new WebSocketServiceException(new ServiceError("INVALID_ACTION_MAPPING", "No actions invoked."), envelope.getAction(), envelope.getTransactionId());
+		}
 	}
 	
-	public synchronized void onWebSocketClose(int statusCode, String reason) {
-		logger.info(this.toString() + " - Session disconnected [{}]. Reason: [{}]", session.toString(), reason);
+	/**
+	 * Invokes the sub-envelopes of a batch and replies with all of their responses in a single frame.
+	 * 
+	 * @param batchEnvelope
+	 * @param envelopes
+	 * @param codesVersion the version of the envelope codes of the batch
+	 * @param receivedAt
+	 * @throws WebSocketServiceException if the batch is invalid
+	 */
+	private void dispatchBatch(WebSocketEnvelope batchEnvelope, List<Envelope> envelopes, Integer codesVersion, long receivedAt) throws WebSocketServiceException {
+		if (envelopes.size() > actionExecutor.getMaxBatchEnvelopes()) {
+			throw new WebSocketServiceException(new ServiceError(INVALID_BATCH_ERROR_CODE, "Too many envelopes in batch."), 
+					batchEnvelope.getAction(), batchEnvelope.getTransactionId());
+		}
 		
-		try {
-			handlerCache.invalidateAll();
-		} finally {
-			beanFactory.destroyBean(this);
+		WebSocketBatchOrdering ordering = actionExecutor.getBatchOrdering();
+		String orderingHeader = getHeader(batchEnvelope, WebSocketBatchOrdering.HEADER);
+		
+		if (orderingHeader != null) {
+			try {
+				ordering = WebSocketBatchOrdering.valueOf(orderingHeader.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new WebSocketServiceException(new ServiceError(INVALID_BATCH_ERROR_CODE, "Unknown batch ordering: " + orderingHeader), 
+						batchEnvelope.getAction(), batchEnvelope.getTransactionId());
+			}
+		}
+		
+		// unordered sub-actions skip the session mailbox and run in parallel
+		Executor mailbox = ordering == WebSocketBatchOrdering.UNORDERED ? actionExecutor : serviceMailbox;
+		
+		BatchReply batch = new BatchReply(batchEnvelope.getAction(), batchEnvelope.getTransactionId());
+		
+		for (Envelope subEnvelope : envelopes) {
+			WebSocketEnvelope envelope = subEnvelope == null ? batchEnvelope : new WebSocketEnvelope(subEnvelope);
+			
+			try {
+				if (subEnvelope == null || subEnvelope.envelopes != null) {
+					throw new WebSocketServiceException(new ServiceError(INVALID_BATCH_ERROR_CODE, "Batches can't be empty or nested."), 
+							envelope.getAction(), envelope.getTransactionId());
+				}
+				
+				// sub-envelopes use the codes of their batch
+				if (subEnvelope.codesVersion == null) {
+					subEnvelope.codesVersion = codesVersion;
+				}
+				
+				expandCodes(subEnvelope);
+				
+				dispatch(envelope, subEnvelope.payload, null, receivedAt, batch, mailbox);
+			} catch (Exception e) {
+				batch.complete(batch.reserve(), envelope, ExceptionServiceErrorMapper.mapException(e));
+			}
 		}
+		
+		batch.seal();
 	}
 	
 	/**
-	 * Gets the websocket session.
+	 * Collects the responses of the sub-envelopes of a batch and sends them in a single frame, in the order of the
+	 * sub-envelopes, once all of them are done.
 	 * 
-	 * @return
-	 * @throws IOException 
-	 * @throws GeneralSecurityException 
+	 * @author ebahtijaragic
 	 */
-	protected Future<Void> sendMessage(String action, String transactionId, Object obj) throws IOException, GeneralSecurityException {
-		String typeId = messageRegistry.getTypeIdByClass(obj.getClass());
-
-		if (typeId == null) {
-			throw new RuntimeException("Unable to determine type ID for class: " +  obj.getClass());
+	private final class BatchReply {
+		private final String action;
+		private final String transactionId;
+		
+		private final List<Envelope> replies = new ArrayList<>();
+		private int pending = 0;
+		private boolean sealed = false;
+		
+		public BatchReply(String action, String transactionId) {
+			this.action = action;
+			this.transactionId = transactionId;
+		}
+		
+		/**
+		 * Reserves the slot of a response.
+		 * 
+		 * @return
+		 */
+		public synchronized int reserve() {
+			replies.add(null);
+			pending++;
+			
+			return replies.size() - 1;
+		}
+		
+		/**
+		 * Sets the response of a slot.
+		 * 
+		 * @param slot
+		 * @param envelope the sub-envelope that was responded to
+		 * @param response the response or null if there is none
+		 */
+		public void complete(int slot, WebSocketEnvelope envelope, Object response) {
+			Envelope reply = null;
+			
+			if (response != null) {
+				try {
+					reply = frameEncoder.newEnvelope(serDe, envelope.getAction(), envelope.getTransactionId(), response);
+				} catch (Exception e) {
+					logger.error("Unable to encode batched response", e);
+				}
+			}
+			
+			boolean done = false;
+			
+			synchronized (this) {
+				replies.set(slot, reply);
+				pending--;
+				
+				done = sealed && pending == 0;
+			}
+			
+			if (done) {
+				send();
+			}
 		}
 		
-		byte[] payload = serDe.serialize(obj);
+		/**
+		 * Marks that all sub-envelopes were dispatched.
+		 */
+		public void seal() {
+			boolean done = false;
+			
+			synchronized (this) {
+				sealed = true;
+				
+				done = pending == 0;
+			}
+			
+			if (done) {
+				send();
+			}
+		}
 		
-		return sendMessage(action, transactionId, typeId, ByteBuffer.wrap(payload));
+		private void send() {
+			if (closed) {
+				return;
+			}
+			
+			List<Envelope> envelopes = new ArrayList<>(replies.size());
+			
+			for (Envelope reply : replies) {
+				if (reply != null) {
+					envelopes.add(reply);
+				}
+			}
+			
+			Envelope batchReply = new Envelope(action, null, transactionId, null);
+			batchReply.envelopes = envelopes;
+			
+			try {
+				sendFrame(frameEncoder.encode(serDe, batchReply, envelopeCodes), WebSocketMessagePriority.NORMAL, webSocketSession.getOutboundTracker());
+			} catch (Exception e) {
+				logger.error("Unable to send batched response to channel", e);
+			}
+		}
 	}
 	
 	/**
-	 * Gets the websocket session.
+	 * Replaces the codes of an inbound envelope with the action and type ID they stand for. Clients that didn't
+	 * negotiate codes may still send them, using the codes that are currently published.
 	 * 
-	 * @return
-	 * @throws IOException 
-	 * @throws GeneralSecurityException 
+	 * @param envelope
+	 * @throws WebSocketServiceException if a code is unknown
 	 */
-	protected Future<Void> sendMessage(String action, String transactionId, String typeId, ByteBuffer payload) throws IOException, GeneralSecurityException {
-		Envelope envelope = new Envelope(action, typeId, transactionId, payload);
+	private void expandCodes(Envelope envelope) throws WebSocketServiceException {
+		if (envelope.actionCode != null || envelope.typeCode != null) {
+			WebSocketEnvelopeCodes codes = envelopeCodes;
+			
+			(codes != null ? codes : mappingRegistry.getEnvelopeCodes()).expand(envelope);
+		}
+	}
+	
+	/**
+	 * Cancels the actions of a closed session that are still queued or waiting for their response.
+	 */
+	private void cancelInFlightActions() {
+		List<ActionInvocation> invocations = new ArrayList<>();
 		
-		// generate blob
-		byte[] envelopeBlob = serDe.serialize(envelope);
-
-		// check if we need to do psk encryption
-		envelopeBlob = pskFrameProcessor.processOutgoing(envelopeBlob, 0, envelopeBlob.length);
+		synchronized (invocationPool) {
+			closed = true;
+			
+			for (ActionInvocation invocation = inFlightInvocations; invocation != null; invocation = invocation.next) {
+				invocations.add(invocation);
+			}
+		}
+		
+		for (ActionInvocation invocation : invocations) {
+			invocation.cancel();
+		}
+		
+		List<ObservableStream> activeStreams = null;
 		
-		return session.getRemote().sendBytesByFuture(ByteBuffer.wrap(envelopeBlob));
+		synchronized (streams) {
+			activeStreams = new ArrayList<>(streams.values());
+		}
+		
+		for (ObservableStream stream : activeStreams) {
+			stream.cancel(false);
+		}
 	}
 	
 	/**
-	 * Gets the websocket session.
+	 * Starts streaming the elements of an observable that an action responded with.
 	 * 
-	 * @return
-	 * @throws IOException 
-	 * @throws GeneralSecurityException 
+	 * @param envelope
+	 * @param observable
+	 * @param metrics
+	 * @throws WebSocketServiceException if the transaction already has a stream
 	 */
-	protected Future<Void> sendContent(InputStream inputStream) throws IOException, GeneralSecurityException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	@SuppressWarnings("unchecked")
+	private void startStream(WebSocketEnvelope envelope, Observable<?> observable, WebSocketActionMetrics.Recorder metrics) throws WebSocketServiceException {
+		String transactionId = envelope.getTransactionId();
 		
-		IOUtils.copyLarge(inputStream, baos);
-
-		// generate blob
+		// without a transaction ID the client can't grant credits
+		long credits = Long.MAX_VALUE;
+		
+		if (transactionId != null) {
+			Long requestedCredits = getCredits(envelope);
+			
+			credits = requestedCredits != null ? requestedCredits : streamMonitor.getInitialCredits();
+		}
+		
+		ObservableStream stream = new ObservableStream(envelope.getAction(), transactionId, credits, streamMonitor.getMaxBufferedMessages(), metrics);
+		
+		synchronized (streams) {
+			if (closed) {
+				return;
+			}
+			
+			if (transactionId != null && streams.containsKey(transactionId)) {
+				throw new WebSocketServiceException(new ServiceError(WebSocketStreamMonitor.DUPLICATE_STREAM_ERROR_CODE, "Transaction already has a stream."), 
+						envelope.getAction(), transactionId);
+			}
+			
+			streams.put(stream.getKey(), stream);
+		}
+		
+		streamMonitor.markStreamStarted();
+		
+		((Observable<Object>)observable).subscribe(stream);
+	}
+	
+	/**
+	 * Grants credits to or cancels a stream.
+	 * 
+	 * @param envelope
+	 * @throws WebSocketServiceException if the control message is invalid
+	 */
+	private void controlStream(WebSocketEnvelope envelope) throws WebSocketServiceException {
+		String control = getHeader(envelope, WebSocketStreamMonitor.STREAM_HEADER);
+		
+		ObservableStream stream = null;
+		
+		if (envelope.getTransactionId() != null) {
+			synchronized (streams) {
+				stream = streams.get(envelope.getTransactionId());
+			}
+		}
+		
+		if (WebSocketStreamMonitor.STREAM_REQUEST.equals(control)) {
+			Long credits = getCredits(envelope);
+			
+			if (stream != null) {
+				stream.addCredits(credits != null ? credits : 1);
+			}
+		} else if (WebSocketStreamMonitor.STREAM_CANCEL.equals(control)) {
+			if (stream != null) {
+				stream.cancel(true);
+			}
+		} else {
+			throw new WebSocketServiceException(new ServiceError(WebSocketStreamMonitor.INVALID_STREAM_CONTROL_ERROR_CODE, "Unknown stream control: " + control), 
+					envelope.getAction(), envelope.getTransactionId());
+		}
+		
+		// streams that already finished ignore late control messages
+	}
+	
+	/**
+	 * Gets the credits header of an envelope.
+	 * 
+	 * @param envelope
+	 * @return the credits or null if the envelope has none
+	 * @throws WebSocketServiceException if the credits aren't a positive number
+	 */
+	private static Long getCredits(WebSocketEnvelope envelope) throws WebSocketServiceException {
+		String credits = getHeader(envelope, WebSocketStreamMonitor.CREDITS_HEADER);
+		
+		if (credits == null) {
+			return null;
+		}
+		
+		try {
+			long value = Long.parseLong(credits.trim());
+			
+			if (value > 0) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		
+		throw new WebSocketServiceException(new ServiceError(WebSocketStreamMonitor.INVALID_STREAM_CONTROL_ERROR_CODE, "Invalid stream credits: " + credits), 
+				envelope.getAction(), envelope.getTransactionId());
+	}
+	
+	/**
+	 * Gets the first value of a header.
+	 * 
+	 * @param envelope
+	 * @param name
+	 * @return
+	 */
+	private static String getHeader(WebSocketEnvelope envelope, String name) {
+		for (String value : envelope.getHeaders().get(name)) {
+			return value;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Streams the elements of an observable as messages with the transaction ID of the request, as far as the client
+	 * granted credits for them. Elements that arrive while the stream waits for credits are buffered, up to a limit.
+	 * 
+	 * @author ebahtijaragic
+	 */
+	private final class ObservableStream extends Subscriber<Object> {
+		private final String action;
+		private final String transactionId;
+		private final int maxBufferedMessages;
+		private final WebSocketActionMetrics.Recorder metrics;
+		
+		private final ArrayDeque<Object> buffered = new ArrayDeque<>();
+		
+		private long credits;
+		private boolean completed = false;
+		private Throwable error;
+		private boolean finished = false;
+		
+		public ObservableStream(String action, String transactionId, long credits, int maxBufferedMessages, WebSocketActionMetrics.Recorder metrics) {
+			this.action = action;
+			this.transactionId = transactionId;
+			this.credits = credits;
+			this.maxBufferedMessages = maxBufferedMessages;
+			this.metrics = metrics;
+		}
+		
+		public Object getKey() {
+			return transactionId != null ? transactionId : this;
+		}
+		
+		public synchronized void onNext(Object message) {
+			if (finished || completed || error != null) {
+				return;
+			}
+			
+			if (buffered.size() >= maxBufferedMessages) {
+				streamMonitor.markStreamOverflowed();
+				
+				// the elements that are still buffered would arrive after the client missed some
+				buffered.clear();
+				
+				error = new WebSocketServiceException(new ServiceError(WebSocketStreamMonitor.STREAM_OVERFLOW_ERROR_CODE, "Too many buffered stream messages."), 
+						action, transactionId);
+			} else {
+				buffered.addLast(message);
+			}
+			
+			drain();
+		}
+		
+		public synchronized void onCompleted() {
+			if (finished || error != null) {
+				return;
+			}
+			
+			completed = true;
+			
+			drain();
+		}
+		
+		public synchronized void onError(Throwable e) {
+			if (finished || completed || error != null) {
+				return;
+			}
+			
+			error = e;
+			
+			drain();
+		}
+		
+		/**
+		 * Grants the stream more credits.
+		 * 
+		 * @param amount
+		 */
+		public synchronized void addCredits(long amount) {
+			if (finished) {
+				return;
+			}
+			
+			credits = credits + amount < 0 ? Long.MAX_VALUE : credits + amount;
+			
+			drain();
+		}
+		
+		/**
+		 * Stops the stream.
+		 * 
+		 * @param acknowledge whether to tell the client that the stream was cancelled
+		 */
+		public synchronized void cancel(boolean acknowledge) {
+			if (finished) {
+				return;
+			}
+			
+			finish();
+			
+			streamMonitor.markStreamCancelled();
+			
+			if (acknowledge) {
+				sendMarker(WebSocketStreamMonitor.STREAM_CANCELLED, null);
+			}
+		}
+		
+		private void drain() {
+			while (credits > 0 && !buffered.isEmpty()) {
+				credits--;
+				
+				send(buffered.pollFirst());
+			}
+			
+			if (!buffered.isEmpty()) {
+				return;
+			}
+			
+			if (error != null) {
+				finish();
+				
+				Throwable t = error instanceof InvocationTargetException ? ((InvocationTargetException)error).getTargetException() : error;
+				ServiceError serviceError = ExceptionServiceErrorMapper.mapException(t);
+				
+				if (!WebSocketStreamMonitor.STREAM_OVERFLOW_ERROR_CODE.equals(serviceError.code)) {
+					logger.error("Unexpected exception throw while streaming action [{}]", action, t);
+				}
+				
+				if (metrics != null) {
+					metrics.markError(serviceError.code);
+				}
+				
+				sendMarker(WebSocketStreamMonitor.STREAM_ERROR, serviceError);
+			} else if (completed) {
+				finish();
+				
+				sendMarker(WebSocketStreamMonitor.STREAM_COMPLETE, null);
+			}
+		}
+		
+		private void finish() {
+			finished = true;
+			buffered.clear();
+			
+			unsubscribe();
+			
+			synchronized (streams) {
+				streams.remove(getKey());
+			}
+			
+			streamMonitor.markStreamFinished();
+		}
+		
+		private void send(Object message) {
+			if (closed || message == null) {
+				return;
+			}
+			
+			try {
+				ByteBuffer frame = encodeMessage(action, transactionId, message);
+				
+				if (metrics != null) {
+					metrics.updateOutboundBytes(frame.remaining());
+				}
+				
+				sendFrame(frame, WebSocketMessagePriority.NORMAL, webSocketSession.getOutboundTracker());
+				
+				streamMonitor.markMessageStreamed();
+			} catch (Exception e) {
+				logger.error("Unable to send stream message to channel", e);
+			}
+		}
+		
+		private void sendMarker(String state, ServiceError serviceError) {
+			if (closed) {
+				return;
+			}
+			
+			List<Header> headers = Collections.singletonList(new Header(WebSocketStreamMonitor.STREAM_HEADER, Collections.singletonList(state)));
+			
+			try {
+				ByteBuffer frame = serviceError != null ? frameEncoder.encode(serDe, action, transactionId, serviceError, headers, envelopeCodes) :
+					frameEncoder.encode(serDe, new Envelope(action, null, transactionId, headers, null), envelopeCodes);
+				
+				sendFrame(frame, WebSocketMessagePriority.NORMAL, webSocketSession.getOutboundTracker());
+			} catch (Exception e) {
+				logger.error("Unable to send stream marker to channel", e);
+			}
+		}
+	}
+	
+	/**
+	 * A single invocation of an action, reused across the messages of a session. It first runs on the service mailbox to
+	 * invoke the action and then on the response mailbox to send the response.
+	 * 
+	 * Asynchronous responses are bounded by the timeout of the action, which fails the action with a TIMEOUT error and
+	 * cancels the work behind its response.
+	 * 
+	 * @author ebahtijaragic
+	 */
+	private final class ActionInvocation implements WebSocketSessionMailbox.Rejectable, WebSocketActionResult.Listener, HashedWheelTimer.TimerTask {
+		private final RawWebSocketMessage<Object> message = new RawWebSocketMessage<>(null, null, messageValidator, serDe);
+		// a fresh one per use, since an async response that can't be cancelled may still complete it after a timeout
+		private WebSocketActionResult<Object> result = new WebSocketActionResult<>();
+		
+		private WebSocketAction action;
+		private Object handler;
+		private WebSocketEnvelope envelope;
+		
+		private WebSocketActionMetrics.Recorder metrics;
+		private long receivedAt;
+		
+		private boolean invoked = false;
+		private Throwable error;
+		
+		private HashedWheelTimer.Timeout timeout;
+		
+		private BatchReply batch;
+		private int batchSlot;
+		
+		private WebSocketContentInputStream content;
+		
+		// guarded by the invocation pool
+		private ActionInvocation previous;
+		private ActionInvocation next;
+		
+		@SuppressWarnings("unchecked")
+		public void prepare(WebSocketAction action, Object handler, WebSocketEnvelope envelope, ByteBuffer payload, WebSocketContentInputStream content, 
+				Class<?> messageClass, WebSocketActionMetrics.Recorder metrics, long receivedAt, BatchReply batch) {
+			this.action = action;
+			this.handler = handler;
+			this.envelope = envelope;
+			this.metrics = metrics;
+			this.receivedAt = receivedAt;
+			this.batch = batch;
+			
+			if (batch != null) {
+				batchSlot = batch.reserve();
+			}
+			
+			if (content != null) {
+				this.content = content;
+				
+				message.reset(content);
+			} else {
+				message.reset(payload, (Class<Object>)messageClass);
+			}
+			
+			if (metrics != null) {
+				metrics.updateInboundBytes(payload == null ? 0 : payload.remaining());
+			}
+		}
+		
+		public synchronized void clear() {
+			if (timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+			
+			action = null;
+			handler = null;
+			envelope = null;
+			metrics = null;
+			batch = null;
+			invoked = false;
+			error = null;
+			
+			// whatever the action didn't read is discarded
+			if (content != null) {
+				content.close();
+				content = null;
+			}
+			
+			message.reset(null, null);
+			result = new WebSocketActionResult<>();
+		}
+		
+		public void run() {
+			if (!invoked) {
+				invoked = true;
+				
+				invoke();
+			} else {
+				respond();
+			}
+		}
+		
+		public void onResult(WebSocketActionResult<?> result) {
+			responseMailbox.execute(this);
+		}
+		
+		/**
+		 * Replies that the service is busy, for an invocation that was queued but never got a thread.
+		 */
+		public void reject(RejectedExecutionException e) {
+			actionExecutor.markActionRejected();
+			
+			if (metrics != null) {
+				metrics.markError(SERVICE_BUSY_ERROR_CODE);
+			}
+			
+			try {
+				reply(new ServiceError(SERVICE_BUSY_ERROR_CODE, "Too many queued actions."));
+			} finally {
+				releaseInvocation(this);
+			}
+		}
+		
+		public synchronized void run(HashedWheelTimer.Timeout expired) {
+			// the invocation may have completed and been reused since
+			if (timeout != expired) {
+				return;
+			}
+			
+			timeout = null;
+			
+			if (result.setErrorResult(new WebSocketServiceException(new ServiceError(TIMEOUT_ERROR_CODE, "Action timed out."), 
+					envelope.getAction(), envelope.getTransactionId()))) {
+				actionExecutor.markActionTimedOut();
+				
+				result.cancel();
+			}
+		}
+		
+		/**
+		 * Fails this invocation and cancels the work behind its response.
+		 */
+		public synchronized void cancel() {
+			if (envelope == null) {
+				return;
+			}
+			
+			if (timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+			
+			result.setErrorResult(new WebSocketServiceException(new ServiceError(CANCELLED_ERROR_CODE, "Session closed."), 
+					envelope.getAction(), envelope.getTransactionId()));
+			result.cancel();
+		}
+		
+		private void scheduleTimeout() {
+			if (result.hasResult()) {
+				return;
+			}
+			
+			long timeoutMillis = action.getTimeout() < 0 ? actionExecutor.getDefaultActionTimeout() : action.getTimeout();
+			
+			if (timeoutMillis > 0) {
+				synchronized (this) {
+					timeout = actionExecutor.newActionTimeout(this, timeoutMillis);
+				}
+			}
+		}
+		
+		private void invoke() {
+			// the session closed while this was queued
+			if (closed || result.isCancelled()) {
+				reply(null);
+				
+				releaseInvocation(this);
+				
+				return;
+			}
+			
+			long invokedAt = 0;
+			
+			if (metrics != null) {
+				invokedAt = System.nanoTime();
+				
+				metrics.updateQueueWait(invokedAt - receivedAt);
+			}
+			
+			boolean hasResponse = false;
+			Throwable invokeError = null;
+			
+			try {
+				hasResponse = action.invoke(handler, message, envelope, webSocketSession, result);
+			} catch (Throwable t) {
+				invokeError = t;
+			}
+			
+			// record before handing this invocation to another thread
+			if (metrics != null) {
+				metrics.updateInvoke(System.nanoTime() - invokedAt);
+			}
+			
+			if (invokeError != null) {
+				error = invokeError;
+				
+				responseMailbox.execute(this);
+			} else if (hasResponse) {
+				scheduleTimeout();
+				
+				result.setListener(this);
+			} else {
+				reply(null);
+				
+				if (metrics != null) {
+					metrics.updateRoundTrip(System.nanoTime() - receivedAt);
+				}
+				
+				releaseInvocation(this);
+			}
+		}
+		
+		private void respond() {
+			try {
+				Throwable t = error != null ? error : result.getError();
+				Object response = result.getResult();
+				
+				if (t == null && response instanceof Observable) {
+					try {
+						startStream(envelope, (Observable<?>)response, metrics);
+					} catch (Throwable e) {
+						t = e;
+					}
+					
+					response = null;
+				}
+				
+				if (t != null) {
+					if (t instanceof InvocationTargetException) {
+						t = ((InvocationTargetException)t).getTargetException();
+					}
+					
+					ServiceError serviceError = ExceptionServiceErrorMapper.mapException(t);
+
+					if (serviceError != null && !isExpectedError(serviceError.code)) {
+						logger.error("Unexpected exception throw while executing action [{}]", envelope.getAction(), t);
+					}
+					
+					if (metrics != null) {
+						metrics.markError(serviceError == null ? null : serviceError.code);
+					}
+					
+					response = serviceError;
+				}
+				
+				reply(response);
+				
+				if (metrics != null) {
+					metrics.updateRoundTrip(System.nanoTime() - receivedAt);
+				}
+			} finally {
+				releaseInvocation(this);
+			}
+		}
+		
+		/**
+		 * Sends the response, or adds it to the batch this invocation belongs to.
+		 * 
+		 * @param response the response or null if there is none
+		 */
+		private void reply(Object response) {
+			if (batch != null) {
+				batch.complete(batchSlot, envelope, response);
+			} else if (response != null && !closed) {
+				sendResponse(response);
+			}
+		}
+		
+		private boolean isExpectedError(String code) {
+			return ExceptionServiceErrorMapper.VALIDATION_ERROR_CODE.equals(code) || TIMEOUT_ERROR_CODE.equals(code) || CANCELLED_ERROR_CODE.equals(code);
+		}
+		
+		private void sendResponse(Object response) {
+			try {
+				ByteBuffer frame = encodeMessage(envelope.getAction(), envelope.getTransactionId(), response);
+				
+				if (metrics != null) {
+					metrics.updateOutboundBytes(frame.remaining());
+				}
+				
+				sendFrame(frame, WebSocketMessagePriority.NORMAL, webSocketSession.getOutboundTracker());
+			} catch (Exception e) {
+				logger.error("Unable to send message to channel", e);
+			}
+		}
+	}
+	
+	public void onWebSocketBinary(byte[] payload, int offset, int length) {
+		long receivedAt = System.nanoTime();
+		
+		try {
+			// don't accept empty frames
+			if (payload == null || length < 1) {
+				throw new WebSocketServiceException(new ServiceError("EMPTY_ENVELOPE", "Empty envelope!"), "UNKNOWN", null);
+			}
+
+			// check if we need to do psk encryption
+			byte[] processedPayload = pskFrameProcessor.processIncoming(payload, offset, length);
+			
+			if (processedPayload != payload) {
+				payload = processedPayload;
+				offset = 0;
+				length = payload.length;
+			}
+			
+			// get the envelope, jetty hands over a new array for every message so its payload may point into it
+			final Envelope baseEnvelope = frameEncoder.decode(serDe, payload, offset, length);
+			expandCodes(baseEnvelope);
+			
+			final WebSocketEnvelope envelope = new WebSocketEnvelope(baseEnvelope);
+			
+			// stream control messages go to the stream instead of an action
+			if (baseEnvelope.headers != null && envelope.getHeaders().containsKey(WebSocketStreamMonitor.STREAM_HEADER)) {
+				controlStream(envelope);
+				
+				return;
+			}
+			
+			// batches are parsed and decrypted once for all their sub-envelopes
+			if (baseEnvelope.envelopes != null) {
+				dispatchBatch(envelope, baseEnvelope.envelopes, baseEnvelope.codesVersion, receivedAt);
+				
+				return;
+			}
+			
+			dispatch(envelope, baseEnvelope.payload, null, receivedAt, null, serviceMailbox);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+    public void onWebSocketConnect(Session session) {
+		logger.info(this.toString() + " - Session connected [{}].", session.toString());
+		this.session = session;
+		this.serviceMailbox = actionExecutor.newActionMailbox();
+		this.responseMailbox = actionExecutor.newResponseMailbox();
+		
+		outboundMonitor.register(webSocketSession);
+		sessionRegistry.register(webSocketSession);
+		
+		if (upgradeRequest != null && upgradeRequest.getParameterMap() != null) {
+			List<String> values = upgradeRequest.getParameterMap().get(ENVELOPE_CODES_PARAMETER);
+			
+			if (values != null && values.contains("true")) {
+				WebSocketEnvelopeCodes codes = mappingRegistry.getEnvelopeCodes();
+				
+				// the table itself goes out with the full action and type ID
+				try {
+					sendMessage(ENVELOPE_CODES_ACTION, null, codes.toMessage());
+				} catch (Exception e) {
+					logger.error("Unable to send envelope codes to channel", e);
+				}
+				
+				envelopeCodes = codes;
+			}
+		}
+	}
+
+	public void onWebSocketError(Throwable cause) {
+		logger.error("Unexpected socket error", cause);
+		
+		if (session.isOpen()) {
+			try {
+				String action = null;
+				String txId = null;
+				
+				WebSocketServiceException serviceException = null;
+				Throwable currentCause = cause;
+				
+				while (currentCause != null) {
+					if (currentCause instanceof WebSocketServiceException) {
+						serviceException = (WebSocketServiceException)currentCause;
+					}
+					
+					currentCause = currentCause.getCause();
+				}
+				
+				if (serviceException != null) {
+					action = serviceException.action;
+					txId = serviceException.transactionId;
+				} else {
+					action = "UNKNOWN";
+				}
+				
+				sendMessage(action, txId, ExceptionServiceErrorMapper.mapException(serviceException == null ? cause : serviceException)).get();
+			} catch (Exception e) {
+				logger.error("Unexpected error", e);
+			}
+		}
+	}
+
+	public void onWebSocketText(String message) {
+		byte[] data = message.getBytes(Charsets.UTF_8);
+		
+		onWebSocketBinary(data, 0, data.length);
+	}
+	
+	public synchronized void onWebSocketClose(int statusCode, String reason) {
+		logger.info(this.toString() + " - Session disconnected [{}]. Reason: [{}]", session.toString(), reason);
+		
+		try {
+			WebSocketContentInputStream content = inboundContent;
+			
+			if (content != null) {
+				content.fail(new EOFException("Session closed mid message."));
+			}
+			
+			cancelInFlightActions();
+			
+			synchronized (conflatedMessages) {
+				conflatedMessages.clear();
+			}
+			
+			sessionRegistry.unregister(webSocketSession);
+			
+			webSocketSession.close();
+			
+			outboundMonitor.unregister(webSocketSession);
+			
+			handlerCache.invalidateAll();
+		} finally {
+			beanFactory.destroyBean(this);
+		}
+	}
+	
+	/**
+	 * Gets the compact codes this session negotiated.
+	 * 
+	 * @return the codes or null if the session uses the full action and type ID
+	 */
+	public WebSocketEnvelopeCodes getEnvelopeCodes() {
+		return envelopeCodes;
+	}
+	
+	/**
+	 * Gets the websocket session.
+	 * 
+	 * @return
+	 * @throws IOException 
+	 * @throws GeneralSecurityException 
+	 */
+	protected Future<Void> sendMessage(String action, String transactionId, Object obj) throws IOException, GeneralSecurityException {
+		return sendMessage(action, transactionId, obj, WebSocketMessagePriority.NORMAL);
+	}
+	
+	/**
+	 * Gets the websocket session.
+	 * 
+	 * @return
+	 * @throws IOException 
+	 * @throws GeneralSecurityException 
+	 */
+	protected Future<Void> sendMessage(String action, String transactionId, Object obj, WebSocketMessagePriority priority) throws IOException, GeneralSecurityException {
+		return sendFrame(encodeMessage(action, transactionId, obj), priority);
+	}
+	
+	/**
+	 * Gets the websocket session.
+	 * 
+	 * @return
+	 * @throws IOException 
+	 * @throws GeneralSecurityException 
+	 */
+	protected Future<Void> sendMessage(String action, String transactionId, String typeId, ByteBuffer payload) throws IOException, GeneralSecurityException {
+		return sendMessage(action, transactionId, typeId, payload, WebSocketMessagePriority.NORMAL);
+	}
+	
+	/**
+	 * Gets the websocket session.
+	 * 
+	 * @return
+	 * @throws IOException 
+	 * @throws GeneralSecurityException 
+	 */
+	protected Future<Void> sendMessage(String action, String transactionId, String typeId, ByteBuffer payload, WebSocketMessagePriority priority) throws IOException, GeneralSecurityException {
+		return sendFrame(encodeMessage(action, transactionId, typeId, payload), priority);
+	}
+	
+	/**
+	 * Sends a frame and returns a future that completes once it was written, or is cancelled if the frame was not sent.
+	 * 
+	 * @param frame
+	 * @param priority
+	 * @return
+	 */
+	private Future<Void> sendFrame(ByteBuffer frame, WebSocketMessagePriority priority) {
+		WriteFuture future = new WriteFuture(webSocketSession.getOutboundTracker());
+		
+		if (!sendFrame(frame, priority, future)) {
+			future.cancel(false);
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * Hands a frame to Jetty unless the client has too many bytes or messages waiting to be written, in which case
+	 * the slow consumer policy either drops the frame or disconnects the session.
+	 * 
+	 * @param frame
+	 * @param priority
+	 * @param callback
+	 * @return false if the frame was not sent
+	 */
+	boolean sendFrame(ByteBuffer frame, WebSocketMessagePriority priority, WriteCallback callback) {
+		if (webSocketSession.getOutboundTracker().offer(frame.remaining(), outboundMonitor.getMaxOutboundBytes(), outboundMonitor.getMaxOutboundMessages())) {
+			outboundLock.lock();
+			
+			try {
+				if (heldFrames != null) {
+					heldFrames.addLast(new HeldFrame(frame, callback));
+				} else {
+					session.getRemote().sendBytes(frame, callback);
+				}
+			} catch (RuntimeException e) {
+				// the write never started, so nothing else retires its slot
+				callback.writeFailed(e);
+				
+				return false;
+			} finally {
+				outboundLock.unlock();
+			}
+			
+			return true;
+		}
+		
+		if (priority == WebSocketMessagePriority.LOW && outboundMonitor.getSlowConsumerPolicy() == WebSocketSlowConsumerPolicy.DROP) {
+			outboundMonitor.markMessageDropped();
+		} else if (!slowConsumerDisconnected) {
+			slowConsumerDisconnected = true;
+			
+			logger.warn(this.toString() + " - Disconnecting slow session [{}] with [{}] pending bytes in [{}] pending messages.", 
+					session.toString(), webSocketSession.getOutboundBytes(), webSocketSession.getOutboundMessages());
+			
+			outboundMonitor.markSessionDisconnected();
+			
+			try {
+				session.disconnect();
+			} catch (IOException e) {
+				logger.error("Unable to disconnect slow session", e);
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Queues a message that only needs to reach the client in its latest state. Messages with the same action and
+	 * conflation key replace each other until the next tick flushes them, and all messages of a tick go out in a single
+	 * frame. The message is serialized when it's flushed, so it shouldn't change after it was queued.
+	 * 
+	 * @param action
+	 * @param conflationKey
+	 * @param message
+	 */
+	protected void sendConflatedMessage(String action, Object conflationKey, Object message) {
+		boolean first = false;
+		
+		synchronized (conflatedMessages) {
+			if (closed) {
+				return;
+			}
+			
+			first = conflatedMessages.isEmpty();
+			
+			if (conflatedMessages.put(new AbstractMap.SimpleImmutableEntry<>(action, conflationKey), new ConflatedMessage(action, message)) != null) {
+				conflationMonitor.markMessageConflated();
+			}
+		}
+		
+		if (first) {
+			conflationMonitor.schedule(this);
+		}
+	}
+	
+	/**
+	 * Sends the conflated messages from the response mailbox, so that they're encoded off the tick.
+	 */
+	void flushConflatedMessages() {
+		try {
+			responseMailbox.execute(new WebSocketSessionMailbox.Rejectable() {
+				public void run() {
+					sendConflatedMessages();
+				}
+				
+				public void reject(RejectedExecutionException e) {
+					retryConflatedMessages();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			retryConflatedMessages();
+		}
+	}
+	
+	private void retryConflatedMessages() {
+		logger.warn(this.toString() + " - Unable to flush conflated messages of session [{}], retrying on the next tick.", session.toString());
+		
+		synchronized (conflatedMessages) {
+			if (closed || conflatedMessages.isEmpty()) {
+				return;
+			}
+		}
+		
+		conflationMonitor.schedule(this);
+	}
+	
+	private void sendConflatedMessages() {
+		List<ConflatedMessage> messages = null;
+		
+		synchronized (conflatedMessages) {
+			if (closed || conflatedMessages.isEmpty()) {
+				return;
+			}
+			
+			messages = new ArrayList<>(conflatedMessages.values());
+			
+			conflatedMessages.clear();
+		}
+		
+		try {
+			ByteBuffer frame = null;
+			
+			if (messages.size() == 1) {
+				frame = encodeMessage(messages.get(0).action, null, messages.get(0).message);
+			} else {
+				List<Envelope> envelopes = new ArrayList<>(messages.size());
+				
+				for (ConflatedMessage message : messages) {
+					envelopes.add(frameEncoder.newEnvelope(serDe, message.action, null, message.message));
+				}
+				
+				Envelope conflated = new Envelope(CONFLATED_ACTION, null, null, null);
+				conflated.envelopes = envelopes;
+				
+				frame = frameEncoder.encode(serDe, conflated, envelopeCodes);
+			}
+			
+			sendFrame(frame, WebSocketMessagePriority.NORMAL, webSocketSession.getOutboundTracker());
+			
+			conflationMonitor.markFlushed(messages.size());
+		} catch (Exception e) {
+			logger.error("Unable to send conflated messages to channel", e);
+		}
+	}
+	
+	/**
+	 * Encodes a message into a frame.
+	 * 
+	 * @param action
+	 * @param transactionId
+	 * @param obj
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	private ByteBuffer encodeMessage(String action, String transactionId, Object obj) throws IOException, GeneralSecurityException {
+		return frameEncoder.encode(serDe, action, transactionId, obj, null, envelopeCodes);
+	}
+	
+	/**
+	 * Encodes a message into a frame.
+	 * 
+	 * @param action
+	 * @param transactionId
+	 * @param typeId
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	private ByteBuffer encodeMessage(String action, String transactionId, String typeId, ByteBuffer payload) throws IOException, GeneralSecurityException {
+		return frameEncoder.encode(serDe, new Envelope(action, typeId, transactionId, payload), envelopeCodes);
+	}
+	
+	/**
+	 * Gets the websocket session.
+	 * 
+	 * @return
+	 * @throws IOException 
+	 * @throws GeneralSecurityException 
+	 */
+	protected Future<Void> sendContent(InputStream inputStream) throws IOException, GeneralSecurityException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		
+		IOUtils.copyLarge(inputStream, baos);
+
+		// generate blob
 		byte[] contentBlob = serDe.serialize(baos.toByteArray());
 
 		// check if we need to do psk encryption
 		contentBlob = pskFrameProcessor.processOutgoing(contentBlob, 0, contentBlob.length);
 		
-		return session.getRemote().sendBytesByFuture(ByteBuffer.wrap(contentBlob));
+		return sendFrame(ByteBuffer.wrap(contentBlob), WebSocketMessagePriority.NORMAL);
+	}
+	
+	/**
+	 * Streams content as the fragments of a single binary message, reading the next fragment only once the previous one
+	 * was written. The content goes out as it is, without an envelope, and other messages are held back until it's done.
+	 * If the content can't be streamed to the end, the held back messages fail and the session is closed.
+	 * 
+	 * Sessions with PSK encryption encrypt whole messages, so they fall back to {@link #sendContent(InputStream)}.
+	 * 
+	 * @param inputStream
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	protected Future<Void> streamContent(InputStream inputStream) throws IOException, GeneralSecurityException {
+		if (pskFrameProcessor.isEnabled()) {
+			return sendContent(inputStream);
+		}
+		
+		int fragmentSize = Math.max(1, streamMonitor.getFragmentSize());
+		
+		contentLock.lock();
+		
+		try {
+			outboundLock.lock();
+			
+			try {
+				heldFrames = new ArrayDeque<>();
+			} finally {
+				outboundLock.unlock();
+			}
+			
+			// whether the client was sent the start of the message but not its end
+			boolean unfinished = false;
+			
+			try {
+				// read one fragment ahead to know which one is the last
+				byte[] fragment = new byte[fragmentSize];
+				byte[] nextFragment = new byte[fragmentSize];
+				
+				int length = IOUtils.read(inputStream, fragment);
+				
+				while (true) {
+					int nextLength = length < fragmentSize ? 0 : IOUtils.read(inputStream, nextFragment);
+					boolean last = nextLength == 0;
+					
+					unfinished = true;
+					
+					session.getRemote().sendPartialBytes(ByteBuffer.wrap(fragment, 0, length), last);
+					
+					streamMonitor.markOutboundBytesStreamed(length);
+					
+					if (last) {
+						unfinished = false;
+						
+						break;
+					}
+					
+					byte[] sent = fragment;
+					fragment = nextFragment;
+					nextFragment = sent;
+					length = nextLength;
+				}
+			} finally {
+				outboundLock.lock();
+				
+				try {
+					if (unfinished) {
+						// any other message would land in the middle of the one that broke off
+						IOException error = new IOException("Streamed content was interrupted.");
+						
+						for (HeldFrame held : heldFrames) {
+							held.callback.writeFailed(error);
+						}
+					} else {
+						for (HeldFrame held : heldFrames) {
+							session.getRemote().sendBytes(held.frame, held.callback);
+						}
+					}
+					
+					heldFrames = null;
+				} finally {
+					outboundLock.unlock();
+				}
+				
+				if (unfinished) {
+					session.close(StatusCode.SERVER_ERROR, "Streamed content was interrupted.");
+				}
+			}
+		} finally {
+			contentLock.unlock();
+		}
+		
+		return Futures.immediateFuture(null);
+	}
+	
+	/**
+	 * Looks at the first fragment of an incoming message and, if it's the envelope of an action that streams its payload,
+	 * starts that action with the fragments that follow as its payload.
+	 * 
+	 * @param fragment
+	 * @return true if the rest of the message is streamed to an action
+	 */
+	boolean startStreamedMessage(ByteBuffer fragment) {
+		if (pskFrameProcessor.isEnabled() || !fragment.hasRemaining()) {
+			return false;
+		}
+		
+		long receivedAt = System.nanoTime();
+		
+		byte[] data = new byte[fragment.remaining()];
+		fragment.duplicate().get(data);
+		
+		Envelope baseEnvelope = null;
+		
+		try {
+			baseEnvelope = frameEncoder.decode(serDe, data, 0, data.length);
+			expandCodes(baseEnvelope);
+		} catch (Exception e) {
+			// not an envelope on its own, so it's the start of a regular message
+			return false;
+		}
+		
+		if (baseEnvelope.payload != null || baseEnvelope.envelopes != null || StringUtils.isNotBlank(baseEnvelope.typeId) 
+				|| StringUtils.isBlank(baseEnvelope.action)) {
+			return false;
+		}
+		
+		WebSocketEnvelope envelope = new WebSocketEnvelope(baseEnvelope);
+		
+		if (baseEnvelope.headers != null && envelope.getHeaders().containsKey(WebSocketStreamMonitor.STREAM_HEADER)) {
+			return false;
+		}
+		
+		WebSocketActionDispatchTable.Entry dispatch = mappingRegistry.getDispatch(envelope.getAction(), null);
+		
+		if (dispatch == null || !streamsPayload(dispatch)) {
+			return false;
+		}
+		
+		WebSocketContentInputStream content = new WebSocketContentInputStream(streamMonitor.getMaxBufferedBytes());
+		
+		inboundContent = content;
+		
+		try {
+			dispatch(envelope, null, content, receivedAt, null, serviceMailbox);
+		} catch (Exception e) {
+			// the rest of the message is discarded
+			content.close();
+			
+			onWebSocketError(new RuntimeException(e));
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Hands the next fragment of a streamed message to the action that reads it.
+	 * 
+	 * @param fragment
+	 * @param last
+	 * @throws IOException
+	 */
+	void continueStreamedMessage(ByteBuffer fragment, boolean last) throws IOException {
+		WebSocketContentInputStream content = inboundContent;
+		
+		if (last) {
+			inboundContent = null;
+		}
+		
+		if (content == null) {
+			return;
+		}
+		
+		int length = fragment == null ? 0 : fragment.remaining();
+		
+		if (content.write(fragment, last)) {
+			streamMonitor.markInboundBytesStreamed(length);
+		}
+	}
+	
+	private static boolean streamsPayload(WebSocketActionDispatchTable.Entry dispatch) {
+		for (WebSocketAction action : dispatch.getActions()) {
+			if (action.streamsPayload()) {
+				return true;
+			}
+		}
+		
+		return false;
 	}
 
 	/**
@@ -412,6 +1876,70 @@ public class ActionInvokingWebSocket implements WebSocketListener {
 		this.upgradeResponse = upgradeResponse;
 	}
 
+	/**
+	 * A message that waits for the next conflation tick.
+	 * 
+	 * @author ebahtijaragic
+	 */
+	private static final class ConflatedMessage {
+		private final String action;
+		private final Object message;
+		
+		public ConflatedMessage(String action, Object message) {
+			this.action = action;
+			this.message = message;
+		}
+	}
+	
+	/**
+	 * A frame that waits for content to finish streaming out.
+	 * 
+	 * @author ebahtijaragic
+	 */
+	private static final class HeldFrame {
+		private final ByteBuffer frame;
+		private final WriteCallback callback;
+		
+		public HeldFrame(ByteBuffer frame, WriteCallback callback) {
+			this.frame = frame;
+			this.callback = callback;
+		}
+	}
+	
+	/**
+	 * A future for a single frame that also retires the frame from the outbound tracker.
+	 * 
+	 * @author ebahtijaragic
+	 */
+	private static final class WriteFuture extends AbstractFuture<Void> implements WriteCallback {
+		private final WebSocketOutboundTracker outbound;
+		
+		public WriteFuture(WebSocketOutboundTracker outbound) {
+			this.outbound = outbound;
+		}
+		
+		public void writeSuccess() {
+			outbound.retire();
+			
+			set(null);
+		}
+		
+		public void writeFailed(Throwable cause) {
+			outbound.retire();
+			
+			setException(cause);
+		}
+	}
+	
+	/**
+	 * Gets the session that is handed to the actions.
+	 * 
+	 * @return
+	 */
+	public WebSocketSession getWebSocketSession() {
+		return webSocketSession;
+	}
+	
 	/**
 	 * Returns true if we're connected.
 	 * 
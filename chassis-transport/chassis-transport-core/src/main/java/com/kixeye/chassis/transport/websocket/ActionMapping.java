@@ -51,4 +51,20 @@ public @interface ActionMapping {
 	 * @return
 	 */
 	ActionPropertyRequirement[] propertyRequirements() default {};
+	
+	/**
+	 * The time in milliseconds that the action has to respond before it fails with a TIMEOUT error. Defaults to
+	 * "websocket.action.timeout", which is off unless it's set. 0 disables the timeout.
+	 * 
+	 * @return
+	 */
+	long timeout() default -1;
+	
+	/**
+	 * Streams an Observable response, sending each element as its own envelope with credit-based flow control. Otherwise
+	 * the first element of an Observable is the response.
+	 * 
+	 * @return
+	 */
+	boolean streamResponse() default false;
 }
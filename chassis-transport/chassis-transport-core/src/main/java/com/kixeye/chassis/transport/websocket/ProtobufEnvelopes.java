@@ -0,0 +1,593 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dyuproject.protostuff.LinkedBuffer;
+import com.dyuproject.protostuff.ProtobufException;
+import com.dyuproject.protostuff.ProtobufIOUtil;
+import com.dyuproject.protostuff.Schema;
+import com.dyuproject.protostuff.runtime.RuntimeSchema;
+import com.google.common.base.Charsets;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.Header;
+
+/**
+ * Reads and writes the protobuf wire format of {@link Envelope} without copying the payload.
+ *
+ * The field numbers are taken from the protostuff runtime schemas, so the format stays the same as the one
+ * {@link com.kixeye.chassis.transport.serde.converter.ProtobufMessageSerDe} reads and writes. Protostuff encodes the
+ * payload as a polymorphic heap buffer message whose backing array holds the payload bytes. Protobuf allows fields in
+ * any order, so the payload may be written ahead of the other envelope fields.
+ *
+ * The fields of the heap buffer message depend on the JVM, so the ones around the payload bytes are copied from what
+ * protostuff writes for a sample payload, with only the length dependent ones filled in. A sample envelope is written
+ * both ways once, and envelopes go through protostuff unless the output matches byte for byte.
+ *
+ * @author ebahtijaragic
+ */
+final class ProtobufEnvelopes {
+	private static final Logger logger = LoggerFactory.getLogger(ProtobufEnvelopes.class);
+
+	private static final int WIRETYPE_VARINT = 0;
+	private static final int WIRETYPE_FIXED64 = 1;
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	private static final int WIRETYPE_FIXED32 = 5;
+
+	private static final Schema<Envelope> ENVELOPE_SCHEMA = RuntimeSchema.getSchema(Envelope.class);
+	private static final Schema<Header> HEADER_SCHEMA = RuntimeSchema.getSchema(Header.class);
+
+	private static final int ACTION_FIELD = ENVELOPE_SCHEMA.getFieldNumber("action");
+	private static final int TRANSACTION_ID_FIELD = ENVELOPE_SCHEMA.getFieldNumber("transactionId");
+	private static final int TYPE_ID_FIELD = ENVELOPE_SCHEMA.getFieldNumber("typeId");
+	private static final int PAYLOAD_FIELD = ENVELOPE_SCHEMA.getFieldNumber("payload");
+	private static final int HEADERS_FIELD = ENVELOPE_SCHEMA.getFieldNumber("headers");
+	private static final int ENVELOPES_FIELD = ENVELOPE_SCHEMA.getFieldNumber("envelopes");
+	private static final int ACTION_CODE_FIELD = ENVELOPE_SCHEMA.getFieldNumber("actionCode");
+	private static final int TYPE_CODE_FIELD = ENVELOPE_SCHEMA.getFieldNumber("typeCode");
+	private static final int CODES_VERSION_FIELD = ENVELOPE_SCHEMA.getFieldNumber("codesVersion");
+
+	private static final Class<?> HEAP_BUFFER_CLASS = ByteBuffer.wrap(new byte[0]).getClass();
+	private static final Schema<?> HEAP_BUFFER_SCHEMA = RuntimeSchema.getSchema(HEAP_BUFFER_CLASS);
+
+	private static final int BUFFER_ARRAY_FIELD = HEAP_BUFFER_SCHEMA.getFieldNumber("hb");
+	private static final int BUFFER_OFFSET_FIELD = HEAP_BUFFER_SCHEMA.getFieldNumber("offset");
+	private static final int BUFFER_POSITION_FIELD = HEAP_BUFFER_SCHEMA.getFieldNumber("position");
+	private static final int BUFFER_LIMIT_FIELD = HEAP_BUFFER_SCHEMA.getFieldNumber("limit");
+	private static final int BUFFER_CAPACITY_FIELD = HEAP_BUFFER_SCHEMA.getFieldNumber("capacity");
+
+	/**
+	 * The most bytes the fields in front of the payload bytes take up.
+	 */
+	static final int MAX_PAYLOAD_PREFIX = 128;
+
+	private static final PayloadTemplate PAYLOAD_TEMPLATE = PayloadTemplate.create(3);
+	private static final boolean SUPPORTED = matchesRuntimeSchema();
+
+	private ProtobufEnvelopes() {
+	}
+
+	/**
+	 * Returns true if envelopes written and read by this class are the same as the ones of protostuff on this JVM.
+	 * Otherwise envelopes have to go through protostuff.
+	 *
+	 * @return
+	 */
+	static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	/**
+	 * Writes the fields that wrap a payload that was already written, right in front of it. The fields that follow the
+	 * payload are written with {@link #writePayloadSuffix(OutputStream)}.
+	 *
+	 * @param buffer
+	 * @param payloadOffset where the payload starts, at least {@link #MAX_PAYLOAD_PREFIX} bytes into the buffer
+	 * @param payloadLength
+	 * @return where the payload field starts
+	 */
+	static int writePayloadPrefix(byte[] buffer, int payloadOffset, int payloadLength) {
+		return PAYLOAD_TEMPLATE.writePrefix(buffer, payloadOffset, payloadLength);
+	}
+
+	/**
+	 * Writes the fields that follow the payload bytes.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	static void writePayloadSuffix(OutputStream out) throws IOException {
+		out.write(PAYLOAD_TEMPLATE.suffix);
+	}
+
+	/**
+	 * Reads an envelope. Its payload is a slice of the given data, which must not change while the envelope is in use.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	static Envelope read(byte[] data, int offset, int length) throws IOException {
+		Envelope envelope = new Envelope();
+
+		Reader reader = new Reader(data, offset, offset + length);
+
+		while (reader.hasMore()) {
+			int tag = (int)reader.readVarint();
+			int field = tag >>> 3;
+			int wireType = tag & 0x7;
+
+			if (field == ACTION_FIELD) {
+				envelope.action = reader.readString(wireType);
+			} else if (field == TRANSACTION_ID_FIELD) {
+				envelope.transactionId = reader.readString(wireType);
+			} else if (field == TYPE_ID_FIELD) {
+				envelope.typeId = reader.readString(wireType);
+			} else if (field == PAYLOAD_FIELD) {
+				int payloadLength = reader.readLength(wireType);
+
+				envelope.payload = readPayload(data, reader.position, payloadLength);
+				reader.position += payloadLength;
+			} else if (field == HEADERS_FIELD) {
+				int headerLength = reader.readLength(wireType);
+
+				Header header = HEADER_SCHEMA.newMessage();
+				ProtobufIOUtil.mergeFrom(data, reader.position, headerLength, header, HEADER_SCHEMA);
+				reader.position += headerLength;
+
+				if (envelope.headers == null) {
+					envelope.headers = new ArrayList<>();
+				}
+
+				envelope.headers.add(header);
+			} else if (field == ENVELOPES_FIELD) {
+				int envelopeLength = reader.readLength(wireType);
+
+				if (envelope.envelopes == null) {
+					envelope.envelopes = new ArrayList<>();
+				}
+
+				envelope.envelopes.add(read(data, reader.position, envelopeLength));
+				reader.position += envelopeLength;
+			} else if (field == ACTION_CODE_FIELD) {
+				envelope.actionCode = reader.readInt32(wireType);
+			} else if (field == TYPE_CODE_FIELD) {
+				envelope.typeCode = reader.readInt32(wireType);
+			} else if (field == CODES_VERSION_FIELD) {
+				envelope.codesVersion = reader.readInt32(wireType);
+			} else {
+				reader.skip(wireType);
+			}
+		}
+
+		return envelope;
+	}
+
+	private static ByteBuffer readPayload(byte[] data, int offset, int length) throws IOException {
+		Reader reader = new Reader(data, offset, offset + length);
+
+		int arrayOffset = -1;
+		int arrayLength = 0;
+		int bufferOffset = 0;
+		int position = 0;
+		int limit = 0;
+
+		while (reader.hasMore()) {
+			int tag = (int)reader.readVarint();
+			int field = tag >>> 3;
+			int wireType = tag & 0x7;
+
+			if (field == BUFFER_ARRAY_FIELD) {
+				arrayLength = reader.readLength(wireType);
+				arrayOffset = reader.position;
+				reader.position += arrayLength;
+			} else if (field == BUFFER_OFFSET_FIELD) {
+				bufferOffset = reader.readInt32(wireType);
+			} else if (field == BUFFER_POSITION_FIELD) {
+				position = reader.readInt32(wireType);
+			} else if (field == BUFFER_LIMIT_FIELD) {
+				limit = reader.readInt32(wireType);
+			} else {
+				reader.skip(wireType);
+			}
+		}
+
+		if (arrayOffset < 0) {
+			return ByteBuffer.allocate(0);
+		}
+
+		if (bufferOffset < 0 || position < 0 || position > limit || bufferOffset + limit > arrayLength) {
+			throw new ProtobufException("Invalid payload in envelope.");
+		}
+
+		return ByteBuffer.wrap(data, arrayOffset + bufferOffset + position, limit - position).slice();
+	}
+
+	/**
+	 * Writes a sample envelope both with protostuff and with this class, and reads it back.
+	 *
+	 * @return true if both write the same bytes
+	 */
+	private static boolean matchesRuntimeSchema() {
+		try {
+			if (PAYLOAD_FIELD == 0 || BUFFER_ARRAY_FIELD == 0 || PAYLOAD_TEMPLATE == null) {
+				logger.warn("Heap buffers of this JVM can't be mapped, protobuf envelopes go through protostuff.");
+
+				return false;
+			}
+
+			// long enough for multi-byte lengths
+			byte[] payload = new byte[300];
+
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] = (byte)i;
+			}
+
+			byte[] expected = writeWithRuntimeSchema(payload);
+
+			byte[] buffer = new byte[MAX_PAYLOAD_PREFIX + payload.length + PAYLOAD_TEMPLATE.suffix.length];
+			System.arraycopy(payload, 0, buffer, MAX_PAYLOAD_PREFIX, payload.length);
+			System.arraycopy(PAYLOAD_TEMPLATE.suffix, 0, buffer, MAX_PAYLOAD_PREFIX + payload.length, PAYLOAD_TEMPLATE.suffix.length);
+
+			int start = writePayloadPrefix(buffer, MAX_PAYLOAD_PREFIX, payload.length);
+
+			if (!Arrays.equals(expected, Arrays.copyOfRange(buffer, start, buffer.length))) {
+				logger.warn("Protobuf envelopes don't match the ones of protostuff on this JVM, they go through protostuff.");
+
+				return false;
+			}
+
+			if (!ByteBuffer.wrap(payload).equals(read(expected, 0, expected.length).payload)) {
+				logger.warn("Protobuf envelopes of protostuff can't be read back on this JVM, they go through protostuff.");
+
+				return false;
+			}
+
+			return true;
+		} catch (Exception e) {
+			logger.warn("Unable to check protobuf envelopes on this JVM, they go through protostuff.", e);
+
+			return false;
+		}
+	}
+
+	/**
+	 * Writes an envelope that only holds the payload with protostuff.
+	 *
+	 * @param payload
+	 * @return
+	 */
+	private static byte[] writeWithRuntimeSchema(byte[] payload) {
+		Envelope envelope = new Envelope();
+		envelope.payload = ByteBuffer.wrap(payload);
+
+		return ProtobufIOUtil.toByteArray(envelope, ENVELOPE_SCHEMA, LinkedBuffer.allocate(512));
+	}
+
+	private static int varintSize(long value) {
+		int size = 1;
+
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+
+		return size;
+	}
+
+	private static int fieldSize(int field, int length) {
+		return varintSize(field << 3) + varintSize(length);
+	}
+
+	private static int varintFieldSize(int field, long value) {
+		return field == 0 ? 0 : varintSize(field << 3) + varintSize(value);
+	}
+
+	private static int writeTag(byte[] buffer, int position, int field, int wireType) {
+		return writeVarint(buffer, position, (field << 3) | wireType);
+	}
+
+	private static int writeVarintField(byte[] buffer, int position, int field, long value) {
+		if (field == 0) {
+			return position;
+		}
+
+		return writeVarint(buffer, writeTag(buffer, position, field, WIRETYPE_VARINT), value);
+	}
+
+	private static int writeVarint(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		buffer[position++] = (byte)value;
+
+		return position;
+	}
+
+	/**
+	 * The fields protostuff writes around the bytes of a heap buffer payload on this JVM.
+	 */
+	private static final class PayloadTemplate {
+		// the fields in front of the bytes, either as they are or, for fields of the payload length, just the number
+		private final byte[][] constants;
+		private final int[] lengthFields;
+		private final int constantsLength;
+
+		private final byte[] suffix;
+
+		private PayloadTemplate(List<byte[]> constants, List<Integer> lengthFields, byte[] suffix) {
+			this.constants = constants.toArray(new byte[constants.size()][]);
+			this.lengthFields = new int[lengthFields.size()];
+
+			int length = 0;
+
+			for (int i = 0; i < this.constants.length; i++) {
+				this.lengthFields[i] = lengthFields.get(i);
+
+				if (this.constants[i] != null) {
+					length += this.constants[i].length;
+				}
+			}
+
+			this.constantsLength = length;
+			this.suffix = suffix;
+		}
+
+		/**
+		 * Takes the fields apart that protostuff writes for a sample payload.
+		 *
+		 * @param sampleLength
+		 * @return the template, or null if the fields can't be mapped
+		 */
+		private static PayloadTemplate create(int sampleLength) {
+			try {
+				byte[] data = writeWithRuntimeSchema(new byte[sampleLength]);
+
+				Reader reader = new Reader(data, 0, data.length);
+
+				int tag = (int)reader.readVarint();
+
+				if (tag >>> 3 != PAYLOAD_FIELD) {
+					return null;
+				}
+
+				int payloadLength = reader.readLength(tag & 0x7);
+
+				reader = new Reader(data, reader.position, reader.position + payloadLength);
+
+				List<byte[]> constants = new ArrayList<>();
+				List<Integer> lengthFields = new ArrayList<>();
+
+				while (reader.hasMore()) {
+					int start = reader.position;
+
+					tag = (int)reader.readVarint();
+
+					int field = tag >>> 3;
+
+					if (field == BUFFER_ARRAY_FIELD) {
+						if (reader.readLength(tag & 0x7) != sampleLength) {
+							return null;
+						}
+
+						reader.position += sampleLength;
+
+						// whatever follows the bytes must not depend on the length
+						int suffixStart = reader.position;
+
+						while (reader.hasMore()) {
+							tag = (int)reader.readVarint();
+
+							if (tag >>> 3 == BUFFER_LIMIT_FIELD || tag >>> 3 == BUFFER_CAPACITY_FIELD) {
+								return null;
+							}
+
+							reader.skip(tag & 0x7);
+						}
+
+						PayloadTemplate template = new PayloadTemplate(constants, lengthFields, Arrays.copyOfRange(data, suffixStart, reader.limit));
+
+						return template.prefixSize(Integer.MAX_VALUE) <= MAX_PAYLOAD_PREFIX ? template : null;
+					}
+
+					if (field == BUFFER_LIMIT_FIELD || field == BUFFER_CAPACITY_FIELD) {
+						if (reader.readInt32(tag & 0x7) != sampleLength) {
+							return null;
+						}
+
+						constants.add(null);
+						lengthFields.add(field);
+					} else {
+						reader.skip(tag & 0x7);
+
+						constants.add(Arrays.copyOfRange(data, start, reader.position));
+						lengthFields.add(0);
+					}
+				}
+
+				return null;
+			} catch (Exception e) {
+				logger.warn("Unable to map the heap buffers of this JVM.", e);
+
+				return null;
+			}
+		}
+
+		/**
+		 * Gets the size of the fields in front of the payload bytes, including the payload field itself.
+		 *
+		 * @param payloadLength
+		 * @return
+		 */
+		private int prefixSize(int payloadLength) {
+			int bufferLength = bufferLength(payloadLength);
+
+			return fieldSize(PAYLOAD_FIELD, bufferLength) + bufferLength - payloadLength - suffix.length;
+		}
+
+		private int bufferLength(int payloadLength) {
+			int length = constantsLength + fieldSize(BUFFER_ARRAY_FIELD, payloadLength) + payloadLength + suffix.length;
+
+			for (int i = 0; i < constants.length; i++) {
+				if (constants[i] == null) {
+					length += varintFieldSize(lengthFields[i], payloadLength);
+				}
+			}
+
+			return length;
+		}
+
+		private int writePrefix(byte[] buffer, int payloadOffset, int payloadLength) {
+			int start = payloadOffset - prefixSize(payloadLength);
+			int position = start;
+
+			position = writeTag(buffer, position, PAYLOAD_FIELD, WIRETYPE_LENGTH_DELIMITED);
+			position = writeVarint(buffer, position, bufferLength(payloadLength));
+
+			for (int i = 0; i < constants.length; i++) {
+				if (constants[i] == null) {
+					position = writeVarintField(buffer, position, lengthFields[i], payloadLength);
+				} else {
+					System.arraycopy(constants[i], 0, buffer, position, constants[i].length);
+					position += constants[i].length;
+				}
+			}
+
+			position = writeTag(buffer, position, BUFFER_ARRAY_FIELD, WIRETYPE_LENGTH_DELIMITED);
+			writeVarint(buffer, position, payloadLength);
+
+			return start;
+		}
+	}
+
+	/**
+	 * Reads the fields of a message.
+	 */
+	private static final class Reader {
+		private final byte[] data;
+		private final int limit;
+
+		private int position;
+
+		public Reader(byte[] data, int position, int limit) {
+			this.data = data;
+			this.position = position;
+			this.limit = limit;
+		}
+
+		public boolean hasMore() {
+			return position < limit;
+		}
+
+		public long readVarint() throws ProtobufException {
+			long result = 0;
+
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= limit) {
+					throw new ProtobufException("Truncated envelope.");
+				}
+
+				byte b = data[position++];
+
+				result |= (long)(b & 0x7F) << shift;
+
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+
+			throw new ProtobufException("Malformed varint in envelope.");
+		}
+
+		public int readInt32(int wireType) throws ProtobufException {
+			check(wireType, WIRETYPE_VARINT);
+
+			return (int)readVarint();
+		}
+
+		public int readLength(int wireType) throws ProtobufException {
+			check(wireType, WIRETYPE_LENGTH_DELIMITED);
+
+			long length = readVarint();
+
+			if (length < 0 || length > limit - position) {
+				throw new ProtobufException("Truncated envelope.");
+			}
+
+			return (int)length;
+		}
+
+		public String readString(int wireType) throws ProtobufException {
+			int length = readLength(wireType);
+
+			String value = new String(data, position, length, Charsets.UTF_8);
+			position += length;
+
+			return value;
+		}
+
+		public void skip(int wireType) throws ProtobufException {
+			switch (wireType) {
+				case WIRETYPE_VARINT:
+					readVarint();
+					break;
+				case WIRETYPE_FIXED64:
+					advance(8);
+					break;
+				case WIRETYPE_LENGTH_DELIMITED:
+					advance(readLength(wireType));
+					break;
+				case WIRETYPE_FIXED32:
+					advance(4);
+					break;
+				default:
+					throw new ProtobufException("Unsupported wire type in envelope: " + wireType);
+			}
+		}
+
+		private void advance(int length) throws ProtobufException {
+			if (length > limit - position) {
+				throw new ProtobufException("Truncated envelope.");
+			}
+
+			position += length;
+		}
+
+		private void check(int wireType, int expected) throws ProtobufException {
+			if (wireType != expected) {
+				throw new ProtobufException("Unexpected wire type in envelope: " + wireType);
+			}
+		}
+	}
+}
@@ -20,6 +20,8 @@ package com.kixeye.chassis.transport.websocket;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 import javax.validation.Validator;
@@ -29,7 +31,6 @@ import org.springframework.validation.BeanPropertyBindingResult;
 import org.springframework.validation.beanvalidation.SpringValidatorAdapter;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 
-import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.kixeye.chassis.transport.serde.MessageSerDe;
 
 /**
@@ -40,6 +41,7 @@ import com.kixeye.chassis.transport.serde.MessageSerDe;
 public class RawWebSocketMessage<T> {
 	private ByteBuffer rawData;
 	private Class<T> messageClass;
+	private InputStream inputStream;
 	
 	private Validator messageValidator;
 	private MessageSerDe serDe;
@@ -58,6 +60,50 @@ public class RawWebSocketMessage<T> {
 		this.serDe = serDe;
 	}
 
+	/**
+	 * Points this message to new data so that it can be reused.
+	 * 
+	 * @param rawData
+	 * @param messageClass
+	 */
+	void reset(ByteBuffer rawData, Class<T> messageClass) {
+		this.rawData = rawData;
+		this.messageClass = messageClass;
+		this.inputStream = null;
+	}
+
+	/**
+	 * Points this message to the payload of a streamed message.
+	 * 
+	 * @param inputStream
+	 */
+	void reset(InputStream inputStream) {
+		this.rawData = null;
+		this.messageClass = null;
+		this.inputStream = inputStream;
+	}
+
+	/**
+	 * Gets the payload as a stream, which is either the streamed payload or the raw data.
+	 * 
+	 * @return
+	 */
+	public InputStream getInputStream() {
+		if (inputStream != null) {
+			return inputStream;
+		} else if (rawData == null) {
+			return new ByteArrayInputStream(new byte[0]);
+		} else if (rawData.hasArray()) {
+			return new ByteArrayInputStream(rawData.array(), rawData.arrayOffset() + rawData.position(), rawData.remaining());
+		} else {
+			byte[] data = new byte[rawData.remaining()];
+			
+			rawData.duplicate().get(data);
+			
+			return new ByteArrayInputStream(data);
+		}
+	}
+
 	/**
 	 * Deserializes the given message.
 	 * 
@@ -70,7 +116,14 @@ public class RawWebSocketMessage<T> {
 		T message = null;
 		
 		if (messageClass != null) {
-			message = serDe.deserialize(new ByteBufferBackedInputStream(rawData), messageClass);
+			int position = rawData.position();
+
+			try {
+				message = serDe.deserialize(rawData, messageClass);
+			} finally {
+				// the data may be deserialized again
+				rawData.position(position);
+			}
 		}
 		
 		// then validate
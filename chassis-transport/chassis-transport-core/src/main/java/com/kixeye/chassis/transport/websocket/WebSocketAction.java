@@ -20,10 +20,15 @@ package com.kixeye.chassis.transport.websocket;
  * #L%
  */
 
+import java.io.InputStream;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -40,8 +45,12 @@ import org.apache.commons.lang.ObjectUtils;
 import org.springframework.core.MethodParameter;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResult.DeferredResultHandler;
+
+import rx.Observable;
 
 import com.google.common.collect.Lists;
+import com.kixeye.chassis.transport.websocket.responseconverter.CancellableDeferredResult;
 import com.kixeye.chassis.transport.websocket.responseconverter.DeferredResultResponseConverter;
 import com.kixeye.chassis.transport.websocket.responseconverter.ListenableFutureResponseConverter;
 import com.kixeye.chassis.transport.websocket.responseconverter.ObservableResponseConverter;
@@ -53,9 +62,16 @@ import com.kixeye.chassis.transport.websocket.responseconverter.WebSocketRespons
  * @author ebahtijaragic
  */
 public class WebSocketAction {
-    static private final AtomicReference<List<WebSocketResponseConverter>> responseConverters;
+    static private final AtomicReference<WebSocketResponseConverter[]> responseConverters;
+
+    /**
+     * Methods with up to this many parameters are invoked without allocating an argument array.
+     */
+    private static final int MAX_UNSPREAD_PARAMETERS = 6;
 
     private final Method method;
+    private final MethodHandle invoker;
+    private final ParameterBinding[] parameterBindings;
 
     private Class<?> payloadClass;
     private int payloadParameterIndex;
@@ -63,6 +79,10 @@ public class WebSocketAction {
 
     private boolean validatePayload = false;
     private boolean takesEnvelope = false;
+    private boolean streamsPayload = false;
+    private boolean streamsResponse = false;
+
+    private long timeout = -1;
 
     private Map<String, String> requirements;
     private Collection<WebSocketActionArgumentResolver> argumentResolvers;
@@ -74,7 +94,8 @@ public class WebSocketAction {
         ACTION_PAYLOAD,
         TRANSACTION_ID,
         ENVELOPE,
-        WEB_SOCKET_SESSION
+        WEB_SOCKET_SESSION,
+        CUSTOM
     }
 
     static {
@@ -82,7 +103,7 @@ public class WebSocketAction {
         tmp.add(new DeferredResultResponseConverter());
         tmp.add(new ListenableFutureResponseConverter());
         tmp.add(new ObservableResponseConverter());
-        responseConverters = new AtomicReference<>(Collections.unmodifiableList(tmp));
+        responseConverters = new AtomicReference<>(tmp.toArray(new WebSocketResponseConverter[tmp.size()]));
     }
 
     public WebSocketAction(Method method, Map<String, String> requirements, WebSocketActionArgumentResolver... argumentResolvers) {
@@ -96,13 +117,16 @@ public class WebSocketAction {
         }
 
         scanMethod();
+
+        this.parameterBindings = createParameterBindings();
+        this.invoker = createInvoker();
     }
 
     static public void addWebSocketResponseConverter(WebSocketResponseConverter converter) {
         synchronized (responseConverters) {
             List<WebSocketResponseConverter> newConverters = Lists.newArrayList(responseConverters.get());
             newConverters.add(0, converter);
-            responseConverters.set(Collections.unmodifiableList(newConverters));
+            responseConverters.set(newConverters.toArray(new WebSocketResponseConverter[newConverters.size()]));
         }
     }
 
@@ -186,9 +210,15 @@ public class WebSocketAction {
                         }
 
                         parameterTypes.put(ParameterType.ACTION_PAYLOAD, p);
-                        payloadClass = parameters[p];
                         payloadParameterIndex = p;
 
+                        // an InputStream payload is read as it arrives instead of being deserialized
+                        if (InputStream.class.equals(parameters[p])) {
+                            streamsPayload = true;
+                        } else {
+                            payloadClass = parameters[p];
+                        }
+
                         for (Annotation secondaryAnnotation : method.getParameterAnnotations()[p]) {
                             if (secondaryAnnotation instanceof Valid) {
                                 validatePayload = true;
@@ -213,6 +243,13 @@ public class WebSocketAction {
             }
         }
 
+        ActionMapping mapping = method.getAnnotation(ActionMapping.class);
+
+        if (mapping != null) {
+            timeout = mapping.timeout();
+            streamsResponse = mapping.streamResponse();
+        }
+
         responseClass = method.getReturnType();
 
         if (responseClass.equals(Void.TYPE)) {
@@ -222,6 +259,57 @@ public class WebSocketAction {
         }
     }
 
+    /**
+     * Creates the plan that binds each parameter of the method to its source.
+     *
+     * @return
+     */
+    private ParameterBinding[] createParameterBindings() {
+        ParameterBinding[] bindings = new ParameterBinding[method.getParameterTypes().length];
+
+        for (int p = 0; p < bindings.length; p++) {
+            bindings[p] = new ParameterBinding(null, null, null);
+        }
+
+        for (Entry<ParameterType, Integer> parameterType : parameterTypes.entrySet()) {
+            bindings[parameterType.getValue()] = new ParameterBinding(parameterType.getKey(), null, null);
+        }
+
+        for (Entry<Integer, WebSocketActionArgumentResolver> resolver : argumentResolversByParameterIndex.entrySet()) {
+            bindings[resolver.getKey()] = new ParameterBinding(ParameterType.CUSTOM, resolver.getValue(), new MethodParameter(method, resolver.getKey()));
+        }
+
+        return bindings;
+    }
+
+    /**
+     * Creates the method handle that invokes the method with a generic signature.
+     *
+     * @return
+     */
+    private MethodHandle createInvoker() {
+        MethodHandle handle;
+
+        try {
+            method.setAccessible(true);
+
+            handle = MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException | SecurityException e) {
+            throw new RuntimeException("Unable to access method: " + method, e);
+        }
+
+        if (Modifier.isStatic(method.getModifiers())) {
+            // static methods ignore the handler
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+
+        if (parameterBindings.length <= MAX_UNSPREAD_PARAMETERS) {
+            return handle.asType(MethodType.genericMethodType(parameterBindings.length + 1));
+        } else {
+            return handle.asSpreader(Object[].class, parameterBindings.length).asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+        }
+    }
+
     private void cacheCustomArgumentResolverForParameter(Method method, int index) {
         MethodParameter methodParameter = new MethodParameter(method, index);
         for (WebSocketActionArgumentResolver resolver : argumentResolvers) {
@@ -239,6 +327,9 @@ public class WebSocketAction {
     /**
      * Invokes this action.
      *
+     * The response is bridged onto a DeferredResult. The websocket pipeline uses the lighter
+     * {@link #invoke(Object, RawWebSocketMessage, WebSocketEnvelope, WebSocketSession, WebSocketActionResult)} instead.
+     *
      * @param handler
      * @param message
      * @param envelope
@@ -246,64 +337,209 @@ public class WebSocketAction {
      * @return
      * @throws MethodArgumentNotValidException
      *
-     * @throws InvocationTargetException
-     * @throws IllegalArgumentException
-     * @throws IllegalAccessException
+     * @throws Exception anything thrown by the handler, as is
      */
     public DeferredResult<?> invoke(Object handler, RawWebSocketMessage<?> message, WebSocketEnvelope envelope, WebSocketSession session) throws Exception {
+        WebSocketActionResult<?> result = invokeForResult(handler, message, envelope, session);
+
+        if (result == null) {
+            return null;
+        }
+
+        final DeferredResult<Object> deferredResult = new DeferredResult<>();
+
+        result.setListener(new WebSocketActionResult.Listener() {
+            public void onResult(WebSocketActionResult<?> completed) {
+                if (completed.getError() != null) {
+                    deferredResult.setErrorResult(completed.getError());
+                } else {
+                    deferredResult.setResult(completed.getResult());
+                }
+            }
+        });
+
+        return deferredResult;
+    }
+
+    /**
+     * Invokes this action and returns its response as a {@link WebSocketActionResult}.
+     *
+     * @param handler
+     * @param message
+     * @param envelope
+     * @param session
+     * @return the result, or null if the action has no response
+     * @throws Exception anything thrown by the handler, as is
+     */
+    WebSocketActionResult<?> invokeForResult(Object handler, RawWebSocketMessage<?> message, WebSocketEnvelope envelope, WebSocketSession session) throws Exception {
+        WebSocketActionResult<Object> result = new WebSocketActionResult<>();
+
+        return invoke(handler, message, envelope, session, result) ? result : null;
+    }
+
+    /**
+     * Invokes this action and sets the response on the given result. A response that can't be cancelled may complete the
+     * result at any time, even after it timed out, so a result must not be reused for another invocation.
+     *
+     * @param handler
+     * @param message
+     * @param envelope
+     * @param session
+     * @param result
+     * @return false if the action has no response
+     * @throws Exception anything thrown by the handler, as is
+     */
+    public boolean invoke(Object handler, RawWebSocketMessage<?> message, WebSocketEnvelope envelope, WebSocketSession session, final WebSocketActionResult<Object> result) throws Exception {
         Object response = null;
 
-        // invoke the method
-        Object[] parameters = new Object[method.getParameterTypes().length];
+        // now do actual invoke
+        try {
+            switch (parameterBindings.length) {
+                case 0:
+                    response = (Object)invoker.invokeExact(handler);
+                    break;
+                case 1:
+                    response = (Object)invoker.invokeExact(handler, resolveArgument(0, message, envelope, session));
+                    break;
+                case 2:
+                    response = (Object)invoker.invokeExact(handler, resolveArgument(0, message, envelope, session), resolveArgument(1, message, envelope, session));
+                    break;
+                case 3:
+                    response = (Object)invoker.invokeExact(handler, resolveArgument(0, message, envelope, session), resolveArgument(1, message, envelope, session),
+                            resolveArgument(2, message, envelope, session));
+                    break;
+                case 4:
+                    response = (Object)invoker.invokeExact(handler, resolveArgument(0, message, envelope, session), resolveArgument(1, message, envelope, session),
+                            resolveArgument(2, message, envelope, session), resolveArgument(3, message, envelope, session));
+                    break;
+                case 5:
+                    response = (Object)invoker.invokeExact(handler, resolveArgument(0, message, envelope, session), resolveArgument(1, message, envelope, session),
+                            resolveArgument(2, message, envelope, session), resolveArgument(3, message, envelope, session), resolveArgument(4, message, envelope, session));
+                    break;
+                case 6:
+                    response = (Object)invoker.invokeExact(handler, resolveArgument(0, message, envelope, session), resolveArgument(1, message, envelope, session),
+                            resolveArgument(2, message, envelope, session), resolveArgument(3, message, envelope, session), resolveArgument(4, message, envelope, session),
+                            resolveArgument(5, message, envelope, session));
+                    break;
+                default:
+                    Object[] parameters = new Object[parameterBindings.length];
+
+                    for (int p = 0; p < parameters.length; p++) {
+                        parameters[p] = resolveArgument(p, message, envelope, session);
+                    }
 
-        Integer payloadParamIndex = parameterTypes.get(ParameterType.ACTION_PAYLOAD);
-        if (payloadParamIndex != null) {
-            parameters[payloadParamIndex] = message.deserialize(this);
+                    response = (Object)invoker.invokeExact(handler, parameters);
+                    break;
+            }
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
         }
 
-        Integer sessionParamIndex = parameterTypes.get(ParameterType.WEB_SOCKET_SESSION);
-        if (sessionParamIndex != null) {
-            parameters[sessionParamIndex] = session;
+        // otherwise there was no error
+        if (response == null) {
+            return false;
         }
 
-        Integer transactionParamIndex = parameterTypes.get(ParameterType.TRANSACTION_ID);
-        if (transactionParamIndex != null) {
-            parameters[transactionParamIndex] = envelope.getTransactionId();
+        if (response instanceof WebSocketActionResult) {
+            final WebSocketActionResult<?> actionResult = (WebSocketActionResult<?>)response;
+
+            result.setCanceller(new Runnable() {
+                public void run() {
+                    actionResult.cancel();
+                }
+            });
+
+            actionResult.setListener(new WebSocketActionResult.Listener() {
+                public void onResult(WebSocketActionResult<?> asyncResult) {
+                    if (asyncResult.getError() != null) {
+                        result.setErrorResult(asyncResult.getError());
+                    } else {
+                        result.setResult(asyncResult.getResult());
+                    }
+                }
+            });
+
+            return true;
         }
 
-        Integer envelopeParamIndex = parameterTypes.get(ParameterType.ENVELOPE);
-        if (envelopeParamIndex != null) {
-            parameters[envelopeParamIndex] = envelope;
+        // observables of actions that opted in are streamed by the session
+        if (streamsResponse && response instanceof Observable) {
+            result.setResult(response);
+
+            return true;
         }
 
-        resolveCustomArguments(parameters, method, session, envelope);
+        // find a converter
+        for (WebSocketResponseConverter converter : responseConverters.get()) {
+            if (converter.canConvertResponse(response)) {
+                DeferredResult<?> deferredResult = converter.convertToDeferredResult(response);
 
-        // now do actual invoke
-        response = method.invoke(handler, parameters);
+                if (deferredResult == null) {
+                    return false;
+                }
 
-        // otherwise there was no error
-        if (response != null) {
+                if (deferredResult instanceof CancellableDeferredResult) {
+                    final CancellableDeferredResult<?> cancellableResult = (CancellableDeferredResult<?>)deferredResult;
 
-            // find a converter
-            for (WebSocketResponseConverter converter : responseConverters.get()) {
-                if (converter.canConvertResponse(response)) {
-                    return converter.convertToDeferredResult(response);
+                    result.setCanceller(new Runnable() {
+                        public void run() {
+                            cancellableResult.cancel();
+                        }
+                    });
                 }
+
+                deferredResult.setResultHandler(new DeferredResultHandler() {
+                    public void handleResult(Object deferredResponse) {
+                        if (deferredResponse instanceof Throwable) {
+                            result.setErrorResult((Throwable)deferredResponse);
+                        } else {
+                            result.setResult(deferredResponse);
+                        }
+                    }
+                });
+
+                return true;
             }
+        }
 
-            // default to using the object as is
-            final DeferredResult<Object> deferredResult = new DeferredResult<>();
-            deferredResult.setResult(response);
-            return deferredResult;
-        } else {
+        // default to using the object as is
+        result.setResult(response);
+
+        return true;
+    }
+
+    /**
+     * Resolves the argument for a parameter.
+     *
+     * @param index
+     * @param message
+     * @param envelope
+     * @param session
+     * @return
+     * @throws Exception
+     */
+    private Object resolveArgument(int index, RawWebSocketMessage<?> message, WebSocketEnvelope envelope, WebSocketSession session) throws Exception {
+        ParameterBinding binding = parameterBindings[index];
+
+        if (binding.type == null) {
             return null;
         }
-    }
 
-    private void resolveCustomArguments(Object [] parameters, Method method, WebSocketSession session, WebSocketEnvelope envelope) {
-        for(Integer index: argumentResolversByParameterIndex.keySet()){
-            MethodParameter methodParameter = new MethodParameter(method, index);
-            parameters[index] = argumentResolversByParameterIndex.get(index).resolveArgument(methodParameter, envelope, session);
+        switch (binding.type) {
+            case ACTION_PAYLOAD:
+                return streamsPayload ? message.getInputStream() : message.deserialize(this);
+            case TRANSACTION_ID:
+                return envelope.getTransactionId();
+            case ENVELOPE:
+                return envelope;
+            case WEB_SOCKET_SESSION:
+                return session;
+            case CUSTOM:
+                return binding.resolver.resolveArgument(binding.methodParameter, envelope, session);
+            default:
+                return null;
         }
     }
 
@@ -334,6 +570,33 @@ public class WebSocketAction {
         return validatePayload;
     }
 
+    /**
+     * Returns true if this action takes the whole envelope.
+     *
+     * @return
+     */
+    public boolean takesEnvelope() {
+        return takesEnvelope;
+    }
+
+    /**
+     * Returns true if this action reads its payload as an InputStream, which lets it take streamed messages.
+     *
+     * @return
+     */
+    public boolean streamsPayload() {
+        return streamsPayload;
+    }
+
+    /**
+     * Returns true if this action streams the elements of an Observable response.
+     *
+     * @return
+     */
+    public boolean streamsResponse() {
+        return streamsResponse;
+    }
+
     /**
      * Gets the handler class of this action.
      *
@@ -343,6 +606,15 @@ public class WebSocketAction {
         return method.getDeclaringClass();
     }
 
+    /**
+     * Gets the timeout set on the mapping of this action.
+     *
+     * @return the timeout in milliseconds, 0 for none or -1 if the mapping doesn't set one
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
     /**
      * Gets the payload class.
      *
@@ -360,4 +632,19 @@ public class WebSocketAction {
     public Class<?> getResponseClass() {
         return responseClass;
     }
-}
\ No newline at end of file
+
+    /**
+     * Binds a method parameter to its source.
+     */
+    private static final class ParameterBinding {
+        private final ParameterType type;
+        private final WebSocketActionArgumentResolver resolver;
+        private final MethodParameter methodParameter;
+
+        private ParameterBinding(ParameterType type, WebSocketActionArgumentResolver resolver, MethodParameter methodParameter) {
+            this.type = type;
+            this.resolver = resolver;
+            this.methodParameter = methodParameter;
+        }
+    }
+}
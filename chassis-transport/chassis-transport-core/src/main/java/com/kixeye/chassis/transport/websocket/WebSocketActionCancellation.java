@@ -0,0 +1,79 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Tracks the cancellation of the work behind an asynchronous websocket action response. Shared by the result types
+ * an action may return, so they all settle the race between setting a canceller and cancelling the same way.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketActionCancellation {
+	private Runnable canceller;
+	private boolean cancelled = false;
+
+	/**
+	 * Sets what stops the work. The canceller runs right away if the work was already cancelled.
+	 *
+	 * @param canceller
+	 */
+	public void setCanceller(Runnable canceller) {
+		synchronized (this) {
+			if (!cancelled) {
+				this.canceller = canceller;
+
+				return;
+			}
+		}
+
+		canceller.run();
+	}
+
+	/**
+	 * Cancels the work, if a canceller was set. Only the first call has any effect.
+	 */
+	public void cancel() {
+		Runnable currentCanceller = null;
+
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+
+			cancelled = true;
+			currentCanceller = canceller;
+			canceller = null;
+		}
+
+		if (currentCanceller != null) {
+			currentCanceller.run();
+		}
+	}
+
+	/**
+	 * Returns true if the work was cancelled.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+}
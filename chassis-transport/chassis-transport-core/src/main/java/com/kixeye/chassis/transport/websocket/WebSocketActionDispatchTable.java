@@ -0,0 +1,211 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * A table that maps an action and a message class to the actions that can handle them.
+ *
+ * The table is keyed by action only, with the wildcard actions already merged in, so it grows with the amount of
+ * actions rather than actions times types and doesn't need to be rebuilt when types are registered. Each action keeps a
+ * small map of the message classes it has seen, which is filled on first use. Unknown actions fall back to the wildcard
+ * actions and a null message class to a message without a class.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketActionDispatchTable {
+	private final Map<String, ActionEntry> actionEntries;
+	private final ActionEntry wildcardEntry;
+
+	/**
+	 * Builds a dispatch table.
+	 *
+	 * @param actions the actions by action name, including the wildcard actions
+	 */
+	public WebSocketActionDispatchTable(Map<String, ? extends Collection<WebSocketAction>> actions) {
+		Set<String> actionNames = new HashSet<>(actions.keySet());
+		actionNames.add(WebSocketMessageMappingRegistry.WILDCARD_ACTION);
+
+		Collection<WebSocketAction> wildcardActions = actions.get(WebSocketMessageMappingRegistry.WILDCARD_ACTION);
+
+		if (wildcardActions == null) {
+			wildcardActions = Collections.emptyList();
+		}
+
+		Map<String, ActionEntry> actionEntries = new HashMap<>();
+
+		for (String actionName : actionNames) {
+			Set<WebSocketAction> candidates = new LinkedHashSet<>();
+
+			if (actions.get(actionName) != null) {
+				candidates.addAll(actions.get(actionName));
+			}
+
+			candidates.addAll(wildcardActions);
+
+			actionEntries.put(actionName, new ActionEntry(candidates.toArray(new WebSocketAction[candidates.size()])));
+		}
+
+		this.actionEntries = actionEntries;
+		this.wildcardEntry = actionEntries.get(WebSocketMessageMappingRegistry.WILDCARD_ACTION);
+	}
+
+	/**
+	 * Looks up the entry for the given action and message class. Never returns null.
+	 *
+	 * @param action the action, or null for the wildcard actions
+	 * @param messageClass the class of the message, or null if the type ID was blank or unknown
+	 * @return
+	 */
+	public Entry lookup(String action, Class<?> messageClass) {
+		ActionEntry actionEntry = action == null ? null : actionEntries.get(action);
+
+		if (actionEntry == null) {
+			actionEntry = wildcardEntry;
+		}
+
+		return actionEntry.getEntry(messageClass);
+	}
+
+	/**
+	 * Creates an entry from the candidates for the given message class.
+	 *
+	 * @param candidates
+	 * @param messageClass
+	 * @return
+	 */
+	private static Entry createEntry(WebSocketAction[] candidates, Class<?> messageClass) {
+		List<WebSocketAction> invocableActions = new ArrayList<>(candidates.length);
+		boolean invalidTypeId = false;
+
+		for (WebSocketAction action : candidates) {
+			if (messageClass == null && action.getPayloadClass() != null) {
+				invalidTypeId = true;
+			}
+
+			if (action.takesEnvelope()) {
+				invocableActions.add(action);
+			} else if (messageClass == null) {
+				if (action.getPayloadClass() == null) {
+					invocableActions.add(action);
+				}
+			} else if (ObjectUtils.equals(action.getPayloadClass(), messageClass)) {
+				invocableActions.add(action);
+			}
+		}
+
+		return new Entry(messageClass, invocableActions.toArray(new WebSocketAction[invocableActions.size()]), invalidTypeId);
+	}
+
+	/**
+	 * The candidate actions of an action name and the entries of the message classes seen so far.
+	 *
+	 * @author ebahtijaragic
+	 */
+	private static final class ActionEntry {
+		private final WebSocketAction[] candidates;
+		private final Entry noTypeEntry;
+		private final ConcurrentMap<Class<?>, Entry> typeEntries = new ConcurrentHashMap<>(4);
+
+		private ActionEntry(WebSocketAction[] candidates) {
+			this.candidates = candidates;
+			this.noTypeEntry = createEntry(candidates, null);
+		}
+
+		private Entry getEntry(Class<?> messageClass) {
+			if (messageClass == null) {
+				return noTypeEntry;
+			}
+
+			Entry entry = typeEntries.get(messageClass);
+
+			if (entry == null) {
+				Entry created = createEntry(candidates, messageClass);
+
+				entry = typeEntries.putIfAbsent(messageClass, created);
+
+				if (entry == null) {
+					entry = created;
+				}
+			}
+
+			return entry;
+		}
+	}
+
+	/**
+	 * The actions that can handle an action and type ID pair.
+	 *
+	 * @author ebahtijaragic
+	 */
+	public static final class Entry {
+		private final Class<?> messageClass;
+		private final WebSocketAction[] actions;
+		private final boolean invalidTypeId;
+
+		private Entry(Class<?> messageClass, WebSocketAction[] actions, boolean invalidTypeId) {
+			this.messageClass = messageClass;
+			this.actions = actions;
+			this.invalidTypeId = invalidTypeId;
+		}
+
+		/**
+		 * Gets the message class, or null if the type ID was blank or unknown.
+		 *
+		 * @return
+		 */
+		public Class<?> getMessageClass() {
+			return messageClass;
+		}
+
+		/**
+		 * Gets the actions that can handle the message class. Session requirements still need to be checked with
+		 * {@link WebSocketAction#canInvoke(WebSocketSession, Class)}. The returned array must not be modified.
+		 *
+		 * @return
+		 */
+		public WebSocketAction[] getActions() {
+			return actions;
+		}
+
+		/**
+		 * Returns true if some action needs a payload but the type ID was blank or unknown.
+		 *
+		 * @return
+		 */
+		public boolean isInvalidTypeId() {
+			return invalidTypeId;
+		}
+	}
+}
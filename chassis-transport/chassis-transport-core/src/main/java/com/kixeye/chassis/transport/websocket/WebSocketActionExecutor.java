@@ -0,0 +1,371 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.kixeye.chassis.transport.shared.HashedWheelTimer;
+import com.kixeye.chassis.transport.shared.VirtualThreadExecutor;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+
+/**
+ * The worker pool shared by all websocket sessions. Each session gets its own {@link WebSocketSessionMailbox}s on top
+ * of this pool, which keep the per-session ordering of actions and responses.
+ *
+ * With "transport.executor=virtual" every task runs on its own virtual thread instead and the pool settings are ignored.
+ *
+ * The timeouts of pending actions of all sessions share a single {@link HashedWheelTimer}.
+ *
+ * Responses that find the pool saturated move to a small dedicated fallback pool rather than running on the thread that
+ * completed the action, which may be a Jetty selector or the timer thread.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketActionExecutor implements Executor {
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketActionExecutor.class);
+
+	private final DynamicIntProperty poolSize = DynamicPropertyFactory.getInstance().getIntProperty("websocket.executor.poolSize",
+			Runtime.getRuntime().availableProcessors() * 8);
+	private final DynamicIntProperty queueSize = DynamicPropertyFactory.getInstance().getIntProperty("websocket.executor.queueSize", 20000);
+	private final DynamicIntProperty maxSessionQueuedActions = DynamicPropertyFactory.getInstance().getIntProperty("websocket.session.maxQueuedActions", 1000);
+	private final DynamicIntProperty maxSessionInFlightActions = DynamicPropertyFactory.getInstance().getIntProperty("websocket.session.maxInFlightActions", 1000);
+	private final DynamicStringProperty sessionOverloadPolicy = DynamicPropertyFactory.getInstance().getStringProperty("websocket.session.overloadPolicy",
+			WebSocketOverloadPolicy.REJECT.name());
+	private final DynamicStringProperty batchOrdering = DynamicPropertyFactory.getInstance().getStringProperty("websocket.batch.ordering",
+			WebSocketBatchOrdering.ORDERED.name());
+	private final DynamicIntProperty maxBatchEnvelopes = DynamicPropertyFactory.getInstance().getIntProperty("websocket.batch.maxEnvelopes", 100);
+	private final DynamicLongProperty actionTimeout = DynamicPropertyFactory.getInstance().getLongProperty("websocket.action.timeout", -1);
+
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	@Value("${transport.executor:platform}")
+	private String executorMode;
+
+	@Value("${websocket.action.timeoutTickDuration:100}")
+	private long timeoutTickDuration;
+
+	private ExecutorService executor;
+	private ExecutorService fallbackExecutor;
+	private HashedWheelTimer timer;
+	private Runnable resizeCallback;
+
+	private final AtomicInteger inFlightActions = new AtomicInteger(0);
+
+	private Meter rejected;
+	private Meter fallback;
+	private Meter actionsRejected;
+	private Meter sessionsPaused;
+	private Meter sessionsClosed;
+	private Meter actionsTimedOut;
+
+	@PostConstruct
+	public void initialize() {
+		if (metricRegistry != null) {
+			rejected = metricRegistry.meter(name(WebSocketActionExecutor.class, "rejected"));
+			fallback = metricRegistry.meter(name(WebSocketActionExecutor.class, "fallback"));
+			actionsRejected = metricRegistry.meter(name(WebSocketActionExecutor.class, "rejected-actions"));
+			sessionsPaused = metricRegistry.meter(name(WebSocketActionExecutor.class, "overload-paused-sessions"));
+			sessionsClosed = metricRegistry.meter(name(WebSocketActionExecutor.class, "overload-closed-sessions"));
+			actionsTimedOut = metricRegistry.meter(name(WebSocketActionExecutor.class, "timed-out-actions"));
+
+			metricRegistry.register(name(WebSocketActionExecutor.class, "in-flight-actions"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return inFlightActions.get();
+				}
+			});
+		}
+
+		timer = new HashedWheelTimer("websocket-timer", Math.max(1, timeoutTickDuration), TimeUnit.MILLISECONDS, 512);
+
+		// unbounded since responses are bounded by the in-flight actions of each session
+		fallbackExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("websocket-fallback-%d").setDaemon(true).build());
+
+		if (VirtualThreadExecutor.isEnabled(executorMode)) {
+			executor = new VirtualThreadExecutor("websocket-worker", metricRegistry);
+
+			logger.info("Started websocket workers on virtual threads.");
+
+			return;
+		}
+
+		int threads = Math.max(1, poolSize.get());
+
+		final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize.get())),
+				new ThreadFactoryBuilder().setNameFormat("websocket-worker-%d").setDaemon(true).build());
+
+		resizeCallback = new Runnable() {
+			public void run() {
+				resize(threadPool, poolSize.get());
+			}
+		};
+
+		// on the shared property itself, so that shutting down removes just this callback
+		poolSize.getDynamicProperty().addCallback(resizeCallback);
+
+		if (metricRegistry != null) {
+			metricRegistry.register(name(WebSocketActionExecutor.class, "pool-size"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return threadPool.getPoolSize();
+				}
+			});
+			metricRegistry.register(name(WebSocketActionExecutor.class, "active-threads"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return threadPool.getActiveCount();
+				}
+			});
+			metricRegistry.register(name(WebSocketActionExecutor.class, "queued-sessions"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return threadPool.getQueue().size();
+				}
+			});
+		}
+
+		executor = threadPool;
+
+		logger.info("Started websocket worker pool with [{}] threads and a queue of [{}].", threads, queueSize.get());
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (resizeCallback != null) {
+			poolSize.getDynamicProperty().removeCallback(resizeCallback);
+		}
+
+		executor.shutdown();
+		fallbackExecutor.shutdown();
+		timer.stop();
+	}
+
+	/**
+	 * Creates a mailbox for actions of a session. The mailbox rejects actions once the session has too many queued up.
+	 *
+	 * @return
+	 */
+	public WebSocketSessionMailbox newActionMailbox() {
+		return new WebSocketSessionMailbox(this, maxSessionQueuedActions);
+	}
+
+	/**
+	 * Creates a mailbox for responses of a session. The mailbox is unbounded since responses are bounded by the actions that produced them,
+	 * and falls back to the dedicated fallback pool if the shared pool is saturated.
+	 *
+	 * @return
+	 */
+	public WebSocketSessionMailbox newResponseMailbox() {
+		return new WebSocketSessionMailbox(this, new Executor() {
+			public void execute(Runnable command) {
+				if (fallback != null) {
+					fallback.mark();
+				}
+
+				fallbackExecutor.execute(command);
+			}
+		}, null);
+	}
+
+	/**
+	 * Gets the maximum amount of actions a session may have in flight, from being queued until their response is sent.
+	 *
+	 * @return
+	 */
+	public int getMaxSessionInFlightActions() {
+		return Math.max(1, maxSessionInFlightActions.get());
+	}
+
+	/**
+	 * Gets what a session does once it has too many actions in flight.
+	 *
+	 * @return
+	 */
+	public WebSocketOverloadPolicy getSessionOverloadPolicy() {
+		String policy = sessionOverloadPolicy.get();
+
+		try {
+			return WebSocketOverloadPolicy.valueOf(policy.trim().toUpperCase());
+		} catch (RuntimeException e) {
+			logger.warn("Ignoring invalid websocket session overload policy [{}].", policy);
+
+			return WebSocketOverloadPolicy.REJECT;
+		}
+	}
+
+	/**
+	 * Gets how the sub-envelopes of batches are invoked unless a batch sets its own ordering.
+	 *
+	 * @return
+	 */
+	public WebSocketBatchOrdering getBatchOrdering() {
+		String ordering = batchOrdering.get();
+
+		try {
+			return WebSocketBatchOrdering.valueOf(ordering.trim().toUpperCase());
+		} catch (RuntimeException e) {
+			logger.warn("Ignoring invalid websocket batch ordering [{}].", ordering);
+
+			return WebSocketBatchOrdering.ORDERED;
+		}
+	}
+
+	/**
+	 * Gets the maximum amount of sub-envelopes in a batch.
+	 *
+	 * @return
+	 */
+	public int getMaxBatchEnvelopes() {
+		return Math.max(1, maxBatchEnvelopes.get());
+	}
+
+	/**
+	 * Gets the timeout of actions that don't set their own.
+	 *
+	 * @return the timeout in milliseconds, or 0 for none
+	 */
+	public long getDefaultActionTimeout() {
+		return Math.max(0, actionTimeout.get());
+	}
+
+	/**
+	 * Schedules the timeout of a pending action.
+	 *
+	 * @param task
+	 * @param timeoutMillis
+	 * @return
+	 */
+	public HashedWheelTimer.Timeout newActionTimeout(HashedWheelTimer.TimerTask task, long timeoutMillis) {
+		return timer.newTimeout(task, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Marks an action that timed out before it had a response.
+	 */
+	public void markActionTimedOut() {
+		if (actionsTimedOut != null) {
+			actionsTimedOut.mark();
+		}
+	}
+
+	/**
+	 * Tracks an action that was accepted by a session.
+	 */
+	public void markActionStarted() {
+		inFlightActions.incrementAndGet();
+	}
+
+	/**
+	 * Tracks an action that a session is done with.
+	 */
+	public void markActionFinished() {
+		inFlightActions.decrementAndGet();
+	}
+
+	/**
+	 * Marks an action that was rejected by a session.
+	 */
+	public void markActionRejected() {
+		if (actionsRejected != null) {
+			actionsRejected.mark();
+		}
+	}
+
+	/**
+	 * Marks a session that stopped reading because it had too many actions in flight.
+	 */
+	public void markSessionPaused() {
+		if (sessionsPaused != null) {
+			sessionsPaused.mark();
+		}
+	}
+
+	/**
+	 * Marks a session that was closed because it had too many actions in flight.
+	 */
+	public void markSessionClosed() {
+		if (sessionsClosed != null) {
+			sessionsClosed.mark();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute(Runnable command) {
+		try {
+			executor.execute(command);
+		} catch (RejectedExecutionException e) {
+			if (rejected != null) {
+				rejected.mark();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Resizes the pool.
+	 *
+	 * @param executor
+	 * @param size
+	 */
+	private synchronized void resize(ThreadPoolExecutor executor, int size) {
+		if (size < 1) {
+			logger.warn("Ignoring invalid websocket worker pool size [{}].", size);
+			return;
+		}
+
+		if (size > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
+		} else {
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
+		}
+
+		logger.info("Resized websocket worker pool to [{}] threads.", size);
+	}
+}
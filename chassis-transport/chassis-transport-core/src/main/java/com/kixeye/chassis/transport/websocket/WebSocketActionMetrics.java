@@ -0,0 +1,217 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.kixeye.chassis.transport.shared.LockFreeSlidingWindowReservoir;
+
+/**
+ * Creates and caches the metrics of websocket actions, per action and message format.
+ *
+ * The metrics are named after the handler method and the message format, for example
+ * "com.example.GameController.move.json.invoke", and sample into {@link LockFreeSlidingWindowReservoir}s so that
+ * recording them doesn't contend on the hot path.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketActionMetrics {
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	@Value("${websocket.metrics.actions.enabled:true}")
+	private boolean enabled;
+
+	@Value("${websocket.metrics.actions.reservoirSize:1024}")
+	private int reservoirSize;
+
+	private final ConcurrentHashMap<WebSocketAction, ConcurrentHashMap<String, Recorder>> recorders = new ConcurrentHashMap<>();
+
+	/**
+	 * Gets the metrics of an action for a message format.
+	 *
+	 * @param action
+	 * @param format
+	 * @return the metrics or null if action metrics are disabled
+	 */
+	public Recorder getRecorder(WebSocketAction action, String format) {
+		if (metricRegistry == null || !enabled) {
+			return null;
+		}
+
+		ConcurrentHashMap<String, Recorder> actionRecorders = recorders.get(action);
+
+		if (actionRecorders == null) {
+			ConcurrentHashMap<String, Recorder> newActionRecorders = new ConcurrentHashMap<>();
+
+			actionRecorders = recorders.putIfAbsent(action, newActionRecorders);
+
+			if (actionRecorders == null) {
+				actionRecorders = newActionRecorders;
+			}
+		}
+
+		Recorder recorder = actionRecorders.get(format);
+
+		if (recorder == null) {
+			Recorder newRecorder = new Recorder(name(action.getHandlerClass().getName(), action.getMethod().getName(), format));
+
+			recorder = actionRecorders.putIfAbsent(format, newRecorder);
+
+			if (recorder == null) {
+				recorder = newRecorder;
+			}
+		}
+
+		return recorder;
+	}
+
+	/**
+	 * Registers a metric unless one with the same name already exists.
+	 *
+	 * @param name
+	 * @param metric
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T register(String name, T metric) {
+		try {
+			return metricRegistry.register(name, metric);
+		} catch (IllegalArgumentException e) {
+			// another session registered it first
+			return (T)metricRegistry.getMetrics().get(name);
+		}
+	}
+
+	/**
+	 * The metrics of an action for a message format.
+	 *
+	 * @author ebahtijaragic
+	 */
+	public final class Recorder {
+		private final String prefix;
+
+		private final Timer queueWait;
+		private final Timer invoke;
+		private final Timer roundTrip;
+		private final Histogram inboundBytes;
+		private final Histogram outboundBytes;
+		private final Meter errors;
+
+		private final ConcurrentHashMap<String, Meter> errorsByCode = new ConcurrentHashMap<>();
+
+		private Recorder(String prefix) {
+			this.prefix = prefix;
+
+			this.queueWait = register(name(prefix, "queue-wait"), new Timer(new LockFreeSlidingWindowReservoir(reservoirSize)));
+			this.invoke = register(name(prefix, "invoke"), new Timer(new LockFreeSlidingWindowReservoir(reservoirSize)));
+			this.roundTrip = register(name(prefix, "round-trip"), new Timer(new LockFreeSlidingWindowReservoir(reservoirSize)));
+			this.inboundBytes = register(name(prefix, "inbound-bytes"), new Histogram(new LockFreeSlidingWindowReservoir(reservoirSize)));
+			this.outboundBytes = register(name(prefix, "outbound-bytes"), new Histogram(new LockFreeSlidingWindowReservoir(reservoirSize)));
+			this.errors = register(name(prefix, "errors"), new Meter());
+		}
+
+		/**
+		 * Records the time between receiving the frame and invoking the action.
+		 *
+		 * @param nanos
+		 */
+		public void updateQueueWait(long nanos) {
+			queueWait.update(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Records the time spent in the action method.
+		 *
+		 * @param nanos
+		 */
+		public void updateInvoke(long nanos) {
+			invoke.update(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Records the time between receiving the frame and sending the response.
+		 *
+		 * @param nanos
+		 */
+		public void updateRoundTrip(long nanos) {
+			roundTrip.update(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Records the size of a request payload.
+		 *
+		 * @param bytes
+		 */
+		public void updateInboundBytes(int bytes) {
+			inboundBytes.update(bytes);
+		}
+
+		/**
+		 * Records the size of a response frame.
+		 *
+		 * @param bytes
+		 */
+		public void updateOutboundBytes(int bytes) {
+			outboundBytes.update(bytes);
+		}
+
+		/**
+		 * Marks an error.
+		 *
+		 * @param code the service error code
+		 */
+		public void markError(String code) {
+			errors.mark();
+
+			if (code == null) {
+				return;
+			}
+
+			Meter meter = errorsByCode.get(code);
+
+			if (meter == null) {
+				Meter newMeter = register(name(prefix, "errors", code), new Meter());
+
+				meter = errorsByCode.putIfAbsent(code, newMeter);
+
+				if (meter == null) {
+					meter = newMeter;
+				}
+			}
+
+			meter.mark();
+		}
+	}
+}
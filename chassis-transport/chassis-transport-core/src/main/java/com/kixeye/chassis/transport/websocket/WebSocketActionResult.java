@@ -0,0 +1,185 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * The result of a websocket action, which is either set right away or later on by another thread.
+ *
+ * A lightweight replacement for Spring's DeferredResult. Actions may return one to respond asynchronously, and set a
+ * canceller to stop the work behind it once the action times out or its session closes.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketActionResult<T> {
+	private T result;
+	private Throwable error;
+	private boolean complete = false;
+
+	private Listener listener;
+
+	// created on first use, since most results are never cancelled
+	private WebSocketActionCancellation cancellation;
+
+	/**
+	 * Sets the result.
+	 *
+	 * @param result
+	 * @return false if the result was already set
+	 */
+	public boolean setResult(T result) {
+		return complete(result, null);
+	}
+
+	/**
+	 * Sets an error as the result.
+	 *
+	 * @param error
+	 * @return false if the result was already set
+	 */
+	public boolean setErrorResult(Throwable error) {
+		return complete(null, error);
+	}
+
+	/**
+	 * Returns true if the result has been set.
+	 *
+	 * @return
+	 */
+	public synchronized boolean hasResult() {
+		return complete;
+	}
+
+	/**
+	 * Gets the result, or null if there is none yet or it is an error.
+	 *
+	 * @return
+	 */
+	public synchronized T getResult() {
+		return result;
+	}
+
+	/**
+	 * Gets the error, or null if there is none.
+	 *
+	 * @return
+	 */
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	/**
+	 * Sets the listener that is notified once the result is set. The listener is notified right away if the result is already set.
+	 *
+	 * @param listener
+	 */
+	public void setListener(Listener listener) {
+		synchronized (this) {
+			this.listener = listener;
+
+			if (!complete) {
+				return;
+			}
+		}
+
+		listener.onResult(this);
+	}
+
+	/**
+	 * Sets what stops the work that produces this result. The canceller runs right away if this result was already cancelled.
+	 *
+	 * @param canceller
+	 */
+	public void setCanceller(Runnable canceller) {
+		getCancellation().setCanceller(canceller);
+	}
+
+	/**
+	 * Cancels the work that produces this result, if a canceller was set.
+	 */
+	public void cancel() {
+		getCancellation().cancel();
+	}
+
+	/**
+	 * Returns true if this result was cancelled.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isCancelled() {
+		return cancellation != null && cancellation.isCancelled();
+	}
+
+	/**
+	 * Gets the cancellation of this result, creating it if needed.
+	 *
+	 * @return
+	 */
+	private synchronized WebSocketActionCancellation getCancellation() {
+		if (cancellation == null) {
+			cancellation = new WebSocketActionCancellation();
+		}
+
+		return cancellation;
+	}
+
+	/**
+	 * Completes this result.
+	 *
+	 * @param result
+	 * @param error
+	 * @return
+	 */
+	private boolean complete(T result, Throwable error) {
+		Listener currentListener = null;
+
+		synchronized (this) {
+			if (complete) {
+				return false;
+			}
+
+			this.result = result;
+			this.error = error;
+			this.complete = true;
+
+			currentListener = listener;
+		}
+
+		if (currentListener != null) {
+			currentListener.onResult(this);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets notified when a result is set.
+	 *
+	 * @author ebahtijaragic
+	 */
+	public interface Listener {
+		/**
+		 * Called once the result is set.
+		 *
+		 * @param result
+		 */
+		void onResult(WebSocketActionResult<?> result);
+	}
+}
@@ -0,0 +1,44 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * How the sub-envelopes of a batch are invoked. Either way the batched reply lists the responses in the order of
+ * the sub-envelopes.
+ *
+ * @author ebahtijaragic
+ */
+public enum WebSocketBatchOrdering {
+	/**
+	 * Invokes the sub-actions one after another, in order, like envelopes that came in separate frames.
+	 */
+	ORDERED,
+	
+	/**
+	 * Invokes the sub-actions in parallel on the worker pool.
+	 */
+	UNORDERED;
+	
+	/**
+	 * The header that overrides the ordering of a single batch.
+	 */
+	public static final String HEADER = "ordering";
+}
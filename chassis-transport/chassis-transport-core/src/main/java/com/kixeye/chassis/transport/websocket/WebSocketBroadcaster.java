@@ -0,0 +1,309 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.kixeye.chassis.transport.serde.MessageSerDe;
+
+/**
+ * Sends the same message to many websocket sessions.
+ *
+ * A message is encoded and encrypted once per message format, and every recipient gets a read-only view of the
+ * same frame. Sessions can be grouped into topics, which they leave automatically when they close.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketBroadcaster {
+	@Autowired
+	private WebSocketFrameEncoder frameEncoder;
+
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	private final ConcurrentHashMap<String, Set<WebSocketSession>> topics = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<WebSocketSession, Set<String>> sessionTopics = new ConcurrentHashMap<>();
+
+	private Timer fanOutTimer;
+	private Meter encodedFrames;
+	private Meter deliveredFrames;
+	private Counter bytesSaved;
+
+	@PostConstruct
+	public void initialize() {
+		if (metricRegistry != null) {
+			fanOutTimer = metricRegistry.timer(name(WebSocketBroadcaster.class, "fan-out"));
+			encodedFrames = metricRegistry.meter(name(WebSocketBroadcaster.class, "encoded-frames"));
+			deliveredFrames = metricRegistry.meter(name(WebSocketBroadcaster.class, "delivered-frames"));
+			bytesSaved = metricRegistry.counter(name(WebSocketBroadcaster.class, "bytes-saved"));
+		}
+	}
+
+	/**
+	 * Adds a session to a topic.
+	 *
+	 * @param topic
+	 * @param session
+	 * @return false if the session already was in the topic
+	 */
+	public boolean subscribe(String topic, final WebSocketSession session) {
+		boolean added = false;
+
+		synchronized (this) {
+			Set<String> currentTopics = sessionTopics.get(session);
+
+			if (currentTopics == null) {
+				currentTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+				sessionTopics.put(session, currentTopics);
+
+				session.addCloseListener(new Runnable() {
+					public void run() {
+						unsubscribeAll(session);
+					}
+				});
+			}
+
+			Set<WebSocketSession> subscribers = topics.get(topic);
+
+			if (subscribers == null) {
+				subscribers = Collections.newSetFromMap(new ConcurrentHashMap<WebSocketSession, Boolean>());
+
+				topics.put(topic, subscribers);
+			}
+
+			added = subscribers.add(session);
+
+			currentTopics.add(topic);
+		}
+
+		// the session may have closed before its close listener was added
+		if (!session.isConnected()) {
+			unsubscribeAll(session);
+		}
+
+		return added;
+	}
+
+	/**
+	 * Removes a session from a topic.
+	 *
+	 * @param topic
+	 * @param session
+	 * @return false if the session was not in the topic
+	 */
+	public synchronized boolean unsubscribe(String topic, WebSocketSession session) {
+		Set<String> currentTopics = sessionTopics.get(session);
+
+		if (currentTopics != null) {
+			currentTopics.remove(topic);
+		}
+
+		Set<WebSocketSession> subscribers = topics.get(topic);
+
+		if (subscribers == null || !subscribers.remove(session)) {
+			return false;
+		}
+
+		if (subscribers.isEmpty()) {
+			topics.remove(topic);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes a session from all of its topics.
+	 *
+	 * @param session
+	 */
+	public synchronized void unsubscribeAll(WebSocketSession session) {
+		Set<String> currentTopics = sessionTopics.remove(session);
+
+		if (currentTopics != null) {
+			for (String topic : currentTopics) {
+				unsubscribe(topic, session);
+			}
+		}
+	}
+
+	/**
+	 * Gets the sessions in a topic.
+	 *
+	 * @param topic
+	 * @return
+	 */
+	public Set<WebSocketSession> getSubscribers(String topic) {
+		Set<WebSocketSession> subscribers = topics.get(topic);
+
+		if (subscribers == null) {
+			return Collections.emptySet();
+		}
+
+		return Collections.unmodifiableSet(subscribers);
+	}
+
+	/**
+	 * Gets the topics of a session.
+	 *
+	 * @param session
+	 * @return
+	 */
+	public Set<String> getTopics(WebSocketSession session) {
+		Set<String> currentTopics = sessionTopics.get(session);
+
+		if (currentTopics == null) {
+			return Collections.emptySet();
+		}
+
+		return Collections.unmodifiableSet(currentTopics);
+	}
+
+	/**
+	 * Sends a message to all the sessions in a topic.
+	 *
+	 * @param topic
+	 * @param action
+	 * @param message
+	 * @return the amount of sessions the message was sent to
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public int broadcast(String topic, String action, Object message) throws IOException, GeneralSecurityException {
+		return broadcast(topic, action, message, WebSocketMessagePriority.NORMAL);
+	}
+
+	/**
+	 * Sends a message to all the sessions in a topic.
+	 *
+	 * @param topic
+	 * @param action
+	 * @param message
+	 * @param priority
+	 * @return the amount of sessions the message was sent to
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public int broadcast(String topic, String action, Object message, WebSocketMessagePriority priority) throws IOException, GeneralSecurityException {
+		return broadcast(getSubscribers(topic), action, message, priority);
+	}
+
+	/**
+	 * Sends a message to a group of sessions.
+	 *
+	 * @param sessions
+	 * @param action
+	 * @param message
+	 * @param priority
+	 * @return the amount of sessions the message was sent to
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public int broadcast(Iterable<WebSocketSession> sessions, String action, Object message, WebSocketMessagePriority priority) throws IOException, GeneralSecurityException {
+		long startTime = System.nanoTime();
+
+		// the frames by message format and envelope codes, there are only ever a few of them
+		String[] formats = new String[2];
+		WebSocketEnvelopeCodes[] codes = new WebSocketEnvelopeCodes[2];
+		ByteBuffer[] frames = new ByteBuffer[2];
+		int formatCount = 0;
+
+		int delivered = 0;
+		long sharedBytes = 0;
+
+		for (WebSocketSession session : sessions) {
+			if (!session.isConnected()) {
+				continue;
+			}
+
+			MessageSerDe serDe = session.getSerDe();
+			String format = serDe.getMessageFormatName();
+			WebSocketEnvelopeCodes envelopeCodes = session.getEnvelopeCodes();
+
+			ByteBuffer frame = null;
+
+			for (int i = 0; i < formatCount; i++) {
+				if (formats[i].equals(format) && codes[i] == envelopeCodes) {
+					frame = frames[i];
+
+					sharedBytes += frame.remaining();
+
+					break;
+				}
+			}
+
+			if (frame == null) {
+				frame = frameEncoder.encode(serDe, action, null, message, null, envelopeCodes).asReadOnlyBuffer();
+
+				if (formatCount == formats.length) {
+					String[] newFormats = new String[formatCount * 2];
+					WebSocketEnvelopeCodes[] newCodes = new WebSocketEnvelopeCodes[formatCount * 2];
+					ByteBuffer[] newFrames = new ByteBuffer[formatCount * 2];
+
+					System.arraycopy(formats, 0, newFormats, 0, formatCount);
+					System.arraycopy(codes, 0, newCodes, 0, formatCount);
+					System.arraycopy(frames, 0, newFrames, 0, formatCount);
+
+					formats = newFormats;
+					codes = newCodes;
+					frames = newFrames;
+				}
+
+				formats[formatCount] = format;
+				codes[formatCount] = envelopeCodes;
+				frames[formatCount] = frame;
+				formatCount++;
+			}
+
+			// every session consumes its own view of the frame
+			if (session.sendFrame(frame.duplicate(), priority)) {
+				delivered++;
+			}
+		}
+
+		if (metricRegistry != null) {
+			fanOutTimer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+			encodedFrames.mark(formatCount);
+			deliveredFrames.mark(delivered);
+			bytesSaved.inc(sharedBytes);
+		}
+
+		return delivered;
+	}
+}
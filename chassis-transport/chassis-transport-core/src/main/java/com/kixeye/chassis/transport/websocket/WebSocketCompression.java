@@ -0,0 +1,286 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.netflix.config.DynamicPropertyFactory;
+
+/**
+ * Holds the permessage-deflate settings of every message format and negotiates the extension when a session connects.
+ *
+ * Every setting is read from "websocket.compression.&lt;format&gt;.&lt;setting&gt;" and falls back to
+ * "websocket.compression.&lt;setting&gt;", so compression can be turned on for verbose formats like json or xml and stay
+ * off for protobuf. Changed settings apply to sessions that connect afterwards.
+ *
+ * The metrics are named after the message format, for example
+ * "com.kixeye.chassis.transport.websocket.WebSocketCompression.json.compression-ratio".
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketCompression {
+	public static final String PROPERTY_PREFIX = "websocket.compression.";
+
+	private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	private final ConcurrentHashMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns true if sessions of a message format may negotiate permessage-deflate.
+	 *
+	 * @param format
+	 * @return
+	 */
+	public boolean isEnabled(String format) {
+		return getBoolean(format, "enabled", false);
+	}
+
+	/**
+	 * Gets the size in bytes below which outgoing messages are sent uncompressed.
+	 *
+	 * @param format
+	 * @return
+	 */
+	public int getMinMessageSize(String format) {
+		return Math.max(0, getInt(format, "minMessageSize", 1024));
+	}
+
+	/**
+	 * Gets the deflate level, from 0 (no compression) to 9 (best compression).
+	 *
+	 * @param format
+	 * @return
+	 */
+	public int getLevel(String format) {
+		return Math.min(9, Math.max(0, getInt(format, "level", 6)));
+	}
+
+	/**
+	 * Returns true if the server resets its compression context after every message, which costs compression ratio but
+	 * saves the memory of the context between messages.
+	 *
+	 * @param format
+	 * @return
+	 */
+	public boolean isServerNoContextTakeover(String format) {
+		return getBoolean(format, "serverNoContextTakeover", false);
+	}
+
+	/**
+	 * Returns true if clients are asked to reset their compression context after every message.
+	 *
+	 * @param format
+	 * @return
+	 */
+	public boolean isClientNoContextTakeover(String format) {
+		return getBoolean(format, "clientNoContextTakeover", false);
+	}
+
+	/**
+	 * Picks the extensions to accept out of the ones a client offered. Other extensions are kept as they are,
+	 * permessage-deflate offers are dropped if compression is disabled for the format and otherwise the first offer whose
+	 * parameters can be honored is accepted.
+	 *
+	 * @param format
+	 * @param offers
+	 * @return
+	 */
+	public List<ExtensionConfig> negotiate(String format, List<ExtensionConfig> offers) {
+		List<ExtensionConfig> accepted = new ArrayList<>();
+
+		boolean deflateAccepted = false;
+
+		for (ExtensionConfig offer : offers) {
+			if (!WebSocketDeflateExtension.NAME.equalsIgnoreCase(offer.getName())) {
+				accepted.add(offer);
+			} else if (!deflateAccepted && isEnabled(format)) {
+				ExtensionConfig response = accept(format, offer);
+
+				if (response != null) {
+					accepted.add(response);
+
+					deflateAccepted = true;
+				}
+			}
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Builds the response to a permessage-deflate offer.
+	 *
+	 * @param format
+	 * @param offer
+	 * @return the response or null if the offer can't be accepted
+	 */
+	private WebSocketDeflateExtension.Settings accept(String format, ExtensionConfig offer) {
+		boolean serverNoContextTakeover = isServerNoContextTakeover(format);
+		boolean clientNoContextTakeover = isClientNoContextTakeover(format);
+		boolean serverMaxWindowBits = false;
+
+		for (String key : offer.getParameterKeys()) {
+			switch (key) {
+				case WebSocketDeflateExtension.SERVER_NO_CONTEXT_TAKEOVER:
+					serverNoContextTakeover = true;
+					break;
+				case WebSocketDeflateExtension.CLIENT_NO_CONTEXT_TAKEOVER:
+					clientNoContextTakeover = true;
+					break;
+				case WebSocketDeflateExtension.SERVER_MAX_WINDOW_BITS:
+					// java.util.zip always deflates with the largest window
+					if (!"15".equals(offer.getParameter(key, null))) {
+						return null;
+					}
+
+					serverMaxWindowBits = true;
+					break;
+				case WebSocketDeflateExtension.CLIENT_MAX_WINDOW_BITS:
+					// leaving it out of the response lets the client use the largest window, which we inflate either way
+					break;
+				default:
+					return null;
+			}
+		}
+
+		return new WebSocketDeflateExtension.Settings(getLevel(format), getMinMessageSize(format), serverNoContextTakeover, clientNoContextTakeover,
+				serverMaxWindowBits, getRecorder(format));
+	}
+
+	/**
+	 * Gets the compression metrics of a message format.
+	 *
+	 * @param format
+	 * @return the metrics or null if there's no metric registry
+	 */
+	public Recorder getRecorder(String format) {
+		if (metricRegistry == null) {
+			return null;
+		}
+
+		Recorder recorder = recorders.get(format);
+
+		if (recorder == null) {
+			Recorder newRecorder = new Recorder(format);
+
+			recorder = recorders.putIfAbsent(format, newRecorder);
+
+			if (recorder == null) {
+				recorder = newRecorder;
+			}
+		}
+
+		return recorder;
+	}
+
+	private int getInt(String format, String setting, int defaultValue) {
+		DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+
+		return properties.getIntProperty(PROPERTY_PREFIX + format + "." + setting,
+				properties.getIntProperty(PROPERTY_PREFIX + setting, defaultValue).get()).get();
+	}
+
+	private boolean getBoolean(String format, String setting, boolean defaultValue) {
+		DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+
+		return properties.getBooleanProperty(PROPERTY_PREFIX + format + "." + setting,
+				properties.getBooleanProperty(PROPERTY_PREFIX + setting, defaultValue).get()).get();
+	}
+
+	/**
+	 * The compression metrics of a message format.
+	 *
+	 * @author ebahtijaragic
+	 */
+	public final class Recorder {
+		private final Histogram compressionRatio;
+		private final Timer compressCpu;
+		private final Timer decompressCpu;
+		private final Meter uncompressedMessages;
+
+		private Recorder(String format) {
+			this.compressionRatio = metricRegistry.histogram(name(WebSocketCompression.class, format, "compression-ratio"));
+			this.compressCpu = metricRegistry.timer(name(WebSocketCompression.class, format, "compress-cpu"));
+			this.decompressCpu = metricRegistry.timer(name(WebSocketCompression.class, format, "decompress-cpu"));
+			this.uncompressedMessages = metricRegistry.meter(name(WebSocketCompression.class, format, "uncompressed-messages"));
+		}
+
+		/**
+		 * Gets the CPU time of the current thread, or the wall clock time if the JVM doesn't measure CPU time.
+		 *
+		 * @return
+		 */
+		public long currentTime() {
+			return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+		}
+
+		/**
+		 * Records a compressed message.
+		 *
+		 * @param originalBytes
+		 * @param compressedBytes
+		 * @param cpuNanos
+		 */
+		public void updateCompressed(int originalBytes, int compressedBytes, long cpuNanos) {
+			if (originalBytes > 0) {
+				compressionRatio.update((int)(compressedBytes * 100L / originalBytes));
+			}
+
+			compressCpu.update(cpuNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Records the time spent inflating a frame.
+		 *
+		 * @param cpuNanos
+		 */
+		public void updateDecompressed(long cpuNanos) {
+			decompressCpu.update(cpuNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Marks a message that was sent uncompressed because it's below the minimum size.
+		 */
+		public void markUncompressed() {
+			uncompressedMessages.mark();
+		}
+	}
+}
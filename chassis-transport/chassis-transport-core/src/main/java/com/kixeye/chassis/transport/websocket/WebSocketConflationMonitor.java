@@ -0,0 +1,159 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+
+/**
+ * Flushes the conflated messages of websocket sessions on a shared tick.
+ *
+ * A session keeps only the latest message per conflation key and signs up for the next tick when it gets its first one.
+ * On every tick the sessions that signed up flush their messages in a single frame from their response mailbox, so
+ * bursts of updates to the same entity cost one message per tick instead of one per update.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketConflationMonitor {
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketConflationMonitor.class);
+
+	private final DynamicIntProperty tickMillis = DynamicPropertyFactory.getInstance().getIntProperty("websocket.conflation.tickMillis", 50);
+
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	private final ConcurrentLinkedQueue<ActionInvokingWebSocket> pendingSessions = new ConcurrentLinkedQueue<>();
+
+	private ScheduledExecutorService ticker;
+
+	private Meter conflatedMessages;
+	private Meter flushedMessages;
+	private Meter flushes;
+
+	@PostConstruct
+	public void initialize() {
+		if (metricRegistry != null) {
+			conflatedMessages = metricRegistry.meter(name(WebSocketConflationMonitor.class, "conflated-messages"));
+			flushedMessages = metricRegistry.meter(name(WebSocketConflationMonitor.class, "flushed-messages"));
+			flushes = metricRegistry.meter(name(WebSocketConflationMonitor.class, "flushes"));
+		}
+
+		ticker = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("websocket-conflation-%d").setDaemon(true).build());
+
+		scheduleTick();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		ticker.shutdownNow();
+	}
+
+	/**
+	 * Gets the interval at which conflated messages are flushed.
+	 *
+	 * @return
+	 */
+	public int getTickMillis() {
+		return Math.max(1, tickMillis.get());
+	}
+
+	/**
+	 * Flushes the conflated messages of a session on the next tick.
+	 *
+	 * @param webSocket
+	 */
+	void schedule(ActionInvokingWebSocket webSocket) {
+		pendingSessions.add(webSocket);
+	}
+
+	/**
+	 * Marks a message that was replaced by a later one with the same conflation key before it was flushed.
+	 */
+	public void markMessageConflated() {
+		if (conflatedMessages != null) {
+			conflatedMessages.mark();
+		}
+	}
+
+	/**
+	 * Marks a flush of the conflated messages of a session.
+	 *
+	 * @param messages the amount of messages in the flush
+	 */
+	public void markFlushed(int messages) {
+		if (flushes != null) {
+			flushes.mark();
+			flushedMessages.mark(messages);
+		}
+	}
+
+	private void scheduleTick() {
+		try {
+			// rescheduled on every tick so that a changed interval applies right away
+			ticker.schedule(new Runnable() {
+				public void run() {
+					tick();
+				}
+			}, getTickMillis(), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+
+	private void tick() {
+		try {
+			// only the sessions that signed up before this tick, those that fail to flush sign up again for the next one
+			for (int remaining = pendingSessions.size(); remaining > 0; remaining--) {
+				ActionInvokingWebSocket webSocket = pendingSessions.poll();
+
+				if (webSocket == null) {
+					break;
+				}
+
+				webSocket.flushConflatedMessages();
+			}
+		} catch (RuntimeException e) {
+			logger.error("Unable to flush conflated messages", e);
+		} finally {
+			scheduleTick();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The payload of an incoming streamed message, which the thread reading the session writes fragment by fragment and
+ * an action reads.
+ *
+ * Writing waits while more than maxBufferedBytes haven't been read yet, which stops reading from the session until
+ * the action catches up. Once the action closes the stream, or the invocation finishes, the rest of the message is
+ * discarded.
+ *
+ * @author ebahtijaragic
+ */
+final class WebSocketContentInputStream extends InputStream {
+	private final ArrayDeque<ByteBuffer> fragments = new ArrayDeque<>();
+	private final int maxBufferedBytes;
+
+	private int bufferedBytes = 0;
+	private boolean finished = false;
+	private boolean closed = false;
+	private IOException failure;
+
+	/**
+	 * @param maxBufferedBytes
+	 */
+	public WebSocketContentInputStream(int maxBufferedBytes) {
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	/**
+	 * Adds a fragment, waiting while too many bytes are buffered. The fragment is copied since jetty reuses its buffers.
+	 *
+	 * @param fragment the fragment or null if it's empty
+	 * @param last whether this is the last fragment of the message
+	 * @return false if the fragment was discarded because the stream was closed or failed
+	 * @throws InterruptedIOException
+	 */
+	public synchronized boolean write(ByteBuffer fragment, boolean last) throws InterruptedIOException {
+		while (!closed && failure == null && bufferedBytes >= maxBufferedBytes) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the stream to be read.");
+			}
+		}
+
+		if (closed || failure != null) {
+			return false;
+		}
+
+		if (fragment != null && fragment.hasRemaining()) {
+			ByteBuffer copy = ByteBuffer.allocate(fragment.remaining());
+			copy.put(fragment.duplicate()).flip();
+
+			fragments.addLast(copy);
+			bufferedBytes += copy.remaining();
+		}
+
+		finished = last;
+
+		notifyAll();
+
+		return true;
+	}
+
+	/**
+	 * Fails the reads that follow the buffered fragments, for example because the session closed mid message.
+	 *
+	 * @param cause
+	 */
+	public synchronized void fail(IOException cause) {
+		if (!finished) {
+			failure = cause;
+		}
+
+		notifyAll();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+
+		while (fragments.isEmpty()) {
+			if (closed) {
+				throw new IOException("Stream closed.");
+			} else if (finished) {
+				return -1;
+			} else if (failure != null) {
+				throw failure;
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the next fragment.");
+			}
+		}
+
+		ByteBuffer fragment = fragments.peekFirst();
+
+		int read = Math.min(length, fragment.remaining());
+
+		fragment.get(buffer, offset, read);
+
+		if (!fragment.hasRemaining()) {
+			fragments.pollFirst();
+		}
+
+		bufferedBytes -= read;
+
+		notifyAll();
+
+		return read;
+	}
+
+	@Override
+	public synchronized int available() {
+		return bufferedBytes;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+
+		fragments.clear();
+		bufferedBytes = 0;
+
+		notifyAll();
+	}
+}
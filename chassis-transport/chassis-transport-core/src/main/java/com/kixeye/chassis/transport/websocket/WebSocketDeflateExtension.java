@@ -0,0 +1,355 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.websocket.api.BadPayloadException;
+import org.eclipse.jetty.websocket.api.MessageTooLargeException;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.extensions.AbstractExtension;
+import org.eclipse.jetty.websocket.common.frames.DataFrame;
+
+import com.kixeye.chassis.transport.websocket.WebSocketCompression.Recorder;
+
+/**
+ * The permessage-deflate extension of RFC 7692.
+ *
+ * Outgoing messages that fit in a single frame and reach the minimum size are compressed, everything else is sent as
+ * it is. Incoming compressed messages are inflated frame by frame. The settings and metrics come from the
+ * {@link Settings} that {@link WebSocketCompression} negotiated for the session.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketDeflateExtension extends AbstractExtension {
+	public static final String NAME = "permessage-deflate";
+
+	public static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	public static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	public static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	public static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+	// the empty block that a sync flush ends with, which is left out on the wire
+	private static final byte[] EMPTY_BLOCK = new byte[] { 0x00, 0x00, (byte)0xff, (byte)0xff };
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private Settings settings;
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	private byte[] deflateInput = new byte[0];
+	private byte[] deflateOutput = new byte[INITIAL_BUFFER_SIZE];
+
+	private byte[] inflateInput = new byte[0];
+	private byte[] inflateOutput = new byte[INITIAL_BUFFER_SIZE];
+
+	// whether the frames of the message being received are compressed, and how much they inflated to so far
+	private boolean inflating = false;
+	private int inflatedLength = 0;
+
+	@Override
+	public void setConfig(ExtensionConfig config) {
+		if (config instanceof Settings) {
+			settings = (Settings)config;
+		} else {
+			// negotiated without WebSocketCompression, so honor the offer with the default level and no metrics
+			settings = new Settings(Deflater.DEFAULT_COMPRESSION, 0, config.getParameterKeys().contains(SERVER_NO_CONTEXT_TAKEOVER),
+					config.getParameterKeys().contains(CLIENT_NO_CONTEXT_TAKEOVER), config.getParameterKeys().contains(SERVER_MAX_WINDOW_BITS), null);
+		}
+
+		deflater = new Deflater(settings.getLevel(), true);
+		inflater = new Inflater(true);
+
+		super.setConfig(settings);
+	}
+
+	@Override
+	public boolean isRsv1User() {
+		return true;
+	}
+
+	@Override
+	public void incomingFrame(Frame frame) {
+		if (OpCode.isControlFrame(frame.getOpCode())) {
+			nextIncomingFrame(frame);
+
+			return;
+		}
+
+		if (frame.getOpCode() != OpCode.CONTINUATION) {
+			inflating = frame.isRsv1();
+			inflatedLength = 0;
+		}
+
+		if (!inflating) {
+			nextIncomingFrame(frame);
+
+			return;
+		}
+
+		Recorder recorder = settings.getRecorder();
+		long startTime = recorder == null ? 0 : recorder.currentTime();
+
+		int outputLength = 0;
+
+		try {
+			if (frame.hasPayload()) {
+				ByteBuffer payload = frame.getPayload();
+
+				if (payload.hasArray()) {
+					outputLength = inflate(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), outputLength);
+				} else {
+					if (inflateInput.length < payload.remaining()) {
+						inflateInput = new byte[payload.remaining()];
+					}
+
+					int length = payload.remaining();
+
+					payload.duplicate().get(inflateInput, 0, length);
+
+					outputLength = inflate(inflateInput, 0, length, outputLength);
+				}
+			}
+
+			if (frame.isFin()) {
+				outputLength = inflate(EMPTY_BLOCK, 0, EMPTY_BLOCK.length, outputLength);
+
+				if (settings.isClientNoContextTakeover() || inflater.finished()) {
+					inflater.reset();
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new BadPayloadException("Unable to inflate frame", e);
+		}
+
+		if (recorder != null) {
+			recorder.updateDecompressed(recorder.currentTime() - startTime);
+		}
+
+		DataFrame inflated = new DataFrame(frame);
+		inflated.setRsv1(false);
+		inflated.setPayload(ByteBuffer.wrap(Arrays.copyOf(inflateOutput, outputLength)));
+
+		nextIncomingFrame(inflated);
+	}
+
+	@Override
+	public synchronized void outgoingFrame(Frame frame, WriteCallback callback) {
+		// only whole messages are compressed, so fragmented ones don't need to be tracked across frames
+		if (OpCode.isControlFrame(frame.getOpCode()) || frame.getOpCode() == OpCode.CONTINUATION || !frame.isFin()) {
+			nextOutgoingFrame(frame, callback);
+
+			return;
+		}
+
+		Recorder recorder = settings.getRecorder();
+
+		int length = frame.getPayloadLength();
+
+		if (length < settings.getMinMessageSize()) {
+			if (recorder != null) {
+				recorder.markUncompressed();
+			}
+
+			nextOutgoingFrame(frame, callback);
+
+			return;
+		}
+
+		long startTime = recorder == null ? 0 : recorder.currentTime();
+
+		if (length > 0) {
+			ByteBuffer payload = frame.getPayload();
+
+			if (payload.hasArray()) {
+				deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+			} else {
+				if (deflateInput.length < length) {
+					deflateInput = new byte[length];
+				}
+
+				payload.duplicate().get(deflateInput, 0, length);
+
+				deflater.setInput(deflateInput, 0, length);
+			}
+		}
+
+		int outputLength = 0;
+
+		// a sync flush fills the whole buffer when there's more output to come
+		do {
+			if (outputLength == deflateOutput.length) {
+				deflateOutput = Arrays.copyOf(deflateOutput, deflateOutput.length * 2);
+			}
+
+			outputLength += deflater.deflate(deflateOutput, outputLength, deflateOutput.length - outputLength, Deflater.SYNC_FLUSH);
+		} while (outputLength == deflateOutput.length);
+
+		if (endsWithEmptyBlock(deflateOutput, outputLength)) {
+			outputLength -= EMPTY_BLOCK.length;
+		}
+
+		if (settings.isServerNoContextTakeover()) {
+			deflater.reset();
+		}
+
+		if (recorder != null) {
+			recorder.updateCompressed(length, outputLength, recorder.currentTime() - startTime);
+		}
+
+		DataFrame compressed = new DataFrame(frame);
+		compressed.setRsv1(true);
+		compressed.setPayload(ByteBuffer.wrap(Arrays.copyOf(deflateOutput, outputLength)));
+
+		nextOutgoingFrame(compressed, callback);
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+
+		synchronized (this) {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Inflates the input into the output buffer, which grows as needed.
+	 *
+	 * @param input
+	 * @param offset
+	 * @param length
+	 * @param outputLength the length of the output so far
+	 * @return the length of the output
+	 * @throws DataFormatException
+	 */
+	private int inflate(byte[] input, int offset, int length, int outputLength) throws DataFormatException {
+		inflater.setInput(input, offset, length);
+
+		while (true) {
+			if (outputLength == inflateOutput.length) {
+				inflateOutput = Arrays.copyOf(inflateOutput, inflateOutput.length * 2);
+			}
+
+			int inflated = inflater.inflate(inflateOutput, outputLength, inflateOutput.length - outputLength);
+
+			if (inflated == 0) {
+				return outputLength;
+			}
+
+			outputLength += inflated;
+			inflatedLength += inflated;
+
+			WebSocketPolicy policy = getPolicy();
+
+			if (policy != null && inflatedLength > Math.max(policy.getMaxBinaryMessageSize(), policy.getMaxTextMessageSize())) {
+				throw new MessageTooLargeException("Inflated message exceeds " + Math.max(policy.getMaxBinaryMessageSize(), policy.getMaxTextMessageSize()) + " bytes");
+			}
+		}
+	}
+
+	private static boolean endsWithEmptyBlock(byte[] output, int length) {
+		if (length < EMPTY_BLOCK.length) {
+			return false;
+		}
+
+		for (int i = 0; i < EMPTY_BLOCK.length; i++) {
+			if (output[length - EMPTY_BLOCK.length + i] != EMPTY_BLOCK[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * The negotiated parameters of a session along with the settings and metrics of its message format. It's the
+	 * extension response that goes back to the client, so it only carries the parameters of RFC 7692.
+	 *
+	 * @author ebahtijaragic
+	 */
+	public static class Settings extends ExtensionConfig {
+		private final int level;
+		private final int minMessageSize;
+		private final boolean serverNoContextTakeover;
+		private final boolean clientNoContextTakeover;
+		private final Recorder recorder;
+
+		public Settings(int level, int minMessageSize, boolean serverNoContextTakeover, boolean clientNoContextTakeover, boolean serverMaxWindowBits,
+				Recorder recorder) {
+			super(NAME);
+
+			this.level = level;
+			this.minMessageSize = minMessageSize;
+			this.serverNoContextTakeover = serverNoContextTakeover;
+			this.clientNoContextTakeover = clientNoContextTakeover;
+			this.recorder = recorder;
+
+			if (serverNoContextTakeover) {
+				setParameter(SERVER_NO_CONTEXT_TAKEOVER, null);
+			}
+
+			if (clientNoContextTakeover) {
+				setParameter(CLIENT_NO_CONTEXT_TAKEOVER, null);
+			}
+
+			if (serverMaxWindowBits) {
+				setParameter(SERVER_MAX_WINDOW_BITS, 15);
+			}
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public int getMinMessageSize() {
+			return minMessageSize;
+		}
+
+		public boolean isServerNoContextTakeover() {
+			return serverNoContextTakeover;
+		}
+
+		public boolean isClientNoContextTakeover() {
+			return clientNoContextTakeover;
+		}
+
+		public Recorder getRecorder() {
+			return recorder;
+		}
+	}
+}
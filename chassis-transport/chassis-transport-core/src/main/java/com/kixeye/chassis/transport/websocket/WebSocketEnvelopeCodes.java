@@ -0,0 +1,277 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.EnvelopeCodes;
+import com.kixeye.chassis.transport.dto.ServiceError;
+
+/**
+ * An immutable table of compact integer codes that stand in for the action and type ID of an envelope.
+ *
+ * Actions and type IDs are sorted before they're numbered, so every server with the same actions and types hands out
+ * the same codes. The code of an entry is its position plus one, which leaves zero unused. Decoding a code returns the
+ * string instance of this table, so envelopes with codes don't allocate their action and type ID.
+ *
+ * Adding an action or type shifts the codes that follow it, so the version of the table is a fingerprint of its
+ * contents. Envelopes with codes carry the version, where sub-envelopes share the one of their batch, and codes with a
+ * missing or different version are rejected rather than looked up in the wrong table.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketEnvelopeCodes {
+	public static final String INVALID_ENVELOPE_CODE_ERROR_CODE = "INVALID_ENVELOPE_CODE";
+
+	private final int registryVersion;
+	private final int version;
+
+	private final String[] actions;
+	private final String[] typeIds;
+
+	private final Map<String, Integer> actionCodes;
+	private final Map<String, Integer> typeCodes;
+
+	/**
+	 * Builds a table of codes.
+	 *
+	 * @param actions
+	 * @param typeIds
+	 * @param registryVersion the version of the message registry the type IDs were taken from
+	 */
+	public WebSocketEnvelopeCodes(Collection<String> actions, Collection<String> typeIds, int registryVersion) {
+		this.registryVersion = registryVersion;
+
+		this.actions = sort(actions);
+		this.typeIds = sort(typeIds);
+
+		this.version = fingerprint(this.actions, this.typeIds);
+
+		this.actionCodes = index(this.actions);
+		this.typeCodes = index(this.typeIds);
+	}
+
+	/**
+	 * Gets the version of the message registry this table was built from.
+	 *
+	 * @return
+	 */
+	public int getRegistryVersion() {
+		return registryVersion;
+	}
+
+	/**
+	 * Gets the version of this table, which is the same for tables with the same actions and type IDs.
+	 *
+	 * @return
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the code of an action.
+	 *
+	 * @param action
+	 * @return the code or null if the action has none
+	 */
+	public Integer getActionCode(String action) {
+		return action == null ? null : actionCodes.get(action);
+	}
+
+	/**
+	 * Gets the action of a code.
+	 *
+	 * @param code
+	 * @return the action or null if the code is unknown
+	 */
+	public String getAction(int code) {
+		return code > 0 && code <= actions.length ? actions[code - 1] : null;
+	}
+
+	/**
+	 * Gets the code of a type ID.
+	 *
+	 * @param typeId
+	 * @return the code or null if the type ID has none
+	 */
+	public Integer getTypeCode(String typeId) {
+		return typeId == null ? null : typeCodes.get(typeId);
+	}
+
+	/**
+	 * Gets the type ID of a code.
+	 *
+	 * @param code
+	 * @return the type ID or null if the code is unknown
+	 */
+	public String getTypeId(int code) {
+		return code > 0 && code <= typeIds.length ? typeIds[code - 1] : null;
+	}
+
+	/**
+	 * Replaces the action and type ID of an envelope and its sub-envelopes with their codes, where they have one, and
+	 * sets the version of this table on the envelope if any codes were used.
+	 *
+	 * @param envelope
+	 */
+	public void compact(Envelope envelope) {
+		if (compactCodes(envelope)) {
+			envelope.codesVersion = version;
+		}
+	}
+
+	/**
+	 * Replaces the codes of an envelope with the action and type ID they stand for. Sub-envelopes are expanded when
+	 * they're dispatched.
+	 *
+	 * @param envelope
+	 * @throws WebSocketServiceException if a code is unknown or the envelope has codes of another version
+	 */
+	public void expand(Envelope envelope) throws WebSocketServiceException {
+		if (envelope.actionCode == null && envelope.typeCode == null) {
+			return;
+		}
+
+		if (envelope.codesVersion == null || envelope.codesVersion != version) {
+			throw new WebSocketServiceException(new ServiceError(INVALID_ENVELOPE_CODE_ERROR_CODE, "Envelope codes version [" + envelope.codesVersion
+					+ "] doesn't match [" + version + "]."), envelope.action, envelope.transactionId);
+		}
+
+		if (envelope.actionCode != null) {
+			String action = getAction(envelope.actionCode);
+
+			if (action == null) {
+				throw new WebSocketServiceException(new ServiceError(INVALID_ENVELOPE_CODE_ERROR_CODE, "Unknown action code: " + envelope.actionCode),
+						envelope.action, envelope.transactionId);
+			}
+
+			envelope.action = action;
+			envelope.actionCode = null;
+		}
+
+		if (envelope.typeCode != null) {
+			String typeId = getTypeId(envelope.typeCode);
+
+			if (typeId == null) {
+				throw new WebSocketServiceException(new ServiceError(INVALID_ENVELOPE_CODE_ERROR_CODE, "Unknown type code: " + envelope.typeCode),
+						envelope.action, envelope.transactionId);
+			}
+
+			envelope.typeId = typeId;
+			envelope.typeCode = null;
+		}
+	}
+
+	/**
+	 * Creates the message that publishes this table to clients.
+	 *
+	 * @return
+	 */
+	public EnvelopeCodes toMessage() {
+		return new EnvelopeCodes(version, Collections.unmodifiableList(Arrays.asList(actions)), Collections.unmodifiableList(Arrays.asList(typeIds)));
+	}
+
+	/**
+	 * Replaces the action and type ID of an envelope and its sub-envelopes with their codes.
+	 *
+	 * @param envelope
+	 * @return true if any codes were used
+	 */
+	private boolean compactCodes(Envelope envelope) {
+		boolean compacted = false;
+
+		Integer actionCode = getActionCode(envelope.action);
+
+		if (actionCode != null) {
+			envelope.actionCode = actionCode;
+			envelope.action = null;
+			compacted = true;
+		}
+
+		Integer typeCode = getTypeCode(envelope.typeId);
+
+		if (typeCode != null) {
+			envelope.typeCode = typeCode;
+			envelope.typeId = null;
+			compacted = true;
+		}
+
+		if (envelope.envelopes != null) {
+			for (Envelope subEnvelope : envelope.envelopes) {
+				if (subEnvelope != null && compactCodes(subEnvelope)) {
+					compacted = true;
+				}
+			}
+		}
+
+		return compacted;
+	}
+
+	private static int fingerprint(String[] actions, String[] typeIds) {
+		CRC32 crc = new CRC32();
+
+		for (String action : actions) {
+			crc.update(action.getBytes(Charsets.UTF_8));
+			crc.update('\n');
+		}
+
+		// keeps an action from standing in for a type ID
+		crc.update(0);
+
+		for (String typeId : typeIds) {
+			crc.update(typeId.getBytes(Charsets.UTF_8));
+			crc.update('\n');
+		}
+
+		// 28 bits fit into a four byte varint
+		return (int)(crc.getValue() & 0xFFFFFFF);
+	}
+
+	private static String[] sort(Collection<String> names) {
+		List<String> sorted = new ArrayList<>(names);
+		sorted.remove(WebSocketMessageMappingRegistry.WILDCARD_ACTION);
+
+		Collections.sort(sorted);
+
+		return sorted.toArray(new String[sorted.size()]);
+	}
+
+	private static Map<String, Integer> index(String[] names) {
+		Map<String, Integer> codes = new HashMap<>();
+
+		for (int i = 0; i < names.length; i++) {
+			codes.put(names[i], i + 1);
+		}
+
+		return codes;
+	}
+}
@@ -0,0 +1,344 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.Header;
+import com.kixeye.chassis.transport.serde.JacksonMessageSerDe;
+import com.kixeye.chassis.transport.serde.MessageSerDe;
+import com.kixeye.chassis.transport.serde.ScratchOutputStream;
+import com.kixeye.chassis.transport.serde.converter.ProtobufMessageSerDe;
+
+/**
+ * Encodes messages into websocket frames: the payload and its envelope are serialized and then encrypted if PSK
+ * encryption is enabled. Inbound envelopes are decoded here as well.
+ *
+ * A message is serialized in a single pass into a scratch buffer of the encoding thread, together with its envelope,
+ * so the only array that is allocated is the frame itself. Protobuf writes the payload in place, ahead of the other
+ * envelope fields, and the Jackson formats stream the envelope fields around the payload. Other formats serialize the
+ * payload and then the envelope that holds it. Inbound protobuf payloads are slices of the frame.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketFrameEncoder {
+	private static final int INITIAL_SCRATCH_CAPACITY = 4096;
+	private static final int MAX_RETAINED_SCRATCH_CAPACITY = 1024 * 1024;
+
+	private static final ThreadLocal<ScratchOutputStream> frameScratch = new ThreadLocal<ScratchOutputStream>() {
+		protected ScratchOutputStream initialValue() {
+			return new ScratchOutputStream(INITIAL_SCRATCH_CAPACITY);
+		}
+	};
+
+	private static final ThreadLocal<ScratchOutputStream> payloadScratch = new ThreadLocal<ScratchOutputStream>() {
+		protected ScratchOutputStream initialValue() {
+			return new ScratchOutputStream(INITIAL_SCRATCH_CAPACITY);
+		}
+	};
+
+	@Autowired
+	private WebSocketMessageRegistry messageRegistry;
+
+	@Autowired
+	private WebSocketPskFrameProcessor pskFrameProcessor;
+
+	/**
+	 * Encodes a message into a frame.
+	 *
+	 * @param serDe
+	 * @param action
+	 * @param transactionId
+	 * @param obj
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encode(MessageSerDe serDe, String action, String transactionId, Object obj) throws IOException, GeneralSecurityException {
+		return encode(serDe, action, transactionId, obj, null, null);
+	}
+
+	/**
+	 * Encodes a message with headers into a frame.
+	 *
+	 * @param serDe
+	 * @param action
+	 * @param transactionId
+	 * @param obj
+	 * @param headers
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encode(MessageSerDe serDe, String action, String transactionId, Object obj, List<Header> headers) throws IOException, GeneralSecurityException {
+		return encode(serDe, action, transactionId, obj, headers, null);
+	}
+
+	/**
+	 * Encodes a message with headers into a frame, with the compact codes of a session that negotiated them.
+	 *
+	 * @param serDe
+	 * @param action
+	 * @param transactionId
+	 * @param obj
+	 * @param headers
+	 * @param codes the codes or null to send the action and type ID as they are
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encode(MessageSerDe serDe, String action, String transactionId, Object obj, List<Header> headers, WebSocketEnvelopeCodes codes) throws IOException, GeneralSecurityException {
+		Envelope envelope = new Envelope(action, getTypeId(obj), transactionId, headers, null);
+
+		if (codes != null) {
+			codes.compact(envelope);
+		}
+
+		ScratchOutputStream out = frameScratch.get();
+		out.reset();
+
+		try {
+			int start = 0;
+
+			if (serDe instanceof ProtobufMessageSerDe && ProtobufEnvelopes.isSupported()) {
+				// the payload goes first, right behind room for the fields that wrap it
+				out.skip(ProtobufEnvelopes.MAX_PAYLOAD_PREFIX);
+
+				serDe.serialize(obj, out);
+
+				start = ProtobufEnvelopes.writePayloadPrefix(out.getBuffer(), ProtobufEnvelopes.MAX_PAYLOAD_PREFIX, out.size() - ProtobufEnvelopes.MAX_PAYLOAD_PREFIX);
+				ProtobufEnvelopes.writePayloadSuffix(out);
+
+				serDe.serialize(envelope, out);
+			} else if (serDe instanceof JacksonMessageSerDe) {
+				ScratchOutputStream payload = payloadScratch.get();
+				payload.reset();
+
+				try {
+					serDe.serialize(obj, payload);
+
+					writeJacksonEnvelope((JacksonMessageSerDe)serDe, envelope, payload, out);
+				} finally {
+					release(payloadScratch, payload);
+				}
+			} else {
+				envelope.payload = ByteBuffer.wrap(serDe.serialize(obj));
+
+				serDe.serialize(envelope, out);
+			}
+
+			return toFrame(out, start);
+		} finally {
+			release(frameScratch, out);
+		}
+	}
+
+	/**
+	 * Creates an envelope with a serialized message, e.g. to add it to a batch.
+	 *
+	 * @param serDe
+	 * @param action
+	 * @param transactionId
+	 * @param obj
+	 * @return
+	 * @throws IOException
+	 */
+	public Envelope newEnvelope(MessageSerDe serDe, String action, String transactionId, Object obj) throws IOException {
+		String typeId = getTypeId(obj);
+
+		byte[] payload = serDe.serialize(obj);
+
+		return new Envelope(action, typeId, transactionId, ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Encodes a message into a frame.
+	 *
+	 * @param serDe
+	 * @param action
+	 * @param transactionId
+	 * @param typeId
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encode(MessageSerDe serDe, String action, String transactionId, String typeId, ByteBuffer payload) throws IOException, GeneralSecurityException {
+		return encode(serDe, action, transactionId, typeId, payload, null);
+	}
+
+	/**
+	 * Encodes a message with headers into a frame. The type ID and payload may be null for messages that only carry headers.
+	 *
+	 * @param serDe
+	 * @param action
+	 * @param transactionId
+	 * @param typeId
+	 * @param payload
+	 * @param headers
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encode(MessageSerDe serDe, String action, String transactionId, String typeId, ByteBuffer payload, List<Header> headers) throws IOException, GeneralSecurityException {
+		return encode(serDe, new Envelope(action, typeId, transactionId, headers, payload));
+	}
+
+	/**
+	 * Encodes an envelope into a frame.
+	 *
+	 * @param serDe
+	 * @param envelope
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encode(MessageSerDe serDe, Envelope envelope) throws IOException, GeneralSecurityException {
+		return encode(serDe, envelope, null);
+	}
+
+	/**
+	 * Encodes an envelope into a frame, with the compact codes of a session that negotiated them.
+	 *
+	 * @param serDe
+	 * @param envelope
+	 * @param codes the codes or null to send the action and type ID as they are
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer encode(MessageSerDe serDe, Envelope envelope, WebSocketEnvelopeCodes codes) throws IOException, GeneralSecurityException {
+		if (codes != null) {
+			codes.compact(envelope);
+		}
+
+		ScratchOutputStream out = frameScratch.get();
+		out.reset();
+
+		try {
+			serDe.serialize(envelope, out);
+
+			return toFrame(out, 0);
+		} finally {
+			release(frameScratch, out);
+		}
+	}
+
+	/**
+	 * Decodes the envelope of an inbound frame that was already decrypted. The protobuf payload is a slice of the
+	 * frame, so the frame must not be reused while the envelope is in use.
+	 *
+	 * @param serDe
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	public Envelope decode(MessageSerDe serDe, byte[] data, int offset, int length) throws IOException {
+		if (serDe instanceof ProtobufMessageSerDe && ProtobufEnvelopes.isSupported()) {
+			return ProtobufEnvelopes.read(data, offset, length);
+		}
+
+		return serDe.deserialize(data, offset, length, Envelope.class);
+	}
+
+	/**
+	 * Writes the fields of an envelope in the order they're declared in, leaving out the codes that are null like Jackson does.
+	 */
+	private void writeJacksonEnvelope(JacksonMessageSerDe serDe, Envelope envelope, ScratchOutputStream payload, ScratchOutputStream out) throws IOException {
+		JsonGenerator generator = serDe.getObjectMapper().getFactory().createGenerator(out);
+
+		generator.writeStartObject();
+
+		writeStringField(generator, "action", envelope.action);
+		writeStringField(generator, "transactionId", envelope.transactionId);
+		writeStringField(generator, "typeId", envelope.typeId);
+
+		generator.writeFieldName("payload");
+		generator.writeBinary(payload.getBuffer(), 0, payload.size());
+
+		generator.writeFieldName("headers");
+		generator.writeObject(envelope.headers);
+
+		if (envelope.actionCode != null) {
+			generator.writeNumberField("actionCode", envelope.actionCode);
+		}
+
+		if (envelope.typeCode != null) {
+			generator.writeNumberField("typeCode", envelope.typeCode);
+		}
+
+		if (envelope.codesVersion != null) {
+			generator.writeNumberField("codesVersion", envelope.codesVersion);
+		}
+
+		generator.writeEndObject();
+		generator.close();
+	}
+
+	/**
+	 * Writes a string field, which may be null. Not every generator writes a null string as null.
+	 */
+	private static void writeStringField(JsonGenerator generator, String name, String value) throws IOException {
+		if (value == null) {
+			generator.writeNullField(name);
+		} else {
+			generator.writeStringField(name, value);
+		}
+	}
+
+	private ByteBuffer toFrame(ScratchOutputStream out, int start) throws GeneralSecurityException {
+		// encrypting already copies the frame out of the scratch buffer
+		if (pskFrameProcessor.isEnabled()) {
+			return ByteBuffer.wrap(pskFrameProcessor.processOutgoing(out.getBuffer(), start, out.size() - start));
+		}
+
+		return ByteBuffer.wrap(Arrays.copyOfRange(out.getBuffer(), start, out.size()));
+	}
+
+	private String getTypeId(Object obj) {
+		String typeId = messageRegistry.getTypeIdByClass(obj.getClass());
+
+		if (typeId == null) {
+			throw new RuntimeException("Unable to determine type ID for class: " +  obj.getClass());
+		}
+
+		return typeId;
+	}
+
+	private static void release(ThreadLocal<ScratchOutputStream> scratch, ScratchOutputStream out) {
+		// don't hold on to the buffers of unusually large messages
+		if (out.getCapacity() > MAX_RETAINED_SCRATCH_CAPACITY) {
+			scratch.remove();
+		}
+	}
+}
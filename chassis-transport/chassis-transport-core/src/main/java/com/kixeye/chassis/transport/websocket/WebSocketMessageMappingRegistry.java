@@ -58,6 +58,12 @@ public class WebSocketMessageMappingRegistry {
     @Autowired
     private ConfigurableListableBeanFactory beanFactory;
 
+	@Autowired
+	private WebSocketMessageRegistry messageRegistry;
+	
+	private volatile WebSocketActionDispatchTable dispatchTable;
+	private volatile WebSocketEnvelopeCodes envelopeCodes;
+
 	@PostConstruct
 	public void registerWebSocketActions() throws BeansException {
 		String[] controllerBeanNames = beanFactory.getBeanNamesForAnnotation(WebSocketController.class);
@@ -103,6 +109,8 @@ public class WebSocketMessageMappingRegistry {
 		} else {
 			logger.warn("No WebSocketController beans defined.");
 		}
+		
+		buildDispatchTable();
 	}
 	
 	/**
@@ -123,4 +131,65 @@ public class WebSocketMessageMappingRegistry {
 	public Set<WebSocketAction> getActionMethods(String action) {
 		return Sets.union((Set<WebSocketAction>)actions.get(action), (Set<WebSocketAction>)actions.get(WILDCARD_ACTION));
 	}
+	
+	/**
+	 * Gets the dispatch entry for the action and type ID.
+	 * 
+	 * @param action
+	 * @param typeId
+	 * @return
+	 */
+	public WebSocketActionDispatchTable.Entry getDispatch(String action, String typeId) {
+		WebSocketActionDispatchTable table = dispatchTable;
+		
+		if (table == null) {
+			table = buildDispatchTable();
+		}
+		
+		// types registered later are resolved here, so they don't invalidate the table
+		return table.lookup(action, typeId == null ? null : messageRegistry.getClassByTypeId(typeId));
+	}
+	
+	/**
+	 * Gets the compact codes of the actions and the registered type IDs.
+	 * 
+	 * @return
+	 */
+	public WebSocketEnvelopeCodes getEnvelopeCodes() {
+		WebSocketEnvelopeCodes codes = envelopeCodes;
+		
+		if (codes == null || codes.getRegistryVersion() != messageRegistry.getVersion()) {
+			codes = rebuildEnvelopeCodes();
+		}
+		
+		return codes;
+	}
+	
+	/**
+	 * Rebuilds the envelope codes if they are missing or out of date.
+	 * 
+	 * @return
+	 */
+	private synchronized WebSocketEnvelopeCodes rebuildEnvelopeCodes() {
+		int version = messageRegistry.getVersion();
+		
+		if (envelopeCodes == null || envelopeCodes.getRegistryVersion() != version) {
+			envelopeCodes = new WebSocketEnvelopeCodes(actions.keySet(), messageRegistry.getTypeIds(), version);
+		}
+		
+		return envelopeCodes;
+	}
+	
+	/**
+	 * Builds the dispatch table from the registered actions.
+	 * 
+	 * @return
+	 */
+	private synchronized WebSocketActionDispatchTable buildDispatchTable() {
+		dispatchTable = new WebSocketActionDispatchTable(actions.asMap());
+		
+		logger.debug("Built dispatch table for [{}] actions.", actions.keySet().size());
+		
+		return dispatchTable;
+	}
 }
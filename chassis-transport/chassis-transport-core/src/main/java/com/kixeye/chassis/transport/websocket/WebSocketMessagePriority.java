@@ -0,0 +1,38 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * The priority of an outbound websocket message.
+ *
+ * @author ebahtijaragic
+ */
+public enum WebSocketMessagePriority {
+	/**
+	 * A message that may be dropped when the client can't keep up, for example a periodic state update.
+	 */
+	LOW,
+	
+	/**
+	 * A message that is never dropped, such as the response to an action.
+	 */
+	NORMAL;
+}
@@ -0,0 +1,202 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+
+/**
+ * Holds the outbound limits of websocket sessions and tracks the sessions whose clients can't keep up.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketOutboundMonitor {
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketOutboundMonitor.class);
+
+	private final DynamicLongProperty maxOutboundBytes = DynamicPropertyFactory.getInstance().getLongProperty("websocket.session.maxOutboundBytes", -1);
+	private final DynamicIntProperty maxOutboundMessages = DynamicPropertyFactory.getInstance().getIntProperty("websocket.session.maxOutboundMessages", -1);
+	private final DynamicStringProperty slowConsumerPolicy = DynamicPropertyFactory.getInstance().getStringProperty("websocket.session.slowConsumerPolicy",
+			WebSocketSlowConsumerPolicy.DROP.name());
+	private final DynamicBooleanProperty sessionMetricsEnabled = DynamicPropertyFactory.getInstance().getBooleanProperty("websocket.metrics.session.enabled", true);
+
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	private final Set<WebSocketSession> sessions = Collections.newSetFromMap(new ConcurrentHashMap<WebSocketSession, Boolean>());
+
+	private Meter droppedMessages;
+	private Meter disconnectedSessions;
+
+	@PostConstruct
+	public void initialize() {
+		if (metricRegistry != null) {
+			droppedMessages = metricRegistry.meter(name(WebSocketOutboundMonitor.class, "dropped-messages"));
+			disconnectedSessions = metricRegistry.meter(name(WebSocketOutboundMonitor.class, "disconnected-sessions"));
+
+			metricRegistry.register(name(WebSocketOutboundMonitor.class, "max-lag-millis"), new Gauge<Long>() {
+				public Long getValue() {
+					long maxLag = 0;
+
+					for (WebSocketSession session : sessions) {
+						maxLag = Math.max(maxLag, session.getOutboundLagMillis());
+					}
+
+					return maxLag;
+				}
+			});
+			metricRegistry.register(name(WebSocketOutboundMonitor.class, "pending-bytes"), new Gauge<Long>() {
+				public Long getValue() {
+					long bytes = 0;
+
+					for (WebSocketSession session : sessions) {
+						bytes += session.getOutboundBytes();
+					}
+
+					return bytes;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Starts tracking a session and registers its outbound gauges.
+	 *
+	 * @param session
+	 */
+	public void register(final WebSocketSession session) {
+		sessions.add(session);
+
+		if (metricRegistry != null && sessionMetricsEnabled.get()) {
+			metricRegistry.register(sessionMetricName(session, "outbound-lag-millis"), new Gauge<Long>() {
+				public Long getValue() {
+					return session.getOutboundLagMillis();
+				}
+			});
+			metricRegistry.register(sessionMetricName(session, "outbound-bytes"), new Gauge<Long>() {
+				public Long getValue() {
+					return session.getOutboundBytes();
+				}
+			});
+			metricRegistry.register(sessionMetricName(session, "outbound-messages"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return session.getOutboundMessages();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops tracking a session and removes its outbound gauges.
+	 *
+	 * @param session
+	 */
+	public void unregister(WebSocketSession session) {
+		if (sessions.remove(session) && metricRegistry != null) {
+			metricRegistry.remove(sessionMetricName(session, "outbound-lag-millis"));
+			metricRegistry.remove(sessionMetricName(session, "outbound-bytes"));
+			metricRegistry.remove(sessionMetricName(session, "outbound-messages"));
+		}
+	}
+
+	/**
+	 * Gets the maximum amount of bytes a session may have waiting to be written.
+	 *
+	 * @return the limit, or 0 or less for no limit
+	 */
+	public long getMaxOutboundBytes() {
+		return maxOutboundBytes.get();
+	}
+
+	/**
+	 * Gets the maximum amount of messages a session may have waiting to be written.
+	 *
+	 * @return the limit, or 0 or less for no limit
+	 */
+	public int getMaxOutboundMessages() {
+		return maxOutboundMessages.get();
+	}
+
+	/**
+	 * Gets what a session does once its client falls behind.
+	 *
+	 * @return
+	 */
+	public WebSocketSlowConsumerPolicy getSlowConsumerPolicy() {
+		String policy = slowConsumerPolicy.get();
+
+		try {
+			return WebSocketSlowConsumerPolicy.valueOf(policy.trim().toUpperCase());
+		} catch (RuntimeException e) {
+			logger.warn("Ignoring invalid websocket slow consumer policy [{}].", policy);
+
+			return WebSocketSlowConsumerPolicy.DROP;
+		}
+	}
+
+	/**
+	 * Marks a message that was dropped because the client fell behind.
+	 */
+	public void markMessageDropped() {
+		if (droppedMessages != null) {
+			droppedMessages.mark();
+		}
+	}
+
+	/**
+	 * Marks a session that was disconnected because the client fell behind.
+	 */
+	public void markSessionDisconnected() {
+		if (disconnectedSessions != null) {
+			disconnectedSessions.mark();
+		}
+	}
+
+	/**
+	 * Gets the name of a session metric.
+	 *
+	 * @param session
+	 * @param metric
+	 * @return
+	 */
+	private static String sessionMetricName(WebSocketSession session, String metric) {
+		return name(WebSocketSession.class, "session-" + session.getId(), metric);
+	}
+}
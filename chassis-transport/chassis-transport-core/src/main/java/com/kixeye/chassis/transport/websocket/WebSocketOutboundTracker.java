@@ -0,0 +1,163 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the frames of a session that were handed to Jetty but not yet written to the socket.
+ *
+ * Jetty completes the writes of a session in the order they were sent, so the tracker keeps the size and send time of
+ * every pending frame in a ring and retires the oldest one on every completed write.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketOutboundTracker implements WriteCallback {
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketOutboundTracker.class);
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private int[] sizes = new int[INITIAL_CAPACITY];
+	private long[] sendTimes = new long[INITIAL_CAPACITY];
+	private int head = 0;
+	private int count = 0;
+	
+	private long bytes = 0;
+	
+	private volatile boolean failureLogged = false;
+	
+	/**
+	 * Adds a frame if it doesn't exceed the limits.
+	 * 
+	 * @param size the size of the frame
+	 * @param maxBytes the maximum amount of pending bytes, or 0 or less for no limit
+	 * @param maxMessages the maximum amount of pending frames, or 0 or less for no limit
+	 * @return false if the frame would exceed the limits
+	 */
+	public synchronized boolean offer(int size, long maxBytes, int maxMessages) {
+		if ((maxMessages > 0 && count >= maxMessages) || (maxBytes > 0 && count > 0 && bytes + size > maxBytes)) {
+			return false;
+		}
+		
+		if (count == sizes.length) {
+			grow();
+		}
+		
+		int index = (head + count) & (sizes.length - 1);
+		
+		sizes[index] = size;
+		sendTimes[index] = System.nanoTime();
+		
+		count++;
+		bytes += size;
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the amount of pending bytes.
+	 * 
+	 * @return
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Gets the amount of pending frames.
+	 * 
+	 * @return
+	 */
+	public synchronized int getMessages() {
+		return count;
+	}
+	
+	/**
+	 * Gets how long the oldest pending frame has been waiting to be written, in milliseconds.
+	 * 
+	 * @return
+	 */
+	public synchronized long getLagMillis() {
+		if (count == 0) {
+			return 0;
+		}
+		
+		return (System.nanoTime() - sendTimes[head]) / 1000000L;
+	}
+	
+	/**
+	 * @see org.eclipse.jetty.websocket.api.WriteCallback#writeSuccess()
+	 */
+	public void writeSuccess() {
+		retire();
+	}
+	
+	/**
+	 * @see org.eclipse.jetty.websocket.api.WriteCallback#writeFailed(java.lang.Throwable)
+	 */
+	public void writeFailed(Throwable cause) {
+		retire();
+		
+		// the remaining frames of a dead connection fail the same way
+		if (!failureLogged) {
+			failureLogged = true;
+			
+			logger.warn("Unable to send message to channel: {}", String.valueOf(cause));
+		} else {
+			logger.debug("Unable to send message to channel", cause);
+		}
+	}
+	
+	/**
+	 * Retires the oldest pending frame.
+	 */
+	synchronized void retire() {
+		if (count == 0) {
+			return;
+		}
+		
+		bytes -= sizes[head];
+		
+		head = (head + 1) & (sizes.length - 1);
+		count--;
+	}
+	
+	/**
+	 * Doubles the capacity of the ring.
+	 */
+	private void grow() {
+		int[] newSizes = new int[sizes.length * 2];
+		long[] newSendTimes = new long[sendTimes.length * 2];
+		
+		for (int i = 0; i < count; i++) {
+			int index = (head + i) & (sizes.length - 1);
+			
+			newSizes[i] = sizes[index];
+			newSendTimes[i] = sendTimes[index];
+		}
+		
+		sizes = newSizes;
+		sendTimes = newSendTimes;
+		head = 0;
+	}
+}
@@ -0,0 +1,43 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * What a websocket session does once a client has too many actions in flight.
+ *
+ * @author ebahtijaragic
+ */
+public enum WebSocketOverloadPolicy {
+	/**
+	 * Rejects the envelope with a SERVICE_BUSY error.
+	 */
+	REJECT,
+	
+	/**
+	 * Stops reading from the socket until half of the in-flight actions have completed.
+	 */
+	PAUSE,
+	
+	/**
+	 * Closes the session.
+	 */
+	CLOSE;
+}
@@ -36,6 +36,9 @@ import com.kixeye.chassis.transport.crypto.SymmetricKeyCipher;
 /**
  * Processes a websocket frame with PSK encryption if encryption is enabled.
  * 
+ * With a GCM transformation, e.g. "AES/GCM/NoPadding", every frame starts with its 12 byte nonce and ends with a 16
+ * byte authentication tag, and frames that were tampered with fail to decrypt.
+ * 
  * @author ebahtijaragic
  */
 @Component
@@ -81,6 +84,15 @@ public class WebSocketPskFrameProcessor {
 		}
 	}
 	
+	/**
+	 * Returns true if frames are encrypted.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return cipher != null;
+	}
+	
 	/**
 	 * Processes an incoming frame.
 	 * 
@@ -32,6 +32,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang.ObjectUtils;
@@ -49,17 +50,34 @@ import com.kixeye.chassis.transport.serde.MessageSerDe;
 public class WebSocketSession {
 	private static final Logger logger = LoggerFactory.getLogger(WebSocketSession.class);
 	
+	private static final AtomicLong idGenerator = new AtomicLong(0);
+	
+	private final long id = idGenerator.incrementAndGet();
+	private final WebSocketOutboundTracker outbound = new WebSocketOutboundTracker();
+	
 	private ActionInvokingWebSocket webSocket;
 	private ConcurrentHashMap<String, String> properties;
 	private Set<Runnable> closeListeners;
 	private AtomicBoolean isClosing = new AtomicBoolean(false);
 	
+	// guarded by the properties
+	private WebSocketSessionRegistry registry;
+	
 	protected WebSocketSession(ActionInvokingWebSocket webSocket) {
 		this.webSocket = webSocket;
 		this.properties = new ConcurrentHashMap<>();
 		this.closeListeners = Collections.newSetFromMap(new ConcurrentHashMap<Runnable, Boolean>());
 	}
 	
+	/**
+	 * Gets the ID of this session, which is unique within this process.
+	 * 
+	 * @return
+	 */
+	public long getId() {
+		return id;
+	}
+	
 	/**
 	 * Adds a close listener.
 	 * 
@@ -106,7 +124,34 @@ public class WebSocketSession {
 	 * @throws GeneralSecurityException 
 	 */
 	public Future<Void> sendMessage(String action, String transactionId, Object message) throws IOException, GeneralSecurityException {
-		return webSocket.sendMessage(action, transactionId, message);
+		return webSocket.sendMessage(action, transactionId, message, WebSocketMessagePriority.NORMAL);
+	}
+	
+	/**
+	 * Sends a message to the connected web-socket. Low priority messages may be dropped if the client falls behind, in
+	 * which case the returned future is cancelled.
+	 * 
+	 * @param action
+	 * @param transactionId
+	 * @param message
+	 * @param priority
+	 * @throws GeneralSecurityException 
+	 */
+	public Future<Void> sendMessage(String action, String transactionId, Object message, WebSocketMessagePriority priority) throws IOException, GeneralSecurityException {
+		return webSocket.sendMessage(action, transactionId, message, priority);
+	}
+	
+	/**
+	 * Sends a message that only needs to reach the client in its latest state. Only the latest message per action and
+	 * conflation key is sent on the next tick of "websocket.conflation.tickMillis", along with the other conflated
+	 * messages of the session in a single frame.
+	 * 
+	 * @param action
+	 * @param conflationKey identifies the entity the message is about
+	 * @param message
+	 */
+	public void sendConflatedMessage(String action, Object conflationKey, Object message) {
+		webSocket.sendConflatedMessage(action, conflationKey, message);
 	}
 	
 	/**
@@ -119,6 +164,17 @@ public class WebSocketSession {
 		return webSocket.sendContent(inputStream);
 	}
 	
+	/**
+	 * Streams the content to the websocket as the fragments of a single message, without reading all of it into memory.
+	 * Blocks until the last fragment was written.
+	 * 
+	 * @param inputStream
+	 * @throws GeneralSecurityException 
+	 */
+	public Future<Void> streamContent(InputStream inputStream) throws IOException, GeneralSecurityException {
+		return webSocket.streamContent(inputStream);
+	}
+	
 	/**
 	 * Sends a message to the connected web-socket.
 	 * 
@@ -128,7 +184,69 @@ public class WebSocketSession {
 	 * @throws GeneralSecurityException 
 	 */
 	public Future<Void> sendMessage(String action, String transactionId, String typeId, ByteBuffer payload) throws IOException, GeneralSecurityException {
-		return webSocket.sendMessage(action, transactionId, typeId, payload);
+		return webSocket.sendMessage(action, transactionId, typeId, payload, WebSocketMessagePriority.NORMAL);
+	}
+	
+	/**
+	 * Sends a message to the connected web-socket. Low priority messages may be dropped if the client falls behind, in
+	 * which case the returned future is cancelled.
+	 * 
+	 * @param action
+	 * @param transactionId
+	 * @param typeId
+	 * @param payload
+	 * @param priority
+	 * @throws GeneralSecurityException 
+	 */
+	public Future<Void> sendMessage(String action, String transactionId, String typeId, ByteBuffer payload, WebSocketMessagePriority priority) throws IOException, GeneralSecurityException {
+		return webSocket.sendMessage(action, transactionId, typeId, payload, priority);
+	}
+	
+	/**
+	 * Gets the amount of bytes that were sent but not yet written to the socket.
+	 * 
+	 * @return
+	 */
+	public long getOutboundBytes() {
+		return outbound.getBytes();
+	}
+	
+	/**
+	 * Gets the amount of messages that were sent but not yet written to the socket.
+	 * 
+	 * @return
+	 */
+	public int getOutboundMessages() {
+		return outbound.getMessages();
+	}
+	
+	/**
+	 * Gets how long the oldest message that was not yet written to the socket has been waiting, in milliseconds.
+	 * 
+	 * @return
+	 */
+	public long getOutboundLagMillis() {
+		return outbound.getLagMillis();
+	}
+	
+	/**
+	 * Sends an encoded frame that may be shared with other sessions, without waiting for it to be written.
+	 * 
+	 * @param frame
+	 * @param priority
+	 * @return false if the frame was dropped or the session was disconnected because the client fell behind
+	 */
+	protected boolean sendFrame(ByteBuffer frame, WebSocketMessagePriority priority) {
+		return webSocket.sendFrame(frame, priority, outbound);
+	}
+	
+	/**
+	 * Gets the tracker of the messages that were not yet written to the socket.
+	 * 
+	 * @return
+	 */
+	protected WebSocketOutboundTracker getOutboundTracker() {
+		return outbound;
 	}
 	
 	/**
@@ -139,7 +257,15 @@ public class WebSocketSession {
 	 * @return
 	 */
 	public Object setProperty(String name, String value) {
-		return properties.put(name, value);
+		synchronized (properties) {
+			String previousValue = properties.put(name, value);
+			
+			if (registry != null && registry.isIndexedProperty(name) && !ObjectUtils.equals(previousValue, value)) {
+				registry.updateIndex(this, name, previousValue, value);
+			}
+			
+			return previousValue;
+		}
 	}
 	
 	/**
@@ -150,7 +276,15 @@ public class WebSocketSession {
 	 * @return
 	 */
 	public Object setPropertyIfAbsent(String name, String value) {
-		return properties.putIfAbsent(name, value);
+		synchronized (properties) {
+			String previousValue = properties.putIfAbsent(name, value);
+			
+			if (previousValue == null && registry != null && registry.isIndexedProperty(name)) {
+				registry.updateIndex(this, name, null, value);
+			}
+			
+			return previousValue;
+		}
 	}
 
 	/**
@@ -159,7 +293,11 @@ public class WebSocketSession {
 	 * @param map
 	 */
 	public void setProperties(Map<String, String> map) {
-		properties.putAll(map);
+		synchronized (properties) {
+			for (Map.Entry<String, String> entry : map.entrySet()) {
+				setProperty(entry.getKey(), entry.getValue());
+			}
+		}
 	}
 	
 	/**
@@ -179,7 +317,58 @@ public class WebSocketSession {
 	 * @return
 	 */
 	public String removeProperty(String name) {
-		return properties.remove(name);
+		synchronized (properties) {
+			String previousValue = properties.remove(name);
+			
+			if (previousValue != null && registry != null && registry.isIndexedProperty(name)) {
+				registry.updateIndex(this, name, previousValue, null);
+			}
+			
+			return previousValue;
+		}
+	}
+	
+	/**
+	 * Sets the registry that indexes the properties of this session, or removes this session from the indexes of the
+	 * current registry if null.
+	 * 
+	 * @param registry
+	 */
+	void setRegistry(WebSocketSessionRegistry registry) {
+		synchronized (properties) {
+			if (this.registry != null) {
+				for (String name : this.registry.getIndexedProperties()) {
+					String value = properties.get(name);
+					
+					if (value != null) {
+						this.registry.updateIndex(this, name, value, null);
+					}
+				}
+			}
+			
+			this.registry = registry;
+			
+			if (registry != null) {
+				for (String name : registry.getIndexedProperties()) {
+					reindexProperty(name);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds the value of a property to the index of the registry.
+	 * 
+	 * @param name
+	 */
+	void reindexProperty(String name) {
+		synchronized (properties) {
+			String value = properties.get(name);
+			
+			if (registry != null && value != null) {
+				registry.updateIndex(this, name, null, value);
+			}
+		}
 	}
 	
 	/**
@@ -249,6 +438,15 @@ public class WebSocketSession {
 		return path.substring(getSerDe().getMessageFormatName().length() + 1, path.length());
 	}
 	
+	/**
+	 * Gets the compact codes this session negotiated for the action and type ID of its envelopes.
+	 * 
+	 * @return the codes or null if the session uses the full action and type ID
+	 */
+	public WebSocketEnvelopeCodes getEnvelopeCodes() {
+		return webSocket.getEnvelopeCodes();
+	}
+	
 	/**
 	 * Gets the message serde.
 	 * 
@@ -0,0 +1,222 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.config.DynamicIntProperty;
+
+/**
+ * Runs the tasks of a single websocket session one at a time and in submission order on top of a shared executor.
+ *
+ * A mailbox never occupies more than one thread of the shared executor and gives up its thread after a batch of tasks
+ * so that busy sessions cannot starve the others.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketSessionMailbox implements Executor {
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketSessionMailbox.class);
+
+	private static final int MAX_TASKS_PER_DRAIN = 64;
+
+	private final Executor executor;
+	private final Executor fallbackExecutor;
+	private final DynamicIntProperty maxQueuedTasks;
+
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+	private boolean scheduled = false;
+
+	private final Runnable drainer = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Creates a mailbox.
+	 *
+	 * @param executor the shared executor that runs the tasks
+	 * @param maxQueuedTasks the maximum amount of queued tasks, or null if the mailbox is unbounded
+	 */
+	public WebSocketSessionMailbox(Executor executor, DynamicIntProperty maxQueuedTasks) {
+		this(executor, null, maxQueuedTasks);
+	}
+
+	/**
+	 * Creates a mailbox.
+	 *
+	 * @param executor the shared executor that runs the tasks
+	 * @param fallbackExecutor the executor that runs the tasks if the shared executor is saturated, or null to reject them
+	 * @param maxQueuedTasks the maximum amount of queued tasks, or null if the mailbox is unbounded
+	 */
+	public WebSocketSessionMailbox(Executor executor, Executor fallbackExecutor, DynamicIntProperty maxQueuedTasks) {
+		this.executor = executor;
+		this.fallbackExecutor = fallbackExecutor;
+		this.maxQueuedTasks = maxQueuedTasks;
+	}
+
+	/**
+	 * Queues a task.
+	 *
+	 * A bounded mailbox rejects the task if it is full. If the shared executor is saturated the tasks move to the
+	 * fallback executor, or the task is rejected if there is none. Tasks never run on the calling thread.
+	 *
+	 * Tasks that other threads queued while the mailbox failed to get a thread are rejected along with the task, since
+	 * nothing is left to run them. Those that are {@link Rejectable} are told so, the others are dropped.
+	 *
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute(Runnable task) {
+		boolean schedule = false;
+
+		synchronized (tasks) {
+			if (maxQueuedTasks != null && tasks.size() >= maxQueuedTasks.get()) {
+				throw new RejectedExecutionException("Session mailbox is full.");
+			}
+
+			tasks.addLast(task);
+
+			if (!scheduled) {
+				scheduled = true;
+				schedule = true;
+			}
+		}
+
+		if (schedule) {
+			try {
+				schedule();
+			} catch (RejectedExecutionException e) {
+				List<Runnable> pending = null;
+
+				synchronized (tasks) {
+					tasks.removeLastOccurrence(task);
+
+					pending = new ArrayList<>(tasks);
+					tasks.clear();
+
+					scheduled = false;
+				}
+
+				for (Runnable pendingTask : pending) {
+					reject(pendingTask, e);
+				}
+
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Gets the amount of queued tasks.
+	 *
+	 * @return
+	 */
+	public int size() {
+		synchronized (tasks) {
+			return tasks.size();
+		}
+	}
+
+	private void reject(Runnable task, RejectedExecutionException e) {
+		if (task instanceof Rejectable) {
+			try {
+				((Rejectable)task).reject(e);
+			} catch (Exception re) {
+				logger.error("Unexpected exception while rejecting session task", re);
+			}
+		} else {
+			logger.warn("Dropped session task [{}] that the executor rejected.", task);
+		}
+	}
+
+	/**
+	 * Hands the drainer to the shared executor, or to the fallback executor if the shared one is saturated.
+	 */
+	private void schedule() {
+		try {
+			executor.execute(drainer);
+		} catch (RejectedExecutionException e) {
+			if (fallbackExecutor == null) {
+				throw e;
+			}
+
+			fallbackExecutor.execute(drainer);
+		}
+	}
+
+	/**
+	 * Runs queued tasks until the mailbox is empty or the batch is exhausted.
+	 */
+	private void drain() {
+		int processed = 0;
+
+		while (true) {
+			Runnable task = null;
+
+			synchronized (tasks) {
+				task = tasks.pollFirst();
+
+				if (task == null) {
+					scheduled = false;
+
+					return;
+				}
+			}
+
+			try {
+				task.run();
+			} catch (Exception e) {
+				logger.error("Unexpected exception while running session task", e);
+			}
+
+			if (++processed >= MAX_TASKS_PER_DRAIN) {
+				try {
+					// give up the thread and continue later
+					schedule();
+
+					return;
+				} catch (RejectedExecutionException e) {
+					// keep going on this worker thread
+					processed = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A task that is told when it was accepted by the mailbox but can't be run after all.
+	 */
+	public interface Rejectable extends Runnable {
+		/**
+		 * Called instead of {@link #run()} when the mailbox fails to get a thread for this task.
+		 *
+		 * @param e
+		 */
+		void reject(RejectedExecutionException e);
+	}
+}
@@ -0,0 +1,293 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Keeps track of all live websocket sessions, with indexes on selected session properties.
+ *
+ * The indexed properties are set with "websocket.session.indexedProperties" as a comma separated list or added with
+ * {@link #addIndexedProperty(String)}. Indexes follow {@link WebSocketSession#setProperty(String, String)} and
+ * {@link WebSocketSession#removeProperty(String)}, and closed sessions and empty values are removed from them.
+ *
+ * Index updates only lock a stripe picked by property and value, so sessions with different values don't contend.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketSessionRegistry {
+	private static final int INDEX_LOCK_STRIPES = 64;
+
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	@Value("${websocket.session.indexedProperties:}")
+	private String indexedProperties;
+
+	private final ConcurrentHashMap<Long, WebSocketSession> sessions = new ConcurrentHashMap<>();
+
+	// property name -> property value -> sessions
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<WebSocketSession>>> indexes = new ConcurrentHashMap<>();
+
+	// guard adding and removing the session sets of property values
+	private final Object[] indexLocks = new Object[INDEX_LOCK_STRIPES];
+
+	{
+		for (int i = 0; i < indexLocks.length; i++) {
+			indexLocks[i] = new Object();
+		}
+	}
+
+	@PostConstruct
+	public void initialize() {
+		for (String property : StringUtils.split(StringUtils.defaultString(indexedProperties), ',')) {
+			if (StringUtils.isNotBlank(property)) {
+				addIndexedProperty(property.trim());
+			}
+		}
+
+		if (metricRegistry != null) {
+			metricRegistry.register(name(WebSocketSessionRegistry.class, "sessions"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return sessions.size();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Starts indexing a property, including the sessions that already have it.
+	 *
+	 * @param property
+	 */
+	public void addIndexedProperty(String property) {
+		synchronized (this) {
+			if (indexes.putIfAbsent(property, new ConcurrentHashMap<String, Set<WebSocketSession>>()) != null) {
+				return;
+			}
+		}
+
+		for (WebSocketSession session : sessions.values()) {
+			session.reindexProperty(property);
+		}
+	}
+
+	/**
+	 * Returns true if the property is indexed.
+	 *
+	 * @param property
+	 * @return
+	 */
+	public boolean isIndexedProperty(String property) {
+		return indexes.containsKey(property);
+	}
+
+	/**
+	 * Gets a live session by its ID.
+	 *
+	 * @param id
+	 * @return the session or null if there is no live session with this ID
+	 */
+	public WebSocketSession getSession(long id) {
+		return sessions.get(id);
+	}
+
+	/**
+	 * Gets all live sessions.
+	 *
+	 * @return
+	 */
+	public Collection<WebSocketSession> getSessions() {
+		return Collections.unmodifiableCollection(sessions.values());
+	}
+
+	/**
+	 * Gets the amount of live sessions.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Gets the live sessions that have a property with the given value. The returned set is a read-only view that
+	 * follows the index as sessions come and go.
+	 *
+	 * @param property an indexed property
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException if the property is not indexed
+	 */
+	public Set<WebSocketSession> getSessionsByProperty(String property, String value) {
+		ConcurrentHashMap<String, Set<WebSocketSession>> index = indexes.get(property);
+
+		if (index == null) {
+			throw new IllegalArgumentException("Property [" + property + "] is not indexed.");
+		}
+
+		return new IndexedSessions(index, value);
+	}
+
+	/**
+	 * Adds a connected session.
+	 *
+	 * @param session
+	 */
+	public void register(WebSocketSession session) {
+		sessions.put(session.getId(), session);
+
+		session.setRegistry(this);
+	}
+
+	/**
+	 * Removes a closed session.
+	 *
+	 * @param session
+	 */
+	public void unregister(WebSocketSession session) {
+		session.setRegistry(null);
+
+		sessions.remove(session.getId());
+	}
+
+	/**
+	 * Moves a session within the index of a property. Called by the session while it holds the lock on its properties.
+	 *
+	 * @param session
+	 * @param property
+	 * @param oldValue the previously indexed value or null
+	 * @param newValue the value to index or null
+	 */
+	void updateIndex(WebSocketSession session, String property, String oldValue, String newValue) {
+		ConcurrentHashMap<String, Set<WebSocketSession>> index = indexes.get(property);
+
+		if (index == null) {
+			return;
+		}
+
+		if (oldValue != null) {
+			synchronized (getIndexLock(property, oldValue)) {
+				Set<WebSocketSession> indexedSessions = index.get(oldValue);
+
+				if (indexedSessions != null) {
+					indexedSessions.remove(session);
+
+					// don't keep values around that no session has anymore
+					if (indexedSessions.isEmpty()) {
+						index.remove(oldValue);
+					}
+				}
+			}
+		}
+
+		if (newValue != null) {
+			synchronized (getIndexLock(property, newValue)) {
+				Set<WebSocketSession> indexedSessions = index.get(newValue);
+
+				if (indexedSessions == null) {
+					indexedSessions = Collections.newSetFromMap(new ConcurrentHashMap<WebSocketSession, Boolean>());
+
+					index.put(newValue, indexedSessions);
+				}
+
+				indexedSessions.add(session);
+			}
+		}
+	}
+
+	/**
+	 * Gets the lock that guards the session set of a property value.
+	 *
+	 * @param property
+	 * @param value
+	 * @return
+	 */
+	private Object getIndexLock(String property, String value) {
+		int hash = property.hashCode() * 31 + value.hashCode();
+
+		return indexLocks[(hash ^ (hash >>> 16)) & (INDEX_LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Gets the names of the indexed properties.
+	 *
+	 * @return
+	 */
+	Set<String> getIndexedProperties() {
+		return indexes.keySet();
+	}
+
+	/**
+	 * A read-only view of the sessions of a property value, which looks up the current set on every access.
+	 *
+	 * @author ebahtijaragic
+	 */
+	private static final class IndexedSessions extends AbstractSet<WebSocketSession> {
+		private final ConcurrentHashMap<String, Set<WebSocketSession>> index;
+		private final String value;
+
+		private IndexedSessions(ConcurrentHashMap<String, Set<WebSocketSession>> index, String value) {
+			this.index = index;
+			this.value = value;
+		}
+
+		public Iterator<WebSocketSession> iterator() {
+			return Collections.unmodifiableSet(current()).iterator();
+		}
+
+		public int size() {
+			return current().size();
+		}
+
+		public boolean contains(Object o) {
+			return current().contains(o);
+		}
+
+		private Set<WebSocketSession> current() {
+			Set<WebSocketSession> indexedSessions = value == null ? null : index.get(value);
+
+			if (indexedSessions == null) {
+				return Collections.emptySet();
+			}
+
+			return indexedSessions;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * What a websocket session does once its client falls too far behind on outbound messages.
+ *
+ * @author ebahtijaragic
+ */
+public enum WebSocketSlowConsumerPolicy {
+	/**
+	 * Drops low priority messages and disconnects the session if a normal priority message exceeds the limits.
+	 */
+	DROP,
+	
+	/**
+	 * Disconnects the session.
+	 */
+	DISCONNECT;
+}
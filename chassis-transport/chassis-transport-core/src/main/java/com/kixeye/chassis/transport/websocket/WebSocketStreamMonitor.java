@@ -0,0 +1,215 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+
+/**
+ * Holds the flow control settings of streamed responses and tracks the active streams.
+ *
+ * Actions that return an Observable and set {@link ActionMapping#streamResponse()} stream every element as its own
+ * message with the transaction ID of the request,
+ * followed by a message without payload that has the "stream" header set to "complete". A failed stream ends with a
+ * service error that has the "stream" header set to "error".
+ *
+ * Streams are flow controlled with credits: each element uses up a credit and the stream waits for more once they're
+ * used up. A request may set its initial credits with the "credits" header. A client grants more credits by sending
+ * an envelope with the transaction ID of the stream, the "stream" header set to "request" and the "credits" header set
+ * to the amount of credits, or one if it's left out. A client cancels a stream by sending the "stream" header set to "cancel", which is
+ * acknowledged with the "stream" header set to "cancelled".
+ *
+ * Large content can also be streamed as a single fragmented message instead of being buffered whole. Outgoing
+ * content is read from its source one fragment at a time. An incoming message whose first fragment is an envelope
+ * without payload, addressed to an action whose payload parameter is an InputStream, streams the following fragments
+ * to that action, holding at most maxBufferedBytes that the action hasn't read yet.
+ *
+ * @author ebahtijaragic
+ */
+@Component
+public class WebSocketStreamMonitor {
+	public static final String STREAM_HEADER = "stream";
+	public static final String CREDITS_HEADER = "credits";
+
+	public static final String STREAM_REQUEST = "request";
+	public static final String STREAM_CANCEL = "cancel";
+	public static final String STREAM_COMPLETE = "complete";
+	public static final String STREAM_ERROR = "error";
+	public static final String STREAM_CANCELLED = "cancelled";
+
+	public static final String STREAM_OVERFLOW_ERROR_CODE = "STREAM_OVERFLOW";
+	public static final String INVALID_STREAM_CONTROL_ERROR_CODE = "INVALID_STREAM_CONTROL";
+	public static final String DUPLICATE_STREAM_ERROR_CODE = "DUPLICATE_STREAM";
+
+	private final DynamicIntProperty initialCredits = DynamicPropertyFactory.getInstance().getIntProperty("websocket.stream.initialCredits", 16);
+	private final DynamicIntProperty maxBufferedMessages = DynamicPropertyFactory.getInstance().getIntProperty("websocket.stream.maxBufferedMessages", 1000);
+	private final DynamicIntProperty fragmentSize = DynamicPropertyFactory.getInstance().getIntProperty("websocket.stream.fragmentSize", 65536);
+	private final DynamicIntProperty maxBufferedBytes = DynamicPropertyFactory.getInstance().getIntProperty("websocket.stream.maxBufferedBytes", 1048576);
+
+	@Autowired(required = false)
+	private MetricRegistry metricRegistry;
+
+	private final AtomicInteger activeStreams = new AtomicInteger(0);
+
+	private Meter streamedMessages;
+	private Meter cancelledStreams;
+	private Meter overflowedStreams;
+	private Meter streamedInboundBytes;
+	private Meter streamedOutboundBytes;
+
+	@PostConstruct
+	public void initialize() {
+		if (metricRegistry != null) {
+			streamedMessages = metricRegistry.meter(name(WebSocketStreamMonitor.class, "streamed-messages"));
+			cancelledStreams = metricRegistry.meter(name(WebSocketStreamMonitor.class, "cancelled-streams"));
+			overflowedStreams = metricRegistry.meter(name(WebSocketStreamMonitor.class, "overflowed-streams"));
+			streamedInboundBytes = metricRegistry.meter(name(WebSocketStreamMonitor.class, "streamed-inbound-bytes"));
+			streamedOutboundBytes = metricRegistry.meter(name(WebSocketStreamMonitor.class, "streamed-outbound-bytes"));
+
+			metricRegistry.register(name(WebSocketStreamMonitor.class, "active-streams"), new Gauge<Integer>() {
+				public Integer getValue() {
+					return activeStreams.get();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Gets the credits of a stream whose request doesn't set them.
+	 *
+	 * @return
+	 */
+	public int getInitialCredits() {
+		return Math.max(1, initialCredits.get());
+	}
+
+	/**
+	 * Gets the amount of elements a stream buffers while it waits for credits before it fails with STREAM_OVERFLOW.
+	 *
+	 * @return
+	 */
+	public int getMaxBufferedMessages() {
+		return Math.max(1, maxBufferedMessages.get());
+	}
+
+	/**
+	 * Gets the size of the fragments that streamed content is sent in.
+	 *
+	 * @return
+	 */
+	public int getFragmentSize() {
+		return Math.max(1, fragmentSize.get());
+	}
+
+	/**
+	 * Gets the amount of bytes of an incoming streamed message that are buffered until the action reads them, after
+	 * which reading from the session waits.
+	 *
+	 * @return
+	 */
+	public int getMaxBufferedBytes() {
+		return Math.max(1, maxBufferedBytes.get());
+	}
+
+	/**
+	 * Gets the amount of active streams.
+	 *
+	 * @return
+	 */
+	public int getActiveStreams() {
+		return activeStreams.get();
+	}
+
+	/**
+	 * Tracks a stream that started.
+	 */
+	public void markStreamStarted() {
+		activeStreams.incrementAndGet();
+	}
+
+	/**
+	 * Tracks a stream that ended.
+	 */
+	public void markStreamFinished() {
+		activeStreams.decrementAndGet();
+	}
+
+	/**
+	 * Marks an element that was sent.
+	 */
+	public void markMessageStreamed() {
+		if (streamedMessages != null) {
+			streamedMessages.mark();
+		}
+	}
+
+	/**
+	 * Marks a stream that was cancelled by the client or by closing the session.
+	 */
+	public void markStreamCancelled() {
+		if (cancelledStreams != null) {
+			cancelledStreams.mark();
+		}
+	}
+
+	/**
+	 * Marks a stream that buffered too many elements.
+	 */
+	public void markStreamOverflowed() {
+		if (overflowedStreams != null) {
+			overflowedStreams.mark();
+		}
+	}
+
+	/**
+	 * Marks bytes of an incoming streamed message.
+	 *
+	 * @param bytes
+	 */
+	public void markInboundBytesStreamed(int bytes) {
+		if (streamedInboundBytes != null) {
+			streamedInboundBytes.mark(bytes);
+		}
+	}
+
+	/**
+	 * Marks bytes of outgoing streamed content.
+	 *
+	 * @param bytes
+	 */
+	public void markOutboundBytesStreamed(int bytes) {
+		if (streamedOutboundBytes != null) {
+			streamedOutboundBytes.mark(bytes);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.kixeye.chassis.transport.websocket;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.common.events.EventDriver;
+import org.eclipse.jetty.websocket.common.events.EventDriverFactory;
+import org.eclipse.jetty.websocket.common.events.EventDriverImpl;
+import org.eclipse.jetty.websocket.common.events.JettyListenerEventDriver;
+
+/**
+ * Hands the fragments of binary messages to an {@link ActionInvokingWebSocket} as they arrive, so that it can stream
+ * them to an action, and buffers every other message into a whole one like the default listener driver.
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketStreamingEventDriver extends JettyListenerEventDriver {
+	private final ActionInvokingWebSocket webSocket;
+
+	// whether the continuation frames of the current message are streamed
+	private boolean streaming = false;
+
+	/**
+	 * @param policy
+	 * @param webSocket
+	 */
+	public WebSocketStreamingEventDriver(WebSocketPolicy policy, ActionInvokingWebSocket webSocket) {
+		super(policy, webSocket);
+
+		this.webSocket = webSocket;
+	}
+
+	/**
+	 * Puts this driver in front of the ones a factory already has.
+	 *
+	 * @param factory
+	 */
+	public static void register(EventDriverFactory factory) {
+		List<EventDriverImpl> implementations = new ArrayList<>(factory.getImplementations());
+
+		factory.clearImplementations();
+		factory.addImplementation(new Implementation());
+
+		for (EventDriverImpl implementation : implementations) {
+			factory.addImplementation(implementation);
+		}
+	}
+
+	@Override
+	public void onBinaryFrame(ByteBuffer buffer, boolean fin) throws IOException {
+		// a message that fits in a single frame is never streamed
+		if (!fin && activeMessage == null && webSocket.startStreamedMessage(buffer)) {
+			streaming = true;
+
+			return;
+		}
+
+		super.onBinaryFrame(buffer, fin);
+	}
+
+	@Override
+	public void onContinuationFrame(ByteBuffer buffer, boolean fin) throws IOException {
+		if (streaming) {
+			streaming = !fin;
+
+			webSocket.continueStreamedMessage(buffer, fin);
+
+			return;
+		}
+
+		super.onContinuationFrame(buffer, fin);
+	}
+
+	/**
+	 * Creates the driver for {@link ActionInvokingWebSocket}s.
+	 *
+	 * @author ebahtijaragic
+	 */
+	private static final class Implementation implements EventDriverImpl {
+		public EventDriver create(Object websocket, WebSocketPolicy policy) {
+			return new WebSocketStreamingEventDriver(policy, (ActionInvokingWebSocket)websocket);
+		}
+
+		public String describeRule() {
+			return "class extends " + ActionInvokingWebSocket.class.getName();
+		}
+
+		public boolean supports(Object websocket) {
+			return websocket instanceof ActionInvokingWebSocket;
+		}
+	}
+}
@@ -29,9 +29,15 @@ import java.util.regex.Pattern;
 
 import org.apache.commons.configuration.AbstractConfiguration;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.server.WebSocketServerFactory;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
@@ -54,7 +60,10 @@ import com.codahale.metrics.health.HealthCheckRegistry;
 import com.codahale.metrics.jetty9.InstrumentedQueuedThreadPool;
 import com.kixeye.chassis.transport.http.InstrumentedHandler;
 import com.kixeye.chassis.transport.serde.MessageSerDe;
+import com.kixeye.chassis.transport.shared.ConsolidatedJettyServer;
 import com.kixeye.chassis.transport.shared.JettyConnectorRegistry;
+import com.kixeye.chassis.transport.shared.JettyServerSettings;
+import com.kixeye.chassis.transport.shared.VirtualThreadExecutor;
 import com.kixeye.chassis.transport.websocket.WebSocketTransportConfiguration.WebSocketEnabledCondition;
 import com.netflix.config.ConfigurationManager;
 
@@ -83,15 +92,27 @@ public class WebSocketTransportConfiguration {
     @Autowired(required = false)
     private HealthCheckRegistry healthCheckRegistry;
 
+    @Autowired(required = false)
+    private ConsolidatedJettyServer consolidatedServer;
+
     @Value("${websocket.metrics.threadpool.enabled}")
     private boolean monitorThreadpool;
 
     @Value("${websocket.metrics.handler.enabled}")
     private boolean monitorHandler;
 
+    @Value("${websocket.metrics.connector.enabled}")
+    private boolean monitorConnectors;
+
+    @Value("${transport.executor:platform}")
+    private String executorMode;
+
     @Autowired
     private Set<MessageSerDe> serDes;
 
+    @Autowired
+    private WebSocketCompression compression;
+
 	@Bean(initMethod="start", destroyMethod="stop")
 	@Order(0)
 	public Server webSocketServer(
@@ -130,6 +151,9 @@ public class WebSocketTransportConfiguration {
 					webSocket.setUpgradeRequest(req);
 					webSocket.setUpgradeResponse(resp);
 					
+					// negotiate the extensions ourselves so that permessage-deflate follows the settings of the format
+					resp.setExtensions(compression.negotiate(serDe.getMessageFormatName(), req.getExtensions()));
+					
 					return webSocket;
 				}
 			};
@@ -140,6 +164,13 @@ public class WebSocketTransportConfiguration {
 	
 				@Override
 				public void configure(WebSocketServletFactory factory) {
+					factory.getExtensionFactory().register(WebSocketDeflateExtension.NAME, WebSocketDeflateExtension.class);
+					
+					// lets actions read binary messages as they arrive
+					if (factory instanceof WebSocketServerFactory) {
+						WebSocketStreamingEventDriver.register(((WebSocketServerFactory)factory).getEventDriverFactory());
+					}
+					
 					factory.setCreator(webSocketCreator);
 				}
 			});
@@ -158,33 +189,69 @@ public class WebSocketTransportConfiguration {
 			context.addServlet(webSocketServlet,  "/" + serDe.getMessageFormatName() + "/*");
 		}
 
-		// create the server
-    	Server server;
-    	if (metricRegistry == null || !monitorThreadpool){
-        	server = new Server();
-
-            server.setHandler(context);
-        } else {
-        	server = new Server(new InstrumentedQueuedThreadPool(metricRegistry));
-        	
+		Handler handler = context;
+		
+    	if (metricRegistry != null && monitorThreadpool) {
         	InstrumentedHandler instrumented = new InstrumentedHandler(metricRegistry);
             instrumented.setHandler(context);
 
-            server.setHandler(instrumented);
+            handler = instrumented;
         }
+
+		JettyServerSettings settings = new JettyServerSettings("websocket", "secureWebsocket");
+
+		// create the server, or join the shared one
+    	Server server;
+    	if (consolidatedServer != null) {
+    		server = consolidatedServer.getServer();
+    	} else {
+	    	if (VirtualThreadExecutor.isEnabled(executorMode)) {
+	    		server = new Server(new ExecutorThreadPool(new VirtualThreadExecutor("websocket", monitorThreadpool ? metricRegistry : null)));
+	    	} else if (metricRegistry != null && monitorThreadpool) {
+	    		server = new Server(settings.bind(new InstrumentedQueuedThreadPool(metricRegistry)));
+	    	} else {
+	    		server = new Server(settings.bind(new QueuedThreadPool()));
+	    	}
+	    	
+	    	server.setHandler(handler);
+    	}
         
     	// set up connectors
     	if (websocketEnabled) {
         	InetSocketAddress address = StringUtils.isBlank(websocketHostname) ? new InetSocketAddress(websocketPort) : new InetSocketAddress(websocketHostname, websocketPort);
         	
-        	JettyConnectorRegistry.registerHttpConnector(server, address);
+        	ServerConnector connector = consolidatedServer == null ? null : consolidatedServer.getConnector(address);
+        	
+        	if (connector == null) {
+        		connector = JettyConnectorRegistry.registerHttpConnector(server, address, new HttpConfiguration(), settings);
+        		
+	        	if (metricRegistry != null && monitorConnectors) {
+	        		JettyConnectorRegistry.registerConnectorMetrics(connector, "websocket", metricRegistry);
+	        	}
+        	}
+        	
+        	if (consolidatedServer != null) {
+        		consolidatedServer.route(connector, handler, true);
+        	}
     	}
     	
     	if (secureWebsocketEnabled) {
         	InetSocketAddress address = StringUtils.isBlank(secureWebsocketHostname) ? new InetSocketAddress(secureWebsocketPort) : new InetSocketAddress(secureWebsocketHostname, secureWebsocketPort);
         	
-        	JettyConnectorRegistry.registerHttpsConnector(server, address, selfSigned, mutualSsl, keyStorePath, keyStoreData, keyStorePassword, keyManagerPassword, 
-        			trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites);
+        	ServerConnector connector = consolidatedServer == null ? null : consolidatedServer.getConnector(address);
+        	
+        	if (connector == null) {
+        		connector = JettyConnectorRegistry.registerHttpsConnector(server, address, selfSigned, mutualSsl, keyStorePath, keyStoreData, keyStorePassword, keyManagerPassword, 
+        				trustStorePath, trustStoreData, trustStorePassword, excludedCipherSuites, new HttpConfiguration(), settings);
+        		
+	        	if (metricRegistry != null && monitorConnectors) {
+	        		JettyConnectorRegistry.registerConnectorMetrics(connector, "secureWebsocket", metricRegistry);
+	        	}
+        	}
+        	
+        	if (consolidatedServer != null) {
+        		consolidatedServer.route(connector, handler, true);
+        	}
     	}
         
 		return server;
@@ -0,0 +1,55 @@
+package com.kixeye.chassis.transport.websocket.docs;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.websocket.WebSocketMessageMappingRegistry;
+
+/**
+ * Publishes the current table of compact envelope codes as JSON.
+ * 
+ * @author ebahtijaragic
+ */
+public class EnvelopeCodesDocumentationServlet extends HttpServlet {
+	private static final long serialVersionUID = 2143866530547616532L;
+	
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+	
+	private WebSocketMessageMappingRegistry mappingRegistry;
+	
+	public EnvelopeCodesDocumentationServlet(WebSocketMessageMappingRegistry mappingRegistry) {
+		this.mappingRegistry = mappingRegistry;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		resp.setContentType("application/json");
+		
+		serDe.serialize(mappingRegistry.getEnvelopeCodes().toMessage(), resp.getOutputStream());
+	}
+}
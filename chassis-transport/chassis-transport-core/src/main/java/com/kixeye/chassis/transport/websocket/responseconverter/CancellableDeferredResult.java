@@ -0,0 +1,50 @@
+package com.kixeye.chassis.transport.websocket.responseconverter;
+
+/*
+ * #%L
+ * Chassis Transport Core
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.kixeye.chassis.transport.websocket.WebSocketActionCancellation;
+
+/**
+ * A deferred result that can stop the work behind it, e.g. when the websocket action times out.
+ *
+ * @author ebahtijaragic
+ */
+public class CancellableDeferredResult<T> extends DeferredResult<T> {
+    private final WebSocketActionCancellation cancellation = new WebSocketActionCancellation();
+
+    /**
+     * Sets what stops the work behind this result. The canceller runs right away if this result was already cancelled.
+     *
+     * @param canceller
+     */
+    public void setCanceller(Runnable canceller) {
+        cancellation.setCanceller(canceller);
+    }
+
+    /**
+     * Cancels the work behind this result.
+     */
+    public void cancel() {
+        cancellation.cancel();
+    }
+}
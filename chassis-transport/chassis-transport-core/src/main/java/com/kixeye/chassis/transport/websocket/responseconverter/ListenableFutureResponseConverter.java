@@ -36,8 +36,15 @@ public class ListenableFutureResponseConverter implements WebSocketResponseConve
 
     @Override
     public DeferredResult<Object> convertToDeferredResult(Object response) {
-        final DeferredResult<Object> deferredResult = new DeferredResult<>();
-        Futures.addCallback((ListenableFuture<?>) response, new FutureCallback<Object>() {
+        final ListenableFuture<?> future = (ListenableFuture<?>) response;
+        final CancellableDeferredResult<Object> deferredResult = new CancellableDeferredResult<>();
+        deferredResult.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                future.cancel(true);
+            }
+        });
+        Futures.addCallback(future, new FutureCallback<Object>() {
             @Override
             public void onSuccess(@Nullable Object result) {
                 deferredResult.setResult(result);
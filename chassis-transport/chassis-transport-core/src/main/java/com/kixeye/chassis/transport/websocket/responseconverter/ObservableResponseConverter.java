@@ -23,7 +23,14 @@ package com.kixeye.chassis.transport.websocket.responseconverter;
 import org.springframework.web.context.request.async.DeferredResult;
 import rx.Observable;
 import rx.Observer;
+import rx.Subscription;
 
+/**
+ * Converts an Observable into a deferred result of its first element.
+ *
+ * Actions that set {@link com.kixeye.chassis.transport.websocket.ActionMapping#streamResponse()} stream their Observables
+ * instead, see {@link com.kixeye.chassis.transport.websocket.WebSocketStreamMonitor}.
+ */
 public class ObservableResponseConverter implements WebSocketResponseConverter {
 
     @Override
@@ -33,8 +40,8 @@ public class ObservableResponseConverter implements WebSocketResponseConverter {
 
     @Override
     public DeferredResult<Object> convertToDeferredResult(Object response) {
-        final DeferredResult<Object> deferredResult = new DeferredResult<>();
-        ((Observable<?>) response).subscribe( new Observer<Object>() {
+        final CancellableDeferredResult<Object> deferredResult = new CancellableDeferredResult<>();
+        final Subscription subscription = ((Observable<?>) response).subscribe( new Observer<Object>() {
             @Override
             public void onCompleted() {
                 if (!deferredResult.hasResult()) {
@@ -52,6 +59,12 @@ public class ObservableResponseConverter implements WebSocketResponseConverter {
                 deferredResult.setResult(args);
             }
         });
+        deferredResult.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                subscription.unsubscribe();
+            }
+        });
         return deferredResult;
     }
 }
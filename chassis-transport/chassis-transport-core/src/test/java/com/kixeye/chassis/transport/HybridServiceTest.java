@@ -196,6 +196,86 @@ public class HybridServiceTest {
 		}
 	}
 	
+	@Test
+	public void testConsolidatedHybridService() throws Exception {
+		String port = "" + SocketUtils.findAvailableTcpPort();
+		
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("transport.consolidated.enabled", "true");
+		
+		properties.put("admin.enabled", "true");
+		properties.put("admin.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("admin.hostname", "localhost");
+		
+		// websocket upgrades and plain requests share the port
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", port);
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "true");
+		properties.put("http.port", port);
+		properties.put("http.hostname", "localhost");
+		
+		AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(MetricsConfiguration.class);
+		context.register(TestCombinedService.class);
+
+		WebSocketClient wsClient = new WebSocketClient();
+
+		RestTemplate httpClient = new RestTemplate();
+		
+		try {
+			context.refresh();
+			
+			Assert.assertSame(context.getBean("httpServer"), context.getBean("webSocketServer"));
+			Assert.assertSame(context.getBean("httpServer"), context.getBean("adminServer"));
+
+			final MessageSerDe serDe = context.getBean(ProtobufMessageSerDe.class);
+
+			final WebSocketMessageRegistry messageRegistry = context.getBean(WebSocketMessageRegistry.class);
+			
+			messageRegistry.registerType("stuff", TestObject.class);
+			
+			wsClient.start();
+
+			List<HttpMessageConverter<?>> messageConverters = new ArrayList<>();
+			for (MessageSerDe messageSerDe : context.getBeansOfType(MessageSerDe.class).values()) {
+				messageConverters.add(new SerDeHttpMessageConverter(messageSerDe));
+			}
+			messageConverters.add(new StringHttpMessageConverter(StandardCharsets.UTF_8));
+			httpClient.setMessageConverters(messageConverters);
+			
+			QueuingWebSocketListener webSocket = new QueuingWebSocketListener(serDe, messageRegistry, null);
+
+			Session session = wsClient.connect(webSocket, new URI("ws://localhost:" + port + "/protobuf")).get(5000, TimeUnit.MILLISECONDS);
+
+			session.getRemote().sendBytes(ByteBuffer.wrap(serDe.serialize(new Envelope("getStuff", null, null, null))));
+			
+			TestObject response = webSocket.getResponse(5, TimeUnit.SECONDS);
+			
+			Assert.assertNotNull(response);
+			Assert.assertEquals("stuff", response.value);
+			
+			response = httpClient.getForObject(new URI("http://localhost:" + port + "/stuff/"), TestObject.class);
+			
+			Assert.assertNotNull(response);
+			Assert.assertEquals("stuff", response.value);
+			
+			Assert.assertEquals("pong", httpClient.getForObject(new URI("http://localhost:" + properties.get("admin.port") + "/metrics/ping"), String.class).trim());
+		} finally {
+			try {
+				wsClient.stop();
+			} finally {
+				context.close();
+			}
+		}
+	}
+	
 	@RestController
 	@WebSocketController
 	@RequestMapping("/stuff")
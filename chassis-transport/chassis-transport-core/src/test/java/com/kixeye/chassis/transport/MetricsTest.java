@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.io.HexDump;
+import org.eclipse.jetty.server.ServerConnector;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -48,6 +49,8 @@ import org.springframework.http.converter.StringHttpMessageConverter;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.kixeye.chassis.transport.http.SerDeHttpMessageConverter;
@@ -121,6 +124,12 @@ public class MetricsTest {
 			
 			Assert.assertEquals(response.getStatusCode().value(), HttpStatus.OK.value());
 			Assert.assertEquals("pong".trim(), response.getBody().trim());
+			
+			// the admin connector counts its connections
+			Gauge<?> connections = context.getBean(MetricRegistry.class).getGauges().get(MetricRegistry.name(ServerConnector.class, "admin", "connections"));
+			
+			Assert.assertNotNull(connections);
+			Assert.assertTrue((Integer)connections.getValue() > 0);
 		} finally {
 			context.close();
 		}
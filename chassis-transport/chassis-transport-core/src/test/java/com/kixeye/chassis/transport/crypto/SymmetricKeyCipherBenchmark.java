@@ -0,0 +1,97 @@
+package com.kixeye.chassis.transport.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.kixeye.chassis.transport.serde.ByteBufferPool;
+import com.kixeye.chassis.transport.serde.DefaultByteBufferPool;
+
+/**
+ * Compares the cached ciphers of {@link SymmetricKeyCipher} with looking up and initializing a cipher for every frame
+ * through {@link SymmetricKeyCryptoUtils}, for the BouncyCastle and SunJCE providers.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=com.kixeye.chassis.transport.crypto.SymmetricKeyCipherBenchmark -Dexec.classpathScope=test
+ *
+ * @author ebahtijaragic
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymmetricKeyCipherBenchmark {
+	@Param({ "BC:AES/ECB/PKCS7Padding", "SunJCE:AES/ECB/PKCS5Padding", "BC:AES/GCM/NoPadding", "SunJCE:AES/GCM/NoPadding" })
+	public String cipherConfig;
+
+	@Param({ "1024" })
+	public int frameSize;
+
+	private final ByteBufferPool pool = new DefaultByteBufferPool(false);
+
+	private String cipherProvider;
+	private String cipherTransformation;
+
+	private Key key;
+	private SymmetricKeyCipher cipher;
+
+	private byte[] frame;
+
+	@Setup
+	public void setup() throws Exception {
+		cipherProvider = cipherConfig.substring(0, cipherConfig.indexOf(':'));
+		cipherTransformation = cipherConfig.substring(cipherConfig.indexOf(':') + 1);
+
+		Random random = new Random(0);
+
+		byte[] keyData = new byte[16];
+		random.nextBytes(keyData);
+
+		key = SymmetricKeyCryptoUtils.loadRawSecretKey(keyData, "AES");
+		cipher = new SymmetricKeyCipher(cipherProvider, cipherTransformation, "AES", keyData);
+
+		frame = new byte[frameSize];
+		random.nextBytes(frame);
+	}
+
+	@Benchmark
+	public byte[] uncached() throws Exception {
+		return SymmetricKeyCryptoUtils.encrypt(frame, 0, frame.length, key, cipherTransformation, cipherProvider);
+	}
+
+	@Benchmark
+	public byte[] cached() throws Exception {
+		return cipher.encrypt(frame, 0, frame.length);
+	}
+
+	@Benchmark
+	public int cachedPooled() throws Exception {
+		ByteBuffer encrypted = cipher.encrypt(ByteBuffer.wrap(frame), pool);
+
+		int length = encrypted.remaining();
+
+		pool.release(encrypted);
+
+		return length;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(SymmetricKeyCipherBenchmark.class.getSimpleName()).build()).run();
+	}
+}
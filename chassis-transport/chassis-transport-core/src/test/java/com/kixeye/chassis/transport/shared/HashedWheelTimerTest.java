@@ -0,0 +1,58 @@
+package com.kixeye.chassis.transport.shared;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HashedWheelTimer}
+ *
+ * @author ebahtijaragic
+ */
+public class HashedWheelTimerTest {
+
+	@Test
+	public void testExpiresAndCancels() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+
+		try {
+			final CountDownLatch expired = new CountDownLatch(2);
+			final AtomicInteger cancelledRuns = new AtomicInteger(0);
+
+			HashedWheelTimer.TimerTask task = new HashedWheelTimer.TimerTask() {
+				public void run(HashedWheelTimer.Timeout timeout) {
+					expired.countDown();
+				}
+			};
+
+			long start = System.nanoTime();
+
+			HashedWheelTimer.Timeout shortTimeout = timer.newTimeout(task, 20, TimeUnit.MILLISECONDS);
+			// longer than a full turn of the wheel
+			HashedWheelTimer.Timeout longTimeout = timer.newTimeout(task, 100, TimeUnit.MILLISECONDS);
+
+			HashedWheelTimer.Timeout cancelledTimeout = timer.newTimeout(new HashedWheelTimer.TimerTask() {
+				public void run(HashedWheelTimer.Timeout timeout) {
+					cancelledRuns.incrementAndGet();
+				}
+			}, 20, TimeUnit.MILLISECONDS);
+
+			Assert.assertTrue(cancelledTimeout.cancel());
+
+			Assert.assertTrue(expired.await(5, TimeUnit.SECONDS));
+			Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+
+			Assert.assertTrue(shortTimeout.isExpired());
+			Assert.assertTrue(longTimeout.isExpired());
+			Assert.assertFalse(longTimeout.cancel());
+
+			Assert.assertTrue(cancelledTimeout.isCancelled());
+			Assert.assertEquals(0, cancelledRuns.get());
+		} finally {
+			timer.stop();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.kixeye.chassis.transport.shared;
+
+import java.net.InetSocketAddress;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+
+/**
+ * Unit tests for {@link InstrumentedSslConnectionFactory}
+ *
+ * @author ebahtijaragic
+ */
+public class InstrumentedSslConnectionFactoryTest {
+	@Test
+	public void testCountsFullAndResumedHandshakes() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+
+		MetricRegistry metricRegistry = new MetricRegistry();
+
+		Server server = new Server();
+
+		ServerConnector connector = JettyConnectorRegistry.registerHttpsConnector(server, new InetSocketAddress("localhost", SocketUtils.findAvailableTcpPort()),
+				true, false, null, null, null, null, null, null, null, new String[0], new HttpConfiguration(), new JettyServerSettings("settingstest"));
+
+		JettyConnectorRegistry.registerConnectorMetrics(connector, "test", metricRegistry);
+
+		server.start();
+
+		try {
+			SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+			sslContext.init(null, new TrustManager[] { new X509TrustManager() {
+				public void checkClientTrusted(X509Certificate[] chain, String authType) {
+				}
+
+				public void checkServerTrusted(X509Certificate[] chain, String authType) {
+				}
+
+				public X509Certificate[] getAcceptedIssuers() {
+					return new X509Certificate[0];
+				}
+			} }, null);
+
+			// the client caches the session of the first connection and resumes it on the others
+			for (int i = 0; i < 3; i++) {
+				try (SSLSocket socket = (SSLSocket)sslContext.getSocketFactory().createSocket("localhost", connector.getPort())) {
+					socket.startHandshake();
+				}
+			}
+
+			long started = System.currentTimeMillis();
+
+			while (handshakes(metricRegistry, "full-handshakes") + handshakes(metricRegistry, "resumed-handshakes") < 3 && System.currentTimeMillis() - started < 5000) {
+				Thread.sleep(10);
+			}
+
+			Assert.assertEquals(1, handshakes(metricRegistry, "full-handshakes"));
+			Assert.assertEquals(2, handshakes(metricRegistry, "resumed-handshakes"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	private long handshakes(MetricRegistry metricRegistry, String type) {
+		return metricRegistry.getTimers().get(MetricRegistry.name(SslConnectionFactory.class, "test", type)).getCount();
+	}
+}
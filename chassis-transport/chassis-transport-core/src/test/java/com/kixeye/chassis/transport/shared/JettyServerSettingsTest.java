@@ -0,0 +1,121 @@
+package com.kixeye.chassis.transport.shared;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.kixeye.chassis.transport.utils.SocketUtils;
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * Unit tests for {@link JettyServerSettings}
+ *
+ * @author ebahtijaragic
+ */
+public class JettyServerSettingsTest {
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("settingstest.threadpool.minThreads");
+		ConfigurationManager.getConfigInstance().clearProperty("settingstest.threadpool.maxThreads");
+		ConfigurationManager.getConfigInstance().clearProperty("settingstest.idleTimeout");
+		ConfigurationManager.getConfigInstance().clearProperty("settingstest.provider");
+	}
+
+	@Test
+	public void testResizesThreadPool() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("settingstest.threadpool.maxThreads", "20");
+
+		QueuedThreadPool threadPool = new JettyServerSettings("settingstest").bind(new QueuedThreadPool());
+
+		Assert.assertEquals(20, threadPool.getMaxThreads());
+
+		threadPool.start();
+
+		try {
+			// shrinking below the minimum takes the minimum along
+			ConfigurationManager.getConfigInstance().setProperty("settingstest.threadpool.maxThreads", "4");
+
+			Assert.assertEquals(4, threadPool.getMaxThreads());
+			Assert.assertEquals(4, threadPool.getMinThreads());
+
+			ConfigurationManager.getConfigInstance().setProperty("settingstest.threadpool.minThreads", "2");
+
+			Assert.assertEquals(2, threadPool.getMinThreads());
+		} finally {
+			threadPool.stop();
+		}
+
+		// a stopped pool no longer follows the properties
+		ConfigurationManager.getConfigInstance().setProperty("settingstest.threadpool.maxThreads", "8");
+
+		Assert.assertEquals(4, threadPool.getMaxThreads());
+
+		// until it starts again
+		threadPool.start();
+
+		try {
+			Assert.assertEquals(8, threadPool.getMaxThreads());
+		} finally {
+			threadPool.stop();
+		}
+	}
+
+	@Test
+	public void testUnknownSslProviderFallsBackToDefault() throws Exception {
+		JettyServerSettings settings = new JettyServerSettings("settingstest");
+
+		ConfigurationManager.getConfigInstance().setProperty("settingstest.provider", "SunJSSE");
+
+		Assert.assertEquals("SunJSSE", settings.getSslProvider());
+
+		ConfigurationManager.getConfigInstance().setProperty("settingstest.provider", "NoSuchProvider");
+
+		Assert.assertNull(settings.getSslProvider());
+
+		ConfigurationManager.getConfigInstance().setProperty("settingstest.provider", "com.example.NoSuchProvider");
+
+		Assert.assertNull(settings.getSslProvider());
+	}
+
+	@Test
+	public void testRetunesRunningConnector() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("settingstest.idleTimeout", "30000");
+
+		JettyServerSettings settings = new JettyServerSettings("settingstest");
+
+		Server server = new Server();
+
+		ServerConnector connector = JettyConnectorRegistry.registerHttpConnector(server,
+				new InetSocketAddress("localhost", SocketUtils.findAvailableTcpPort()), new HttpConfiguration(), settings);
+
+		Assert.assertEquals(30000, connector.getIdleTimeout());
+
+		server.start();
+
+		try (Socket socket = new Socket("localhost", connector.getPort())) {
+			long started = System.currentTimeMillis();
+
+			while (connector.getConnectedEndPoints().isEmpty() && System.currentTimeMillis() - started < 5000) {
+				Thread.sleep(10);
+			}
+
+			ConfigurationManager.getConfigInstance().setProperty("settingstest.idleTimeout", "10000");
+
+			Assert.assertEquals(10000, connector.getIdleTimeout());
+			Assert.assertEquals(10000, connector.getConnectedEndPoints().iterator().next().getIdleTimeout());
+		} finally {
+			server.stop();
+		}
+
+		ConfigurationManager.getConfigInstance().setProperty("settingstest.idleTimeout", "20000");
+
+		Assert.assertEquals(10000, connector.getIdleTimeout());
+	}
+}
@@ -0,0 +1,40 @@
+package com.kixeye.chassis.transport.shared;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Unit tests for {@link LockFreeSlidingWindowReservoir}
+ *
+ * @author ebahtijaragic
+ */
+public class LockFreeSlidingWindowReservoirTest {
+
+	@Test
+	public void testKeepsLastValues() {
+		LockFreeSlidingWindowReservoir reservoir = new LockFreeSlidingWindowReservoir(3);
+
+		// rounded up to a power of two
+		Assert.assertEquals(0, reservoir.size());
+
+		for (long i = 1; i <= 3; i++) {
+			reservoir.update(i);
+		}
+
+		Assert.assertEquals(3, reservoir.size());
+		Assert.assertEquals(1, reservoir.getSnapshot().getMin());
+		Assert.assertEquals(3, reservoir.getSnapshot().getMax());
+
+		for (long i = 4; i <= 10; i++) {
+			reservoir.update(i);
+		}
+
+		Snapshot snapshot = reservoir.getSnapshot();
+
+		Assert.assertEquals(4, reservoir.size());
+		Assert.assertEquals(7, snapshot.getMin());
+		Assert.assertEquals(10, snapshot.getMax());
+	}
+}
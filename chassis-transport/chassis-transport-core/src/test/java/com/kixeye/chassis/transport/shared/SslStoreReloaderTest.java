@@ -0,0 +1,235 @@
+package com.kixeye.chassis.transport.shared;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import com.google.common.base.Charsets;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.config.DynamicProperty;
+
+/**
+ * Unit tests for {@link SslStoreReloader}
+ *
+ * @author ebahtijaragic
+ */
+public class SslStoreReloaderTest {
+	private static final String PASSWORD = "reloadtest";
+
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("reloadtest.storeCheckIntervalMillis");
+	}
+
+	@Test
+	public void testReloadsChangedKeyStore() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+
+		ConfigurationManager.getConfigInstance().setProperty("reloadtest.storeCheckIntervalMillis", "50");
+
+		File keyStoreFile = File.createTempFile("reloadtest", ".jks");
+		keyStoreFile.deleteOnExit();
+
+		writeKeyStore(keyStoreFile);
+
+		Server server = new Server();
+
+		ServerConnector connector = JettyConnectorRegistry.registerHttpsConnector(server, new InetSocketAddress("localhost", SocketUtils.findAvailableTcpPort()),
+				false, false, keyStoreFile.toURI().toString(), null, PASSWORD, PASSWORD, null, null, null, new String[0], new HttpConfiguration(),
+				new JettyServerSettings("reloadtest"));
+
+		server.start();
+
+		try {
+			SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+			sslContext.init(null, new TrustManager[] { trustAll() }, null);
+
+			try (SSLSocket openSocket = (SSLSocket)sslContext.getSocketFactory().createSocket("localhost", connector.getPort())) {
+				openSocket.startHandshake();
+
+				Certificate certificate = openSocket.getSession().getPeerCertificates()[0];
+
+				writeKeyStore(keyStoreFile);
+
+				// some file systems only keep modification times to the second
+				keyStoreFile.setLastModified(keyStoreFile.lastModified() + 2000);
+
+				Certificate reloadedCertificate = certificate;
+
+				long started = System.currentTimeMillis();
+
+				while (reloadedCertificate.equals(certificate) && System.currentTimeMillis() - started < 5000) {
+					Thread.sleep(50);
+
+					// a new context per attempt, so that the client doesn't resume the session of the previous one
+					SSLContext attemptContext = SSLContext.getInstance("TLSv1.2");
+					attemptContext.init(null, new TrustManager[] { trustAll() }, null);
+
+					try (SSLSocket socket = (SSLSocket)attemptContext.getSocketFactory().createSocket("localhost", connector.getPort())) {
+						socket.startHandshake();
+
+						reloadedCertificate = socket.getSession().getPeerCertificates()[0];
+					}
+				}
+
+				Assert.assertNotEquals(certificate, reloadedCertificate);
+
+				// the connection opened before the reload carries on with the key it handshook with
+				OutputStream out = openSocket.getOutputStream();
+				out.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(Charsets.UTF_8));
+				out.flush();
+
+				BufferedReader in = new BufferedReader(new InputStreamReader(openSocket.getInputStream(), Charsets.UTF_8));
+
+				Assert.assertTrue(in.readLine().startsWith("HTTP/1.1 "));
+				Assert.assertEquals(certificate, openSocket.getSession().getPeerCertificates()[0]);
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testReloadsLeaveNoCallbacksBehind() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+
+		File keyStoreFile = File.createTempFile("reloadtest", ".jks");
+		keyStoreFile.deleteOnExit();
+
+		writeKeyStore(keyStoreFile);
+
+		Server server = new Server();
+
+		ServerConnector connector = JettyConnectorRegistry.registerHttpsConnector(server, new InetSocketAddress("localhost", SocketUtils.findAvailableTcpPort()),
+				false, false, keyStoreFile.toURI().toString(), null, PASSWORD, PASSWORD, null, null, null, new String[0], new HttpConfiguration(),
+				new JettyServerSettings("reloadtest"));
+
+		server.start();
+
+		try {
+			SslStoreReloader reloader = connector.getBean(SslStoreReloader.class);
+
+			for (int i = 0; i < 3; i++) {
+				Assert.assertTrue(reloader.reload());
+			}
+
+			// only the current settings follow the session cache properties
+			Assert.assertEquals(1, getCallbacks("reloadtest.sessionCacheSize").size());
+			Assert.assertEquals(1, getCallbacks("reloadtest.keyStoreData").size());
+		} finally {
+			server.stop();
+		}
+
+		Assert.assertEquals(0, getCallbacks("reloadtest.sessionCacheSize").size());
+		Assert.assertEquals(0, getCallbacks("reloadtest.keyStoreData").size());
+	}
+
+	@Test
+	public void testRetriesStoreThatFailedToLoad() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+
+		ConfigurationManager.getConfigInstance().setProperty("reloadtest.storeCheckIntervalMillis", "50");
+
+		File keyStoreFile = File.createTempFile("reloadtest", ".jks");
+		keyStoreFile.deleteOnExit();
+
+		writeKeyStore(keyStoreFile);
+
+		Server server = new Server();
+
+		ServerConnector connector = JettyConnectorRegistry.registerHttpsConnector(server, new InetSocketAddress("localhost", SocketUtils.findAvailableTcpPort()),
+				false, false, keyStoreFile.toURI().toString(), null, PASSWORD, PASSWORD, null, null, null, new String[0], new HttpConfiguration(),
+				new JettyServerSettings("reloadtest"));
+
+		server.start();
+
+		try {
+			InstrumentedSslConnectionFactory sslConnectionFactory = connector.getConnectionFactory(InstrumentedSslConnectionFactory.class);
+
+			Object sslContextFactory = sslConnectionFactory.getSslContextFactory();
+
+			// a store that's only partly written
+			try (FileOutputStream out = new FileOutputStream(keyStoreFile)) {
+				out.write(new byte[] { 1, 2, 3 });
+			}
+
+			long modified = keyStoreFile.lastModified() + 2000;
+			keyStoreFile.setLastModified(modified);
+
+			Thread.sleep(500);
+
+			Assert.assertSame(sslContextFactory, sslConnectionFactory.getSslContextFactory());
+
+			// the rest of it lands without another change of the modification time
+			writeKeyStore(keyStoreFile);
+			keyStoreFile.setLastModified(modified);
+
+			long started = System.currentTimeMillis();
+
+			while (sslContextFactory == sslConnectionFactory.getSslContextFactory() && System.currentTimeMillis() - started < 5000) {
+				Thread.sleep(50);
+			}
+
+			Assert.assertNotSame(sslContextFactory, sslConnectionFactory.getSslContextFactory());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<Runnable> getCallbacks(String property) {
+		return (Set<Runnable>)Whitebox.getInternalState(DynamicProperty.getInstance(property), "callbacks");
+	}
+
+	private static TrustManager trustAll() {
+		return new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+	}
+
+	private static void writeKeyStore(File file) throws Exception {
+		KeyStore keyStore = JettyConnectorRegistry.newSelfSignedKeyStore(PASSWORD.toCharArray());
+
+		// written next to the store and moved over it, the way a deployment would swap it
+		File written = new File(file.getPath() + ".new");
+
+		try (FileOutputStream out = new FileOutputStream(written)) {
+			keyStore.store(out, PASSWORD.toCharArray());
+		}
+
+		Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,328 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.CloseStatus;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.google.common.net.MediaType;
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.serde.AbstractMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+
+/**
+ * Keeps the allocations of an echo round-trip through {@link ActionInvokingWebSocket} within a budget, so that the
+ * dispatch pipeline stays allocation-free in the steady state.
+ *
+ * @author ebahtijaragic
+ */
+public class ActionInvokingWebSocketAllocationTest {
+	private static final int WARMUP_ROUND_TRIPS = 20000;
+	private static final int MEASURED_ROUND_TRIPS = 20000;
+	private static final int MAX_IN_FLIGHT = 64;
+
+	/**
+	 * The allowed bytes per round-trip, excluding serialization.
+	 */
+	private static final long MAX_BYTES_PER_ROUND_TRIP = 320;
+
+	@Test
+	public void testEchoAllocationBudget() throws Exception {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+
+		Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(EchoWebSocketController.class);
+
+		try {
+			context.refresh();
+
+			context.getBean(WebSocketMessageRegistry.class).registerType("echo", EchoMessage.class);
+
+			ReplayingMessageSerDe serDe = new ReplayingMessageSerDe(new Envelope("echo", "echo", "1", ByteBuffer.wrap(new byte[] { 1 })), new EchoMessage("hello"));
+
+			byte[] frame = serDe.serialize(null);
+
+			CountingSession session = new CountingSession();
+
+			ActionInvokingWebSocket webSocket = context.getBean(ActionInvokingWebSocket.class);
+			webSocket.setSerDe(serDe);
+			webSocket.onWebSocketConnect(session);
+
+			try {
+				roundTrips(webSocket, session, frame, WARMUP_ROUND_TRIPS);
+
+				long[] threadIds = allocationBean.getAllThreadIds();
+				long[] allocatedBefore = allocationBean.getThreadAllocatedBytes(threadIds);
+
+				roundTrips(webSocket, session, frame, MEASURED_ROUND_TRIPS);
+
+				long allocated = allocatedSince(allocationBean, threadIds, allocatedBefore);
+				long bytesPerRoundTrip = allocated / MEASURED_ROUND_TRIPS;
+
+				Assert.assertTrue("Echo round-trip allocated [" + bytesPerRoundTrip + "] bytes, budget is [" + MAX_BYTES_PER_ROUND_TRIP + "]",
+						bytesPerRoundTrip <= MAX_BYTES_PER_ROUND_TRIP);
+			} finally {
+				webSocket.onWebSocketClose(1000, "done");
+			}
+		} finally {
+			context.close();
+		}
+	}
+
+	private static void roundTrips(ActionInvokingWebSocket webSocket, CountingSession session, byte[] frame, int count) {
+		int start = session.sent.get();
+
+		for (int i = 0; i < count; i++) {
+			while (start + i - session.sent.get() >= MAX_IN_FLIGHT) {
+				Thread.yield();
+			}
+
+			webSocket.onWebSocketBinary(frame, 0, frame.length);
+		}
+
+		while (session.sent.get() < start + count) {
+			Thread.yield();
+		}
+	}
+
+	private static long allocatedSince(com.sun.management.ThreadMXBean allocationBean, long[] threadIdsBefore, long[] allocatedBefore) {
+		Map<Long, Long> before = new HashMap<>();
+
+		for (int i = 0; i < threadIdsBefore.length; i++) {
+			before.put(threadIdsBefore[i], allocatedBefore[i]);
+		}
+
+		long[] threadIds = allocationBean.getAllThreadIds();
+		long[] allocatedAfter = allocationBean.getThreadAllocatedBytes(threadIds);
+
+		long allocated = 0;
+
+		for (int i = 0; i < threadIds.length; i++) {
+			if (allocatedAfter[i] < 0) {
+				continue;
+			}
+
+			Long previous = before.get(threadIds[i]);
+
+			allocated += allocatedAfter[i] - (previous == null || previous < 0 ? 0 : previous);
+		}
+
+		return allocated;
+	}
+
+	@WebSocketController
+	public static class EchoWebSocketController {
+		@ActionMapping("echo")
+		public EchoMessage echo(@ActionPayload EchoMessage message) {
+			return message;
+		}
+	}
+
+	public static class EchoMessage {
+		public String value;
+
+		public EchoMessage() {
+		}
+
+		public EchoMessage(String value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A serde that leaves serialization out of the measurement by replaying the same objects.
+	 */
+	private static class ReplayingMessageSerDe extends AbstractMessageSerDe {
+		private final byte[] data = new byte[] { 1 };
+
+		private final Envelope envelope;
+		private final Object message;
+
+		public ReplayingMessageSerDe(Envelope envelope, Object message) {
+			this.envelope = envelope;
+			this.message = message;
+		}
+
+		public void serialize(Object obj, OutputStream stream) throws IOException {
+			stream.write(data);
+		}
+
+		public byte[] serialize(Object obj) throws IOException {
+			return data;
+		}
+
+		public <T> T deserialize(byte[] data, int offset, int length, Class<T> clazz) throws IOException {
+			return clazz.cast(Envelope.class.equals(clazz) ? envelope : message);
+		}
+
+		public <T> T deserialize(InputStream stream, Class<T> clazz) throws IOException {
+			return clazz.cast(Envelope.class.equals(clazz) ? envelope : message);
+		}
+
+		public String getMessageFormatName() {
+			return "replay";
+		}
+
+		public MediaType[] getSupportedMediaTypes() {
+			return new MediaType[0];
+		}
+	}
+
+	/**
+	 * A session that counts the frames sent to it without allocating.
+	 */
+	private static class CountingSession implements Session, RemoteEndpoint {
+		private final AtomicInteger sent = new AtomicInteger(0);
+
+		public void sendBytes(ByteBuffer data, WriteCallback callback) {
+			sent.incrementAndGet();
+
+			callback.writeSuccess();
+		}
+
+		public Future<Void> sendBytesByFuture(ByteBuffer data) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendBytes(ByteBuffer data) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendPartialBytes(ByteBuffer fragment, boolean isLast) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendPartialString(String fragment, boolean isLast) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendPing(ByteBuffer applicationData) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendPong(ByteBuffer applicationData) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendString(String text) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public Future<Void> sendStringByFuture(String text) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendString(String text, WriteCallback callback) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() {
+		}
+
+		public void close(CloseStatus closeStatus) {
+		}
+
+		public void close(int statusCode, String reason) {
+		}
+
+		public void disconnect() throws IOException {
+		}
+
+		public long getIdleTimeout() {
+			return 0;
+		}
+
+		public InetSocketAddress getLocalAddress() {
+			return null;
+		}
+
+		public WebSocketPolicy getPolicy() {
+			return null;
+		}
+
+		public String getProtocolVersion() {
+			return null;
+		}
+
+		public RemoteEndpoint getRemote() {
+			return this;
+		}
+
+		public InetSocketAddress getRemoteAddress() {
+			return null;
+		}
+
+		public UpgradeRequest getUpgradeRequest() {
+			return null;
+		}
+
+		public UpgradeResponse getUpgradeResponse() {
+			return null;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public boolean isSecure() {
+			return false;
+		}
+
+		public void setIdleTimeout(long ms) {
+		}
+
+		public SuspendToken suspend() {
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return "CountingSession";
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.Header;
+import com.kixeye.chassis.transport.dto.ServiceError;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * Tests the handling of batched envelopes in {@link ActionInvokingWebSocket}
+ *
+ * @author ebahtijaragic
+ */
+public class ActionInvokingWebSocketBatchTest {
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+
+	private AnnotationConfigWebApplicationContext context;
+
+	private RemoteEndpoint remote;
+
+	private ActionInvokingWebSocket webSocket;
+	private BatchWebSocketController controller;
+
+	@Before
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(BatchWebSocketController.class);
+		context.refresh();
+
+		context.getBean(WebSocketMessageRegistry.class).registerType("batchMessage", BatchMessage.class);
+
+		remote = Mockito.mock(RemoteEndpoint.class);
+
+		Session session = Mockito.mock(Session.class);
+		Mockito.when(session.getRemote()).thenReturn(remote);
+
+		controller = context.getBean(BatchWebSocketController.class);
+
+		webSocket = context.getBean(ActionInvokingWebSocket.class);
+		webSocket.setSerDe(serDe);
+		webSocket.onWebSocketConnect(session);
+	}
+
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.batch.maxEnvelopes");
+
+		context.close();
+	}
+
+	@Test
+	public void testOrderedBatch() throws Exception {
+		sendBatch(null, new Envelope("batchSlow", null, "1", null), new Envelope("batchFast", null, "2", null), new Envelope("missing", null, "3", null));
+
+		Envelope reply = awaitReply();
+
+		Assert.assertEquals("batch", reply.action);
+		Assert.assertEquals("b", reply.transactionId);
+		Assert.assertEquals(3, reply.envelopes.size());
+
+		Assert.assertEquals("1", reply.envelopes.get(0).transactionId);
+		Assert.assertEquals("slow", deserialize(reply.envelopes.get(0), BatchMessage.class).value);
+		Assert.assertEquals("2", reply.envelopes.get(1).transactionId);
+		Assert.assertEquals("fast", deserialize(reply.envelopes.get(1), BatchMessage.class).value);
+
+		Assert.assertEquals("missing", reply.envelopes.get(2).action);
+		Assert.assertNotNull(deserialize(reply.envelopes.get(2), ServiceError.class).code);
+
+		Assert.assertEquals(2, controller.invoked.size());
+		Assert.assertEquals("slow", controller.invoked.get(0));
+		Assert.assertEquals("fast", controller.invoked.get(1));
+	}
+
+	@Test
+	public void testUnorderedBatch() throws Exception {
+		sendBatch(WebSocketBatchOrdering.UNORDERED.name(), new Envelope("batchSlow", null, "1", null), new Envelope("batchFast", null, "2", null));
+
+		Envelope reply = awaitReply();
+
+		// replies keep the order of the batch even if the actions finish out of order
+		Assert.assertEquals(2, reply.envelopes.size());
+		Assert.assertEquals("slow", deserialize(reply.envelopes.get(0), BatchMessage.class).value);
+		Assert.assertEquals("fast", deserialize(reply.envelopes.get(1), BatchMessage.class).value);
+
+		Assert.assertEquals("fast", controller.invoked.get(0));
+		Assert.assertEquals("slow", controller.invoked.get(1));
+	}
+
+	@Test
+	public void testTooManyEnvelopes() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.batch.maxEnvelopes", "1");
+
+		try {
+			sendBatch(null, new Envelope("batchFast", null, "1", null), new Envelope("batchFast", null, "2", null));
+
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof WebSocketServiceException);
+			Assert.assertEquals(ActionInvokingWebSocket.INVALID_BATCH_ERROR_CODE, ((WebSocketServiceException)e.getCause()).error.code);
+		}
+
+		Assert.assertTrue(controller.invoked.isEmpty());
+	}
+
+	private void sendBatch(String ordering, Envelope... envelopes) throws Exception {
+		List<Header> headers = null;
+
+		if (ordering != null) {
+			headers = Collections.singletonList(new Header(WebSocketBatchOrdering.HEADER, Collections.singletonList(ordering)));
+		}
+
+		Envelope batch = new Envelope("batch", null, "b", headers, null);
+		batch.envelopes = new ArrayList<>();
+
+		Collections.addAll(batch.envelopes, envelopes);
+
+		byte[] frame = serDe.serialize(batch);
+
+		webSocket.onWebSocketBinary(frame, 0, frame.length);
+	}
+
+	private <T> T deserialize(Envelope envelope, Class<T> clazz) throws Exception {
+		return serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(), envelope.payload.remaining(), clazz);
+	}
+
+	private Envelope awaitReply() throws Exception {
+		ArgumentCaptor<ByteBuffer> frames = ArgumentCaptor.forClass(ByteBuffer.class);
+
+		Mockito.verify(remote, Mockito.timeout(5000).times(1)).sendBytes(frames.capture(), Mockito.any(WriteCallback.class));
+
+		ByteBuffer frame = frames.getValue();
+
+		return serDe.deserialize(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), Envelope.class);
+	}
+
+	@WebSocketController
+	public static class BatchWebSocketController {
+		private final List<String> invoked = Collections.synchronizedList(new ArrayList<String>());
+
+		@ActionMapping("batchSlow")
+		public BatchMessage slow() throws InterruptedException {
+			Thread.sleep(200);
+
+			invoked.add("slow");
+
+			return new BatchMessage("slow");
+		}
+
+		@ActionMapping("batchFast")
+		public BatchMessage fast() {
+			invoked.add("fast");
+
+			return new BatchMessage("fast");
+		}
+	}
+
+	public static class BatchMessage {
+		public String value;
+
+		public BatchMessage() {
+		}
+
+		public BatchMessage(String value) {
+			this.value = value;
+		}
+	}
+}
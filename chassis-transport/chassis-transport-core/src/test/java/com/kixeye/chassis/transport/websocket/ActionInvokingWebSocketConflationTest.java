@@ -0,0 +1,175 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.internal.util.reflection.Whitebox;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.codahale.metrics.MetricRegistry;
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+
+/**
+ * Tests the conflated messages of {@link ActionInvokingWebSocket}
+ *
+ * @author ebahtijaragic
+ */
+public class ActionInvokingWebSocketConflationTest {
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+
+	private AnnotationConfigWebApplicationContext context;
+
+	private RemoteEndpoint remote;
+
+	private ActionInvokingWebSocket webSocket;
+
+	private WebSocketSession webSocketSession;
+
+	@Before
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(MetricRegistry.class);
+		context.register(TransportConfiguration.class);
+		context.refresh();
+
+		context.getBean(WebSocketMessageRegistry.class).registerType("positionMessage", PositionMessage.class);
+
+		remote = Mockito.mock(RemoteEndpoint.class);
+
+		Session session = Mockito.mock(Session.class);
+		Mockito.when(session.getRemote()).thenReturn(remote);
+
+		webSocket = context.getBean(ActionInvokingWebSocket.class);
+		webSocket.setSerDe(serDe);
+		webSocket.onWebSocketConnect(session);
+
+		webSocketSession = context.getBean(WebSocketSessionRegistry.class).getSessions().iterator().next();
+	}
+
+	@After
+	public void tearDown() {
+		context.close();
+	}
+
+	@Test
+	public void testConflatesByKey() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			webSocketSession.sendConflatedMessage("position", "unit-1", new PositionMessage(i));
+		}
+
+		webSocketSession.sendConflatedMessage("position", "unit-2", new PositionMessage(100));
+
+		List<Envelope> envelopes = awaitFrames(1);
+
+		Assert.assertEquals(ActionInvokingWebSocket.CONFLATED_ACTION, envelopes.get(0).action);
+		Assert.assertEquals(2, envelopes.get(0).envelopes.size());
+		Assert.assertEquals(9, deserialize(envelopes.get(0).envelopes.get(0), PositionMessage.class).x);
+		Assert.assertEquals(100, deserialize(envelopes.get(0).envelopes.get(1), PositionMessage.class).x);
+
+		MetricRegistry metricRegistry = context.getBean(MetricRegistry.class);
+
+		Assert.assertEquals(9, metricRegistry.getMeters().get(MetricRegistry.name(WebSocketConflationMonitor.class, "conflated-messages")).getCount());
+		Assert.assertEquals(2, metricRegistry.getMeters().get(MetricRegistry.name(WebSocketConflationMonitor.class, "flushed-messages")).getCount());
+	}
+
+	@Test
+	public void testSingleMessageIsNotWrapped() throws Exception {
+		webSocketSession.sendConflatedMessage("position", "unit-1", new PositionMessage(1));
+
+		List<Envelope> envelopes = awaitFrames(1);
+
+		Assert.assertEquals("position", envelopes.get(0).action);
+		Assert.assertEquals(1, deserialize(envelopes.get(0), PositionMessage.class).x);
+
+		// the next message waits for another tick
+		webSocketSession.sendConflatedMessage("position", "unit-1", new PositionMessage(2));
+
+		Assert.assertEquals(2, deserialize(awaitFrames(2).get(1), PositionMessage.class).x);
+	}
+
+	@Test
+	public void testRejectedFlushIsRetried() throws Exception {
+		final AtomicInteger rejections = new AtomicInteger();
+
+		// rejects the first flush, then runs the rest right away
+		Whitebox.setInternalState(webSocket, "responseMailbox", new WebSocketSessionMailbox(new Executor() {
+			public void execute(Runnable command) {
+				if (rejections.getAndIncrement() == 0) {
+					throw new RejectedExecutionException();
+				}
+
+				command.run();
+			}
+		}, null));
+
+		webSocketSession.sendConflatedMessage("position", "unit-1", new PositionMessage(1));
+
+		List<Envelope> envelopes = awaitFrames(1);
+
+		Assert.assertTrue(rejections.get() > 1);
+		Assert.assertEquals(1, deserialize(envelopes.get(0), PositionMessage.class).x);
+	}
+
+	private <T> T deserialize(Envelope envelope, Class<T> clazz) throws Exception {
+		return serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(), envelope.payload.remaining(), clazz);
+	}
+
+	private List<Envelope> awaitFrames(int count) throws Exception {
+		ArgumentCaptor<ByteBuffer> frames = ArgumentCaptor.forClass(ByteBuffer.class);
+
+		Mockito.verify(remote, Mockito.timeout(5000).atLeast(count)).sendBytes(frames.capture(), Mockito.any(WriteCallback.class));
+
+		List<Envelope> envelopes = new ArrayList<>();
+
+		for (ByteBuffer frame : frames.getAllValues()) {
+			envelopes.add(serDe.deserialize(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), Envelope.class));
+		}
+
+		return envelopes;
+	}
+
+	public static class PositionMessage {
+		public int x;
+
+		public PositionMessage() {
+		}
+
+		public PositionMessage(int x) {
+			this.x = x;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * Tests streaming content in and out of {@link ActionInvokingWebSocket}
+ *
+ * @author ebahtijaragic
+ */
+public class ActionInvokingWebSocketContentTest {
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+
+	private AnnotationConfigWebApplicationContext context;
+
+	private Session session;
+
+	private RemoteEndpoint remote;
+
+	private ActionInvokingWebSocket webSocket;
+
+	@Before
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(ContentWebSocketController.class);
+		context.refresh();
+
+		context.getBean(WebSocketMessageRegistry.class).registerType("contentMessage", ContentMessage.class);
+
+		remote = Mockito.mock(RemoteEndpoint.class);
+
+		session = Mockito.mock(Session.class);
+		Mockito.when(session.getRemote()).thenReturn(remote);
+
+		webSocket = context.getBean(ActionInvokingWebSocket.class);
+		webSocket.setSerDe(serDe);
+		webSocket.onWebSocketConnect(session);
+	}
+
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.stream.fragmentSize");
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.stream.maxBufferedBytes");
+
+		context.close();
+	}
+
+	@Test
+	public void testStreamsInboundFragments() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.stream.maxBufferedBytes", "8");
+
+		WebSocketStreamingEventDriver driver = new WebSocketStreamingEventDriver(WebSocketPolicy.newServerPolicy(), webSocket);
+
+		// the envelope goes first, the content follows in the continuation frames
+		driver.onBinaryFrame(ByteBuffer.wrap(serDe.serialize(new Envelope("contentLength", null, "1", null))), false);
+
+		for (int i = 0; i < 9; i++) {
+			driver.onContinuationFrame(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), false);
+		}
+
+		driver.onContinuationFrame(ByteBuffer.wrap(new byte[] { 6 }), true);
+
+		List<Envelope> envelopes = awaitFrames(1);
+
+		Assert.assertEquals("1", envelopes.get(0).transactionId);
+		Assert.assertEquals(46, deserialize(envelopes.get(0), ContentMessage.class).length);
+	}
+
+	@Test
+	public void testOnlyStreamsOptedInActions() throws Exception {
+		Assert.assertFalse(webSocket.startStreamedMessage(ByteBuffer.wrap(serDe.serialize(new Envelope("wholeLength", null, "1", null)))));
+		Assert.assertFalse(webSocket.startStreamedMessage(ByteBuffer.wrap(new byte[] { '{', '"', 'a' })));
+	}
+
+	@Test
+	public void testStreamsOutboundFragments() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.stream.fragmentSize", "4");
+
+		final List<byte[]> fragments = new ArrayList<>();
+		final List<Boolean> lastFlags = new ArrayList<>();
+
+		Mockito.doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				ByteBuffer fragment = (ByteBuffer)invocation.getArguments()[0];
+
+				byte[] bytes = new byte[fragment.remaining()];
+				fragment.get(bytes);
+
+				fragments.add(bytes);
+				lastFlags.add((Boolean)invocation.getArguments()[1]);
+
+				// messages sent mid stream wait for it to end
+				if (fragments.size() == 1) {
+					webSocket.sendMessage("held", null, new ContentMessage(0));
+
+					Mockito.verify(remote, Mockito.never()).sendBytes(Mockito.any(ByteBuffer.class), Mockito.any(WriteCallback.class));
+				}
+
+				return null;
+			}
+		}).when(remote).sendPartialBytes(Mockito.any(ByteBuffer.class), Mockito.anyBoolean());
+
+		webSocket.streamContent(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 })).get();
+
+		Assert.assertEquals(3, fragments.size());
+		Assert.assertArrayEquals(new byte[] { 9, 10 }, fragments.get(2));
+		Assert.assertEquals(false, lastFlags.get(1));
+		Assert.assertEquals(true, lastFlags.get(2));
+
+		Assert.assertEquals("held", awaitFrames(1).get(0).action);
+	}
+
+	@Test
+	public void testInterruptedStreamFailsHeldFrames() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.stream.fragmentSize", "4");
+
+		final List<Future<Void>> held = new ArrayList<>();
+
+		Mockito.doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				if (held.isEmpty()) {
+					held.add(webSocket.sendMessage("held", null, new ContentMessage(0)));
+
+					return null;
+				}
+
+				throw new IOException("Connection reset.");
+			}
+		}).when(remote).sendPartialBytes(Mockito.any(ByteBuffer.class), Mockito.anyBoolean());
+
+		try {
+			webSocket.streamContent(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }));
+
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertEquals("Connection reset.", e.getMessage());
+		}
+
+		// the held message must not follow the fragments of a message that never ended
+		Mockito.verify(remote, Mockito.never()).sendBytes(Mockito.any(ByteBuffer.class), Mockito.any(WriteCallback.class));
+		Mockito.verify(session).close(Mockito.eq(StatusCode.SERVER_ERROR), Mockito.anyString());
+
+		try {
+			held.get(0).get();
+
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	private <T> T deserialize(Envelope envelope, Class<T> clazz) throws Exception {
+		return serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(), envelope.payload.remaining(), clazz);
+	}
+
+	private List<Envelope> awaitFrames(int count) throws Exception {
+		ArgumentCaptor<ByteBuffer> frames = ArgumentCaptor.forClass(ByteBuffer.class);
+
+		Mockito.verify(remote, Mockito.timeout(5000).atLeast(count)).sendBytes(frames.capture(), Mockito.any(WriteCallback.class));
+
+		List<Envelope> envelopes = new ArrayList<>();
+
+		for (ByteBuffer frame : frames.getAllValues()) {
+			envelopes.add(serDe.deserialize(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), Envelope.class));
+		}
+
+		return envelopes;
+	}
+
+	@WebSocketController
+	public static class ContentWebSocketController {
+		@ActionMapping("contentLength")
+		public ContentMessage contentLength(@ActionPayload InputStream content) throws Exception {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+			IOUtils.copy(content, bytes);
+
+			return new ContentMessage(bytes.size());
+		}
+
+		@ActionMapping("wholeLength")
+		public ContentMessage wholeLength(@ActionPayload ContentMessage content) {
+			return content;
+		}
+	}
+
+	public static class ContentMessage {
+		public int length;
+
+		public ContentMessage() {
+		}
+
+		public ContentMessage(int length) {
+			this.length = length;
+		}
+	}
+}
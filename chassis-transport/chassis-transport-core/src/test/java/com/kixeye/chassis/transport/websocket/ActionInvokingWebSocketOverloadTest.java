@@ -0,0 +1,276 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * Tests the inbound overload and slow consumer policies of {@link ActionInvokingWebSocket}
+ *
+ * @author ebahtijaragic
+ */
+public class ActionInvokingWebSocketOverloadTest {
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+
+	private AnnotationConfigWebApplicationContext context;
+
+	private Session session;
+	private SuspendToken suspendToken;
+
+	private ActionInvokingWebSocket webSocket;
+	private List<WebSocketActionResult<Object>> pendingResults;
+
+	@Before
+	public void setUp() {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.maxInFlightActions", "2");
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(HoldingWebSocketController.class);
+		context.refresh();
+
+		suspendToken = Mockito.mock(SuspendToken.class);
+
+		session = Mockito.mock(Session.class);
+		Mockito.when(session.getRemote()).thenReturn(Mockito.mock(RemoteEndpoint.class));
+		Mockito.when(session.suspend()).thenReturn(suspendToken);
+
+		pendingResults = context.getBean(HoldingWebSocketController.class).pendingResults;
+
+		webSocket = context.getBean(ActionInvokingWebSocket.class);
+		webSocket.setSerDe(serDe);
+		webSocket.onWebSocketConnect(session);
+	}
+
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.session.maxInFlightActions");
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.session.overloadPolicy");
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.session.maxOutboundMessages");
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.session.slowConsumerPolicy");
+
+		context.close();
+	}
+
+	@Test
+	public void testRejectWhenTooManyInFlight() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.overloadPolicy", "reject");
+
+		sendHold("1");
+		sendHold("2");
+
+		try {
+			sendHold("3");
+
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof WebSocketServiceException);
+			Assert.assertEquals(ActionInvokingWebSocket.SERVICE_BUSY_ERROR_CODE, ((WebSocketServiceException)e.getCause()).error.code);
+		}
+
+		Assert.assertEquals(2, webSocket.getInFlightActions());
+
+		completeResults(1);
+
+		awaitInFlightActions(1);
+
+		sendHold("4");
+
+		Assert.assertEquals(2, webSocket.getInFlightActions());
+	}
+
+	@Test
+	public void testPauseWhenTooManyInFlight() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.overloadPolicy", "pause");
+
+		sendHold("1");
+
+		Mockito.verify(session, Mockito.never()).suspend();
+
+		sendHold("2");
+
+		Mockito.verify(session, Mockito.times(1)).suspend();
+
+		// frames that were already read are still accepted
+		sendHold("3");
+
+		Mockito.verify(session, Mockito.times(1)).suspend();
+		Assert.assertEquals(3, webSocket.getInFlightActions());
+
+		completeResults(1);
+
+		awaitInFlightActions(2);
+
+		Mockito.verify(suspendToken, Mockito.never()).resume();
+
+		completeResults(1);
+
+		awaitInFlightActions(1);
+
+		Mockito.verify(suspendToken, Mockito.times(1)).resume();
+	}
+
+	@Test
+	public void testCloseWhenTooManyInFlight() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.overloadPolicy", "close");
+
+		sendHold("1");
+		sendHold("2");
+		sendHold("3");
+
+		Mockito.verify(session).close(Mockito.eq(StatusCode.TRY_AGAIN_LATER), Mockito.anyString());
+		Assert.assertEquals(2, webSocket.getInFlightActions());
+	}
+
+	@Test
+	public void testDropLowPriorityForSlowConsumer() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.maxOutboundMessages", "2");
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.slowConsumerPolicy", "drop");
+
+		// the mocked remote never completes a write
+		Assert.assertFalse(sendUpdate(WebSocketMessagePriority.NORMAL).isCancelled());
+		Assert.assertFalse(sendUpdate(WebSocketMessagePriority.LOW).isCancelled());
+		Assert.assertEquals(2, webSocket.getWebSocketSession().getOutboundMessages());
+
+		Assert.assertTrue(sendUpdate(WebSocketMessagePriority.LOW).isCancelled());
+		Mockito.verify(session, Mockito.never()).disconnect();
+
+		Assert.assertTrue(sendUpdate(WebSocketMessagePriority.NORMAL).isCancelled());
+		Mockito.verify(session, Mockito.times(1)).disconnect();
+	}
+
+	@Test
+	public void testDisconnectSlowConsumer() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.maxOutboundMessages", "2");
+		ConfigurationManager.getConfigInstance().setProperty("websocket.session.slowConsumerPolicy", "disconnect");
+
+		sendUpdate(WebSocketMessagePriority.LOW);
+		sendUpdate(WebSocketMessagePriority.LOW);
+
+		Mockito.verify(session, Mockito.never()).disconnect();
+
+		Assert.assertTrue(sendUpdate(WebSocketMessagePriority.LOW).isCancelled());
+		Assert.assertTrue(sendUpdate(WebSocketMessagePriority.LOW).isCancelled());
+		Mockito.verify(session, Mockito.times(1)).disconnect();
+	}
+
+	@Test
+	public void testUnlimitedByDefault() throws Exception {
+		for (int i = 0; i < 2000; i++) {
+			Assert.assertFalse(sendUpdate(WebSocketMessagePriority.NORMAL).isCancelled());
+		}
+
+		Assert.assertEquals(2000, webSocket.getWebSocketSession().getOutboundMessages());
+		Mockito.verify(session, Mockito.never()).disconnect();
+	}
+
+	@Test
+	public void testFailedSendRetiresFrame() throws Exception {
+		RemoteEndpoint remote = session.getRemote();
+
+		Mockito.doThrow(new IllegalStateException("Closed")).when(remote).sendBytes(Mockito.any(ByteBuffer.class), Mockito.any(WriteCallback.class));
+
+		Future<Void> future = sendUpdate(WebSocketMessagePriority.NORMAL);
+
+		Assert.assertTrue(future.isDone());
+		Assert.assertEquals(0, webSocket.getWebSocketSession().getOutboundMessages());
+		Assert.assertEquals(0, webSocket.getWebSocketSession().getOutboundBytes());
+	}
+
+	private Future<Void> sendUpdate(WebSocketMessagePriority priority) throws Exception {
+		return webSocket.sendMessage("update", null, "update", ByteBuffer.wrap(new byte[] { 1, 2, 3 }), priority);
+	}
+
+	private void sendHold(String transactionId) throws Exception {
+		byte[] frame = serDe.serialize(new Envelope("hold", null, transactionId, null));
+
+		webSocket.onWebSocketBinary(frame, 0, frame.length);
+	}
+
+	private void completeResults(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			WebSocketActionResult<Object> result = null;
+
+			long timeout = System.currentTimeMillis() + 5000;
+
+			while (result == null && System.currentTimeMillis() < timeout) {
+				synchronized (pendingResults) {
+					if (!pendingResults.isEmpty()) {
+						result = pendingResults.remove(0);
+					}
+				}
+
+				if (result == null) {
+					Thread.sleep(5);
+				}
+			}
+
+			Assert.assertNotNull(result);
+
+			result.setResult(null);
+		}
+	}
+
+	private void awaitInFlightActions(int inFlightActions) throws Exception {
+		long timeout = System.currentTimeMillis() + 5000;
+
+		while (webSocket.getInFlightActions() != inFlightActions && System.currentTimeMillis() < timeout) {
+			Thread.sleep(5);
+		}
+
+		Assert.assertEquals(inFlightActions, webSocket.getInFlightActions());
+	}
+
+	@WebSocketController
+	public static class HoldingWebSocketController {
+		private final List<WebSocketActionResult<Object>> pendingResults = new ArrayList<>();
+
+		@ActionMapping("hold")
+		public WebSocketActionResult<Object> hold() {
+			WebSocketActionResult<Object> result = new WebSocketActionResult<>();
+
+			synchronized (pendingResults) {
+				pendingResults.add(result);
+			}
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.Header;
+import com.kixeye.chassis.transport.dto.ServiceError;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * Tests the streaming of Observable responses in {@link ActionInvokingWebSocket}
+ *
+ * @author ebahtijaragic
+ */
+public class ActionInvokingWebSocketStreamTest {
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+
+	private AnnotationConfigWebApplicationContext context;
+
+	private RemoteEndpoint remote;
+
+	private ActionInvokingWebSocket webSocket;
+	private StreamingWebSocketController controller;
+
+	@Before
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(StreamingWebSocketController.class);
+		context.refresh();
+
+		context.getBean(WebSocketMessageRegistry.class).registerType("streamMessage", StreamMessage.class);
+
+		remote = Mockito.mock(RemoteEndpoint.class);
+
+		Session session = Mockito.mock(Session.class);
+		Mockito.when(session.getRemote()).thenReturn(remote);
+
+		controller = context.getBean(StreamingWebSocketController.class);
+
+		webSocket = context.getBean(ActionInvokingWebSocket.class);
+		webSocket.setSerDe(serDe);
+		webSocket.onWebSocketConnect(session);
+	}
+
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.stream.maxBufferedMessages");
+
+		context.close();
+	}
+
+	@Test
+	public void testStreamWithCredits() throws Exception {
+		send(new Envelope("count", null, "1", Collections.singletonList(header(WebSocketStreamMonitor.CREDITS_HEADER, "2")), null));
+
+		List<Envelope> envelopes = awaitFrames(2);
+
+		Assert.assertEquals(1, deserialize(envelopes.get(0), StreamMessage.class).value);
+		Assert.assertEquals(2, deserialize(envelopes.get(1), StreamMessage.class).value);
+		Assert.assertEquals("1", envelopes.get(1).transactionId);
+
+		// waits for more credits
+		Thread.sleep(100);
+
+		Assert.assertEquals(2, awaitFrames(2).size());
+
+		send(new Envelope("count", null, "1", Collections.singletonList(header(WebSocketStreamMonitor.STREAM_HEADER, WebSocketStreamMonitor.STREAM_REQUEST)), null));
+
+		Assert.assertEquals(3, awaitFrames(3).size());
+
+		List<Header> headers = new ArrayList<>();
+		headers.add(header(WebSocketStreamMonitor.STREAM_HEADER, WebSocketStreamMonitor.STREAM_REQUEST));
+		headers.add(header(WebSocketStreamMonitor.CREDITS_HEADER, "10"));
+
+		send(new Envelope("count", null, "1", headers, null));
+
+		envelopes = awaitFrames(6);
+
+		Assert.assertEquals(5, deserialize(envelopes.get(4), StreamMessage.class).value);
+		Assert.assertNull(envelopes.get(5).payload);
+		Assert.assertEquals("1", envelopes.get(5).transactionId);
+		Assert.assertEquals(WebSocketStreamMonitor.STREAM_COMPLETE, envelopes.get(5).headers.get(0).value.get(0));
+
+		Assert.assertEquals(0, context.getBean(WebSocketStreamMonitor.class).getActiveStreams());
+	}
+
+	@Test
+	public void testCancelStream() throws Exception {
+		send(new Envelope("endless", null, "1", null));
+
+		awaitFrames(16);
+
+		Assert.assertFalse(controller.unsubscribed.get());
+
+		send(new Envelope("endless", null, "1", Collections.singletonList(header(WebSocketStreamMonitor.STREAM_HEADER, WebSocketStreamMonitor.STREAM_CANCEL)), null));
+
+		List<Envelope> envelopes = awaitFrames(17);
+
+		Assert.assertEquals(WebSocketStreamMonitor.STREAM_CANCELLED, envelopes.get(16).headers.get(0).value.get(0));
+		Assert.assertTrue(controller.unsubscribed.get());
+		Assert.assertEquals(0, context.getBean(WebSocketStreamMonitor.class).getActiveStreams());
+	}
+
+	@Test
+	public void testStreamOverflow() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.stream.maxBufferedMessages", "4");
+
+		send(new Envelope("endless", null, "1", Collections.singletonList(header(WebSocketStreamMonitor.CREDITS_HEADER, "1")), null));
+
+		List<Envelope> envelopes = awaitFrames(2);
+
+		Assert.assertEquals(WebSocketStreamMonitor.STREAM_ERROR, envelopes.get(1).headers.get(0).value.get(0));
+		Assert.assertEquals(WebSocketStreamMonitor.STREAM_OVERFLOW_ERROR_CODE, deserialize(envelopes.get(1), ServiceError.class).code);
+		Assert.assertTrue(controller.unsubscribed.get());
+	}
+
+	@Test
+	public void testCloseCancelsStreams() throws Exception {
+		send(new Envelope("endless", null, "1", null));
+
+		awaitFrames(16);
+
+		webSocket.onWebSocketClose(1000, "done");
+
+		Assert.assertTrue(controller.unsubscribed.get());
+		Assert.assertEquals(0, context.getBean(WebSocketStreamMonitor.class).getActiveStreams());
+	}
+
+	private static Header header(String name, String value) {
+		return new Header(name, Collections.singletonList(value));
+	}
+
+	private void send(Envelope envelope) throws Exception {
+		byte[] frame = serDe.serialize(envelope);
+
+		webSocket.onWebSocketBinary(frame, 0, frame.length);
+	}
+
+	private <T> T deserialize(Envelope envelope, Class<T> clazz) throws Exception {
+		return serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(), envelope.payload.remaining(), clazz);
+	}
+
+	private List<Envelope> awaitFrames(int count) throws Exception {
+		ArgumentCaptor<ByteBuffer> frames = ArgumentCaptor.forClass(ByteBuffer.class);
+
+		Mockito.verify(remote, Mockito.timeout(5000).atLeast(count)).sendBytes(frames.capture(), Mockito.any(WriteCallback.class));
+
+		List<Envelope> envelopes = new ArrayList<>();
+
+		for (ByteBuffer frame : frames.getAllValues()) {
+			envelopes.add(serDe.deserialize(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), Envelope.class));
+		}
+
+		return envelopes;
+	}
+
+	@WebSocketController
+	public static class StreamingWebSocketController {
+		private final AtomicBoolean unsubscribed = new AtomicBoolean(false);
+
+		@ActionMapping(value = "count", streamResponse = true)
+		public Observable<StreamMessage> count() {
+			return Observable.from(new StreamMessage(1), new StreamMessage(2), new StreamMessage(3), new StreamMessage(4), new StreamMessage(5));
+		}
+
+		@ActionMapping(value = "endless", streamResponse = true)
+		public Observable<StreamMessage> endless() {
+			return Observable.create(new Observable.OnSubscribe<StreamMessage>() {
+				public void call(final Subscriber<? super StreamMessage> subscriber) {
+					subscriber.add(Subscriptions.create(new Action0() {
+						public void call() {
+							unsubscribed.set(true);
+						}
+					}));
+
+					new Thread() {
+						public void run() {
+							for (int i = 0; !subscriber.isUnsubscribed(); i++) {
+								subscriber.onNext(new StreamMessage(i));
+
+								try {
+									Thread.sleep(1);
+								} catch (InterruptedException e) {
+									return;
+								}
+							}
+						}
+					}.start();
+				}
+			});
+		}
+	}
+
+	public static class StreamMessage {
+		public int value;
+
+		public StreamMessage() {
+		}
+
+		public StreamMessage(int value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.ServiceError;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * Tests the timeouts and cancellation of pending actions in {@link ActionInvokingWebSocket}
+ *
+ * @author ebahtijaragic
+ */
+public class ActionInvokingWebSocketTimeoutTest {
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+
+	private AnnotationConfigWebApplicationContext context;
+
+	private RemoteEndpoint remote;
+
+	private ActionInvokingWebSocket webSocket;
+	private PendingWebSocketController controller;
+
+	@Before
+	public void setUp() {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.action.timeout", "0");
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+		properties.put("websocket.action.timeoutTickDuration", "10");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(PendingWebSocketController.class);
+		context.refresh();
+
+		context.getBean(WebSocketMessageRegistry.class).registerType("pendingMessage", PendingMessage.class);
+
+		remote = Mockito.mock(RemoteEndpoint.class);
+
+		Session session = Mockito.mock(Session.class);
+		Mockito.when(session.getRemote()).thenReturn(remote);
+
+		controller = context.getBean(PendingWebSocketController.class);
+
+		webSocket = context.getBean(ActionInvokingWebSocket.class);
+		webSocket.setSerDe(serDe);
+		webSocket.onWebSocketConnect(session);
+	}
+
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.action.timeout");
+
+		context.close();
+	}
+
+	@Test
+	public void testMappingTimeout() throws Exception {
+		send("fast", "1");
+
+		ServiceError error = awaitError();
+
+		Assert.assertEquals(ActionInvokingWebSocket.TIMEOUT_ERROR_CODE, error.code);
+		awaitCancelled(controller.awaitFuture());
+
+		awaitInFlightActions(0);
+	}
+
+	@Test
+	public void testDefaultTimeout() throws Exception {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.action.timeout", "50");
+
+		send("slow", "1");
+
+		Assert.assertEquals(ActionInvokingWebSocket.TIMEOUT_ERROR_CODE, awaitError().code);
+		awaitCancelled(controller.awaitFuture());
+	}
+
+	@Test
+	public void testCompletedActionDoesNotTimeOut() throws Exception {
+		send("fast", "1");
+
+		controller.awaitFuture().set(new PendingMessage());
+
+		awaitInFlightActions(0);
+
+		Thread.sleep(200);
+
+		Mockito.verify(remote, Mockito.times(1)).sendBytes(Mockito.any(ByteBuffer.class), Mockito.any(WriteCallback.class));
+	}
+
+	@Test
+	public void testCloseCancelsPendingActions() throws Exception {
+		send("slow", "1");
+
+		SettableFuture<PendingMessage> future = controller.awaitFuture();
+
+		webSocket.onWebSocketClose(1000, "done");
+
+		Assert.assertTrue(future.isCancelled());
+
+		awaitInFlightActions(0);
+
+		Mockito.verify(remote, Mockito.never()).sendBytes(Mockito.any(ByteBuffer.class), Mockito.any(WriteCallback.class));
+	}
+
+	@Test
+	public void testLateResultAfterTimeoutIsDropped() throws Exception {
+		send("late", "tx-late");
+
+		Assert.assertEquals(ActionInvokingWebSocket.TIMEOUT_ERROR_CODE, awaitError().code);
+
+		awaitInFlightActions(0);
+
+		// reuses the invocation of the action that timed out
+		send("held", "tx-pending");
+
+		awaitInFlightActions(1);
+
+		// a deferred result can't be cancelled, so the action that timed out still completes it
+		PendingMessage late = new PendingMessage();
+		late.value = "late";
+
+		controller.awaitDeferredResult(0).setResult(late);
+
+		Thread.sleep(200);
+
+		Mockito.verify(remote, Mockito.times(1)).sendBytes(Mockito.any(ByteBuffer.class), Mockito.any(WriteCallback.class));
+		Assert.assertEquals(1, webSocket.getInFlightActions());
+
+		controller.awaitDeferredResult(1).setResult(new PendingMessage());
+
+		awaitInFlightActions(0);
+
+		ArgumentCaptor<ByteBuffer> frames = ArgumentCaptor.forClass(ByteBuffer.class);
+
+		Mockito.verify(remote, Mockito.timeout(5000).times(2)).sendBytes(frames.capture(), Mockito.any(WriteCallback.class));
+
+		ByteBuffer data = frames.getAllValues().get(1);
+
+		Envelope envelope = serDe.deserialize(data.array(), data.arrayOffset() + data.position(), data.remaining(), Envelope.class);
+
+		Assert.assertEquals("tx-pending", envelope.transactionId);
+		Assert.assertEquals("done", serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(),
+				envelope.payload.remaining(), PendingMessage.class).value);
+	}
+
+	private void send(String action, String transactionId) throws Exception {
+		byte[] frame = serDe.serialize(new Envelope(action, null, transactionId, null));
+
+		webSocket.onWebSocketBinary(frame, 0, frame.length);
+	}
+
+	private ServiceError awaitError() throws Exception {
+		ArgumentCaptor<ByteBuffer> frame = ArgumentCaptor.forClass(ByteBuffer.class);
+
+		Mockito.verify(remote, Mockito.timeout(5000)).sendBytes(frame.capture(), Mockito.any(WriteCallback.class));
+
+		ByteBuffer data = frame.getValue();
+
+		Envelope envelope = serDe.deserialize(data.array(), data.arrayOffset() + data.position(), data.remaining(), Envelope.class);
+
+		return serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(), envelope.payload.remaining(), ServiceError.class);
+	}
+
+	private static void awaitCancelled(SettableFuture<?> future) throws Exception {
+		long timeout = System.currentTimeMillis() + 5000;
+
+		while (!future.isCancelled() && System.currentTimeMillis() < timeout) {
+			Thread.sleep(5);
+		}
+
+		Assert.assertTrue(future.isCancelled());
+	}
+
+	private void awaitInFlightActions(int inFlightActions) throws Exception {
+		long timeout = System.currentTimeMillis() + 5000;
+
+		while (webSocket.getInFlightActions() != inFlightActions && System.currentTimeMillis() < timeout) {
+			Thread.sleep(5);
+		}
+
+		Assert.assertEquals(inFlightActions, webSocket.getInFlightActions());
+	}
+
+	@WebSocketController
+	public static class PendingWebSocketController {
+		private volatile SettableFuture<PendingMessage> future;
+
+		private final List<DeferredResult<PendingMessage>> deferredResults = new CopyOnWriteArrayList<>();
+
+		@ActionMapping(value = "fast", timeout = 50)
+		public ListenableFuture<PendingMessage> fast() {
+			return future = SettableFuture.create();
+		}
+
+		@ActionMapping("slow")
+		public ListenableFuture<PendingMessage> slow() {
+			return future = SettableFuture.create();
+		}
+
+		@ActionMapping(value = "late", timeout = 50)
+		public DeferredResult<PendingMessage> late() {
+			return held();
+		}
+
+		@ActionMapping("held")
+		public DeferredResult<PendingMessage> held() {
+			DeferredResult<PendingMessage> deferredResult = new DeferredResult<>();
+
+			deferredResults.add(deferredResult);
+
+			return deferredResult;
+		}
+
+		public DeferredResult<PendingMessage> awaitDeferredResult(int index) throws Exception {
+			long timeout = System.currentTimeMillis() + 5000;
+
+			while (deferredResults.size() <= index && System.currentTimeMillis() < timeout) {
+				Thread.sleep(5);
+			}
+
+			return deferredResults.get(index);
+		}
+
+		public SettableFuture<PendingMessage> awaitFuture() throws Exception {
+			long timeout = System.currentTimeMillis() + 5000;
+
+			while (future == null && System.currentTimeMillis() < timeout) {
+				Thread.sleep(5);
+			}
+
+			Assert.assertNotNull(future);
+
+			return future;
+		}
+	}
+
+	public static class PendingMessage {
+		public String value = "done";
+	}
+}
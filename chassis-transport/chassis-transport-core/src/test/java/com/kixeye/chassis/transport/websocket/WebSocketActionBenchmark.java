@@ -0,0 +1,116 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.kixeye.chassis.transport.dto.Envelope;
+
+/**
+ * Compares {@link WebSocketAction#invoke(Object, RawWebSocketMessage, WebSocketEnvelope, WebSocketSession)} with the
+ * reflective invocation it replaced.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=com.kixeye.chassis.transport.websocket.WebSocketActionBenchmark -Dexec.classpathScope=test
+ *
+ * @author ebahtijaragic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketActionBenchmark {
+	private final TestHandler handler = new TestHandler();
+	private final WebSocketEnvelope envelope = new WebSocketEnvelope(new Envelope("benchmark", null, "txId", null));
+	private final WebSocketSession session = new WebSocketSession(null);
+
+	private WebSocketAction action;
+	private ReflectiveAction reflectiveAction;
+
+	@Setup
+	public void setup() throws Exception {
+		Method method = TestHandler.class.getMethod("handle", WebSocketSession.class, String.class, WebSocketEnvelope.class);
+
+		action = new WebSocketAction(method, null);
+		reflectiveAction = new ReflectiveAction(method);
+	}
+
+	@Benchmark
+	public Object methodHandle() throws Exception {
+		return action.invokeForResult(handler, null, envelope, session);
+	}
+
+	@Benchmark
+	public Object reflective() throws Exception {
+		return reflectiveAction.invoke(handler, envelope, session);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(WebSocketActionBenchmark.class.getSimpleName()).build()).run();
+	}
+
+	public static class TestHandler {
+		private long invocations = 0;
+
+		public void handle(WebSocketSession session, @ActionTransactionId String transactionId, WebSocketEnvelope envelope) {
+			invocations++;
+		}
+	}
+
+	/**
+	 * The previous invocation path: a parameter lookup per invocation and {@link Method#invoke(Object, Object...)}.
+	 */
+	private static class ReflectiveAction {
+		private final Method method;
+		private final Map<String, Integer> parameterTypes = new HashMap<>();
+
+		public ReflectiveAction(Method method) {
+			this.method = method;
+
+			parameterTypes.put("WEB_SOCKET_SESSION", 0);
+			parameterTypes.put("TRANSACTION_ID", 1);
+			parameterTypes.put("ENVELOPE", 2);
+		}
+
+		public Object invoke(Object handler, WebSocketEnvelope envelope, WebSocketSession session) throws Exception {
+			Object[] parameters = new Object[method.getParameterTypes().length];
+
+			Integer payloadParamIndex = parameterTypes.get("ACTION_PAYLOAD");
+			if (payloadParamIndex != null) {
+				parameters[payloadParamIndex] = null;
+			}
+
+			Integer sessionParamIndex = parameterTypes.get("WEB_SOCKET_SESSION");
+			if (sessionParamIndex != null) {
+				parameters[sessionParamIndex] = session;
+			}
+
+			Integer transactionParamIndex = parameterTypes.get("TRANSACTION_ID");
+			if (transactionParamIndex != null) {
+				parameters[transactionParamIndex] = envelope.getTransactionId();
+			}
+
+			Integer envelopeParamIndex = parameterTypes.get("ENVELOPE");
+			if (envelopeParamIndex != null) {
+				parameters[envelopeParamIndex] = envelope;
+			}
+
+			return method.invoke(handler, parameters);
+		}
+	}
+}
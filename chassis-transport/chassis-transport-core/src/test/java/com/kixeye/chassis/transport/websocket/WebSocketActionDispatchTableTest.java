@@ -0,0 +1,111 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link WebSocketActionDispatchTable}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketActionDispatchTableTest {
+	private final WebSocketAction stuffAction = createAction("stuff", Stuff.class);
+	private final WebSocketAction pingAction = createAction("ping");
+	private final WebSocketAction otherAction = createAction("other", Other.class);
+	private final WebSocketAction envelopeAction = createAction("envelope", WebSocketEnvelope.class);
+
+	@Test
+	public void testKnownActionAndType() {
+		WebSocketActionDispatchTable.Entry entry = createTable().lookup("stuff", Stuff.class);
+
+		Assert.assertEquals(Stuff.class, entry.getMessageClass());
+		Assert.assertFalse(entry.isInvalidTypeId());
+		Assert.assertEquals(Arrays.asList(stuffAction, envelopeAction), Arrays.asList(entry.getActions()));
+	}
+
+	@Test
+	public void testKnownActionWithoutType() {
+		WebSocketActionDispatchTable table = createTable();
+
+		Assert.assertTrue(table.lookup("stuff", null).isInvalidTypeId());
+
+		WebSocketActionDispatchTable.Entry entry = table.lookup("ping", null);
+
+		Assert.assertNull(entry.getMessageClass());
+		Assert.assertFalse(entry.isInvalidTypeId());
+		Assert.assertEquals(Arrays.asList(pingAction, envelopeAction), Arrays.asList(entry.getActions()));
+	}
+
+	@Test
+	public void testUnknownActionFallsBackToWildcard() {
+		WebSocketActionDispatchTable table = createTable();
+
+		WebSocketActionDispatchTable.Entry entry = table.lookup("unknown", Stuff.class);
+
+		Assert.assertEquals(Stuff.class, entry.getMessageClass());
+		Assert.assertEquals(Arrays.asList(envelopeAction), Arrays.asList(entry.getActions()));
+
+		Assert.assertSame(entry, table.lookup("unknown", Stuff.class));
+		Assert.assertEquals(Arrays.asList(envelopeAction), Arrays.asList(table.lookup(null, null).getActions()));
+	}
+
+	@Test
+	public void testMismatchedType() {
+		WebSocketActionDispatchTable.Entry entry = createTable().lookup("ping", Stuff.class);
+
+		Assert.assertFalse(entry.isInvalidTypeId());
+		Assert.assertEquals(Arrays.asList(envelopeAction), Arrays.asList(entry.getActions()));
+	}
+
+	@Test
+	public void testTypeRegisteredAfterBuild() {
+		WebSocketActionDispatchTable table = createTable();
+
+		WebSocketActionDispatchTable.Entry entry = table.lookup("other", Other.class);
+
+		Assert.assertEquals(Other.class, entry.getMessageClass());
+		Assert.assertEquals(Arrays.asList(otherAction, envelopeAction), Arrays.asList(entry.getActions()));
+		Assert.assertSame(entry, table.lookup("other", Other.class));
+	}
+
+	private WebSocketActionDispatchTable createTable() {
+		Map<String, Collection<WebSocketAction>> actions = new HashMap<>();
+		actions.put("stuff", Arrays.asList(stuffAction));
+		actions.put("ping", Arrays.asList(pingAction));
+		actions.put("other", Arrays.asList(otherAction));
+		actions.put(WebSocketMessageMappingRegistry.WILDCARD_ACTION, Arrays.<WebSocketAction>asList(envelopeAction));
+
+		return new WebSocketActionDispatchTable(actions);
+	}
+
+	private static WebSocketAction createAction(String methodName, Class<?>... parameterTypes) {
+		try {
+			return new WebSocketAction(WebSocketActionDispatchTableTest.class.getMethod(methodName, parameterTypes), null);
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void stuff(@ActionPayload Stuff stuff) {
+	}
+
+	public void ping() {
+	}
+
+	public void other(@ActionPayload Other other) {
+	}
+
+	public void envelope(WebSocketEnvelope envelope) {
+	}
+
+	public static class Stuff {
+	}
+
+	public static class Other {
+	}
+}
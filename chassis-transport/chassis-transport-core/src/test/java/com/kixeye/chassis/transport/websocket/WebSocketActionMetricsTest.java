@@ -0,0 +1,131 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.codahale.metrics.MetricRegistry;
+import com.kixeye.chassis.transport.MetricsConfiguration;
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+
+/**
+ * Tests the {@link WebSocketActionMetrics}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketActionMetricsTest {
+
+	@Test
+	public void testActionMetrics() throws Exception {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(MetricsConfiguration.class);
+		context.register(MeteredWebSocketController.class);
+
+		try {
+			context.refresh();
+
+			context.getBean(WebSocketMessageRegistry.class).registerType("okMessage", OkMessage.class);
+
+			JsonJacksonMessageSerDe serDe = context.getBean(JsonJacksonMessageSerDe.class);
+			MetricRegistry metricRegistry = context.getBean(MetricRegistry.class);
+
+			Session session = Mockito.mock(Session.class);
+			Mockito.when(session.getRemote()).thenReturn(Mockito.mock(RemoteEndpoint.class));
+
+			ActionInvokingWebSocket webSocket = context.getBean(ActionInvokingWebSocket.class);
+			webSocket.setSerDe(serDe);
+			webSocket.onWebSocketConnect(session);
+
+			send(webSocket, serDe, new Envelope("ok", null, "1", null));
+			send(webSocket, serDe, new Envelope("ok", null, "2", null));
+			send(webSocket, serDe, new Envelope("fail", null, "3", null));
+
+			String prefix = MeteredWebSocketController.class.getName();
+
+			awaitCount(metricRegistry, MetricRegistry.name(prefix, "ok", "json", "round-trip"), 2);
+			awaitCount(metricRegistry, MetricRegistry.name(prefix, "fail", "json", "errors"), 1);
+
+			Assert.assertEquals(2, metricRegistry.getTimers().get(MetricRegistry.name(prefix, "ok", "json", "queue-wait")).getCount());
+			Assert.assertEquals(2, metricRegistry.getTimers().get(MetricRegistry.name(prefix, "ok", "json", "invoke")).getCount());
+			Assert.assertEquals(2, metricRegistry.getHistograms().get(MetricRegistry.name(prefix, "ok", "json", "inbound-bytes")).getCount());
+			Assert.assertEquals(2, metricRegistry.getHistograms().get(MetricRegistry.name(prefix, "ok", "json", "outbound-bytes")).getCount());
+			Assert.assertTrue(metricRegistry.getHistograms().get(MetricRegistry.name(prefix, "ok", "json", "outbound-bytes")).getSnapshot().getMin() > 0);
+			Assert.assertEquals(0, metricRegistry.getMeters().get(MetricRegistry.name(prefix, "ok", "json", "errors")).getCount());
+
+			Assert.assertNotNull(metricRegistry.getMeters().get(MetricRegistry.name(prefix, "fail", "json", "errors", "UNKNOWN")));
+		} finally {
+			context.close();
+		}
+	}
+
+	private static void send(ActionInvokingWebSocket webSocket, JsonJacksonMessageSerDe serDe, Envelope envelope) throws Exception {
+		byte[] frame = serDe.serialize(envelope);
+
+		webSocket.onWebSocketBinary(frame, 0, frame.length);
+	}
+
+	private static void awaitCount(MetricRegistry metricRegistry, String name, long count) throws Exception {
+		long timeout = System.currentTimeMillis() + 5000;
+
+		while (System.currentTimeMillis() < timeout) {
+			if (metricRegistry.getMetrics().containsKey(name) && count(metricRegistry, name) >= count) {
+				break;
+			}
+
+			Thread.sleep(5);
+		}
+
+		Assert.assertEquals(count, count(metricRegistry, name));
+	}
+
+	private static long count(MetricRegistry metricRegistry, String name) {
+		if (metricRegistry.getTimers().containsKey(name)) {
+			return metricRegistry.getTimers().get(name).getCount();
+		}
+
+		return metricRegistry.getMeters().get(name).getCount();
+	}
+
+	@WebSocketController
+	public static class MeteredWebSocketController {
+		@ActionMapping("ok")
+		public OkMessage ok() {
+			return new OkMessage();
+		}
+
+		@ActionMapping("fail")
+		public String fail() {
+			throw new IllegalStateException("failed");
+		}
+	}
+
+	public static class OkMessage {
+		public String value = "ok";
+	}
+}
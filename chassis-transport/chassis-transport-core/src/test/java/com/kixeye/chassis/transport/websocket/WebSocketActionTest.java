@@ -7,6 +7,8 @@ import org.springframework.core.MethodParameter;
 
 import java.lang.reflect.Method;
 
+import rx.Observable;
+
 /**
  * Unit tests for {@link WebSocketAction}
  *
@@ -149,6 +151,61 @@ public class WebSocketActionTest {
         Assert.fail();
     }
 
+    @Test
+    public void testActionWithManyParameters() throws Exception {
+        Method method = WebSocketActionTest.class.getMethod("handler", WebSocketSession.class, WebSocketEnvelope.class, String.class,
+                String.class, String.class, String.class, String.class, String.class);
+        WebSocketActionArgumentResolver argResolver = new WebSocketActionArgumentResolver() {
+            @Override
+            public boolean supportsParameter(MethodParameter parameter) {
+                return parameter.getParameterIndex() > 2;
+            }
+
+            @Override
+            public Object resolveArgument(MethodParameter parameter, WebSocketEnvelope envelope, WebSocketSession session) {
+                return String.valueOf(parameter.getParameterIndex());
+            }
+        };
+        WebSocketAction action = new WebSocketAction(method, null, argResolver);
+
+        RawWebSocketMessage message = Mockito.mock(RawWebSocketMessage.class);
+        WebSocketEnvelope envelope = Mockito.mock(WebSocketEnvelope.class);
+        Mockito.when(envelope.getTransactionId()).thenReturn("tx");
+        WebSocketSession session = Mockito.mock(WebSocketSession.class);
+
+        Assert.assertEquals("tx34567", action.invoke(this, message, envelope, session).getResult());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testActionExceptionIsNotWrapped() throws Exception {
+        Method method = WebSocketActionTest.class.getMethod("failingHandler");
+        WebSocketAction action = new WebSocketAction(method, null);
+
+        action.invoke(this, null, null, null);
+    }
+
+    @Test
+    public void testObservableIsOnlyStreamedWhenOptedIn() throws Exception {
+        WebSocketAction single = new WebSocketAction(WebSocketActionTest.class.getMethod("observableHandler"), null);
+        WebSocketAction streamed = new WebSocketAction(WebSocketActionTest.class.getMethod("streamedObservableHandler"), null);
+
+        Assert.assertFalse(single.streamsResponse());
+        Assert.assertEquals("first", single.invoke(this, null, null, null).getResult());
+
+        Assert.assertTrue(streamed.streamsResponse());
+        Assert.assertTrue(streamed.invoke(this, null, null, null).getResult() instanceof Observable);
+    }
+
+    @ActionMapping("observable")
+    public Observable<String> observableHandler() {
+        return Observable.from("first", "second");
+    }
+
+    @ActionMapping(value = "streamedObservable", streamResponse = true)
+    public Observable<String> streamedObservableHandler() {
+        return Observable.from("first", "second");
+    }
+
     public String handler(String arg1) {
         return arg1;
     }
@@ -164,4 +221,13 @@ public class WebSocketActionTest {
     public String handler(String arg1, String arg2) {
         return arg1 + arg2;
     }
+
+    public String handler(WebSocketSession session, WebSocketEnvelope envelope, @ActionTransactionId String transactionId, String arg3, String arg4,
+            String arg5, String arg6, String arg7) {
+        return transactionId + arg3 + arg4 + arg5 + arg6 + arg7;
+    }
+
+    public void failingHandler() {
+        throw new IllegalStateException();
+    }
 }
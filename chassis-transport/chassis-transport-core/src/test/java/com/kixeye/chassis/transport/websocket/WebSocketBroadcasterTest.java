@@ -0,0 +1,140 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.serde.MessageSerDe;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.serde.converter.YamlJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+
+/**
+ * Tests the {@link WebSocketBroadcaster}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketBroadcasterTest {
+
+	@Test
+	public void testBroadcastToTopic() throws Exception {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(TopicWebSocketController.class);
+
+		WebSocketClient wsClient = new WebSocketClient();
+
+		try {
+			context.refresh();
+
+			wsClient.start();
+
+			WebSocketMessageRegistry messageRegistry = context.getBean(WebSocketMessageRegistry.class);
+			messageRegistry.registerType("topicMessage", TopicMessage.class);
+
+			WebSocketBroadcaster broadcaster = context.getBean(WebSocketBroadcaster.class);
+
+			MessageSerDe jsonSerDe = context.getBean(JsonJacksonMessageSerDe.class);
+			MessageSerDe yamlSerDe = context.getBean(YamlJacksonMessageSerDe.class);
+
+			QueuingWebSocketListener[] listeners = new QueuingWebSocketListener[] {
+					new QueuingWebSocketListener(jsonSerDe, messageRegistry, null),
+					new QueuingWebSocketListener(jsonSerDe, messageRegistry, null),
+					new QueuingWebSocketListener(yamlSerDe, messageRegistry, null) };
+			MessageSerDe[] serDes = new MessageSerDe[] { jsonSerDe, jsonSerDe, yamlSerDe };
+			Session[] sessions = new Session[listeners.length];
+
+			for (int i = 0; i < listeners.length; i++) {
+				sessions[i] = wsClient.connect(listeners[i], new URI("ws://localhost:" + properties.get("websocket.port") + "/" + serDes[i].getMessageFormatName()))
+						.get(5000, TimeUnit.MILLISECONDS);
+
+				sessions[i].getRemote().sendBytes(ByteBuffer.wrap(serDes[i].serialize(new Envelope("subscribe", null, "" + i, null))));
+
+				TopicMessage response = listeners[i].getResponse(5, TimeUnit.SECONDS);
+
+				Assert.assertNotNull(response);
+				Assert.assertEquals("subscribed", response.value);
+			}
+
+			Assert.assertEquals(3, broadcaster.getSubscribers("news").size());
+
+			Assert.assertEquals(3, broadcaster.broadcast("news", "news", new TopicMessage("hello")));
+
+			for (QueuingWebSocketListener listener : listeners) {
+				TopicMessage message = listener.getResponse(5, TimeUnit.SECONDS);
+
+				Assert.assertNotNull(message);
+				Assert.assertEquals("hello", message.value);
+			}
+
+			// closed sessions leave their topics
+			sessions[0].close();
+
+			long timeout = System.currentTimeMillis() + 5000;
+
+			while (broadcaster.getSubscribers("news").size() > 2 && System.currentTimeMillis() < timeout) {
+				Thread.sleep(10);
+			}
+
+			Assert.assertEquals(2, broadcaster.getSubscribers("news").size());
+			Assert.assertEquals(2, broadcaster.broadcast("news", "news", new TopicMessage("bye")));
+		} finally {
+			try {
+				wsClient.stop();
+			} finally {
+				context.close();
+			}
+		}
+	}
+
+	@WebSocketController
+	public static class TopicWebSocketController {
+		@Autowired
+		private WebSocketBroadcaster broadcaster;
+
+		@ActionMapping("subscribe")
+		public TopicMessage subscribe(WebSocketSession session) {
+			broadcaster.subscribe("news", session);
+
+			return new TopicMessage("subscribed");
+		}
+	}
+
+	public static class TopicMessage {
+		public String value;
+
+		public TopicMessage() {
+		}
+
+		public TopicMessage(String value) {
+			this.value = value;
+		}
+	}
+}
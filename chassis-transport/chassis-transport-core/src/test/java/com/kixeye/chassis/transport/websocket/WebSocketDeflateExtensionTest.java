@@ -0,0 +1,256 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.IncomingFrames;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.frames.BinaryFrame;
+import org.eclipse.jetty.websocket.common.frames.ContinuationFrame;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.codahale.metrics.MetricRegistry;
+import com.netflix.config.ConfigurationManager;
+
+/**
+ * Tests the {@link WebSocketDeflateExtension} and the negotiation in {@link WebSocketCompression}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketDeflateExtensionTest {
+	private AnnotationConfigApplicationContext context;
+
+	private WebSocketCompression compression;
+
+	private final List<Frame> outgoing = new ArrayList<>();
+	private final List<Frame> incoming = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		context = new AnnotationConfigApplicationContext(MetricRegistry.class, WebSocketCompression.class);
+
+		compression = context.getBean(WebSocketCompression.class);
+	}
+
+	@After
+	public void tearDown() {
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.compression.enabled");
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.compression.json.enabled");
+		ConfigurationManager.getConfigInstance().clearProperty("websocket.compression.minMessageSize");
+
+		context.close();
+	}
+
+	@Test
+	public void testNegotiation() {
+		List<ExtensionConfig> offers = Arrays.asList(ExtensionConfig.parse("permessage-deflate; server_max_window_bits=10"),
+				ExtensionConfig.parse("permessage-deflate; client_max_window_bits"), ExtensionConfig.parse("x-webkit-deflate-frame"));
+
+		// disabled by default, other extensions are left alone
+		List<ExtensionConfig> accepted = compression.negotiate("json", offers);
+
+		Assert.assertEquals(1, accepted.size());
+		Assert.assertEquals("x-webkit-deflate-frame", accepted.get(0).getName());
+
+		// enabled for a single format
+		ConfigurationManager.getConfigInstance().setProperty("websocket.compression.json.enabled", "true");
+
+		Assert.assertEquals(1, compression.negotiate("xml", offers).size());
+
+		accepted = compression.negotiate("json", offers);
+
+		// the offer with a smaller server window is declined
+		Assert.assertEquals(2, accepted.size());
+		Assert.assertEquals(WebSocketDeflateExtension.NAME, accepted.get(0).getParameterizedName());
+		Assert.assertTrue(accepted.get(0) instanceof WebSocketDeflateExtension.Settings);
+		Assert.assertNotNull(((WebSocketDeflateExtension.Settings)accepted.get(0)).getRecorder());
+
+		// the format setting overrides the default
+		ConfigurationManager.getConfigInstance().setProperty("websocket.compression.enabled", "true");
+		ConfigurationManager.getConfigInstance().setProperty("websocket.compression.json.enabled", "false");
+
+		Assert.assertEquals(1, compression.negotiate("json", offers).size());
+		Assert.assertEquals(2, compression.negotiate("xml", offers).size());
+
+		// context takeover can be turned off by the client
+		accepted = compression.negotiate("xml", Arrays.asList(ExtensionConfig.parse("permessage-deflate; server_no_context_takeover; server_max_window_bits=15")));
+
+		Assert.assertTrue(((WebSocketDeflateExtension.Settings)accepted.get(0)).isServerNoContextTakeover());
+		Assert.assertEquals("15", accepted.get(0).getParameter(WebSocketDeflateExtension.SERVER_MAX_WINDOW_BITS, null));
+
+		// unknown parameters decline the offer
+		Assert.assertTrue(compression.negotiate("xml", Arrays.asList(ExtensionConfig.parse("permessage-deflate; unknown=1"))).isEmpty());
+	}
+
+	@Test
+	public void testCompressesLargeMessages() throws Exception {
+		WebSocketDeflateExtension extension = newExtension(false);
+
+		byte[] message = newMessage(4096);
+
+		extension.outgoingFrame(new BinaryFrame().setPayload(message), null);
+		extension.outgoingFrame(new BinaryFrame().setPayload(Arrays.copyOf(message, 100)), null);
+
+		Frame compressed = outgoing.get(0);
+
+		Assert.assertTrue(compressed.isRsv1());
+		Assert.assertTrue(compressed.getPayloadLength() < message.length);
+		Assert.assertArrayEquals(message, inflate(new Inflater(true), compressed));
+
+		// below the minimum size
+		Assert.assertFalse(outgoing.get(1).isRsv1());
+		Assert.assertEquals(100, outgoing.get(1).getPayloadLength());
+
+		MetricRegistry metricRegistry = context.getBean(MetricRegistry.class);
+
+		Assert.assertEquals(1, metricRegistry.getHistograms().get(MetricRegistry.name(WebSocketCompression.class, "json", "compression-ratio")).getCount());
+		Assert.assertEquals(1, metricRegistry.getTimers().get(MetricRegistry.name(WebSocketCompression.class, "json", "compress-cpu")).getCount());
+		Assert.assertEquals(1, metricRegistry.getMeters().get(MetricRegistry.name(WebSocketCompression.class, "json", "uncompressed-messages")).getCount());
+	}
+
+	@Test
+	public void testContextTakeover() throws Exception {
+		byte[] message = newMessage(2048);
+
+		// with context takeover the second copy of a message refers back to the first
+		WebSocketDeflateExtension extension = newExtension(false);
+		extension.outgoingFrame(new BinaryFrame().setPayload(message), null);
+		extension.outgoingFrame(new BinaryFrame().setPayload(message), null);
+
+		Inflater inflater = new Inflater(true);
+
+		Assert.assertArrayEquals(message, inflate(inflater, outgoing.get(0)));
+		Assert.assertArrayEquals(message, inflate(inflater, outgoing.get(1)));
+		Assert.assertTrue(outgoing.get(1).getPayloadLength() < outgoing.get(0).getPayloadLength());
+
+		outgoing.clear();
+
+		// without it every message inflates on its own
+		extension = newExtension(true);
+		extension.outgoingFrame(new BinaryFrame().setPayload(message), null);
+		extension.outgoingFrame(new BinaryFrame().setPayload(message), null);
+
+		Assert.assertEquals(outgoing.get(0).getPayloadLength(), outgoing.get(1).getPayloadLength());
+		Assert.assertArrayEquals(message, inflate(new Inflater(true), outgoing.get(1)));
+	}
+
+	@Test
+	public void testInflatesFragmentedMessages() throws Exception {
+		WebSocketDeflateExtension sender = newExtension(false);
+
+		byte[] message = newMessage(8192);
+
+		sender.outgoingFrame(new BinaryFrame().setPayload(message), null);
+
+		ByteBuffer compressed = outgoing.get(0).getPayload();
+		int split = compressed.remaining() / 2;
+
+		byte[] first = new byte[split];
+		byte[] second = new byte[compressed.remaining() - split];
+		compressed.get(first).get(second);
+
+		WebSocketDeflateExtension receiver = newExtension(false);
+
+		BinaryFrame firstFrame = new BinaryFrame().setPayload(first);
+		firstFrame.setFin(false);
+		firstFrame.setRsv1(true);
+
+		receiver.incomingFrame(firstFrame);
+		receiver.incomingFrame(new ContinuationFrame().setPayload(second));
+
+		// an uncompressed message passes through
+		receiver.incomingFrame(new BinaryFrame().setPayload("plain"));
+
+		Assert.assertEquals(3, incoming.size());
+		Assert.assertFalse(incoming.get(0).isRsv1());
+		Assert.assertFalse(incoming.get(0).isFin());
+		Assert.assertTrue(incoming.get(1).isFin());
+
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+		inflated.write(toBytes(incoming.get(0).getPayload()));
+		inflated.write(toBytes(incoming.get(1).getPayload()));
+
+		Assert.assertArrayEquals(message, inflated.toByteArray());
+		Assert.assertEquals("plain", new String(toBytes(incoming.get(2).getPayload()), "UTF-8"));
+	}
+
+	private WebSocketDeflateExtension newExtension(boolean noContextTakeover) {
+		ConfigurationManager.getConfigInstance().setProperty("websocket.compression.enabled", "true");
+		ConfigurationManager.getConfigInstance().setProperty("websocket.compression.minMessageSize", "1024");
+
+		String offer = noContextTakeover ? "permessage-deflate; server_no_context_takeover; client_no_context_takeover" : "permessage-deflate";
+
+		WebSocketDeflateExtension extension = new WebSocketDeflateExtension();
+		extension.setPolicy(WebSocketPolicy.newServerPolicy());
+		extension.setConfig(compression.negotiate("json", Arrays.asList(ExtensionConfig.parse(offer))).get(0));
+		extension.setNextOutgoingFrames(new OutgoingFrames() {
+			public void outgoingFrame(Frame frame, WriteCallback callback) {
+				outgoing.add(frame);
+			}
+		});
+		extension.setNextIncomingFrames(new IncomingFrames() {
+			public void incomingFrame(Frame frame) {
+				incoming.add(frame);
+			}
+
+			public void incomingError(Throwable t) {
+			}
+		});
+
+		return extension;
+	}
+
+	private static byte[] newMessage(int length) throws Exception {
+		StringBuilder message = new StringBuilder();
+
+		for (int i = 0; message.length() < length; i++) {
+			message.append("{\"action\":\"move\",\"x\":").append(i).append(",\"y\":").append(i * 7).append("}");
+		}
+
+		return message.substring(0, length).getBytes("UTF-8");
+	}
+
+	private static byte[] inflate(Inflater inflater, Frame frame) throws Exception {
+		byte[] input = toBytes(frame.getPayload());
+
+		inflater.setInput(concat(input, new byte[] { 0x00, 0x00, (byte)0xff, (byte)0xff }));
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int inflated;
+
+		while ((inflated = inflater.inflate(buffer)) > 0) {
+			output.write(buffer, 0, inflated);
+		}
+
+		return output.toByteArray();
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] result = Arrays.copyOf(first, first.length + second.length);
+
+		System.arraycopy(second, 0, result, first.length, second.length);
+
+		return result;
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+
+		buffer.duplicate().get(bytes);
+
+		return bytes;
+	}
+}
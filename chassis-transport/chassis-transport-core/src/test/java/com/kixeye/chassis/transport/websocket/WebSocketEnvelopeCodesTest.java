@@ -0,0 +1,237 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+import com.kixeye.chassis.transport.TransportConfiguration;
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.EnvelopeCodes;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.utils.SocketUtils;
+
+/**
+ * Tests the {@link WebSocketEnvelopeCodes}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketEnvelopeCodesTest {
+	private final JsonJacksonMessageSerDe serDe = new JsonJacksonMessageSerDe();
+
+	@Test
+	public void testCodesAreSorted() throws Exception {
+		WebSocketEnvelopeCodes codes = new WebSocketEnvelopeCodes(Arrays.asList("b", "a", WebSocketMessageMappingRegistry.WILDCARD_ACTION), Arrays.asList("y", "x"), 1);
+
+		Assert.assertEquals(Integer.valueOf(1), codes.getActionCode("a"));
+		Assert.assertEquals(Integer.valueOf(2), codes.getActionCode("b"));
+		Assert.assertNull(codes.getActionCode(WebSocketMessageMappingRegistry.WILDCARD_ACTION));
+		Assert.assertEquals("x", codes.getTypeId(1));
+		Assert.assertNull(codes.getTypeId(3));
+
+		EnvelopeCodes message = codes.toMessage();
+
+		Assert.assertEquals(Arrays.asList("a", "b"), message.actions);
+		Assert.assertEquals(Arrays.asList("x", "y"), message.types);
+	}
+
+	@Test
+	public void testCompactAndExpand() throws Exception {
+		WebSocketEnvelopeCodes codes = new WebSocketEnvelopeCodes(Arrays.asList("ping"), Arrays.asList("pong"), 1);
+
+		Envelope envelope = new Envelope("ping", "pong", "1", null);
+		envelope.envelopes = Collections.singletonList(new Envelope("unknown", "pong", "2", null));
+
+		codes.compact(envelope);
+
+		Assert.assertNull(envelope.action);
+		Assert.assertEquals(Integer.valueOf(1), envelope.actionCode);
+		Assert.assertEquals(Integer.valueOf(1), envelope.typeCode);
+		Assert.assertEquals(Integer.valueOf(codes.getVersion()), envelope.codesVersion);
+		Assert.assertNull(envelope.envelopes.get(0).codesVersion);
+
+		// actions without a code keep their name
+		Assert.assertEquals("unknown", envelope.envelopes.get(0).action);
+		Assert.assertEquals(Integer.valueOf(1), envelope.envelopes.get(0).typeCode);
+
+		// only the codes are left out when null, the other fields are serialized as they always were
+		String serialized = new String(serDe.serialize(envelope.envelopes.get(0)), "UTF-8");
+
+		Assert.assertFalse(serialized.contains("\"actionCode\""));
+		Assert.assertFalse(serialized.contains("\"codesVersion\""));
+		Assert.assertTrue(serialized.contains("\"typeId\":null"));
+
+		codes.expand(envelope);
+
+		Assert.assertEquals("ping", envelope.action);
+		Assert.assertEquals("pong", envelope.typeId);
+		Assert.assertNull(envelope.actionCode);
+
+		envelope.actionCode = 5;
+		envelope.codesVersion = codes.getVersion();
+
+		try {
+			codes.expand(envelope);
+
+			Assert.fail();
+		} catch (WebSocketServiceException e) {
+			Assert.assertEquals(WebSocketEnvelopeCodes.INVALID_ENVELOPE_CODE_ERROR_CODE, e.error.code);
+		}
+	}
+
+	@Test
+	public void testVersionFollowsContents() throws Exception {
+		WebSocketEnvelopeCodes codes = new WebSocketEnvelopeCodes(Arrays.asList("a", "c"), Arrays.asList("x"), 1);
+
+		Assert.assertEquals(codes.getVersion(), new WebSocketEnvelopeCodes(Arrays.asList("c", "a"), Arrays.asList("x"), 2).getVersion());
+		Assert.assertEquals(codes.getVersion(), codes.toMessage().version);
+
+		// a new action shifts the code of "c"
+		WebSocketEnvelopeCodes redeployed = new WebSocketEnvelopeCodes(Arrays.asList("a", "b", "c"), Arrays.asList("x"), 1);
+
+		Assert.assertNotEquals(codes.getVersion(), redeployed.getVersion());
+
+		Envelope envelope = new Envelope("c", "x", "1", null);
+
+		codes.compact(envelope);
+
+		try {
+			redeployed.expand(envelope);
+
+			Assert.fail();
+		} catch (WebSocketServiceException e) {
+			Assert.assertEquals(WebSocketEnvelopeCodes.INVALID_ENVELOPE_CODE_ERROR_CODE, e.error.code);
+		}
+
+		// codes without a version are rejected as well
+		envelope.codesVersion = null;
+
+		try {
+			codes.expand(envelope);
+
+			Assert.fail();
+		} catch (WebSocketServiceException e) {
+			Assert.assertEquals(WebSocketEnvelopeCodes.INVALID_ENVELOPE_CODE_ERROR_CODE, e.error.code);
+		}
+	}
+
+	@Test
+	public void testNegotiatedSession() throws Exception {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("websocket.enabled", "true");
+		properties.put("websocket.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("websocket.hostname", "localhost");
+
+		properties.put("http.enabled", "false");
+		properties.put("http.port", "" + SocketUtils.findAvailableTcpPort());
+		properties.put("http.hostname", "localhost");
+
+		AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("default", properties));
+		context.setEnvironment(environment);
+		context.register(PropertySourcesPlaceholderConfigurer.class);
+		context.register(TransportConfiguration.class);
+		context.register(CodesWebSocketController.class);
+
+		try {
+			context.refresh();
+
+			context.getBean(WebSocketMessageRegistry.class).registerType("codesMessage", CodesMessage.class);
+
+			ServletUpgradeRequest upgradeRequest = Mockito.mock(ServletUpgradeRequest.class);
+			Mockito.when(upgradeRequest.getParameterMap()).thenReturn(
+					Collections.singletonMap(ActionInvokingWebSocket.ENVELOPE_CODES_PARAMETER, Collections.singletonList("true")));
+
+			RemoteEndpoint remote = Mockito.mock(RemoteEndpoint.class);
+
+			Session session = Mockito.mock(Session.class);
+			Mockito.when(session.getRemote()).thenReturn(remote);
+
+			ActionInvokingWebSocket webSocket = context.getBean(ActionInvokingWebSocket.class);
+			webSocket.setSerDe(serDe);
+			webSocket.setUpgradeRequest(upgradeRequest);
+			webSocket.onWebSocketConnect(session);
+
+			// the session starts with the table of codes
+			List<Envelope> envelopes = awaitFrames(remote, 1);
+
+			Assert.assertEquals(ActionInvokingWebSocket.ENVELOPE_CODES_ACTION, envelopes.get(0).action);
+
+			EnvelopeCodes codes = deserialize(envelopes.get(0), EnvelopeCodes.class);
+
+			Envelope request = new Envelope();
+			request.actionCode = codes.actions.indexOf("codes") + 1;
+			request.codesVersion = codes.version;
+			request.transactionId = "1";
+
+			byte[] frame = serDe.serialize(request);
+
+			webSocket.onWebSocketBinary(frame, 0, frame.length);
+
+			Envelope response = awaitFrames(remote, 2).get(1);
+
+			Assert.assertNull(response.action);
+			Assert.assertNull(response.typeId);
+			Assert.assertEquals(Integer.valueOf(codes.version), response.codesVersion);
+			Assert.assertEquals("codes", codes.actions.get(response.actionCode - 1));
+			Assert.assertEquals("codesMessage", codes.types.get(response.typeCode - 1));
+			Assert.assertEquals("ok", deserialize(response, CodesMessage.class).value);
+		} finally {
+			context.close();
+		}
+	}
+
+	private <T> T deserialize(Envelope envelope, Class<T> clazz) throws Exception {
+		return serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(), envelope.payload.remaining(), clazz);
+	}
+
+	private List<Envelope> awaitFrames(RemoteEndpoint remote, int count) throws Exception {
+		ArgumentCaptor<ByteBuffer> frames = ArgumentCaptor.forClass(ByteBuffer.class);
+
+		Mockito.verify(remote, Mockito.timeout(5000).atLeast(count)).sendBytes(frames.capture(), Mockito.any(WriteCallback.class));
+
+		List<Envelope> envelopes = new ArrayList<>();
+
+		for (ByteBuffer frame : frames.getAllValues()) {
+			envelopes.add(serDe.deserialize(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), Envelope.class));
+		}
+
+		return envelopes;
+	}
+
+	@WebSocketController
+	public static class CodesWebSocketController {
+		@ActionMapping("codes")
+		public CodesMessage codes() {
+			return new CodesMessage("ok");
+		}
+	}
+
+	public static class CodesMessage {
+		public String value;
+
+		public CodesMessage() {
+		}
+
+		public CodesMessage(String value) {
+			this.value = value;
+		}
+	}
+}
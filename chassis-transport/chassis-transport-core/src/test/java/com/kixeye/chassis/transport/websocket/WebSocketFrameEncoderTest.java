@@ -0,0 +1,161 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+
+import com.kixeye.chassis.transport.dto.Envelope;
+import com.kixeye.chassis.transport.dto.Header;
+import com.kixeye.chassis.transport.serde.MessageSerDe;
+import com.kixeye.chassis.transport.serde.converter.BsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.serde.converter.JsonJacksonMessageSerDe;
+import com.kixeye.chassis.transport.serde.converter.ProtobufMessageSerDe;
+import com.kixeye.chassis.transport.serde.converter.XmlMessageSerDe;
+import com.kixeye.chassis.transport.serde.converter.YamlJacksonMessageSerDe;
+
+/**
+ * Tests the {@link WebSocketFrameEncoder}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketFrameEncoderTest {
+	private AnnotationConfigApplicationContext context;
+
+	private WebSocketFrameEncoder frameEncoder;
+
+	@Before
+	public void setUp() {
+		context = new AnnotationConfigApplicationContext(PropertySourcesPlaceholderConfigurer.class, WebSocketMessageRegistry.class,
+				WebSocketPskFrameProcessor.class, WebSocketFrameEncoder.class);
+
+		context.getBean(WebSocketMessageRegistry.class).registerType("encoderMessage", EncoderMessage.class);
+
+		frameEncoder = context.getBean(WebSocketFrameEncoder.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.close();
+	}
+
+	@Test
+	public void testSinglePassEncodingIsReadableByEveryFormat() throws Exception {
+		MessageSerDe[] serDes = new MessageSerDe[] { new JsonJacksonMessageSerDe(), new YamlJacksonMessageSerDe(), new BsonJacksonMessageSerDe(),
+				new ProtobufMessageSerDe(), new XmlMessageSerDe() };
+
+		for (MessageSerDe serDe : serDes) {
+			ByteBuffer frame = frameEncoder.encode(serDe, "test", "1", new EncoderMessage("hello"),
+					Collections.singletonList(new Header("name", Arrays.asList("a", "b"))));
+
+			Envelope envelope = serDe.deserialize(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), Envelope.class);
+
+			Assert.assertEquals(serDe.getMessageFormatName(), "test", envelope.action);
+			Assert.assertEquals(serDe.getMessageFormatName(), "1", envelope.transactionId);
+			Assert.assertEquals(serDe.getMessageFormatName(), "encoderMessage", envelope.typeId);
+			Assert.assertEquals(serDe.getMessageFormatName(), Arrays.asList("a", "b"), envelope.headers.get(0).value);
+			Assert.assertEquals(serDe.getMessageFormatName(), "hello", deserialize(serDe, envelope, EncoderMessage.class).value);
+		}
+	}
+
+	@Test
+	public void testJacksonEncodingMatchesEnvelopeSerialization() throws Exception {
+		MessageSerDe[] serDes = new MessageSerDe[] { new JsonJacksonMessageSerDe(), new YamlJacksonMessageSerDe(), new BsonJacksonMessageSerDe() };
+
+		for (MessageSerDe serDe : serDes) {
+			// null fields of an envelope without codes are written as they always were
+			Envelope envelope = new Envelope("test", "encoderMessage", null, ByteBuffer.wrap(serDe.serialize(new EncoderMessage("hello"))));
+
+			byte[] expected = serDe.serialize(envelope);
+
+			ByteBuffer frame = frameEncoder.encode(serDe, "test", null, new EncoderMessage("hello"));
+
+			byte[] actual = new byte[frame.remaining()];
+			frame.duplicate().get(actual);
+
+			Assert.assertArrayEquals(serDe.getMessageFormatName(), expected, actual);
+		}
+	}
+
+	@Test
+	public void testProtobufDecodeSlicesPayload() throws Exception {
+		ProtobufMessageSerDe serDe = new ProtobufMessageSerDe();
+
+		Envelope batch = new Envelope("batch", null, "b", Collections.singletonList(new Header("ordering", Collections.singletonList("ordered"))), null);
+		batch.envelopes = Arrays.asList(frameEncoder.newEnvelope(serDe, "test", "1", new EncoderMessage("one")), new Envelope("other", null, "2", null));
+		batch.actionCode = 300;
+
+		byte[] frame = serDe.serialize(batch);
+
+		Envelope envelope = frameEncoder.decode(serDe, frame, 0, frame.length);
+
+		Assert.assertEquals("batch", envelope.action);
+		Assert.assertEquals("b", envelope.transactionId);
+		Assert.assertNull(envelope.typeId);
+		Assert.assertEquals(Integer.valueOf(300), envelope.actionCode);
+		Assert.assertEquals("ordering", envelope.headers.get(0).name);
+		Assert.assertEquals("ordered", envelope.headers.get(0).value.get(0));
+		Assert.assertEquals(2, envelope.envelopes.size());
+		Assert.assertEquals("other", envelope.envelopes.get(1).action);
+
+		Envelope subEnvelope = envelope.envelopes.get(0);
+
+		Assert.assertEquals("encoderMessage", subEnvelope.typeId);
+		Assert.assertSame(frame, subEnvelope.payload.array());
+		Assert.assertEquals("one", deserialize(serDe, subEnvelope, EncoderMessage.class).value);
+
+		// a frame written in a single pass decodes the same way
+		ByteBuffer encoded = frameEncoder.encode(serDe, "test", "2", new EncoderMessage("two"));
+
+		envelope = frameEncoder.decode(serDe, encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+
+		Assert.assertEquals("test", envelope.action);
+		Assert.assertEquals("two", deserialize(serDe, envelope, EncoderMessage.class).value);
+	}
+
+	@Test
+	public void testProtobufPayloadMatchesProtostuff() throws Exception {
+		Assert.assertTrue(ProtobufEnvelopes.isSupported());
+
+		ProtobufMessageSerDe serDe = new ProtobufMessageSerDe();
+
+		char[] value = new char[200];
+		Arrays.fill(value, 'x');
+
+		for (EncoderMessage message : Arrays.asList(new EncoderMessage("short"), new EncoderMessage(new String(value)))) {
+			// the payload field goes first, so it has to be what protostuff writes for an envelope with just the payload
+			Envelope payloadOnly = new Envelope();
+			payloadOnly.payload = ByteBuffer.wrap(serDe.serialize(message));
+
+			byte[] expected = serDe.serialize(payloadOnly);
+
+			ByteBuffer frame = frameEncoder.encode(serDe, "test", "1", message);
+
+			byte[] actual = new byte[expected.length];
+			frame.duplicate().get(actual);
+
+			Assert.assertArrayEquals(expected, actual);
+		}
+	}
+
+	private static <T> T deserialize(MessageSerDe serDe, Envelope envelope, Class<T> clazz) throws Exception {
+		return serDe.deserialize(envelope.payload.array(), envelope.payload.arrayOffset() + envelope.payload.position(), envelope.payload.remaining(), clazz);
+	}
+
+	public static class EncoderMessage {
+		public String value;
+
+		public EncoderMessage() {
+		}
+
+		public EncoderMessage(String value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.kixeye.chassis.transport.websocket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link WebSocketOutboundTracker}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketOutboundTrackerTest {
+
+	@Test
+	public void testTracksPendingFrames() throws Exception {
+		WebSocketOutboundTracker tracker = new WebSocketOutboundTracker();
+
+		for (int i = 1; i <= 100; i++) {
+			Assert.assertTrue(tracker.offer(i, Long.MAX_VALUE, Integer.MAX_VALUE));
+		}
+
+		Assert.assertEquals(100, tracker.getMessages());
+		Assert.assertEquals(5050, tracker.getBytes());
+
+		Thread.sleep(10);
+
+		Assert.assertTrue(tracker.getLagMillis() >= 10);
+
+		for (int i = 1; i <= 50; i++) {
+			tracker.writeSuccess();
+		}
+
+		Assert.assertEquals(50, tracker.getMessages());
+		Assert.assertEquals(5050 - 1275, tracker.getBytes());
+
+		for (int i = 51; i <= 100; i++) {
+			tracker.writeFailed(new Exception("Expected"));
+		}
+
+		Assert.assertEquals(0, tracker.getMessages());
+		Assert.assertEquals(0, tracker.getBytes());
+		Assert.assertEquals(0, tracker.getLagMillis());
+	}
+
+	@Test
+	public void testRejectsFramesBeyondLimits() throws Exception {
+		WebSocketOutboundTracker tracker = new WebSocketOutboundTracker();
+
+		// a single frame may exceed the byte limit so that large messages still go out
+		Assert.assertTrue(tracker.offer(200, 100, 3));
+		Assert.assertFalse(tracker.offer(1, 100, 3));
+
+		tracker.writeSuccess();
+
+		Assert.assertTrue(tracker.offer(50, 100, 3));
+		Assert.assertTrue(tracker.offer(50, 100, 3));
+		Assert.assertFalse(tracker.offer(1, 100, 3));
+		Assert.assertTrue(tracker.offer(0, 100, 3));
+		Assert.assertFalse(tracker.offer(0, 100, 3));
+	}
+
+	@Test
+	public void testNoLimits() throws Exception {
+		WebSocketOutboundTracker tracker = new WebSocketOutboundTracker();
+
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(tracker.offer(1024, -1, -1));
+		}
+
+		Assert.assertEquals(100, tracker.getMessages());
+	}
+}
@@ -0,0 +1,215 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.config.DynamicPropertyFactory;
+
+/**
+ * Unit tests for {@link WebSocketSessionMailbox}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketSessionMailboxTest {
+
+	@Test
+	public void testTasksRunInOrder() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			WebSocketSessionMailbox mailbox = new WebSocketSessionMailbox(executor, null);
+
+			final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+			final CountDownLatch latch = new CountDownLatch(1000);
+
+			for (int i = 0; i < 1000; i++) {
+				final int value = i;
+
+				mailbox.execute(new Runnable() {
+					public void run() {
+						results.add(value);
+						latch.countDown();
+					}
+				});
+			}
+
+			Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+			for (int i = 0; i < 1000; i++) {
+				Assert.assertEquals(i, results.get(i).intValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testBoundedMailboxRejectsWhenFull() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			WebSocketSessionMailbox mailbox = new WebSocketSessionMailbox(executor,
+					DynamicPropertyFactory.getInstance().getIntProperty("websocket.test.mailbox.maxQueuedTasks", 2));
+
+			final CountDownLatch blocker = new CountDownLatch(1);
+			final CountDownLatch started = new CountDownLatch(1);
+
+			mailbox.execute(new Runnable() {
+				public void run() {
+					started.countDown();
+
+					try {
+						blocker.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+
+			Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+			mailbox.execute(new Runnable() {
+				public void run() {
+				}
+			});
+			mailbox.execute(new Runnable() {
+				public void run() {
+				}
+			});
+
+			try {
+				mailbox.execute(new Runnable() {
+					public void run() {
+					}
+				});
+
+				Assert.fail();
+			} catch (RejectedExecutionException e) {
+				// expected
+			}
+
+			Assert.assertEquals(2, mailbox.size());
+
+			blocker.countDown();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRejectionRejectsTasksQueuedMeanwhile() throws Exception {
+		final CountDownLatch scheduling = new CountDownLatch(1);
+		final CountDownLatch queued = new CountDownLatch(1);
+
+		// rejects the drainer, but only once another task was queued behind the first one
+		final WebSocketSessionMailbox mailbox = new WebSocketSessionMailbox(new Executor() {
+			public void execute(Runnable command) {
+				scheduling.countDown();
+
+				try {
+					queued.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				throw new RejectedExecutionException("saturated");
+			}
+		}, null);
+
+		final AtomicReference<RejectedExecutionException> firstRejection = new AtomicReference<>();
+
+		Thread first = new Thread() {
+			public void run() {
+				try {
+					mailbox.execute(new Runnable() {
+						public void run() {
+							Assert.fail();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					firstRejection.set(e);
+				}
+			}
+		};
+		first.start();
+
+		Assert.assertTrue(scheduling.await(5, TimeUnit.SECONDS));
+
+		final AtomicReference<RejectedExecutionException> secondRejection = new AtomicReference<>();
+
+		// accepted, since the mailbox is already trying to get a thread
+		mailbox.execute(new WebSocketSessionMailbox.Rejectable() {
+			public void run() {
+				Assert.fail();
+			}
+
+			public void reject(RejectedExecutionException e) {
+				secondRejection.set(e);
+			}
+		});
+
+		queued.countDown();
+		first.join(5000);
+
+		Assert.assertNotNull(firstRejection.get());
+		Assert.assertNotNull(secondRejection.get());
+		Assert.assertEquals(0, mailbox.size());
+	}
+
+	@Test
+	public void testSaturatedExecutorNeverRunsOnCaller() throws Exception {
+		Executor saturated = new Executor() {
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("saturated");
+			}
+		};
+
+		WebSocketSessionMailbox rejecting = new WebSocketSessionMailbox(saturated, null);
+
+		try {
+			rejecting.execute(new Runnable() {
+				public void run() {
+					Assert.fail();
+				}
+			});
+
+			Assert.fail();
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		Assert.assertEquals(0, rejecting.size());
+
+		ExecutorService fallback = Executors.newSingleThreadExecutor();
+
+		try {
+			WebSocketSessionMailbox mailbox = new WebSocketSessionMailbox(saturated, fallback, null);
+
+			final AtomicReference<Thread> ranOn = new AtomicReference<>();
+			final CountDownLatch latch = new CountDownLatch(1);
+
+			mailbox.execute(new Runnable() {
+				public void run() {
+					ranOn.set(Thread.currentThread());
+					latch.countDown();
+				}
+			});
+
+			Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+			Assert.assertNotSame(Thread.currentThread(), ranOn.get());
+		} finally {
+			fallback.shutdown();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.kixeye.chassis.transport.websocket;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link WebSocketSessionRegistry}
+ *
+ * @author ebahtijaragic
+ */
+public class WebSocketSessionRegistryTest {
+
+	@Test
+	public void testIndexFollowsProperties() {
+		WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		registry.addIndexedProperty("userId");
+
+		WebSocketSession session1 = new WebSocketSession(null);
+		WebSocketSession session2 = new WebSocketSession(null);
+
+		registry.register(session1);
+		registry.register(session2);
+
+		Assert.assertEquals(2, registry.size());
+		Assert.assertSame(session1, registry.getSession(session1.getId()));
+
+		session1.setProperty("userId", "1");
+		session2.setPropertyIfAbsent("userId", "1");
+
+		Assert.assertEquals(2, registry.getSessionsByProperty("userId", "1").size());
+
+		session2.setProperty("userId", "2");
+
+		Assert.assertEquals(Collections.singleton(session1), registry.getSessionsByProperty("userId", "1"));
+		Assert.assertEquals(Collections.singleton(session2), registry.getSessionsByProperty("userId", "2"));
+
+		session1.removeProperty("userId");
+
+		Assert.assertTrue(registry.getSessionsByProperty("userId", "1").isEmpty());
+
+		// properties that aren't indexed don't end up in an index
+		session1.setProperty("region", "us");
+
+		try {
+			registry.getSessionsByProperty("region", "us");
+
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAddIndexedPropertyIndexesExistingSessions() {
+		WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+
+		WebSocketSession session = new WebSocketSession(null);
+		session.setProperty("region", "us");
+
+		registry.register(session);
+		registry.addIndexedProperty("region");
+
+		Assert.assertEquals(Collections.singleton(session), registry.getSessionsByProperty("region", "us"));
+	}
+
+	@Test
+	public void testUnregisterRemovesSessionFromIndexes() {
+		WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		registry.addIndexedProperty("userId");
+
+		WebSocketSession session = new WebSocketSession(null);
+
+		registry.register(session);
+
+		session.setProperty("userId", "1");
+
+		registry.unregister(session);
+
+		Assert.assertEquals(0, registry.size());
+		Assert.assertNull(registry.getSession(session.getId()));
+		Assert.assertTrue(registry.getSessionsByProperty("userId", "1").isEmpty());
+
+		// a closed session no longer updates the indexes
+		session.setProperty("userId", "2");
+
+		Assert.assertTrue(registry.getSessionsByProperty("userId", "2").isEmpty());
+	}
+
+	@Test
+	public void testSessionsByPropertyFollowsIndex() {
+		WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		registry.addIndexedProperty("userId");
+
+		Set<WebSocketSession> sessions = registry.getSessionsByProperty("userId", "1");
+
+		WebSocketSession session1 = new WebSocketSession(null);
+		WebSocketSession session2 = new WebSocketSession(null);
+
+		registry.register(session1);
+		registry.register(session2);
+
+		session1.setProperty("userId", "1");
+
+		Assert.assertEquals(Collections.singleton(session1), sessions);
+
+		// the value is dropped from the index and indexed again
+		session1.removeProperty("userId");
+
+		Assert.assertTrue(sessions.isEmpty());
+
+		session2.setProperty("userId", "1");
+
+		Assert.assertEquals(Collections.singleton(session2), sessions);
+
+		try {
+			sessions.clear();
+
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+}
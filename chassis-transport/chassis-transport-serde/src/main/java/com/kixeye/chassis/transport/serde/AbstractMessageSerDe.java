@@ -0,0 +1,124 @@
+package com.kixeye.chassis.transport.serde;
+
+/*
+ * #%L
+ * Java Transport API
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implements the {@link ByteBuffer} methods of {@link MessageSerDe} on top of the array and stream methods.
+ * 
+ * Messages are serialized into a scratch buffer of the calling thread and copied into the target buffer once their
+ * size is known, so serializing into a pooled or direct buffer doesn't allocate a new array for every message. Buffers
+ * without an array are copied into a scratch buffer before they're deserialized.
+ * 
+ * @author ebahtijaragic
+ */
+public abstract class AbstractMessageSerDe implements MessageSerDe {
+	private static final int INITIAL_SCRATCH_CAPACITY = 4096;
+	private static final int MAX_RETAINED_SCRATCH_CAPACITY = 1024 * 1024;
+
+	private static final ThreadLocal<ScratchOutputStream> serializeScratch = new ThreadLocal<ScratchOutputStream>() {
+		protected ScratchOutputStream initialValue() {
+			return new ScratchOutputStream(INITIAL_SCRATCH_CAPACITY);
+		}
+	};
+
+	private static final ThreadLocal<ScratchOutputStream> deserializeScratch = new ThreadLocal<ScratchOutputStream>() {
+		protected ScratchOutputStream initialValue() {
+			return new ScratchOutputStream(INITIAL_SCRATCH_CAPACITY);
+		}
+	};
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.MessageSerDe#serialize(java.lang.Object, java.nio.ByteBuffer)
+	 */
+	public int serialize(Object obj, ByteBuffer buffer) throws IOException {
+		ScratchOutputStream scratch = serializeScratch.get();
+		scratch.reset();
+
+		try {
+			serialize(obj, scratch);
+
+			if (scratch.size() > buffer.remaining()) {
+				throw new BufferOverflowException();
+			}
+
+			buffer.put(scratch.getBuffer(), 0, scratch.size());
+
+			return scratch.size();
+		} finally {
+			release(serializeScratch, scratch);
+		}
+	}
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.MessageSerDe#serialize(java.lang.Object, com.kixeye.chassis.transport.serde.ByteBufferPool)
+	 */
+	public ByteBuffer serialize(Object obj, ByteBufferPool pool) throws IOException {
+		ScratchOutputStream scratch = serializeScratch.get();
+		scratch.reset();
+
+		try {
+			serialize(obj, scratch);
+
+			ByteBuffer buffer = pool.acquire(scratch.size());
+			buffer.put(scratch.getBuffer(), 0, scratch.size());
+			buffer.flip();
+
+			return buffer;
+		} finally {
+			release(serializeScratch, scratch);
+		}
+	}
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.MessageSerDe#deserialize(java.nio.ByteBuffer, java.lang.Class)
+	 */
+	public <T> T deserialize(ByteBuffer buffer, Class<T> clazz) throws IOException {
+		if (buffer.hasArray()) {
+			T obj = deserialize(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), clazz);
+
+			buffer.position(buffer.limit());
+
+			return obj;
+		}
+
+		ScratchOutputStream scratch = deserializeScratch.get();
+		scratch.reset();
+
+		try {
+			scratch.write(buffer);
+
+			return deserialize(scratch.getBuffer(), 0, scratch.size(), clazz);
+		} finally {
+			release(deserializeScratch, scratch);
+		}
+	}
+
+	private static void release(ThreadLocal<ScratchOutputStream> scratch, ScratchOutputStream out) {
+		// don't hold on to the buffers of unusually large messages
+		if (out.getCapacity() > MAX_RETAINED_SCRATCH_CAPACITY) {
+			scratch.remove();
+		}
+	}
+}
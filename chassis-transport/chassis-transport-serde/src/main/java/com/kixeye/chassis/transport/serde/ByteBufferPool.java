@@ -0,0 +1,66 @@
+package com.kixeye.chassis.transport.serde;
+
+/*
+ * #%L
+ * Java Transport API
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of byte buffers that serialized messages are written into.
+ * 
+ * @author ebahtijaragic
+ */
+public interface ByteBufferPool {
+	/**
+	 * Gets a cleared buffer with at least the given capacity.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	public ByteBuffer acquire(int capacity);
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used afterwards.
+	 * 
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer);
+
+	/**
+	 * Returns true if this pool hands out direct buffers.
+	 * 
+	 * @return
+	 */
+	public boolean isDirect();
+
+	/**
+	 * Gets the amount of buffers that were handed out from the pool.
+	 * 
+	 * @return
+	 */
+	public long getHits();
+
+	/**
+	 * Gets the amount of buffers that had to be allocated.
+	 * 
+	 * @return
+	 */
+	public long getMisses();
+}
@@ -0,0 +1,168 @@
+package com.kixeye.chassis.transport.serde;
+
+/*
+ * #%L
+ * Java Transport API
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ByteBufferPool} that keeps heap or direct buffers in power of two size classes.
+ * 
+ * Buffers larger than the largest size class are allocated and dropped without going through the pool.
+ * 
+ * @author ebahtijaragic
+ */
+public class DefaultByteBufferPool implements ByteBufferPool {
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MAX_BUFFERS_PER_SIZE = 64;
+
+	private static final int MIN_BUFFER_SIZE_SHIFT = 8;
+	private static final int MIN_BUFFER_SIZE = 1 << MIN_BUFFER_SIZE_SHIFT;
+
+	private final boolean direct;
+	private final int maxBufferSize;
+	private final int maxBuffersPerSize;
+
+	private final Queue<ByteBuffer>[] pools;
+	private final AtomicInteger[] pooledCounts;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * @param direct
+	 */
+	public DefaultByteBufferPool(boolean direct) {
+		this(direct, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_BUFFERS_PER_SIZE);
+	}
+
+	/**
+	 * @param direct whether to hand out direct buffers
+	 * @param maxBufferSize the largest size class, rounded up to a power of two
+	 * @param maxBuffersPerSize the most buffers kept per size class
+	 */
+	@SuppressWarnings("unchecked")
+	public DefaultByteBufferPool(boolean direct, int maxBufferSize, int maxBuffersPerSize) {
+		this.direct = direct;
+		this.maxBuffersPerSize = maxBuffersPerSize;
+
+		int sizeClasses = sizeClass(Math.max(MIN_BUFFER_SIZE, maxBufferSize)) + 1;
+
+		this.maxBufferSize = MIN_BUFFER_SIZE << (sizeClasses - 1);
+		this.pools = new Queue[sizeClasses];
+		this.pooledCounts = new AtomicInteger[sizeClasses];
+
+		for (int i = 0; i < sizeClasses; i++) {
+			pools[i] = new ConcurrentLinkedQueue<>();
+			pooledCounts[i] = new AtomicInteger(0);
+		}
+	}
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.ByteBufferPool#acquire(int)
+	 */
+	public ByteBuffer acquire(int capacity) {
+		if (capacity > maxBufferSize) {
+			misses.incrementAndGet();
+
+			return allocate(capacity);
+		}
+
+		int sizeClass = sizeClass(capacity);
+
+		ByteBuffer buffer = pools[sizeClass].poll();
+
+		if (buffer == null) {
+			misses.incrementAndGet();
+
+			return allocate(MIN_BUFFER_SIZE << sizeClass);
+		}
+
+		pooledCounts[sizeClass].decrementAndGet();
+		hits.incrementAndGet();
+
+		buffer.clear();
+
+		return buffer;
+	}
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.ByteBufferPool#release(java.nio.ByteBuffer)
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isDirect() != direct || buffer.isReadOnly()) {
+			return;
+		}
+
+		int capacity = buffer.capacity();
+
+		// only the buffers this pool allocated fit exactly into a size class
+		if (capacity < MIN_BUFFER_SIZE || capacity > maxBufferSize || Integer.bitCount(capacity) != 1) {
+			return;
+		}
+
+		int sizeClass = sizeClass(capacity);
+
+		if (pooledCounts[sizeClass].incrementAndGet() > maxBuffersPerSize) {
+			pooledCounts[sizeClass].decrementAndGet();
+
+			return;
+		}
+
+		pools[sizeClass].offer(buffer);
+	}
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.ByteBufferPool#isDirect()
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.ByteBufferPool#getHits()
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @see com.kixeye.chassis.transport.serde.ByteBufferPool#getMisses()
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private static int sizeClass(int capacity) {
+		if (capacity <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_BUFFER_SIZE_SHIFT;
+	}
+}
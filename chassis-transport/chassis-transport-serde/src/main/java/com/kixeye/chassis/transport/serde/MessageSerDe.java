@@ -23,6 +23,7 @@ package com.kixeye.chassis.transport.serde;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.google.common.net.MediaType;
 
@@ -50,6 +51,28 @@ public interface MessageSerDe {
 	 */
 	public byte[] serialize(Object obj) throws IOException;
 	
+	/**
+	 * Serializes an object into the given buffer, starting at its position.
+	 * 
+	 * @param obj
+	 * @param buffer
+	 * @return the amount of bytes written
+	 * @throws IOException
+	 * @throws java.nio.BufferOverflowException if the object doesn't fit, in which case nothing is written
+	 */
+	public int serialize(Object obj, ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Serializes an object into a buffer from the given pool. The returned buffer is ready to be read and should be
+	 * released back to the pool once it's no longer used.
+	 * 
+	 * @param obj
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer serialize(Object obj, ByteBufferPool pool) throws IOException;
+	
 	/**
 	 * Deserializes data into an object.
 	 * 
@@ -70,6 +93,16 @@ public interface MessageSerDe {
 	 * @return
 	 */
 	public <T> T deserialize(InputStream stream, Class<T> clazz) throws IOException;
+
+	/**
+	 * Deserializes the remaining data of a heap or direct buffer into an object. The buffer is left at its limit.
+	 * 
+	 * @param buffer
+	 * @param clazz
+	 * @return
+	 * @throws IOException
+	 */
+	public <T> T deserialize(ByteBuffer buffer, Class<T> clazz) throws IOException;
 	
 	/**
 	 * Gets the name of the message format.
@@ -0,0 +1,125 @@
+package com.kixeye.chassis.transport.serde;
+
+/*
+ * #%L
+ * Java Transport API
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable in-memory stream that exposes its buffer, so that it can be reused for every message a thread serializes
+ * and its contents can be read without copying them out first. It is not thread-safe.
+ *
+ * @author ebahtijaragic
+ */
+public class ScratchOutputStream extends OutputStream {
+	private byte[] buffer;
+	private int count;
+
+	/**
+	 * @param initialCapacity
+	 */
+	public ScratchOutputStream(int initialCapacity) {
+		this.buffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+
+		buffer[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+
+		System.arraycopy(b, off, buffer, count, len);
+
+		count += len;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer, which is left at its limit.
+	 *
+	 * @param src
+	 */
+	public void write(ByteBuffer src) {
+		int length = src.remaining();
+
+		ensureCapacity(count + length);
+
+		src.get(buffer, count, length);
+
+		count += length;
+	}
+
+	/**
+	 * Leaves room for bytes that are written into the buffer later on.
+	 *
+	 * @param length
+	 */
+	public void skip(int length) {
+		ensureCapacity(count + length);
+
+		count += length;
+	}
+
+	/**
+	 * Empties this stream and keeps its buffer.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Gets the amount of bytes written.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gets the buffer, which holds the written bytes up to {@link #size()}.
+	 *
+	 * @return
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Gets the capacity of the buffer.
+	 *
+	 * @return
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length << 1));
+		}
+	}
+}
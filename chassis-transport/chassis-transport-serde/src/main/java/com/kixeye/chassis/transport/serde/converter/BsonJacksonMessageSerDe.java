@@ -31,6 +31,7 @@ import com.fasterxml.jackson.datatype.guava.GuavaModule;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.fasterxml.jackson.module.scala.DefaultScalaModule$;
 import com.google.common.net.MediaType;
+import com.kixeye.chassis.transport.serde.AbstractMessageSerDe;
 import com.kixeye.chassis.transport.serde.JacksonMessageSerDe;
 import com.kixeye.chassis.transport.serde.bson.KixeyeBsonParser;
 
@@ -41,7 +42,7 @@ import de.undercouch.bson4jackson.BsonFactory;
  * 
  * @author ebahtijaragic
  */
-public class BsonJacksonMessageSerDe implements JacksonMessageSerDe {
+public class BsonJacksonMessageSerDe extends AbstractMessageSerDe implements JacksonMessageSerDe {
 	private static final String MESSAGE_FORMAT_NAME = "bson";
 	private static final MediaType[] SUPPORTED_MEDIA_TYPES = new MediaType[] { MediaType.create("application", MESSAGE_FORMAT_NAME) };
 
@@ -29,6 +29,7 @@ import com.fasterxml.jackson.datatype.guava.GuavaModule;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.fasterxml.jackson.module.scala.DefaultScalaModule$;
 import com.google.common.net.MediaType;
+import com.kixeye.chassis.transport.serde.AbstractMessageSerDe;
 import com.kixeye.chassis.transport.serde.JacksonMessageSerDe;
 
 /**
@@ -36,7 +37,7 @@ import com.kixeye.chassis.transport.serde.JacksonMessageSerDe;
  * 
  * @author ebahtijaragic
  */
-public class JsonJacksonMessageSerDe implements JacksonMessageSerDe {
+public class JsonJacksonMessageSerDe extends AbstractMessageSerDe implements JacksonMessageSerDe {
 	private static final String MESSAGE_FORMAT_NAME = "json";
 	private static final MediaType[] SUPPORTED_MEDIA_TYPES = new MediaType[] {
 		MediaType.create("application", MESSAGE_FORMAT_NAME),
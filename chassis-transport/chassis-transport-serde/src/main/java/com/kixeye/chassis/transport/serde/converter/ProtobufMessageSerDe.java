@@ -29,16 +29,23 @@ import com.dyuproject.protostuff.ProtobufIOUtil;
 import com.dyuproject.protostuff.Schema;
 import com.dyuproject.protostuff.runtime.RuntimeSchema;
 import com.google.common.net.MediaType;
-import com.kixeye.chassis.transport.serde.MessageSerDe;
+import com.kixeye.chassis.transport.serde.AbstractMessageSerDe;
 
 /**
  * JSON-based SerDe.
  * 
  * @author ebahtijaragic
  */
-public class ProtobufMessageSerDe implements MessageSerDe {
+public class ProtobufMessageSerDe extends AbstractMessageSerDe {
 	private static final String MESSAGE_FORMAT_NAME = "protobuf";
 	private static final MediaType[] SUPPORTED_MEDIA_TYPES = new MediaType[] { MediaType.create("application", MESSAGE_FORMAT_NAME) };
+
+	// protostuff only uses the buffer while it writes or reads, so every thread reuses its own
+	private static final ThreadLocal<LinkedBuffer> linkedBuffers = new ThreadLocal<LinkedBuffer>() {
+		protected LinkedBuffer initialValue() {
+			return LinkedBuffer.allocate(LinkedBuffer.DEFAULT_BUFFER_SIZE);
+		}
+	};
 	
 	/**
 	 * @see com.kixeye.chassis.transport.serde.MessageSerDe#serialize(java.lang.Object, java.io.OutputStream)
@@ -47,9 +54,13 @@ public class ProtobufMessageSerDe implements MessageSerDe {
 	public void serialize(Object obj, OutputStream stream) throws IOException {
 		Schema schema = RuntimeSchema.getSchema(obj.getClass());
 
-		LinkedBuffer linkedBuffer = LinkedBuffer.allocate(256);
+		LinkedBuffer linkedBuffer = linkedBuffers.get();
 		
-		ProtobufIOUtil.writeTo(stream, obj, schema, linkedBuffer);
+		try {
+			ProtobufIOUtil.writeTo(stream, obj, schema, linkedBuffer);
+		} finally {
+			linkedBuffer.clear();
+		}
 	}
 
 	/**
@@ -59,9 +70,13 @@ public class ProtobufMessageSerDe implements MessageSerDe {
 	public byte[] serialize(Object obj) throws IOException {
 		Schema schema = RuntimeSchema.getSchema(obj.getClass());
 
-		LinkedBuffer linkedBuffer = LinkedBuffer.allocate(256);
+		LinkedBuffer linkedBuffer = linkedBuffers.get();
 		
-		return ProtobufIOUtil.toByteArray(obj, schema, linkedBuffer);
+		try {
+			return ProtobufIOUtil.toByteArray(obj, schema, linkedBuffer);
+		} finally {
+			linkedBuffer.clear();
+		}
 	}
 
 	/**
@@ -85,9 +100,13 @@ public class ProtobufMessageSerDe implements MessageSerDe {
 
 		T obj = schema.newMessage();
 
-		LinkedBuffer linkedBuffer = LinkedBuffer.allocate(256);
+		LinkedBuffer linkedBuffer = linkedBuffers.get();
 		
-		ProtobufIOUtil.mergeFrom(stream, obj, schema, linkedBuffer);
+		try {
+			ProtobufIOUtil.mergeFrom(stream, obj, schema, linkedBuffer);
+		} finally {
+			linkedBuffer.clear();
+		}
 		
 		return obj;
 	}
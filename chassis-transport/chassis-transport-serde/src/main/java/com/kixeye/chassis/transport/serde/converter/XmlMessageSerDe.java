@@ -26,7 +26,7 @@ import java.io.OutputStream;
 
 import com.google.common.base.Charsets;
 import com.google.common.net.MediaType;
-import com.kixeye.chassis.transport.serde.MessageSerDe;
+import com.kixeye.chassis.transport.serde.AbstractMessageSerDe;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
 
@@ -35,7 +35,7 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
  * 
  * @author ebahtijaragic
  */
-public class XmlMessageSerDe implements MessageSerDe {
+public class XmlMessageSerDe extends AbstractMessageSerDe {
 	private static final String MESSAGE_FORMAT_NAME = "xml";
 	private static final MediaType[] SUPPORTED_MEDIA_TYPES = new MediaType[] { MediaType.create("application", MESSAGE_FORMAT_NAME), 
 		MediaType.create("text", MESSAGE_FORMAT_NAME) };
@@ -22,6 +22,7 @@ package com.kixeye.chassis.transport.serde;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
@@ -82,6 +83,86 @@ public class SerDeTest {
 		}
 	}
 	
+	@Test
+	public void testByteBufferSerDes() throws Exception {
+		for (MessageSerDe serDe : Lists.newArrayList(new BsonJacksonMessageSerDe(), new JsonJacksonMessageSerDe(), new ProtobufMessageSerDe(), new XmlMessageSerDe(), new YamlJacksonMessageSerDe())) {
+			for (ByteBufferPool pool : Lists.newArrayList(new DefaultByteBufferPool(false), new DefaultByteBufferPool(true))) {
+				logger.info("Testing SerDe: [{}], with direct buffers: [{}]", serDe.getMessageFormatName(), pool.isDirect());
+				
+				TestObject testObject = TestObject.generateRandom(1, true);
+				
+				// serialize into a pooled buffer
+				ByteBuffer serializedTestObject = serDe.serialize(testObject, pool);
+				
+				Assert.assertEquals(pool.isDirect(), serializedTestObject.isDirect());
+				Assert.assertEquals(serDe.serialize(testObject).length, serializedTestObject.remaining());
+				
+				// test deserialization
+				Assert.assertEquals(testObject, serDe.deserialize(serializedTestObject, TestObject.class));
+				Assert.assertFalse(serializedTestObject.hasRemaining());
+				
+				pool.release(serializedTestObject);
+				
+				// the released buffer is handed out again
+				Assert.assertSame(serializedTestObject, serDe.serialize(testObject, pool));
+				Assert.assertEquals(1, pool.getHits());
+				Assert.assertEquals(1, pool.getMisses());
+				
+				// serialize into a given buffer
+				ByteBuffer buffer = pool.isDirect() ? ByteBuffer.allocateDirect(64 * 1024) : ByteBuffer.allocate(64 * 1024);
+				buffer.position(3);
+				
+				int length = serDe.serialize(testObject, buffer);
+				
+				Assert.assertEquals(3 + length, buffer.position());
+				
+				buffer.flip().position(3);
+				
+				Assert.assertEquals(testObject, serDe.deserialize(buffer, TestObject.class));
+				
+				// nothing is written into a buffer that's too small
+				ByteBuffer smallBuffer = ByteBuffer.allocate(8);
+				
+				try {
+					serDe.serialize(testObject, smallBuffer);
+					
+					Assert.fail();
+				} catch (BufferOverflowException e) {
+					Assert.assertEquals(0, smallBuffer.position());
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testByteBufferPool() throws Exception {
+		DefaultByteBufferPool pool = new DefaultByteBufferPool(false, 1024, 1);
+		
+		ByteBuffer buffer = pool.acquire(300);
+		
+		Assert.assertEquals(512, buffer.capacity());
+		
+		ByteBuffer otherBuffer = pool.acquire(500);
+		
+		pool.release(buffer);
+		pool.release(otherBuffer);
+		
+		// only one buffer is kept per size
+		Assert.assertSame(buffer, pool.acquire(400));
+		Assert.assertNotSame(otherBuffer, pool.acquire(400));
+		
+		// large buffers bypass the pool
+		ByteBuffer largeBuffer = pool.acquire(5000);
+		
+		Assert.assertEquals(5000, largeBuffer.capacity());
+		
+		pool.release(largeBuffer);
+		
+		Assert.assertNotSame(largeBuffer, pool.acquire(5000));
+		Assert.assertEquals(1, pool.getHits());
+		Assert.assertEquals(5, pool.getMisses());
+	}
+	
 	public static class TestObject {
 		public TestObject sampleInnerObject;
 		